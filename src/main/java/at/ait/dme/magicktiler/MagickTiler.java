@@ -21,32 +21,87 @@
 
 package at.ait.dme.magicktiler;
 
+import java.awt.Point;
+import java.awt.Rectangle;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.file.Files;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.im4java.core.IM4JavaException;
 
+import at.ait.dme.magicktiler.image.BandReader;
 import at.ait.dme.magicktiler.image.ImageInfo;
 import at.ait.dme.magicktiler.image.ImageFormat;
 import at.ait.dme.magicktiler.image.ImageProcessor;
+import at.ait.dme.magicktiler.image.IntermediateFormat;
+import at.ait.dme.magicktiler.image.LosslessJPEGCropper;
+import at.ait.dme.magicktiler.image.ProcessGroup;
+import at.ait.dme.magicktiler.image.ResamplingFilter;
+import at.ait.dme.magicktiler.image.TileEncoder;
+import at.ait.dme.magicktiler.image.TileWriter;
+import at.ait.dme.magicktiler.image.TileWriter.Durability;
+import at.ait.dme.magicktiler.image.TiledTIFF;
 import at.ait.dme.magicktiler.image.ImageProcessor.ImageProcessingSystem;
 import at.ait.dme.magicktiler.Stripe.Orientation;
 
 /**
  * The base class for all supported tile scheme implementations.
+ * <br><br>
+ * A configured tiler can serve any number of concurrent conversions: each call to
+ * {@link #convert(File, File)} works on its own copy of the tiler (see {@link #newRun()}),
+ * which holds the state of that conversion - such as the tileset root directory - and
+ * writes its intermediate files to its own temp directory within the working directory.
  * 
  * @author Rainer Simon <magicktiler@gmail.com>
  * @author Christian Sadilek <christian.sadilek@gmail.com>
  */
-public abstract class MagickTiler {
+public abstract class MagickTiler implements Cloneable {
 
   private static Logger log = Logger.getLogger(MagickTiler.class);
 
+  /**
+   * Name prefix of the temp directories of conversions
+   */
+  private static final String TEMP_PREFIX = "magicktiler-";
+
+  /**
+   * The strategies for computing the zoom levels above the base level
+   */
+  public enum PyramidMode {
+    /**
+     * Each level is computed from the stripes of the level beneath (one level at a time)
+     */
+    STRIPES,
+
+    /**
+     * Each level is computed directly from the source image, all levels in parallel
+     */
+    LEVEL_PARALLEL,
+
+    /**
+     * Each tile is computed from its four child tiles, depth-first over the tile quadtree
+     */
+    QUADTREE,
+
+    /**
+     * Each tile is computed from its four encoded child tiles, one level at a time
+     */
+    TILES
+  }
+
   /**
    * Image processor initialized with default values
    */
@@ -59,10 +114,31 @@ public abstract class MagickTiler {
   protected File workingDirectory = new File(".");
 
   /**
-   * Root directory for the target tileset
+   * Fast working directory, e.g. on a RAM disk (default: none)
+   */
+  protected File fastWorkingDirectory = null;
+
+  /**
+   * Maximum number of bytes per conversion in the fast working directory
+   */
+  protected long fastWorkingDirectoryQuota = 0;
+
+  /**
+   * Root directory for the target tileset (of the current conversion)
    */
   protected File tilesetRootDir = null;
 
+  /**
+   * Directory for the intermediate files of the current conversion, a unique
+   * subdirectory of the working directory
+   */
+  protected File tempDirectory = null;
+
+  /**
+   * Root directory of the tileset generated by the most recent conversion
+   */
+  private volatile File lastTilesetRootDir = null;
+
   /**
    * Tile width (default: 256)
    */
@@ -79,18 +155,79 @@ public abstract class MagickTiler {
   protected boolean generatePreview = false;
 
   /**
-   * get the tileset root directory
+   * Flag indicating whether base level tiles should be cut losslessly from
+   * JPEG source images where possible (default: false)
+   */
+  protected boolean losslessJPEGBaseTiles = false;
+
+  /**
+   * The strategy used to compute the zoom levels (default: STRIPES)
+   */
+  protected PyramidMode pyramidMode = PyramidMode.STRIPES;
+
+  /**
+   * Maximum number of image processing tasks run in parallel (default: no. of processors)
+   */
+  protected int threads = Runtime.getRuntime().availableProcessors();
+
+  /**
+   * Images with more pixels than this are striped by streaming them band by band,
+   * where possible (default: 100 megapixels)
+   */
+  protected long streamingThreshold = 100000000L;
+
+  /**
+   * Flag indicating whether JPEG 2000 images should be decoded region by region,
+   * in parallel, where the image processing system supports it (default: true)
+   */
+  protected boolean parallelJP2Decoding = true;
+
+  /**
+   * Temp disk budget per conversion, in bytes (default: no limit)
+   */
+  protected long tempDiskBudget = Long.MAX_VALUE;
+
+  /**
+   * Temp disk accounting of the current conversion
+   */
+  protected TempDiskBudget tempDisk = new TempDiskBudget(Long.MAX_VALUE);
+
+  /**
+   * Number of I/O threads writing in-process tiles behind the tiling threads (default: 0 = synchronous writes)
+   */
+  protected int tileWriterThreads = 0;
+
+  /**
+   * Durability policy of the tile writer
+   */
+  protected Durability tileDurability = Durability.NONE;
+
+  /**
+   * Tile writer of the current conversion (or null)
+   */
+  protected TileWriter tileWriter = null;
+
+  /**
+   * Listener for the phases and progress of conversions (or null)
+   */
+  protected ProgressListener progressListener = null;
+
+  /**
+   * Returns the root directory of the tileset generated by the most recently completed
+   * conversion. (If the tiler is used for concurrent conversions, it is best to pass
+   * the target to {@link #convert(File, File)} instead.)
    * 
    * @return tileset root dir
    */
   public File getTilesetRootDir() {
-    return tilesetRootDir;
+    return lastTilesetRootDir;
   }
 
   /**
    * Set the working directory for this tiler implementation. The working
-   * directory is used to store intermediate files (if any). After the
-   * tileset is rendered, the working directory will be emptied.
+   * directory is used to store intermediate files (if any), in a separate
+   * temp directory per conversion. After the tileset is rendered, the temp
+   * directory will be deleted.
    * 
    * @param workingDirectory the working directory
    */
@@ -98,6 +235,24 @@ public abstract class MagickTiler {
     this.workingDirectory = workingDirectory;
   }
 
+  /**
+   * Sets a fast working directory (e.g. /dev/shm) as a first tier for the
+   * intermediate stripes and level images. Each file is placed in the fast
+   * directory if its predicted size fits the quota, otherwise in the working
+   * directory. Since stripes are deleted as soon as they are merged, the
+   * smaller stripes of the upper zoom levels move to the fast directory once
+   * the larger ones of the levels beneath are gone.
+   * 
+   * @param directory the fast working directory (or null for none)
+   * @param quota the maximum number of bytes per conversion in the fast directory
+   */
+  public void setFastWorkingDirectory(File directory, long quota) {
+    if (directory != null && quota <= 0)
+      throw new IllegalArgumentException("Fast working directory quota must be positive: " + quota);
+    this.fastWorkingDirectory = directory;
+    this.fastWorkingDirectoryQuota = quota;
+  }
+
   /**
    * Sets the image processing system for this tiler implementation.
    * 
@@ -138,6 +293,41 @@ public abstract class MagickTiler {
     processor.setJPEGQuality(quality);
   }
 
+  /**
+   * Sets the filter used to scale each zoom level down to the next, trading speed
+   * ({@link ResamplingFilter#BOX}) for quality ({@link ResamplingFilter#LANCZOS}).
+   * The filter applies to all pyramid steps, whether they are computed by the image
+   * processing system or in-process. If no filter is set (the default), the image
+   * processing system's defaults are used, and levels computed in-process use the
+   * box filter.
+   * 
+   * @param filter the resampling filter
+   */
+  public void setResamplingFilter(ResamplingFilter filter) {
+    processor.setResamplingFilter(filter);
+  }
+
+  /**
+   * Sets the format of the intermediate stripes and level images written by the image
+   * processing system, trading speed ({@link IntermediateFormat#MPC}, the default) for
+   * temp disk space ({@link IntermediateFormat#TIFF_LZW}). Stripes streamed in-process
+   * are always written as uncompressed TIFF.
+   * 
+   * @param format the intermediate format
+   */
+  public void setIntermediateFormat(IntermediateFormat format) {
+    processor.setIntermediateFormat(format);
+  }
+
+  /**
+   * Returns the file extension (including the dot) of intermediate images.
+   * 
+   * @return the extension
+   */
+  protected String getIntermediateExtension() {
+    return "." + processor.getIntermediateFormat().getExtension();
+  }
+
   /**
    * If set to true, an HTML file will be generated which
    * displays the rendered tileset in an OpenLayers map. 
@@ -147,6 +337,158 @@ public abstract class MagickTiler {
     this.generatePreview = generatePreview;
   }
 
+  /**
+   * If set to true (default: false), base level tiles are cut from JPEG source images
+   * without decoding and re-encoding them, wherever the tile grid is aligned with the
+   * JPEG's MCU grid. This only applies if the tile format is JPEG. Note that these tiles
+   * retain the compression quality and the APPn segments (e.g. EXIF, ICC profile) of the
+   * source image - the JPEG compression quality only applies to the remaining tiles.
+   * 
+   * @param lossless set to true to cut base level tiles losslessly
+   */
+  public void setLosslessJPEGBaseTiles(boolean lossless) {
+    this.losslessJPEGBaseTiles = lossless;
+  }
+
+  /**
+   * Sets the strategy for computing the zoom levels of the pyramid. With
+   * {@link PyramidMode#STRIPES} (the default), each level is computed from the
+   * level beneath, one level after the other. With {@link PyramidMode#LEVEL_PARALLEL}
+   * each level is rendered independently from the source image, with all levels
+   * being processed in parallel. The decoder is asked for a reduced-scale image,
+   * which makes the upper levels cheap to compute. This is only possible for JPEG
+   * sources; for all other sources the tilers fall back to STRIPES mode. This is
+   * faster on multi-core machines, but needs more memory (several levels are in
+   * memory at the same time) and the upper levels are resampled once from the
+   * source rather than repeatedly from the level beneath, which may result in
+   * slightly different (usually sharper) tiles. With {@link PyramidMode#QUADTREE},
+   * only the base level is tiled from stripes; all other tiles are computed in-process
+   * from their four child tiles, depth-first and in parallel. This needs no intermediate
+   * files above the base level and only little memory, even for very large images.
+   * {@link PyramidMode#TILES} works the same way, but level by level: each tile is
+   * an independent task that decodes its four child tiles from disk. This needs even
+   * less memory than the quadtree, at the cost of decoding each tile once more.
+   * Please note that not all tilers may support all modes!
+   * 
+   * @param mode the pyramid mode
+   */
+  public void setPyramidMode(PyramidMode mode) {
+    this.pyramidMode = mode;
+  }
+
+  /**
+   * Sets the maximum number of image processing tasks this tiler runs
+   * in parallel.
+   * 
+   * @param threads the number of threads
+   */
+  public void setThreads(int threads) {
+    if (threads < 1)
+      throw new IllegalArgumentException("threads must be at least 1");
+    this.threads = threads;
+  }
+
+  /**
+   * Sets the image size (in pixels) above which source images are striped by
+   * reading them in bands of scanlines, rather than by handing the whole image to
+   * GraphicsMagick. This keeps memory usage proportional to the band size. Streaming
+   * is currently supported for TIFF images (requires an ImageIO TIFF reader, which is
+   * included in Java 9 and later). Set to 0 to stream all supported images.
+   * 
+   * @param pixels the threshold in pixels
+   */
+  public void setStreamingThreshold(long pixels) {
+    this.streamingThreshold = pixels;
+  }
+
+  /**
+   * If set to true (the default), JPEG 2000 images are not converted to an intermediate
+   * TIF file before tiling. Instead, the stripes are decoded straight from the JPEG 2000
+   * file, region by region and in parallel. This requires ImageMagick built with OpenJPEG
+   * (GraphicsMagick always decodes the full image), so it only applies if ImageMagick is
+   * selected as image processing system.
+   * 
+   * @param parallel set to false to always convert JPEG 2000 images to TIF first
+   */
+  public void setParallelJP2Decoding(boolean parallel) {
+    this.parallelJP2Decoding = parallel;
+  }
+
+  /**
+   * Sets the temp disk space a conversion may use for its intermediate stripes and
+   * level images. Stripes are always deleted as soon as they have been merged into the
+   * next zoom level; if zoom levels are computed in parallel
+   * ({@link PyramidMode#LEVEL_PARALLEL}), a level is only started when its estimated
+   * temp space fits the budget. The peak temp disk usage is logged after each conversion.
+   * 
+   * @param bytes the budget in bytes
+   */
+  public void setTempDiskBudget(long bytes) {
+    if (bytes <= 0)
+      throw new IllegalArgumentException("Temp disk budget must be positive: " + bytes);
+    this.tempDiskBudget = bytes;
+  }
+
+  /**
+   * Enables writing behind for tiles that are rendered in-process (e.g. in
+   * {@link PyramidMode#QUADTREE} and {@link PyramidMode#TILES} mode, for mosaics and
+   * composite tilesets): the tiling threads queue the encoded tiles, and the given
+   * number of I/O threads create the tile directories and write the tiles, grouped
+   * by directory. Tiles cut by the image processing system are not affected.
+   * 
+   * @param threads the number of I/O threads (0 to write tiles synchronously)
+   * @param durability when written tiles are synced to disk
+   */
+  public void setTileWriter(int threads, Durability durability) {
+    if (threads < 0)
+      throw new IllegalArgumentException("Invalid number of tile writer threads: " + threads);
+    this.tileWriterThreads = threads;
+    this.tileDurability = durability;
+  }
+
+  /**
+   * Sets a listener for the phases and progress of conversions.
+   * 
+   * @param listener the listener (or null)
+   */
+  public void setProgressListener(ProgressListener listener) {
+    this.progressListener = listener;
+  }
+
+  /**
+   * Starts the GraphicsMagick/ImageMagick processes of conversions as processes of
+   * the given group, so that the conversions can be cancelled by cancelling the group.
+   * 
+   * @param group the process group (or null)
+   */
+  public void setProcessGroup(ProcessGroup group) {
+    processor.setProcessGroup(group);
+  }
+
+  /**
+   * Returns the file for a new intermediate image of the current conversion, in the
+   * fast working directory if its predicted size fits, otherwise in the temp directory.
+   * 
+   * @param name the file name
+   * @param width the image width
+   * @param height the image height
+   * @return the file
+   */
+  protected File createTempFile(String name, int width, int height) {
+    return new File(tempDisk.place(tempDirectory, estimateTempBytes(width, height), name), name);
+  }
+
+  /**
+   * Estimates the temp disk space of an intermediate image.
+   * 
+   * @param width the image width
+   * @param height the image height
+   * @return the estimate in bytes
+   */
+  protected long estimateTempBytes(int width, int height) {
+    return (long) width * height * processor.getIntermediateFormat().getBytesPerPixel();
+  }
+
   /**
    * Generate a new tile set from the specified image file.
    * The tileset will be produced in the same directory as the
@@ -157,7 +499,7 @@ public abstract class MagickTiler {
    * @throws TilingException if anything goes wrong
    */
   public TilesetInfo convert(File image) throws TilingException {
-    return convert(image, tilesetRootDir);
+    return convert(image, (File) null);
   }
 
   /**
@@ -170,26 +512,123 @@ public abstract class MagickTiler {
    * @throws TilingException if anything goes wrong
    */
   public TilesetInfo convert(File image, File target) throws TilingException {
+    return execute(newRun(), image, target);
+  }
+
+  /**
+   * Creates a copy of this tiler for one conversion. The copy shares the configuration
+   * of this tiler (with a copy of the image processor, so changing this tiler's settings
+   * does not affect running conversions), but not its per-conversion state.
+   * 
+   * @return the copy
+   */
+  protected MagickTiler newRun() {
+    try {
+      MagickTiler run = (MagickTiler) clone();
+      run.processor = new ImageProcessor(processor);
+      run.tilesetRootDir = null;
+      run.tempDirectory = null;
+      run.tempDisk = new TempDiskBudget(tempDiskBudget);
+      run.tileWriter = null;
+      return run;
+    } catch (CloneNotSupportedException e) {
+      throw new IllegalStateException(e.getMessage());
+    }
+  }
+
+  /**
+   * Runs a conversion on a copy of this tiler (see {@link #newRun()}), in a new temp
+   * directory, which is deleted afterwards.
+   * 
+   * @param run the copy
+   * @param input the input file
+   * @param target the target directory for the tileset (or null)
+   * @return some information about the generated tileset
+   * @throws TilingException if anything goes wrong
+   */
+  protected TilesetInfo execute(MagickTiler run, File input, File target) throws TilingException {
+    if (!workingDirectory.exists() && !workingDirectory.mkdirs())
+      throw new TilingException("Problem creating directory:" + workingDirectory);
+    try {
+      run.tempDirectory = Files.createTempDirectory(workingDirectory.toPath(), TEMP_PREFIX).toFile();
+    } catch (IOException e) {
+      throw new TilingException("Problem creating temp directory in " + workingDirectory + ": " + e.getMessage());
+    }
+    if (fastWorkingDirectory != null) {
+      try {
+        if (!fastWorkingDirectory.exists() && !fastWorkingDirectory.mkdirs())
+          throw new IOException("Problem creating directory:" + fastWorkingDirectory);
+        run.tempDisk.setFastTier(Files.createTempDirectory(fastWorkingDirectory.toPath(), TEMP_PREFIX).toFile(),
+            fastWorkingDirectoryQuota);
+      } catch (IOException e) {
+        log.warn("Not using fast working directory " + fastWorkingDirectory + ": " + e.getMessage());
+      }
+    }
+    if (tileWriterThreads > 0)
+      run.tileWriter = new TileWriter(tileWriterThreads, tileDurability);
+
+    boolean completed = false;
+    try {
+      TilesetInfo info = run.convertFile(input, target);
+      completed = true;
+      lastTilesetRootDir = run.tilesetRootDir;
+      log.info("Peak temp disk usage: " + (run.tempDisk.getPeak() >> 20) + " MB");
+      return info;
+    } finally {
+      try {
+        closeTileWriter(run, completed);
+      } finally {
+        deleteRecursively(run.tempDirectory);
+        if (run.tempDisk.getFastDirectory() != null)
+          deleteRecursively(run.tempDisk.getFastDirectory());
+      }
+    }
+  }
+
+  /**
+   * Waits until the tile writer of a run has written all tiles, and stops it.
+   * Errors are only reported if the conversion itself completed.
+   */
+  private static void closeTileWriter(MagickTiler run, boolean completed) throws TilingException {
+    if (run.tileWriter == null)
+      return;
+    try {
+      run.tileWriter.close();
+    } catch (IOException e) {
+      if (completed)
+        throw new TilingException(e.getMessage());
+      log.error(e.getMessage());
+    }
+  }
+
+  /**
+   * Generates a new tileset from the specified input file, as part of a run
+   * (see {@link #execute(MagickTiler, File, File)}).
+   * 
+   * @param image the image file
+   * @param target the target directory for the tileset (or null)
+   * @return some information about the generated tileset
+   * @throws TilingException if anything goes wrong
+   */
+  protected TilesetInfo convertFile(File image, File target) throws TilingException {
     TilesetInfo info = null;
     tilesetRootDir = target;
 
-    if (!workingDirectory.exists())
-      createDir(workingDirectory);
     String name = image.getName();
     String baseName = name.indexOf('.') > -1 ? name.substring(0, name.lastIndexOf('.')) : name;
     createTargetDir(baseName);
 
-    if (image.getAbsolutePath().endsWith("jp2")) {
+    if (image.getAbsolutePath().endsWith("jp2") && isRegionDecodable(image)) {
+      log.info("JPEG 2000 - Decoding stripes in parallel");
+      info = convert(image, new TilesetInfo(image, tileWidth, tileHeight, processor));
+    } else if (image.getAbsolutePath().endsWith("jp2")) {
       try {
         long startTime = System.currentTimeMillis();
         log.info("JPEG 2000 - Converting to intermediate TIF for faster processing");
-        File tif = convertToTIF(image);
+        File tif = convertToTIF(image, new File(tempDirectory, baseName + ".tif"));
         log.info("Took " + (System.currentTimeMillis() - startTime) + " ms.");
 
         info = convert(tif, new TilesetInfo(tif, tileWidth, tileHeight, processor));
-
-        if (!tif.delete())
-          log.error("Failed to delete TIF file:" + tif);
       } catch (Exception e) {
         throw new TilingException(e.getMessage());
       }
@@ -202,6 +641,19 @@ public abstract class MagickTiler {
 
   protected abstract TilesetInfo convert(File image, TilesetInfo info) throws TilingException;
 
+  /**
+   * Writes the metadata files of this tiling scheme (and the HTML preview, if
+   * requested) for a tileset whose tiles have already been generated - e.g. by
+   * the {@link at.ait.dme.magicktiler.composite.CompositeTiler}. Does nothing
+   * for schemes without metadata.
+   * 
+   * @param info the tileset info
+   * @param target the tileset root directory
+   * @throws TilingException if anything goes wrong
+   */
+  public void writeMetadata(TilesetInfo info, File target) throws TilingException {
+  }
+
   /**
    * Create the target tileset root directory
    * 
@@ -220,6 +672,33 @@ public abstract class MagickTiler {
     }
   }
 
+  /**
+   * Returns a prefix for temporary file names of the current conversion, which is
+   * unique among all conversions in the same working directory.
+   * 
+   * @return the prefix
+   */
+  protected String getTempPrefix() {
+    return tempDirectory.getName();
+  }
+
+  /**
+   * Deletes a directory and its contents.
+   */
+  private static void deleteRecursively(File dir) {
+    File[] files = dir.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isDirectory())
+          deleteRecursively(file);
+        else if (!file.delete())
+          log.error("Failed to delete temp file:" + file);
+      }
+    }
+    if (!dir.delete())
+      log.error("Failed to delete temp directory:" + dir);
+  }
+
   /**
    * Create a directory and throw a {@link TilingException} when unsuccessful
    * 
@@ -294,32 +773,488 @@ public abstract class MagickTiler {
       int canvasWidth, int canvasHeight, String gravity, String outfilePrefix) throws IOException,
       InterruptedException, IM4JavaException, TilingException {
 
-    String targetPattern = workingDirectory.getAbsolutePath() + File.separator + outfilePrefix + "%d.tif";
-    if (canvasHeight == height && canvasWidth == width) {
-      processor.crop(image.getAbsolutePath(), targetPattern, width, height);
-    } else {
-      processor.crop(image.getAbsolutePath(), targetPattern, width, height, canvasWidth, canvasHeight, gravity);
+    if (BandReader.canStream(image)) {
+      List<Stripe> streamed = streamStripes(image, orientation, stripes, width, height, canvasWidth, canvasHeight,
+          gravity, outfilePrefix);
+      if (streamed != null)
+        return tempDisk.add(streamed);
     }
 
-    // Assemble the list of Stripes
+    if (isRegionDecodable(image))
+      return tempDisk.add(decodeStripes(image, orientation, stripes, width, height, canvasWidth, canvasHeight,
+          gravity, outfilePrefix));
+
+    String extension = getIntermediateExtension();
+    String[] names = new String[stripes];
+    for (int i = 0; i < stripes; i++)
+      names[i] = outfilePrefix + i + extension;
+    File directory = tempDisk.place(tempDirectory, stripes * estimateTempBytes(canvasWidth, canvasHeight), names);
     List<Stripe> resultStripes = new ArrayList<Stripe>();
-    int h = canvasHeight;
-    int w = canvasWidth;
-    for (int i = 0; i < stripes; i++) {
-      // in case the last stripe has a different width or height
-      if (i == (stripes - 1)) {
-        ImageInfo lastStripe = new ImageInfo(new File(workingDirectory, outfilePrefix + i + ".tif"),
-            processor.getImageProcessingSystem());
-        h = lastStripe.getHeight();
-        w = lastStripe.getWidth();
+    try {
+      String targetPattern = directory.getAbsolutePath() + File.separator + outfilePrefix + "%d" + extension;
+      if (canvasHeight == height && canvasWidth == width) {
+        processor.crop(image.getAbsolutePath(), targetPattern, width, height);
+      } else {
+        processor.crop(image.getAbsolutePath(), targetPattern, width, height, canvasWidth, canvasHeight, gravity);
       }
 
-      // Somewhat risky to not check whether GM has generated all stripes correctly - but checking would take time...
-      resultStripes.add(new Stripe(new File(workingDirectory, outfilePrefix + i + ".tif"), w, h, orientation));
+      // Assemble the list of Stripes
+      int h = canvasHeight;
+      int w = canvasWidth;
+      for (int i = 0; i < stripes; i++) {
+        // in case the last stripe has a different width or height
+        if (i == (stripes - 1)) {
+          ImageInfo lastStripe = new ImageInfo(new File(directory, names[i]),
+              processor.getImageProcessingSystem());
+          h = lastStripe.getHeight();
+          w = lastStripe.getWidth();
+        }
+
+        // Somewhat risky to not check whether GM has generated all stripes correctly - but checking takes time...
+        resultStripes.add(new Stripe(new File(directory, names[i]), w, h, orientation));
+      }
+    } finally {
+      if (resultStripes.size() < stripes)
+        tempDisk.discard(directory, names);
     }
+
+    long bytes = 0;
+    for (Stripe stripe : resultStripes)
+      bytes += tempDisk.add(stripe.getImageFile());
+    log.debug("Wrote " + stripes + " stripes as " + processor.getIntermediateFormat() + ": " + (bytes >> 20)
+        + " MB temp disk space");
     return resultStripes;
   }
 
+  /**
+   * Checks whether the stripes of an image can be decoded region by region
+   * (see {@link #setParallelJP2Decoding(boolean)}).
+   * 
+   * @param image the image {@link File}
+   * @return true if the image should be striped by region decoding
+   */
+  private boolean isRegionDecodable(File image) {
+    String name = image.getName().toLowerCase();
+    return parallelJP2Decoding && processor.getImageProcessingSystem() == ImageProcessingSystem.IMAGEMAGICK
+        && (name.endsWith(".jp2") || name.endsWith(".j2k"));
+  }
+
+  /**
+   * Stripes an image by decoding each stripe's region separately, in parallel.
+   * The parameters are the same as for
+   * {@link #stripeImage(File, Orientation, int, int, int, int, int, String, String)}.
+   */
+  private List<Stripe> decodeStripes(final File image, Orientation orientation, int stripes, int width,
+      int height, int canvasWidth, int canvasHeight, final String gravity, String outfilePrefix)
+      throws TilingException {
+
+    ImageInfo imageInfo = new ImageInfo(image, processor.getImageProcessingSystem());
+    boolean pad = (canvasWidth != width || canvasHeight != height);
+
+    List<Stripe> resultStripes = new ArrayList<Stripe>();
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int i = 0; i < stripes; i++) {
+      final int x = (orientation == Orientation.VERTICAL) ? i * width : 0;
+      final int y = (orientation == Orientation.HORIZONTAL) ? i * height : 0;
+      final int w = Math.min(width, imageInfo.getWidth() - x);
+      final int h = Math.min(height, imageInfo.getHeight() - y);
+      if (w <= 0 || h <= 0)
+        break;
+
+      final int cw = pad ? canvasWidth : w;
+      final int ch = pad ? canvasHeight : h;
+      final File stripe = createTempFile(outfilePrefix + i + getIntermediateExtension(), cw, ch);
+      resultStripes.add(new Stripe(stripe, cw, ch, orientation));
+      tasks.add(new Callable<Void>() {
+        public Void call() throws Exception {
+          processor.extractRegion(image.getAbsolutePath(), stripe.getAbsolutePath(), w, h, x, y, cw, ch, gravity);
+          return null;
+        }
+      });
+    }
+
+    long startTime = System.currentTimeMillis();
+    try {
+      runInParallel(tasks);
+    } catch (TilingException e) {
+      for (Stripe stripe : resultStripes)
+        tempDisk.delete(stripe.getImageFile());
+      throw e;
+    }
+    log.debug("Decoded " + tasks.size() + " stripes in " + (System.currentTimeMillis() - startTime) + " ms");
+    return resultStripes;
+  }
+
+  /**
+   * Renders a zoom level of the pyramid directly from the source image,
+   * using reduced-scale decoding where the image format supports it.
+   * 
+   * @param image the source image {@link File}
+   * @param info the {@link TilesetInfo}
+   * @param zoomlevel the zoom level (0 = base level)
+   * @param baseName the base name for the intermediate file
+   * @return the level image in the working directory
+   * @throws TilingException if anything goes wrong
+   */
+  protected File createLevelImage(File image, TilesetInfo info, int zoomlevel, String baseName)
+      throws TilingException {
+
+    File levelImage = createTempFile(baseName + "-level" + zoomlevel + getIntermediateExtension(),
+        info.getLevelWidth(zoomlevel), info.getLevelHeight(zoomlevel));
+    try {
+      processor.resizeReducedScale(image.getAbsolutePath(), levelImage.getAbsolutePath(),
+          info.getLevelWidth(zoomlevel), info.getLevelHeight(zoomlevel));
+    } catch (Exception e) {
+      tempDisk.delete(levelImage);
+      throw new TilingException(e.getMessage());
+    }
+    tempDisk.add(levelImage);
+    return levelImage;
+  }
+
+  /**
+   * Falls back to {@link PyramidMode#STRIPES} if {@link PyramidMode#LEVEL_PARALLEL} is
+   * selected for a source image that is not a JPEG: only JPEG sources can be decoded at
+   * reduced scale, any other source would be decoded at full resolution for every level.
+   * Must only be called on the copy of this tiler for one conversion (see {@link #newRun()}).
+   * 
+   * @param image the source image {@link File}
+   */
+  protected void checkLevelParallelSource(File image) {
+    if (pyramidMode == PyramidMode.LEVEL_PARALLEL && !ImageProcessor.isJPEG(image)) {
+      log.info("Pyramid mode " + pyramidMode + " needs a JPEG source, falling back to " + PyramidMode.STRIPES);
+      pyramidMode = PyramidMode.STRIPES;
+    }
+  }
+
+  /**
+   * Computes all zoom levels above the base level from the base level tiles, which
+   * must already exist. In {@link PyramidMode#QUADTREE} mode, the tiles are computed
+   * depth-first by the {@link QuadtreePyramid} engine; otherwise level by level, with
+   * one task per tile.
+   * 
+   * @param layout the {@link TileLayout} of the tiling scheme
+   * @throws TilingException if anything goes wrong
+   */
+  protected void buildPyramidFromTiles(TileLayout layout) throws TilingException {
+    final TileDownsampler downsampler = new TileDownsampler(layout, tilesetRootDir, createTileEncoder(),
+        getBackgroundARGB(), processor.getResamplingFilter());
+
+    long startTime = System.currentTimeMillis();
+    if (pyramidMode == PyramidMode.QUADTREE) {
+      startPhase("Computing quadtree pyramid");
+      try {
+        new QuadtreePyramid(downsampler).build(threads);
+      } catch (IOException e) {
+        throw new TilingException(e.getMessage());
+      }
+      log.debug("Computed quadtree pyramid in " + (System.currentTimeMillis() - startTime) + " ms");
+      return;
+    }
+
+    for (int z = 1; z < layout.getTilesetInfo().getZoomLevels(); z++) {
+      startPhase("Tiling level " + (z + 1));
+      final int zoomlevel = z;
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for (int col = 0; col < layout.getColumns(z); col++) {
+        for (int row = 0; row < layout.getRows(z); row++) {
+          final int c = col;
+          final int r = row;
+          tasks.add(new Callable<Void>() {
+            public Void call() throws IOException {
+              downsampler.renderTile(zoomlevel, c, r);
+              return null;
+            }
+          });
+        }
+      }
+      runInParallel(tasks);
+    }
+    log.debug("Computed pyramid from tiles in " + (System.currentTimeMillis() - startTime) + " ms");
+  }
+
+  /**
+   * Returns the background color as an ARGB value, for tiles rendered in-process.
+   * 
+   * @return the background color
+   * @throws TilingException if the background color cannot be parsed
+   */
+  protected int getBackgroundARGB() throws TilingException {
+    try {
+      return StripeStreamer.parseColor(processor.getBackground());
+    } catch (IllegalArgumentException e) {
+      throw new TilingException(e.getMessage() + " (use #rrggbb or #rrggbbaa)");
+    }
+  }
+
+  /**
+   * Creates an encoder for tiles rendered in-process, with the
+   * tile format and quality settings of this tiler. The tiles are
+   * written behind if the conversion has a tile writer.
+   * 
+   * @return the tile encoder
+   */
+  protected TileEncoder createTileEncoder() {
+    return new TileEncoder(processor.getImageFormat(), processor.getJPEGQuality(), tileWriter);
+  }
+
+  /**
+   * Waits until the tile writer (if any) has written all tiles encoded so far. Required
+   * before in-process tiles are read or moved by anything but the {@link TileDownsampler}.
+   * 
+   * @throws IOException if a tile could not be written
+   */
+  protected void flushTiles() throws IOException {
+    if (tileWriter != null)
+      tileWriter.flush();
+  }
+
+  /**
+   * Logs the start of a phase of the conversion, and reports it to the progress listener.
+   * 
+   * @param phase the phase description
+   */
+  protected void startPhase(String phase) {
+    log.debug(phase);
+    if (progressListener != null)
+      progressListener.phaseStarted(phase);
+  }
+
+  /**
+   * Runs the given tasks on at most {@link #threads} threads and waits
+   * until all of them have completed, reporting the completed tasks to
+   * the progress listener.
+   * 
+   * @param tasks the tasks
+   * @throws TilingException if any of the tasks failed
+   */
+  protected void runInParallel(List<Callable<Void>> tasks) throws TilingException {
+    if (tasks.isEmpty())
+      return;
+
+    ExecutorService executor = Executors.newFixedThreadPool(Math.min(threads, tasks.size()));
+    try {
+      List<Future<Void>> results = new ArrayList<Future<Void>>();
+      for (Callable<Void> task : tasks)
+        results.add(executor.submit(task));
+
+      TilingException failure = null;
+      int completed = 0;
+      for (Future<Void> result : results) {
+        try {
+          result.get();
+        } catch (ExecutionException e) {
+          if (failure == null) {
+            failure = (e.getCause() instanceof TilingException) ? (TilingException) e.getCause()
+                : new TilingException(e.getCause().getMessage());
+          }
+        }
+        if (progressListener != null)
+          progressListener.progress(++completed, results.size());
+      }
+      if (failure != null)
+        throw failure;
+    } catch (InterruptedException e) {
+      throw new TilingException(e.getMessage());
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Stripes an image by reading it band by band, if it exceeds the streaming
+   * threshold. The parameters are the same as for
+   * {@link #stripeImage(File, Orientation, int, int, int, int, int, String, String)}.
+   * 
+   * @return the list of {@link Stripe}s, or null if the image was not streamed
+   */
+  private List<Stripe> streamStripes(File image, Orientation orientation, int stripes, int width, int height,
+      int canvasWidth, int canvasHeight, String gravity, String outfilePrefix) {
+
+    BandReader reader = null;
+    String[] names = new String[stripes];
+    File directory = null;
+    boolean streamed = false;
+    try {
+      reader = new BandReader(image);
+      if ((long) reader.getWidth() * reader.getHeight() < streamingThreshold)
+        return null;
+
+      for (int i = 0; i < stripes; i++)
+        names[i] = outfilePrefix + i + ".tif";
+      directory = tempDisk.place(tempDirectory, stripes * estimateTempBytes(canvasWidth, canvasHeight), names);
+
+      long startTime = System.currentTimeMillis();
+      List<Stripe> result = new StripeStreamer(reader, processor.getBackground()).stream(orientation, stripes,
+          width, height, canvasWidth, canvasHeight, gravity, directory, outfilePrefix);
+      log.debug("Streamed " + result.size() + " stripes in " + (System.currentTimeMillis() - startTime) + " ms");
+      streamed = true;
+      return result;
+    } catch (IllegalArgumentException e) {
+      log.debug("Not streaming " + image.getName() + ": " + e.getMessage());
+    } catch (IOException e) {
+      log.warn("Streaming failed, falling back to " + processor.getImageProcessingSystem() + ": " + e.getMessage());
+    } finally {
+      // Not streamed - release the placement of the stripes, and remove partial ones
+      if (directory != null && !streamed) {
+        for (String name : names)
+          tempDisk.delete(new File(directory, name));
+      }
+      if (reader != null) {
+        try {
+          reader.close();
+        } catch (IOException e) {
+          log.error("Error closing image: " + e.getMessage());
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Generates all base level tiles that can be taken from the source image without
+   * running it through the image processing system: from the internal tiles of a tiled
+   * TIFF (see {@link #extractTiledTIFFBaseTiles(File, TileLayout)}), or by cutting
+   * them losslessly from a JPEG (see {@link #cropLosslessBaseTiles(File, TileLayout)}).
+   * 
+   * @param image the source image {@link File}
+   * @param layout the {@link TileLayout} of the tiling scheme
+   * @return the (column, row) positions of the tiles that were generated
+   * @throws TilingException if a tile directory cannot be created
+   */
+  protected Set<Point> generateBaseTilesFromSource(File image, TileLayout layout) throws TilingException {
+    Set<Point> tiles = extractTiledTIFFBaseTiles(image, layout);
+    return tiles.isEmpty() ? cropLosslessBaseTiles(image, layout) : tiles;
+  }
+
+  /**
+   * Generates all base level tiles from a tiled TIFF (or BigTIFF) source image,
+   * using random access to its internal tiles. Tiles whose geometry and compression
+   * match the internal tiles are copied, all others are rendered from the internal
+   * tiles they overlap. Columns are processed in parallel.
+   * 
+   * @param image the source image {@link File}
+   * @param layout the {@link TileLayout} of the tiling scheme
+   * @return the (column, row) positions of the tiles that were generated (all or none)
+   * @throws TilingException if a tile directory cannot be created
+   */
+  protected Set<Point> extractTiledTIFFBaseTiles(File image, final TileLayout layout) throws TilingException {
+    Set<Point> tiles = new HashSet<Point>();
+    if (!TiledTIFF.isTIFF(image))
+      return tiles;
+
+    TiledTIFF tiff = null;
+    try {
+      tiff = new TiledTIFF(image);
+      if (!TiledTIFFTileExtractor.isSupported(tiff))
+        return tiles;
+
+      log.info("Tiled TIFF - Extracting base tiles from internal tiles");
+      long startTime = System.currentTimeMillis();
+      final TiledTIFFTileExtractor extractor = new TiledTIFFTileExtractor(tiff, layout, tilesetRootDir,
+          createTileEncoder(), StripeStreamer.parseColor(processor.getBackground()));
+
+      for (int col = 0; col < layout.getColumns(0); col++) {
+        for (int row = 0; row < layout.getRows(0); row++)
+          tiles.add(new Point(col, row));
+      }
+
+      // Split the columns into one range per thread
+      final AtomicInteger copied = new AtomicInteger();
+      int columns = layout.getColumns(0);
+      int ranges = Math.min(threads, columns);
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for (int i = 0; i < ranges; i++) {
+        final int fromCol = i * columns / ranges;
+        final int toCol = (i + 1) * columns / ranges;
+        tasks.add(new Callable<Void>() {
+          public Void call() throws Exception {
+            copied.addAndGet(extractor.extract(fromCol, toCol));
+            return null;
+          }
+        });
+      }
+      runInParallel(tasks);
+
+      log.debug("Extracted " + tiles.size() + " base tiles (" + copied.get() + " copied) in "
+          + (System.currentTimeMillis() - startTime) + " ms");
+    } catch (IllegalArgumentException e) {
+      log.debug("No base tiles from tiled TIFF: " + e.getMessage());
+      tiles.clear();
+    } catch (Exception e) {
+      // Fall back to the regular way for all tiles
+      log.warn("Extracting tiles from tiled TIFF failed: " + e.getMessage());
+      for (Point p : tiles)
+        layout.getTileFile(tilesetRootDir, 0, p.x, p.y).delete();
+      tiles.clear();
+    } finally {
+      if (tiff != null) {
+        try {
+          tiff.close();
+        } catch (IOException e) {
+          log.error("Error closing TIFF: " + e.getMessage());
+        }
+      }
+    }
+    return tiles;
+  }
+
+  /**
+   * Cuts all base level tiles that are entirely covered by the image and aligned with
+   * the MCU grid losslessly from a JPEG source image. The remaining tiles (e.g. padded
+   * border tiles) must be generated the regular way.
+   * 
+   * @param image the source image {@link File}
+   * @param layout the {@link TileLayout} of the tiling scheme
+   * @return the (column, row) positions of the tiles that were generated
+   * @throws TilingException if a tile directory cannot be created
+   */
+  protected Set<Point> cropLosslessBaseTiles(File image, TileLayout layout) throws TilingException {
+    Set<Point> tiles = new HashSet<Point>();
+    String name = image.getName().toLowerCase();
+    if (!losslessJPEGBaseTiles || processor.getImageFormat() != ImageFormat.JPEG
+        || !(name.endsWith(".jpg") || name.endsWith(".jpeg")))
+      return tiles;
+
+    LosslessJPEGCropper cropper;
+    try {
+      cropper = new LosslessJPEGCropper(image);
+    } catch (IOException e) {
+      log.debug("No lossless base tiles: " + e.getMessage());
+      return tiles;
+    }
+    if (tileWidth % cropper.getMCUWidth() != 0 || tileHeight % cropper.getMCUHeight() != 0)
+      return tiles;
+
+    long startTime = System.currentTimeMillis();
+    for (int col = 0; col < layout.getColumns(0); col++) {
+      for (int row = 0; row < layout.getRows(0); row++) {
+        Rectangle region = layout.getSourceRegion(col, row);
+        if (layout.isCoveredByImage(col, row) && cropper.canCrop(region)) {
+          File tile = layout.getTileFile(tilesetRootDir, 0, col, row);
+          if (!tile.getParentFile().mkdirs() && !tile.getParentFile().isDirectory())
+            throw new TilingException("Problem creating directory:" + tile.getParentFile());
+          cropper.addCrop(region, tile);
+          tiles.add(new Point(col, row));
+        }
+      }
+    }
+
+    try {
+      cropper.execute();
+    } catch (IOException e) {
+      // Fall back to the regular way for all tiles
+      log.warn("Lossless crop failed, re-encoding base tiles: " + e.getMessage());
+      for (Point p : tiles)
+        layout.getTileFile(tilesetRootDir, 0, p.x, p.y).delete();
+      tiles.clear();
+      return tiles;
+    }
+    log.debug("Cut " + tiles.size() + " base tiles losslessly in " + (System.currentTimeMillis() - startTime)
+        + " ms");
+    return tiles;
+  }
+
   /**
    * Utility method that converts any supported input
    * file to TIF. This makes sense e.g. for JPEG 2000, since
@@ -328,18 +1263,15 @@ public abstract class MagickTiler {
    * overall.
    * 
    * @param file the input file
+   * @param out the TIF result file
    * @return the TIF result file
    * @throws IM4JavaException 
    * @throws InterruptedException 
    * @throws IOException 
    */
-  private File convertToTIF(File file) throws IOException, InterruptedException, IM4JavaException {
-    String inFile = file.getAbsolutePath();
-    String outFile = inFile.substring(0, inFile.lastIndexOf('.')) + ".tif";
-
-    processor.convert(inFile, outFile, null);
+  private File convertToTIF(File file, File out) throws IOException, InterruptedException, IM4JavaException {
+    processor.convert(file.getAbsolutePath(), out.getAbsolutePath(), null);
 
-    File out = new File(outFile);
     if (out.exists())
       return out;
 
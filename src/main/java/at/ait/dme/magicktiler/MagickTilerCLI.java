@@ -23,6 +23,8 @@ package at.ait.dme.magicktiler;
 import java.io.File;
 import java.io.IOException;
 import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
 
 import org.apache.commons.cli.BasicParser;
 import org.apache.commons.cli.CommandLine;
@@ -35,11 +37,19 @@ import org.apache.log4j.Logger;
 import org.apache.log4j.PatternLayout;
 
 import scala.actors.threadpool.Arrays;
+import at.ait.dme.magicktiler.MagickTiler.PyramidMode;
+import at.ait.dme.magicktiler.composite.CompositeTiler;
+import at.ait.dme.magicktiler.composite.CompositeTiler.Scheme;
 import at.ait.dme.magicktiler.gmaps.GoogleMapsTiler;
 import at.ait.dme.magicktiler.gmaps.GoogleMapsValidator;
 import at.ait.dme.magicktiler.image.ImageFormat;
+import at.ait.dme.magicktiler.image.IntermediateFormat;
+import at.ait.dme.magicktiler.image.ResamplingFilter;
+import at.ait.dme.magicktiler.image.TileWriter.Durability;
+import at.ait.dme.magicktiler.mosaic.MosaicTiler;
 import at.ait.dme.magicktiler.ptif.PTIFConverter;
 import at.ait.dme.magicktiler.tms.TMSTiler;
+import at.ait.dme.magicktiler.tms.TMSTranscoder;
 import at.ait.dme.magicktiler.zoomify.ZoomifyTiler;
 import at.ait.dme.magicktiler.zoomify.ZoomifyValidator;
 
@@ -53,12 +63,18 @@ import at.ait.dme.magicktiler.zoomify.ZoomifyValidator;
  * Command options:<br>
  * -h   displays this help text<br>
  * -g   displays the GUI<br>
- * -s   tiling scheme ('tms', 'zoomify', 'gmap' or 'ptif')<br>
+ * -n   serves the HTTP job API on the given local port<br>
+ * -u   memory budget of the HTTP job API's image processing commands in MB<br>
+ * -s   tiling scheme ('tms', 'zoomify', 'gmap' or 'ptif'), or a comma-separated list of schemes<br>
  * -f   tile format ('jpeg' or 'png')<br>
  * -b   background color<br>
  * -i	input file or directory<br>
  * -o   output directory (for tilesets) or file (for PTIF)<br>
  * -q   JPEG compression quality (0 - 100)<br>
+ * -t   comma-separated tile sizes, generated in one pass<br>
+ * -a   the input is a mosaic placement file<br>
+ * -x   the input is a TMS tileset, transcoded to the given scheme<br>
+ * -j   cut base level tiles losslessly from JPEG sources<br>
  * -p   generate an HTML preview file<br>
  * -l   writes reporting information to a log file<br>
  * -v   validate the input instead of generating a tileset
@@ -71,6 +87,9 @@ public class MagickTilerCLI {
   private static final String TARGET_SCHEME_ZOOMIFY = "Zoomify tileset";
   private static final String TARGET_SCHEME_GMAP = "Google Maps tileset";
   private static final String TARGET_SCHEME_PTIF = "Pyramid TIFF";
+  private static final String TARGET_SCHEME_COMPOSITE = "Composite tilesets";
+  private static final String TARGET_SCHEME_MOSAIC = "Mosaic tileset";
+  private static final String TARGET_SCHEME_TRANSCODED = "Transcoded tileset";
   private static final String TARGET_FMT_JPEG = "(JPEG tiles)";
   private static final String TARGET_FMT_PNG = "(PNG tiles)";
 
@@ -85,14 +104,37 @@ public class MagickTilerCLI {
   private static final Options options = new Options() {
     private static final long serialVersionUID = 8442627813822171704L;
     {
-      addOption(new Option("s", "scheme", "mandatory tiling scheme ('tms', 'zoomify', 'gmap' or 'ptif')", true));
+      addOption(new Option("s", "scheme", "mandatory tiling scheme ('tms', 'zoomify', 'gmap' or 'ptif'), "
+          + "or a comma-separated list of schemes to generate in one pass", true));
       addOption(new Option("i", "input", "mandatory input file or directory", true));
       addOption(new Option("o", "output", "output directory (for tilesets) or file (for PTIF), default=.", false));
       addOption(new Option("f", "format", "tile format ('jpeg' or 'png'), default=jpeg", false));
       addOption(new Option("q", "quality", "JPEG compression quality (0 - 100), default=75", false));
       addOption(new Option("b", "color", "background color, default=white", false));
+      addOption(new Option("m", "mode", "pyramid mode ('stripes', 'parallel', 'quadtree' or 'tiles'), default=stripes", false));
+      addOption(new Option("r", "filter", "resampling filter ('box', 'triangle' or 'lanczos')", false));
+      addOption(new Option("w", "intermediate", "intermediate stripe format ('mpc', 'tiff' or 'tiff_lzw'), "
+          + "default=mpc", false));
+      addOption(new Option("d", "tempdisk", "temp disk budget per conversion in MB, default=unlimited", false));
+      addOption(new Option("e", "fastdir", "fast working directory (e.g. a RAM disk) and its quota per conversion "
+          + "in MB, e.g. '/dev/shm,1024'", false));
+      addOption(new Option("k", "writers", "write in-process tiles behind, with the given number of I/O threads and "
+          + "optional fsync policy ('none', 'directory' or 'end'), e.g. '2,end'", false));
+      addOption(new Option("t", "tilesize", "comma-separated tile sizes, generated in one pass (e.g. '256,512'), "
+          + "default=256", false));
+      addOption(new Option("a", "mosaic", "the input is a mosaic placement file ('tms' and 'zoomify' only)", false));
+      addOption(new Option("x", "transcode", "the input is a TMS tileset, transcoded to the given scheme "
+          + "('zoomify' or 'gmap')", false));
+      addOption(new Option("z", "watch", "watch the input directory and tile each new file into the output "
+          + "directory, until the process is terminated", false));
+      addOption(new Option("j", null, "cut base level tiles losslessly from JPEG sources (keeps the source's "
+          + "quality)", false));
       addOption(new Option("p", null, "generate an HTML preview file", false));
       addOption(new Option("g", null, "displays the GUI (ignores all other parameters)", false));
+      addOption(new Option("n", "port", "serves the HTTP job API on the given local port (ignores all other "
+          + "parameters)", false));
+      addOption(new Option("u", "memory", "memory budget of the HTTP job API's image processing commands in MB "
+          + "(with -n), default=unlimited", false));
       addOption(new Option("h", null, "displays this help text", false));
       addOption(new Option("l", null, "writes reporting information to a log file", false));
       addOption(new Option("v", null, "validate the input instead of generating a tileset", false));
@@ -102,7 +144,7 @@ public class MagickTilerCLI {
   private static final Logger logger = Logger.getLogger(MagickTilerCLI.class);
 
   public static void main(String... args) throws IOException {
-    if (showGui(args))
+    if (showGui(args) || startServer(args))
       return;
 
     try {
@@ -139,7 +181,24 @@ public class MagickTilerCLI {
 
     // Tiling scheme
     String scheme = cmd.getOptionValue("s");
-    if (scheme.equalsIgnoreCase("tms")) {
+    if (cmd.hasOption("a")) {
+      Scheme mosaicScheme = Scheme.forName(scheme);
+      if (mosaicScheme == Scheme.TMS || mosaicScheme == Scheme.ZOOMIFY) {
+        tiler = new MosaicTiler(mosaicScheme);
+        consoleOutScheme = TARGET_SCHEME_MOSAIC + " (" + scheme + ")";
+        consoleOutFormat = TARGET_FMT_JPEG;
+      }
+    } else if (cmd.hasOption("x")) {
+      Scheme targetScheme = Scheme.forName(scheme);
+      if (targetScheme == Scheme.ZOOMIFY || targetScheme == Scheme.GMAP) {
+        tiler = new TMSTranscoder(targetScheme);
+        consoleOutScheme = TARGET_SCHEME_TRANSCODED + " (" + scheme + ")";
+      }
+    } else if (scheme.indexOf(',') > -1 || cmd.hasOption("t")) {
+      tiler = createCompositeTiler(scheme);
+      consoleOutScheme = TARGET_SCHEME_COMPOSITE + " (" + scheme + ")";
+      consoleOutFormat = TARGET_FMT_JPEG;
+    } else if (scheme.equalsIgnoreCase("tms")) {
       tiler = new TMSTiler();
       consoleOutScheme = TARGET_SCHEME_TMS;
       consoleOutFormat = TARGET_FMT_JPEG;
@@ -188,6 +247,98 @@ public class MagickTilerCLI {
     if (background != null)
       tiler.setBackgroundColor(background);
 
+    // Pyramid mode
+    String mode = cmd.getOptionValue("m");
+    if (mode != null) {
+      if (mode.equalsIgnoreCase("parallel")) {
+        tiler.setPyramidMode(PyramidMode.LEVEL_PARALLEL);
+      } else if (mode.equalsIgnoreCase("quadtree")) {
+        tiler.setPyramidMode(PyramidMode.QUADTREE);
+      } else if (mode.equalsIgnoreCase("tiles")) {
+        tiler.setPyramidMode(PyramidMode.TILES);
+      } else if (!mode.equalsIgnoreCase("stripes")) {
+        System.out.println("Unsupported pyramid mode: " + mode);
+        return;
+      }
+    }
+
+    // Resampling filter
+    String filter = cmd.getOptionValue("r");
+    if (filter != null) {
+      try {
+        tiler.setResamplingFilter(ResamplingFilter.valueOf(filter.toUpperCase()));
+      } catch (IllegalArgumentException e) {
+        System.out.println("Unsupported resampling filter: " + filter);
+        return;
+      }
+    }
+
+    // Intermediate format
+    String intermediate = cmd.getOptionValue("w");
+    if (intermediate != null) {
+      try {
+        tiler.setIntermediateFormat(IntermediateFormat.valueOf(intermediate.toUpperCase()));
+      } catch (IllegalArgumentException e) {
+        System.out.println("Unsupported intermediate format: " + intermediate);
+        return;
+      }
+    }
+
+    // Temp disk budget
+    String tempDisk = cmd.getOptionValue("d");
+    if (tempDisk != null) {
+      try {
+        tiler.setTempDiskBudget(Long.parseLong(tempDisk) << 20);
+      } catch (IllegalArgumentException e) {
+        System.out.println("Invalid temp disk budget: " + tempDisk);
+        return;
+      }
+    }
+
+    // Fast working directory
+    String fastDir = cmd.getOptionValue("e");
+    if (fastDir != null) {
+      try {
+        int separator = fastDir.lastIndexOf(',');
+        tiler.setFastWorkingDirectory(new File(fastDir.substring(0, separator)),
+            Long.parseLong(fastDir.substring(separator + 1).trim()) << 20);
+      } catch (RuntimeException e) {
+        System.out.println("Invalid fast working directory: " + fastDir);
+        return;
+      }
+    }
+
+    // Tile writer
+    String writers = cmd.getOptionValue("k");
+    if (writers != null) {
+      try {
+        String[] values = writers.split(",");
+        Durability durability = Durability.NONE;
+        if (values.length > 1)
+          durability = values[1].trim().equalsIgnoreCase("end") ? Durability.END_OF_RUN
+              : Durability.valueOf(values[1].trim().toUpperCase());
+        tiler.setTileWriter(Integer.parseInt(values[0].trim()), durability);
+      } catch (IllegalArgumentException e) {
+        System.out.println("Invalid tile writer setting: " + writers);
+        return;
+      }
+    }
+
+    // Tile sizes
+    String sizes = cmd.getOptionValue("t");
+    if (sizes != null) {
+      try {
+        String[] values = sizes.split(",");
+        int[] tileSizes = new int[values.length];
+        for (int i = 0; i < values.length; i++)
+          tileSizes[i] = Integer.parseInt(values[i].trim());
+        ((CompositeTiler) tiler).setTileSizes(tileSizes);
+      } catch (IllegalArgumentException e) {
+        System.out.println("Unsupported tile sizes: " + sizes);
+        return;
+      }
+    }
+
     // Destination
     File destination = null;
     if (cmd.hasOption("o")) {
@@ -197,6 +348,16 @@ public class MagickTilerCLI {
     // HTML Preview
     tiler.setGeneratePreviewHTML(cmd.hasOption("p"));
 
+    // Lossless JPEG base tiles
+    tiler.setLosslessJPEGBaseTiles(cmd.hasOption("j"));
+
+    // Watch folder
+    if (cmd.hasOption("z")) {
+      new WatchFolderDaemon(tiler, new File(cmd.getOptionValue("i")), (destination != null) ? destination
+          : new File(".")).run();
+      return;
+    }
+
     // Input filename
     File file = new File(cmd.getOptionValue("i"));
     if (!file.exists()) {
@@ -258,6 +419,17 @@ public class MagickTilerCLI {
     }
   }
 
+  private static MagickTiler createCompositeTiler(String schemes) {
+    List<Scheme> list = new ArrayList<Scheme>();
+    for (String name : schemes.split(",")) {
+      Scheme scheme = Scheme.forName(name);
+      if (scheme == null)
+        return null;
+      list.add(scheme);
+    }
+    return new CompositeTiler(list.toArray(new Scheme[list.size()]));
+  }
+
   private static void generateTiles(MagickTiler tiler, File input, File destination, String consoleOutScheme,
       String consoleOutFormat) {
 
@@ -268,8 +440,8 @@ public class MagickTilerCLI {
       System.out.println("Destination: " + destination.getAbsolutePath());
     }
 
-    if (input.isFile()) {
-      // Tile single file
+    if (input.isFile() || tiler instanceof TMSTranscoder) {
+      // Tile single file (or transcode a single tileset)
       try {
         tiler.convert(input, destination);
       } catch (TilingException e) {
@@ -324,6 +496,34 @@ public class MagickTilerCLI {
     return displayGui;
   }
 
+  private static boolean startServer(String... args) throws IOException {
+    int index = Arrays.asList(args).indexOf("-n");
+    if (index < 0)
+      return false;
+
+    long budget = Long.MAX_VALUE;
+    int budgetIndex = Arrays.asList(args).indexOf("-u");
+    if (budgetIndex > -1) {
+      try {
+        budget = Long.parseLong(args[budgetIndex + 1]) << 20;
+      } catch (RuntimeException e) {
+        System.out.println("Invalid memory budget: " + ((budgetIndex + 1 < args.length) ? args[budgetIndex + 1] : ""));
+        return true;
+      }
+    }
+
+    try {
+      TilingServer server = new TilingServer(Integer.parseInt(args[index + 1]));
+      server.setMemoryBudget(budget);
+      server.start();
+      System.out.println("Listening on http://localhost:" + server.getPort() + TilingServer.JOBS_PATH);
+      System.out.println("Token: " + server.getToken());
+    } catch (RuntimeException e) {
+      System.out.println("Invalid port: " + ((index + 1 < args.length) ? args[index + 1] : ""));
+    }
+    return true;
+  }
+
   private static void printUsage(Options options) {
     System.out.println(USAGE_HEADER);
     new HelpFormatter().printHelp("java -jar magicktiler", "", options, USAGE_FOOTER, true);
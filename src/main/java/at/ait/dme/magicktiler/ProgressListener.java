@@ -0,0 +1,51 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler;
+
+/**
+ * Receives the phases and progress of conversions (see
+ * {@link MagickTiler#setProgressListener(ProgressListener)}). Phases are e.g. striping
+ * the base image or tiling a zoom level; within a phase, the progress is reported
+ * each time one of its parallel tasks has completed. Listeners may be called from
+ * several threads.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public interface ProgressListener {
+
+  /**
+   * Called when a conversion starts a new phase.
+   * 
+   * @param phase the phase description, e.g. 'Tiling level 2'
+   */
+  void phaseStarted(String phase);
+
+  /**
+   * Called when a task of the current phase has completed.
+   * 
+   * @param completed the number of completed tasks
+   * @param total the number of tasks of the phase
+   */
+  void progress(int completed, int total);
+}
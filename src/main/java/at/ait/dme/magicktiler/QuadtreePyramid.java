@@ -0,0 +1,136 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import at.ait.dme.magicktiler.TileDownsampler.Tile;
+
+/**
+ * Builds the upper zoom levels of a tileset depth-first over the quadtree of tiles,
+ * starting from the base level tiles on disk. Each parent tile is computed from its
+ * (up to) four child tiles as soon as they are available, and the children are
+ * released right after. Only the tiles along the paths currently being processed
+ * are held in memory, i.e. memory usage is O(depth x tile size) per thread, and no
+ * intermediate files are needed above the base level.
+ * <br><br>
+ * The tree is processed as fork/join tasks, so sibling subtrees are computed in
+ * parallel.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+class QuadtreePyramid {
+
+  /**
+   * The downsampler used to compute the tiles
+   */
+  private TileDownsampler downsampler;
+
+  QuadtreePyramid(TileDownsampler downsampler) {
+    this.downsampler = downsampler;
+  }
+
+  /**
+   * Computes all zoom levels above the base level.
+   * 
+   * @param threads the number of threads to use
+   * @throws IOException if a tile cannot be read or written
+   */
+  void build(int threads) throws IOException {
+    int top = downsampler.getLayout().getTilesetInfo().getZoomLevels() - 1;
+    if (top == 0)
+      return;
+
+    ForkJoinPool pool = new ForkJoinPool(threads);
+    try {
+      pool.invoke(new Node(top, 0, 0));
+    } catch (TileFailure e) {
+      throw (IOException) e.getCause();
+    } finally {
+      pool.shutdown();
+    }
+  }
+
+  /**
+   * Wraps I/O errors, which cannot be thrown from fork/join tasks directly
+   */
+  private static class TileFailure extends RuntimeException {
+
+    private static final long serialVersionUID = 6094183553208215301L;
+
+    TileFailure(IOException cause) {
+      super(cause);
+    }
+  }
+
+  /**
+   * A node of the quadtree, i.e. one tile
+   */
+  private class Node extends RecursiveTask<Tile> {
+
+    private static final long serialVersionUID = -3497231861785377543L;
+
+    private int zoomlevel, col, row;
+
+    Node(int zoomlevel, int col, int row) {
+      this.zoomlevel = zoomlevel;
+      this.col = col;
+      this.row = row;
+    }
+
+    @Override
+    protected Tile compute() {
+      try {
+        if (zoomlevel == 0)
+          return downsampler.readTile(0, col, row);
+
+        int[][] positions = downsampler.getChildren(zoomlevel, col, row);
+        Node[] children = new Node[4];
+        List<Node> forked = new ArrayList<Node>();
+        for (int i = 0; i < 4; i++) {
+          if (positions[i] != null) {
+            children[i] = new Node(zoomlevel - 1, positions[i][0], positions[i][1]);
+            forked.add(children[i]);
+          }
+        }
+        invokeAll(forked);
+
+        Tile[] tiles = new Tile[4];
+        for (int i = 0; i < 4; i++)
+          tiles[i] = (children[i] == null) ? null : children[i].getRawResult();
+
+        Tile tile = downsampler.renderTile(tiles);
+        downsampler.writeTile(zoomlevel, col, row, tile);
+        return tile;
+      } catch (IOException e) {
+        throw new TileFailure(e);
+      }
+    }
+  }
+
+}
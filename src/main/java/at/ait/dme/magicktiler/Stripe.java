@@ -24,7 +24,7 @@ package at.ait.dme.magicktiler;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -32,6 +32,8 @@ import org.im4java.core.IM4JavaException;
 
 import at.ait.dme.magicktiler.image.ImageProcessor;
 import at.ait.dme.magicktiler.image.ImageProcessor.ImageProcessingSystem;
+import at.ait.dme.magicktiler.image.IntermediateFormat;
+import at.ait.dme.magicktiler.image.ResamplingFilter;
 
 /**
  * To speed up the MagickTiler tiling process, images are (for most tiling schemes)
@@ -143,6 +145,30 @@ public class Stripe {
   public Stripe merge(Stripe stripe, String gravity, int xExtent, int yExtent, String backgroundColor, File targetFile,
       ImageProcessingSystem system) throws IOException, InterruptedException, IM4JavaException {
 
+    return merge(stripe, gravity, xExtent, yExtent, backgroundColor, targetFile, new ImageProcessor(system));
+  }
+
+  /**
+   * Merges this stripe with another one into a single stripe, as
+   * {@link #merge(Stripe, String, int, int, String, File, ImageProcessingSystem)},
+   * using the specified image processor (and its resampling filter and intermediate
+   * format settings).
+   * 
+   * @param stripe the stripe to join with this stripe
+   * @param gravity the gravity to use when composing the images on the background canvas (or null)
+   * @param xExtent the width of the result stripe canvas (or -1)
+   * @param yExtent the height of the result stripe canvas (or -1)
+   * @param backgroundColor the background color of the canvas (or null)
+   * @param targetFile the file which will hold the result stripe image
+   * @param processor the image processor
+   * @return the result stripe
+   * @throws IOException if something goes wrong
+   * @throws InterruptedException if something goes wrong
+   * @throws IM4JavaException if something goes wrong
+   */
+  public Stripe merge(Stripe stripe, String gravity, int xExtent, int yExtent, String backgroundColor, File targetFile,
+      ImageProcessor processor) throws IOException, InterruptedException, IM4JavaException {
+
     if (stripe.orientation != orientation)
       throw new IllegalArgumentException(DIFFERENT_ORIENTATION_ERROR);
 
@@ -161,16 +187,15 @@ public class Stripe {
       w = xExtent;
       h = yExtent;
       w = w / 2;
-      new ImageProcessor(system).montage(srcs, targetFile.getAbsolutePath(), xTiles, yTiles, w, h, backgroundColor,
-          gravity);
+      processor.montage(srcs, targetFile.getAbsolutePath(), xTiles, yTiles, w, h, backgroundColor, gravity);
     } else {
       w = (orientation == Orientation.HORIZONTAL) ? width / 2 : (width + stripe.getWidth()) / 2;
       h = (orientation == Orientation.HORIZONTAL) ? (height + stripe.getHeight()) / 4 : height / 2;
 
-      Map<String, String> rawArgs = new HashMap<String, String>();
+      Map<String, String> rawArgs = new LinkedHashMap<String, String>();
       rawArgs.put("-geometry", "+0+0");
       rawArgs.put("-resize", "50%x50%");
-      new ImageProcessor(system).montage(srcs, targetFile.getAbsolutePath(), xTiles, yTiles, rawArgs);
+      processor.montage(srcs, targetFile.getAbsolutePath(), xTiles, yTiles, rawArgs);
     }
 
     return new Stripe(targetFile, w, h, orientation);
@@ -212,6 +237,29 @@ public class Stripe {
   public Stripe shrink(String gravity, int xExtent, int yExtent, String backgroundColor, File targetFile,
       ImageProcessingSystem system) throws IOException, InterruptedException, IM4JavaException {
 
+    return shrink(gravity, xExtent, yExtent, backgroundColor, targetFile, new ImageProcessor(system));
+  }
+
+  /**
+   * Shrinks this stripe 50% to the resolution of the next zoom level, as
+   * {@link #shrink(String, int, int, String, File, ImageProcessingSystem)},
+   * using the specified image processor (and its resampling filter and intermediate
+   * format settings).
+   * 
+   * @param gravity the gravity to use when composing the images on the background canvas (or null)
+   * @param xExtent the width of the result stripe canvas (or -1)
+   * @param yExtent the height of the result stripe canvas (or -1)
+   * @param backgroundColor the background color of the canvas (or null)
+   * @param targetFile the file which will hold the result stripe image
+   * @param processor the image processor
+   * @return the result stripe
+   * @throws IOException if something goes wrong
+   * @throws InterruptedException if something goes wrong
+   * @throws IM4JavaException if something goes wrong
+   */
+  public Stripe shrink(String gravity, int xExtent, int yExtent, String backgroundColor, File targetFile,
+      ImageProcessor processor) throws IOException, InterruptedException, IM4JavaException {
+
     List<String> srcs = new ArrayList<String>();
     if (xExtent > -1 && yExtent > -1) {
       srcs.add(file.getAbsolutePath());
@@ -223,15 +271,21 @@ public class Stripe {
         yTiles = 1;
       }
 
-      new ImageProcessor(system).montage(srcs, targetFile.getAbsolutePath(), xTiles, yTiles, xExtent / 2, yExtent,
-          backgroundColor, gravity);
+      processor.montage(srcs, targetFile.getAbsolutePath(), xTiles, yTiles, xExtent / 2, yExtent, backgroundColor,
+          gravity);
 
       return new Stripe(targetFile, xExtent, yExtent, orientation);
     } else {
-      Map<String, String> rawArgs = new HashMap<String, String>();
-      rawArgs.put("-scale", "50%x50%");
+      Map<String, String> rawArgs = new LinkedHashMap<String, String>();
+      ResamplingFilter filter = processor.getResamplingFilter();
+      if (filter != null) {
+        rawArgs.put("-filter", filter.getName());
+        rawArgs.put("-resize", "50%x50%");
+      } else {
+        rawArgs.put("-scale", "50%x50%");
+      }
 
-      new ImageProcessor(system).convert(file.getAbsolutePath(), targetFile.getAbsolutePath(), rawArgs);
+      processor.convert(file.getAbsolutePath(), targetFile.getAbsolutePath(), rawArgs);
 
       return new Stripe(targetFile, width / 2, height / 2, orientation);
     }
@@ -244,7 +298,7 @@ public class Stripe {
    * @throws TilingException 
    */
   public void delete() throws TilingException {
-    if (!file.delete())
+    if (!IntermediateFormat.delete(file))
       throw new TilingException("Could not delete file:" + file);
   }
 
@@ -0,0 +1,181 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package at.ait.dme.magicktiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import at.ait.dme.magicktiler.Stripe.Orientation;
+import at.ait.dme.magicktiler.image.BandReader;
+import at.ait.dme.magicktiler.image.ImageProcessor;
+import at.ait.dme.magicktiler.image.TIFFStripeWriter;
+
+/**
+ * Cuts an image into {@link Stripe}s without loading it as a whole. The source is
+ * read in bands of scanlines (see {@link BandReader}), and each band is appended to
+ * the stripe files it overlaps. Memory usage is therefore proportional to the band
+ * size rather than to the image size. Like the GraphicsMagick-based striping, each
+ * stripe can optionally be placed on a background color canvas.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+class StripeStreamer {
+
+  /**
+   * Max. number of pixels per band (if the stripes don't dictate the band height)
+   */
+  private static final int BAND_PIXELS = 1 << 24;
+
+  /**
+   * The source image reader
+   */
+  private BandReader reader;
+
+  /**
+   * Background color (ARGB)
+   */
+  private int background;
+
+  /**
+   * A stripe being written
+   */
+  private static class Piece {
+    int x, y, width, height;
+    int canvasWidth, canvasHeight;
+    int offsetX, offsetY;
+    File file;
+    TIFFStripeWriter writer;
+  }
+
+  /**
+   * @param reader the source image reader
+   * @param background the background color, in GraphicsMagick notation (#rrggbb or #rrggbbaa)
+   * @throws IllegalArgumentException if the background color cannot be parsed
+   */
+  StripeStreamer(BandReader reader, String background) {
+    this.reader = reader;
+    this.background = parseColor(background);
+  }
+
+  /**
+   * Converts a GraphicsMagick color (where the fourth component is the opacity, i.e.
+   * #ffffffff is white and fully transparent) to an ARGB value.
+   */
+  static int parseColor(String color) {
+    if (color == null || !color.startsWith("#") || (color.length() != 7 && color.length() != 9))
+      throw new IllegalArgumentException("Unsupported color: " + color);
+    try {
+      int rgb = Integer.parseInt(color.substring(1, 7), 16);
+      int alpha = (color.length() == 9) ? 255 - Integer.parseInt(color.substring(7, 9), 16) : 255;
+      return (alpha << 24) | rgb;
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException("Unsupported color: " + color);
+    }
+  }
+
+  /**
+   * Stripes the image. The parameters have the same meaning as for
+   * {@link MagickTiler#stripeImage(File, Orientation, int, int, int, int, int, String, String)}.
+   */
+  List<Stripe> stream(Orientation orientation, int stripes, int width, int height, int canvasWidth,
+      int canvasHeight, String gravity, File directory, String outfilePrefix) throws IOException {
+
+    int imageWidth = reader.getWidth();
+    int imageHeight = reader.getHeight();
+    boolean pad = (canvasWidth != width || canvasHeight != height);
+
+    List<Piece> pieces = new ArrayList<Piece>();
+    for (int i = 0; i < stripes; i++) {
+      Piece p = new Piece();
+      p.x = (orientation == Orientation.VERTICAL) ? i * width : 0;
+      p.y = (orientation == Orientation.HORIZONTAL) ? i * height : 0;
+      p.width = Math.min(width, imageWidth - p.x);
+      p.height = Math.min(height, imageHeight - p.y);
+      if (p.width <= 0 || p.height <= 0)
+        break;
+
+      p.canvasWidth = pad ? canvasWidth : p.width;
+      p.canvasHeight = pad ? canvasHeight : p.height;
+      if (ImageProcessor.GRAVITY_SOUTHWEST.equals(gravity)) {
+        p.offsetY = p.canvasHeight - p.height;
+      } else if (ImageProcessor.GRAVITY_CENTER.equals(gravity)) {
+        p.offsetX = (p.canvasWidth - p.width) / 2;
+        p.offsetY = (p.canvasHeight - p.height) / 2;
+      }
+      p.file = new File(directory, outfilePrefix + i + ".tif");
+      pieces.add(p);
+    }
+
+    boolean alpha = reader.hasAlpha() || (pad && (background >>> 24) != 255);
+    int bandHeight = (orientation == Orientation.HORIZONTAL) ? height : Math.max(1, BAND_PIXELS / imageWidth);
+
+    try {
+      for (int bandY = 0; bandY < imageHeight; bandY += bandHeight) {
+        int rows = Math.min(bandHeight, imageHeight - bandY);
+        int[] band = reader.readBand(bandY, rows);
+
+        for (int r = 0; r < rows; r++) {
+          int y = bandY + r;
+          for (Piece p : pieces) {
+            if (y < p.y || y >= p.y + p.height)
+              continue;
+
+            if (p.writer == null) {
+              p.writer = new TIFFStripeWriter(p.file, p.canvasWidth, p.canvasHeight, alpha);
+              for (int i = 0; i < p.offsetY; i++)
+                p.writer.writeBackgroundRow(background);
+            }
+
+            p.writer.writeRow(band, r * imageWidth + p.x, p.offsetX, p.width, background);
+
+            if (y == p.y + p.height - 1) {
+              for (int i = p.offsetY + p.height; i < p.canvasHeight; i++)
+                p.writer.writeBackgroundRow(background);
+              p.writer.close();
+              p.writer = null;
+            }
+          }
+        }
+      }
+    } catch (IOException e) {
+      for (Piece p : pieces) {
+        if (p.writer != null) {
+          try {
+            p.writer.close();
+          } catch (IOException ignore) {
+            // Incomplete anyway
+          }
+        }
+        p.file.delete();
+      }
+      throw e;
+    }
+
+    List<Stripe> result = new ArrayList<Stripe>();
+    for (Piece p : pieces)
+      result.add(new Stripe(p.file, p.canvasWidth, p.canvasHeight, orientation));
+    return result;
+  }
+}
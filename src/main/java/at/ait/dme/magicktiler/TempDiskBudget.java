@@ -0,0 +1,281 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler;
+
+import java.io.File;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import at.ait.dme.magicktiler.image.IntermediateFormat;
+
+/**
+ * Keeps track of the temp disk space held by the live stripes (and level images) of
+ * one conversion, and records the peak usage.
+ * <br><br>
+ * Tasks that run in parallel and produce intermediate files can reserve their estimated
+ * temp disk space first (see {@link #reserve(long)}): they wait as long as the files
+ * and reservations of other tasks would exceed the budget. A task larger than the
+ * whole budget runs when nothing else holds temp space. Tasks must not hold any
+ * intermediate files while they wait.
+ * <br><br>
+ * With a fast tier (see {@link #setFastTier(File, long)}), new intermediate files are
+ * placed in the fast directory as long as their predicted size fits its quota, and in
+ * the regular temp directory otherwise (see {@link #place(File, long, String...)}).
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class TempDiskBudget {
+
+  /**
+   * The budget in bytes
+   */
+  private long budget;
+
+  /**
+   * The sizes of the live intermediate files
+   */
+  private Map<File, Long> files = new ConcurrentHashMap<File, Long>();
+
+  /**
+   * Bytes held by live intermediate files
+   */
+  private long used = 0;
+
+  /**
+   * Bytes reserved by running tasks
+   */
+  private long reserved = 0;
+
+  /**
+   * Peak number of bytes held by intermediate files
+   */
+  private long peak = 0;
+
+  /**
+   * The fast tier directory (or null)
+   */
+  private File fastDirectory = null;
+
+  /**
+   * The fast tier quota in bytes
+   */
+  private long fastQuota = 0;
+
+  /**
+   * The (predicted or actual) sizes of the live files in the fast tier
+   */
+  private Map<File, Long> fastFiles = new ConcurrentHashMap<File, Long>();
+
+  /**
+   * Bytes held by live files in the fast tier
+   */
+  private long fastUsed = 0;
+
+  /**
+   * @param budget the budget in bytes (Long.MAX_VALUE for no limit)
+   */
+  public TempDiskBudget(long budget) {
+    if (budget <= 0)
+      throw new IllegalArgumentException("Temp disk budget must be positive: " + budget);
+    this.budget = budget;
+  }
+
+  /**
+   * Sets up a fast tier, e.g. a directory on a RAM disk.
+   * 
+   * @param directory the fast directory
+   * @param quota the maximum number of bytes in the fast directory
+   */
+  public void setFastTier(File directory, long quota) {
+    this.fastDirectory = directory;
+    this.fastQuota = quota;
+  }
+
+  public File getFastDirectory() {
+    return fastDirectory;
+  }
+
+  /**
+   * Decides where new intermediate files go: to the fast tier if their predicted
+   * size fits its quota, otherwise to the given directory. All files go to the same
+   * directory, so that they can be written by one command with a file name pattern.
+   * Files that are placed, but not written after all, must be discarded (see
+   * {@link #discard(File, String...)}).
+   * 
+   * @param directory the regular temp directory
+   * @param bytes the predicted size of all files
+   * @param names the file names
+   * @return the directory for the files
+   */
+  public synchronized File place(File directory, long bytes, String... names) {
+    if (fastDirectory == null || names.length == 0 || fastUsed + bytes > fastQuota)
+      return directory;
+
+    // Each file gets its share of the prediction, the first one the remainder
+    for (int i = 0; i < names.length; i++) {
+      Long previous = fastFiles.put(new File(fastDirectory, names[i]), bytes / names.length
+          + ((i == 0) ? bytes % names.length : 0));
+      if (previous != null)
+        fastUsed -= previous;
+    }
+    fastUsed += bytes;
+    return fastDirectory;
+  }
+
+  /**
+   * Releases the placement of files that have not been registered (e.g. because the
+   * command writing them failed), and deletes them if they were partially written.
+   * Registered files are not affected.
+   * 
+   * @param directory the directory returned by {@link #place(File, long, String...)}
+   * @param names the file names
+   */
+  public void discard(File directory, String... names) {
+    for (String name : names) {
+      File file = new File(directory, name);
+      if (!files.containsKey(file))
+        delete(file);
+    }
+  }
+
+  /**
+   * Registers a stripe that was written to disk.
+   * 
+   * @param stripe the stripe
+   * @return the stripe
+   */
+  public Stripe add(Stripe stripe) {
+    add(stripe.getImageFile());
+    return stripe;
+  }
+
+  /**
+   * Registers stripes that were written to disk.
+   * 
+   * @param stripes the stripes
+   * @return the stripes
+   */
+  public List<Stripe> add(List<Stripe> stripes) {
+    for (Stripe stripe : stripes)
+      add(stripe.getImageFile());
+    return stripes;
+  }
+
+  /**
+   * Registers an intermediate file that was written to disk.
+   * 
+   * @param file the file
+   * @return the size of the file in bytes
+   */
+  public long add(File file) {
+    long length = IntermediateFormat.length(file);
+    Long previous = files.put(file, length);
+    synchronized (this) {
+      used += length - ((previous != null) ? previous : 0);
+      peak = Math.max(peak, used);
+      Long predicted = fastFiles.get(file);
+      if (predicted != null) {
+        fastFiles.put(file, length);
+        fastUsed += length - predicted;
+      }
+    }
+    return length;
+  }
+
+  /**
+   * Deletes a stripe that is not needed any more.
+   * 
+   * @param stripe the stripe
+   * @throws TilingException if the stripe cannot be deleted
+   */
+  public void delete(Stripe stripe) throws TilingException {
+    if (!delete(stripe.getImageFile()))
+      throw new TilingException("Could not delete file:" + stripe.getImageFile());
+  }
+
+  /**
+   * Deletes an intermediate file that is not needed any more.
+   * 
+   * @param file the file
+   * @return true if the file was deleted
+   */
+  public boolean delete(File file) {
+    boolean deleted = IntermediateFormat.delete(file);
+    Long length = files.remove(file);
+    synchronized (this) {
+      Long fastLength = fastFiles.remove(file);
+      if (fastLength != null)
+        fastUsed -= fastLength;
+      if (length != null) {
+        used -= length;
+        notifyAll();
+      }
+    }
+    return deleted;
+  }
+
+  /**
+   * Waits until the estimated temp disk space of a task fits the budget, and
+   * reserves it. The reservation must be released with {@link #release(long)}.
+   * 
+   * @param bytes the estimated temp disk space of the task
+   * @return the reserved space (the estimate, capped at the budget)
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  public synchronized long reserve(long bytes) throws InterruptedException {
+    long granted = Math.min(bytes, budget);
+    while (used + reserved > 0 && used + reserved + granted > budget)
+      wait();
+    reserved += granted;
+    return granted;
+  }
+
+  /**
+   * Releases a reservation.
+   * 
+   * @param bytes the reserved space, as returned by {@link #reserve(long)}
+   */
+  public synchronized void release(long bytes) {
+    reserved -= bytes;
+    notifyAll();
+  }
+
+  public long getBudget() {
+    return budget;
+  }
+
+  public synchronized long getUsed() {
+    return used;
+  }
+
+  public synchronized long getPeak() {
+    return peak;
+  }
+
+  public synchronized long getFastUsed() {
+    return fastUsed;
+  }
+
+}
@@ -0,0 +1,263 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler;
+
+import java.awt.Dimension;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import at.ait.dme.magicktiler.TileLayout.Origin;
+import at.ait.dme.magicktiler.image.BoxFilter;
+import at.ait.dme.magicktiler.image.ResamplingFilter;
+import at.ait.dme.magicktiler.image.TileEncoder;
+
+/**
+ * Computes tiles of the upper zoom levels directly from their 2x2 child tiles
+ * in the level beneath - either from child tiles already held in memory, or by
+ * decoding the encoded child tiles from disk. The geometry of the tiling scheme
+ * is taken from the {@link TileLayout}: in padded layouts (e.g. TMS), missing
+ * children and the area outside the image are filled with the background color
+ * and every tile has the full tile size; in unpadded layouts (e.g. Zoomify), border
+ * tiles are cropped to the image.
+ * <br><br>
+ * Tiles are held as packed-byte rasters (BGR, or ABGR if the tile format has an
+ * alpha channel) and scaled with the in-process implementation of a {@link ResamplingFilter}.
+ * Since each parent tile only sees its own children, filters wider than the box filter
+ * replicate the border pixels of the 2x2 block rather than reading the neighbouring tiles.
+ * <br><br>
+ * Instances are thread-safe, i.e. tiles can be computed concurrently, as long as
+ * no two threads work on the same tile.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+class TileDownsampler {
+
+  /**
+   * The tile layout of the tiling scheme
+   */
+  private TileLayout layout;
+
+  /**
+   * The tileset root directory
+   */
+  private File tilesetRoot;
+
+  /**
+   * The tile encoder
+   */
+  private TileEncoder encoder;
+
+  /**
+   * The resampling filter
+   */
+  private ResamplingFilter filter;
+
+  /**
+   * Number of channels per pixel (3 or 4)
+   */
+  private int channels;
+
+  /**
+   * Background color for padded layouts, in raster channel order
+   */
+  private byte[] background;
+
+  TileDownsampler(TileLayout layout, File tilesetRoot, TileEncoder encoder, int background) {
+    this(layout, tilesetRoot, encoder, background, ResamplingFilter.BOX);
+  }
+
+  TileDownsampler(TileLayout layout, File tilesetRoot, TileEncoder encoder, int background, ResamplingFilter filter) {
+    this.layout = layout;
+    this.tilesetRoot = tilesetRoot;
+    this.encoder = encoder;
+    this.filter = (filter != null) ? filter : ResamplingFilter.BOX;
+    this.channels = encoder.hasAlpha() ? 4 : 3;
+    this.background = BoxFilter.toBGR(background, channels);
+  }
+
+  TileLayout getLayout() {
+    return layout;
+  }
+
+  /**
+   * Tile pixels, as packed-byte (non-premultiplied) BGR or ABGR raster
+   */
+  static class Tile {
+
+    final int width, height;
+
+    final byte[] pixels;
+
+    Tile(int width, int height, byte[] pixels) {
+      this.width = width;
+      this.height = height;
+      this.pixels = pixels;
+    }
+  }
+
+  /**
+   * Returns the positions of the (up to) four children of a tile in the level beneath,
+   * as {col, row} pairs. Index 0 is the upper left child, 1 the upper right, 2 the lower
+   * left and 3 the lower right child; entries for children outside the level are null.
+   * 
+   * @param zoomlevel the zoom level of the parent tile (must be greater than 0)
+   * @param col the column of the parent tile
+   * @param row the row of the parent tile
+   * @return the child positions
+   */
+  int[][] getChildren(int zoomlevel, int col, int row) {
+    int[][] children = new int[4][];
+    int z = zoomlevel - 1;
+    for (int dy = 0; dy < 2; dy++) {
+      for (int dx = 0; dx < 2; dx++) {
+        int c = col * 2 + dx;
+        int r = row * 2 + dy;
+        if (c < layout.getColumns(z) && r < layout.getRows(z)) {
+          boolean upper = (layout.getOrigin() == Origin.TOP_LEFT) ? dy == 0 : dy == 1;
+          children[(upper ? 0 : 2) + dx] = new int[] { c, r };
+        }
+      }
+    }
+    return children;
+  }
+
+  /**
+   * Computes a tile by decoding its child tiles from disk, and writes it.
+   * 
+   * @param zoomlevel the zoom level of the tile (must be greater than 0)
+   * @param col the tile column
+   * @param row the tile row
+   * @throws IOException if a tile cannot be read or written
+   */
+  void renderTile(int zoomlevel, int col, int row) throws IOException {
+    int[][] positions = getChildren(zoomlevel, col, row);
+    Tile[] children = new Tile[4];
+    for (int i = 0; i < 4; i++) {
+      if (positions[i] != null)
+        children[i] = readTile(zoomlevel - 1, positions[i][0], positions[i][1]);
+    }
+    writeTile(zoomlevel, col, row, renderTile(children));
+  }
+
+  /**
+   * Computes a tile from its child tiles.
+   * 
+   * @param children the child tiles, ordered as in {@link #getChildren(int, int, int)}
+   * @return the tile
+   */
+  Tile renderTile(Tile[] children) {
+    Tile block = compose(children);
+    if (!layout.isPadded())
+      return new Tile(BoxFilter.scaledSize(block.width), BoxFilter.scaledSize(block.height), filter.downsample(
+          block.pixels, block.width, block.height, channels));
+
+    // Padded layouts: place the scaled block on a full-size tile, at the side of the existing children
+    Dimension size = layout.getTileSize(0, 0, 0);
+    int y = (children[0] == null && children[1] == null) ? size.height - BoxFilter.scaledSize(block.height) : 0;
+    byte[] tile = new byte[size.width * size.height * channels];
+    filter.downsample(block.pixels, block.width, block.height, channels, tile, size.width, size.height, 0, y,
+        background);
+    return new Tile(size.width, size.height, tile);
+  }
+
+  /**
+   * Reads a tile from the tileset (or from the tile writer, if it is still queued).
+   * 
+   * @param zoomlevel the zoom level
+   * @param col the tile column
+   * @param row the tile row
+   * @return the tile
+   * @throws IOException if the tile cannot be read
+   */
+  Tile readTile(int zoomlevel, int col, int row) throws IOException {
+    File file = layout.getTileFile(tilesetRoot, zoomlevel, col, row);
+    byte[] pending = (encoder.getWriter() != null) ? encoder.getWriter().getPending(file) : null;
+    BufferedImage image = (pending != null) ? ImageIO.read(new ByteArrayInputStream(pending)) : ImageIO.read(file);
+    if (image == null)
+      throw new IOException("Cannot read tile: " + file);
+    int w = image.getWidth();
+    int h = image.getHeight();
+    if (image.getType() != getImageType()) {
+      BufferedImage converted = new BufferedImage(w, h, getImageType());
+      converted.setRGB(0, 0, w, h, image.getRGB(0, 0, w, h, null, 0, w), 0, w);
+      image = converted;
+    }
+    return new Tile(w, h, ((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+  }
+
+  /**
+   * Encodes a tile and writes it to the tileset.
+   * 
+   * @param zoomlevel the zoom level
+   * @param col the tile column
+   * @param row the tile row
+   * @param tile the tile
+   * @throws IOException if the tile cannot be written
+   */
+  void writeTile(int zoomlevel, int col, int row, Tile tile) throws IOException {
+    File file = layout.getTileFile(tilesetRoot, zoomlevel, col, row);
+    BufferedImage image = new BufferedImage(tile.width, tile.height, getImageType());
+    byte[] data = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+    System.arraycopy(tile.pixels, 0, data, 0, data.length);
+    encoder.encode(image, file);
+  }
+
+  private int getImageType() {
+    return (channels == 4) ? BufferedImage.TYPE_4BYTE_ABGR : BufferedImage.TYPE_3BYTE_BGR;
+  }
+
+  /**
+   * Joins up to four child tiles into one block, just large enough to hold
+   * the existing children.
+   */
+  private Tile compose(Tile[] children) {
+    Tile left = (children[0] != null) ? children[0] : children[2];
+    Tile right = (children[1] != null) ? children[1] : children[3];
+    Tile upper = (children[0] != null) ? children[0] : children[1];
+    Tile lower = (children[2] != null) ? children[2] : children[3];
+    int leftWidth = left.width;
+    int upperHeight = (upper != null) ? upper.height : 0;
+    int width = leftWidth + ((right != null) ? right.width : 0);
+    int height = upperHeight + ((lower != null) ? lower.height : 0);
+
+    byte[] block = new byte[width * height * channels];
+    for (int i = 0; i < 4; i++) {
+      Tile child = children[i];
+      if (child == null)
+        continue;
+      int x = (i % 2 == 0) ? 0 : leftWidth;
+      int y = (i < 2) ? 0 : upperHeight;
+      int w = Math.min(child.width, width - x) * channels;
+      for (int j = 0; j < Math.min(child.height, height - y); j++)
+        System.arraycopy(child.pixels, j * child.width * channels, block, ((y + j) * width + x) * channels, w);
+    }
+    return new Tile(width, height, block);
+  }
+
+}
@@ -0,0 +1,242 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.io.File;
+
+/**
+ * Describes how a tiling scheme lays out its tiles: where the image is placed on the
+ * tile canvas of the base (i.e. highest-resolution) zoom level, whether tile rows are
+ * counted from the top or from the bottom, whether border tiles are padded to the full
+ * tile size, and how tile files are named.
+ * <br><br>
+ * Zoom levels are numbered as in {@link TilesetInfo}, i.e. starting with 0 for the
+ * highest-resolution level. Tile columns are always counted from the left, tile rows
+ * according to the layout's {@link Origin}.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public abstract class TileLayout {
+
+  /**
+   * Enum: the corner of the tile grid that tile row 0 is anchored at
+   */
+  public enum Origin {
+    TOP_LEFT, BOTTOM_LEFT
+  };
+
+  /**
+   * The tileset info
+   */
+  protected TilesetInfo info;
+
+  /**
+   * Dimensions of the source image
+   */
+  protected int imageWidth, imageHeight;
+
+  /**
+   * Dimensions of the base level tile canvas
+   */
+  protected int canvasWidth, canvasHeight;
+
+  /**
+   * Position of the source image on the base level tile canvas (from the top-left corner)
+   */
+  protected int imageX, imageY;
+
+  /**
+   * The tile grid origin
+   */
+  protected Origin origin;
+
+  /**
+   * Flag indicating whether border tiles are padded to the full tile size
+   */
+  protected boolean padded;
+
+  protected TileLayout(TilesetInfo info, int imageWidth, int imageHeight, int canvasWidth, int canvasHeight,
+      int imageX, int imageY, Origin origin, boolean padded) {
+
+    this.info = info;
+    this.imageWidth = imageWidth;
+    this.imageHeight = imageHeight;
+    this.canvasWidth = canvasWidth;
+    this.canvasHeight = canvasHeight;
+    this.imageX = imageX;
+    this.imageY = imageY;
+    this.origin = origin;
+    this.padded = padded;
+  }
+
+  public TilesetInfo getTilesetInfo() {
+    return info;
+  }
+
+  public Origin getOrigin() {
+    return origin;
+  }
+
+  public boolean isPadded() {
+    return padded;
+  }
+
+  /**
+   * Returns the x position of the source image on the base level tile canvas.
+   * 
+   * @return the x offset in pixels
+   */
+  public int getImageX() {
+    return imageX;
+  }
+
+  /**
+   * Returns the y position of the source image on the base level tile canvas
+   * (from the top of the canvas).
+   * 
+   * @return the y offset in pixels
+   */
+  public int getImageY() {
+    return imageY;
+  }
+
+  public int getColumns(int zoomlevel) {
+    return info.getNumberOfXTiles(zoomlevel);
+  }
+
+  public int getRows(int zoomlevel) {
+    return info.getNumberOfYTiles(zoomlevel);
+  }
+
+  /**
+   * Returns the size of a tile in any zoom level. Tiles of padded layouts always
+   * have the full tile size; otherwise, border tiles are cropped to the (scaled)
+   * canvas of their zoom level.
+   * 
+   * @param zoomlevel the zoom level (0 = highest-resolution level)
+   * @param col the tile column
+   * @param row the tile row
+   * @return the tile size
+   */
+  public Dimension getTileSize(int zoomlevel, int col, int row) {
+    if (padded)
+      return new Dimension(info.getTileWidth(), info.getTileHeight());
+
+    int top = (origin == Origin.TOP_LEFT) ? row : getRows(zoomlevel) - row - 1;
+    int levelWidth = (int) Math.ceil(canvasWidth / Math.pow(2, zoomlevel));
+    int levelHeight = (int) Math.ceil(canvasHeight / Math.pow(2, zoomlevel));
+    return new Dimension(Math.min(info.getTileWidth(), levelWidth - col * info.getTileWidth()), Math.min(
+        info.getTileHeight(), levelHeight - top * info.getTileHeight()));
+  }
+
+  /**
+   * Returns the region of a zoom level image that a tile covers, in pixels of that
+   * level (from the top-left corner of the scaled source image, which is
+   * {@link TilesetInfo#getLevelWidth(int)} x {@link TilesetInfo#getLevelHeight(int)}
+   * pixels). The region has the size of the tile, and may extend beyond the level
+   * image where the tile contains background. The image is assumed to keep its
+   * position relative to the tile grid origin on every level; offsets are scaled
+   * down with the image (rounding down).
+   * 
+   * @param zoomlevel the zoom level (0 = highest-resolution level)
+   * @param col the tile column
+   * @param row the tile row
+   * @return the region
+   */
+  public Rectangle getLevelRegion(int zoomlevel, int col, int row) {
+    Dimension size = getTileSize(zoomlevel, col, row);
+    int x = col * info.getTileWidth() - (imageX >> zoomlevel);
+    int y;
+    if (origin == Origin.TOP_LEFT) {
+      y = row * info.getTileHeight() - (imageY >> zoomlevel);
+    } else {
+      // Rows count upwards from the bottom of the image (plus its bottom margin)
+      int bottom = (canvasHeight - imageY - imageHeight) >> zoomlevel;
+      y = info.getLevelHeight(zoomlevel) + bottom - (row + 1) * info.getTileHeight();
+    }
+    return new Rectangle(x, y, size.width, size.height);
+  }
+
+  /**
+   * Returns the bounds of a base level tile on the tile canvas (in pixels, from
+   * the top-left corner of the canvas). Unless the layout is padded, border tiles
+   * are cropped to the canvas.
+   * 
+   * @param col the tile column
+   * @param row the tile row
+   * @return the tile bounds
+   */
+  public Rectangle getTileBounds(int col, int row) {
+    int top = (origin == Origin.TOP_LEFT) ? row : getRows(0) - row - 1;
+    Rectangle bounds = new Rectangle(col * info.getTileWidth(), top * info.getTileHeight(), info.getTileWidth(),
+        info.getTileHeight());
+    if (!padded)
+      bounds = bounds.intersection(new Rectangle(0, 0, canvasWidth, canvasHeight));
+    return bounds;
+  }
+
+  /**
+   * Returns the region of the source image that is covered by a base level tile
+   * (in source image pixel coordinates). The region is empty if the tile
+   * consists of background only.
+   * 
+   * @param col the tile column
+   * @param row the tile row
+   * @return the source image region
+   */
+  public Rectangle getSourceRegion(int col, int row) {
+    Rectangle region = getTileBounds(col, row).intersection(
+        new Rectangle(imageX, imageY, imageWidth, imageHeight));
+    region.translate(-imageX, -imageY);
+    return region;
+  }
+
+  /**
+   * Checks whether a base level tile is entirely covered by the source image,
+   * i.e. contains no background.
+   * 
+   * @param col the tile column
+   * @param row the tile row
+   * @return true if the tile contains image pixels only
+   */
+  public boolean isCoveredByImage(int col, int row) {
+    Rectangle bounds = getTileBounds(col, row);
+    Rectangle region = getSourceRegion(col, row);
+    return region.width == bounds.width && region.height == bounds.height;
+  }
+
+  /**
+   * Returns the file for a specific tile.
+   * 
+   * @param tilesetRoot the tileset root directory
+   * @param zoomlevel the zoom level (0 = highest-resolution level)
+   * @param col the tile column
+   * @param row the tile row
+   * @return the tile file
+   */
+  public abstract File getTileFile(File tilesetRoot, int zoomlevel, int col, int row);
+
+}
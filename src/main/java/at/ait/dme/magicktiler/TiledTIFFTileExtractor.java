@@ -0,0 +1,268 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package at.ait.dme.magicktiler;
+
+import java.awt.AlphaComposite;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+import at.ait.dme.magicktiler.image.ImageFormat;
+import at.ait.dme.magicktiler.image.TileEncoder;
+import at.ait.dme.magicktiler.image.TiledTIFF;
+import at.ait.dme.magicktiler.image.TiledTIFF.Directory;
+
+/**
+ * Generates the base level tiles of a tileset straight from the internal tiles of a
+ * tiled TIFF source image. If the internal tile grid matches the tileset's tile grid
+ * and both are JPEG-compressed, tiles are copied byte-for-byte. All other tiles (e.g.
+ * border tiles, or all tiles if the grids are not aligned) are rendered from only
+ * those internal tiles they overlap. Tiles are independent of each other, so columns
+ * can be processed in parallel.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+class TiledTIFFTileExtractor {
+
+  /**
+   * Max. number of decoded internal tiles cached per thread
+   */
+  private static final int CACHE_SIZE = 8;
+
+  /**
+   * The source image
+   */
+  private TiledTIFF tiff;
+
+  /**
+   * The full-resolution image directory
+   */
+  private Directory dir;
+
+  /**
+   * The tile layout of the tiling scheme
+   */
+  private TileLayout layout;
+
+  /**
+   * The tileset root directory
+   */
+  private File tilesetRoot;
+
+  /**
+   * The tile encoder
+   */
+  private TileEncoder encoder;
+
+  /**
+   * Background color (ARGB)
+   */
+  private int background;
+
+  TiledTIFFTileExtractor(TiledTIFF tiff, TileLayout layout, File tilesetRoot, TileEncoder encoder, int background) {
+
+    this.tiff = tiff;
+    this.dir = tiff.getDirectories().get(0);
+    this.layout = layout;
+    this.tilesetRoot = tilesetRoot;
+    this.encoder = encoder;
+    this.background = background;
+  }
+
+  /**
+   * Checks whether the full-resolution image of a TIFF is tiled, and whether
+   * its tiles can be decoded.
+   * 
+   * @param tiff the TIFF
+   * @return true if base tiles can be extracted from the TIFF
+   */
+  static boolean isSupported(TiledTIFF tiff) {
+    if (tiff.getDirectories().isEmpty())
+      return false;
+    Directory dir = tiff.getDirectories().get(0);
+    if (!dir.isTiled() || dir.getPlanarConfiguration() != 1)
+      return false;
+    return dir.getCompression() == TiledTIFF.COMPRESSION_JPEG || ImageIO.getImageReadersBySuffix("tif").hasNext();
+  }
+
+  /**
+   * Checks whether a tile can be copied from the source without decoding it.
+   * 
+   * @param col the tile column
+   * @param row the tile row
+   * @return true if the tile can be copied
+   */
+  boolean canCopy(int col, int row) {
+    if (encoder.getFormat() != ImageFormat.JPEG || dir.getCompression() != TiledTIFF.COMPRESSION_JPEG)
+      return false;
+    if (dir.getTileWidth() != layout.getTilesetInfo().getTileWidth()
+        || dir.getTileHeight() != layout.getTilesetInfo().getTileHeight())
+      return false;
+
+    Rectangle region = layout.getSourceRegion(col, row);
+    return layout.isCoveredByImage(col, row) && region.x % dir.getTileWidth() == 0
+        && region.y % dir.getTileHeight() == 0 && region.width == dir.getTileWidth()
+        && region.height == dir.getTileHeight();
+  }
+
+  /**
+   * Generates the base tiles of a range of columns.
+   * 
+   * @param fromCol the first column
+   * @param toCol the last column (exclusive)
+   * @return the number of tiles that were copied without decoding
+   * @throws IOException if anything goes wrong
+   */
+  int extract(int fromCol, int toCol) throws IOException {
+    Decoder decoder = new Decoder();
+    int copied = 0;
+    try {
+      for (int col = fromCol; col < toCol; col++) {
+        for (int row = 0; row < layout.getRows(0); row++) {
+          File target = layout.getTileFile(tilesetRoot, 0, col, row);
+          if (canCopy(col, row)) {
+            Rectangle region = layout.getSourceRegion(col, row);
+            encoder.write(tiff.getJPEGTile(dir, region.x / dir.getTileWidth(), region.y / dir.getTileHeight()),
+                target);
+            copied++;
+          } else {
+            render(col, row, target, decoder);
+          }
+        }
+      }
+    } finally {
+      decoder.dispose();
+    }
+    return copied;
+  }
+
+  private void render(int col, int row, File target, Decoder decoder) throws IOException {
+    Rectangle bounds = layout.getTileBounds(col, row);
+    Rectangle region = layout.getSourceRegion(col, row);
+
+    BufferedImage tile = new BufferedImage(bounds.width, bounds.height, encoder.getImageType());
+    Graphics2D g = tile.createGraphics();
+    try {
+      g.setComposite(AlphaComposite.Src);
+      g.setColor(new Color(background, true));
+      g.fillRect(0, 0, bounds.width, bounds.height);
+      if (!region.isEmpty()) {
+        Point p = new Point(region.x + layout.getImageX() - bounds.x, region.y + layout.getImageY() - bounds.y);
+        decoder.draw(g, region, p);
+      }
+    } finally {
+      g.dispose();
+    }
+
+    encoder.encode(tile, target);
+  }
+
+  /**
+   * Decodes source regions, for a single thread. JPEG-compressed tiles are decoded
+   * individually (and cached, since unaligned tile grids need each internal tile
+   * more than once). Other compressions are handled by the ImageIO TIFF reader.
+   */
+  private class Decoder {
+
+    private ImageInputStream in;
+
+    private ImageReader reader;
+
+    private Map<Point, BufferedImage> cache = new LinkedHashMap<Point, BufferedImage>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<Point, BufferedImage> eldest) {
+        return size() > CACHE_SIZE;
+      }
+    };
+
+    void draw(Graphics2D g, Rectangle region, Point target) throws IOException {
+      if (dir.getCompression() != TiledTIFF.COMPRESSION_JPEG) {
+        ImageReadParam param = getReader().getDefaultReadParam();
+        param.setSourceRegion(region);
+        g.drawImage(getReader().read(0, param), target.x, target.y, null);
+        return;
+      }
+
+      int tw = dir.getTileWidth();
+      int th = dir.getTileHeight();
+      for (int tr = region.y / th; tr <= (region.y + region.height - 1) / th; tr++) {
+        for (int tc = region.x / tw; tc <= (region.x + region.width - 1) / tw; tc++) {
+          Rectangle r = region.intersection(new Rectangle(tc * tw, tr * th, tw, th));
+          int dx = target.x + r.x - region.x;
+          int dy = target.y + r.y - region.y;
+          int sx = r.x - tc * tw;
+          int sy = r.y - tr * th;
+          g.drawImage(getTile(tc, tr), dx, dy, dx + r.width, dy + r.height, sx, sy, sx + r.width, sy + r.height,
+              null);
+        }
+      }
+    }
+
+    private BufferedImage getTile(int col, int row) throws IOException {
+      Point key = new Point(col, row);
+      BufferedImage tile = cache.get(key);
+      if (tile == null) {
+        tile = ImageIO.read(new ByteArrayInputStream(tiff.getJPEGTile(dir, col, row)));
+        if (tile == null)
+          throw new IOException("Cannot decode tile " + col + "-" + row + " of " + tiff.getFile().getName());
+        cache.put(key, tile);
+      }
+      return tile;
+    }
+
+    private ImageReader getReader() throws IOException {
+      if (reader == null) {
+        Iterator<ImageReader> readers = ImageIO.getImageReadersBySuffix("tif");
+        if (!readers.hasNext())
+          throw new IOException("No ImageIO TIFF reader");
+        in = ImageIO.createImageInputStream(tiff.getFile());
+        reader = readers.next();
+        reader.setInput(in, false, true);
+      }
+      return reader;
+    }
+
+    void dispose() throws IOException {
+      if (reader != null) {
+        reader.dispose();
+        in.close();
+      }
+    }
+  }
+
+}
@@ -79,6 +79,15 @@ public class TilesetInfo {
     setDimension(imgInfo.getWidth(), imgInfo.getHeight());
   }
 
+  public TilesetInfo(ImageInfo imgInfo, int tileWidth, int tileHeight, ImageFormat format) {
+    this.tileWidth = tileWidth;
+    this.tileHeight = tileHeight;
+    this.format = format;
+    this.imgInfo = imgInfo;
+
+    setDimension(imgInfo.getWidth(), imgInfo.getHeight());
+  }
+
   public void setDimension(int width, int height) {
     zoomlevels.clear();
 
@@ -130,6 +139,14 @@ public class TilesetInfo {
     return imgInfo.getHeight();
   }
 
+  public int getLevelWidth(int zoomlevel) {
+    return (int) Math.ceil(getImageWidth() / Math.pow(2, zoomlevel));
+  }
+
+  public int getLevelHeight(int zoomlevel) {
+    return (int) Math.ceil(getImageHeight() / Math.pow(2, zoomlevel));
+  }
+
   public int getNumberOfXTiles(int zoomlevel) {
     return zoomlevels.get(zoomlevel).x;
   }
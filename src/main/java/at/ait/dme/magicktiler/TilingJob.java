@@ -0,0 +1,286 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import at.ait.dme.magicktiler.image.ProcessGroup;
+
+/**
+ * A conversion submitted to the {@link TilingServer}. Jobs are ordered by priority
+ * (highest first), then by submission. The job follows the phases and progress of
+ * its tiler, and measures the time spent in each phase.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class TilingJob implements Comparable<TilingJob>, ProgressListener {
+
+  /**
+   * The job states
+   */
+  public enum Status {
+    QUEUED, RUNNING, DONE, FAILED, CANCELLED
+  }
+
+  private final long id;
+
+  private final int priority;
+
+  private final String scheme;
+
+  private final File input;
+
+  private final File output;
+
+  /**
+   * The tiler of this job
+   */
+  private final MagickTiler tiler;
+
+  /**
+   * The image processing processes of this job
+   */
+  private final ProcessGroup processes = new ProcessGroup();
+
+  private Status status = Status.QUEUED;
+
+  /**
+   * The thread running the job (while it is running)
+   */
+  private Thread thread = null;
+
+  private String phase = null;
+
+  /**
+   * Start time of the current phase
+   */
+  private long phaseStartTime;
+
+  /**
+   * Completed and total number of tasks of the current phase
+   */
+  private int completed = 0;
+  private int total = 0;
+
+  /**
+   * Time spent in each phase so far, in ms
+   */
+  private Map<String, Long> timings = new LinkedHashMap<String, Long>();
+
+  private final long submitted = System.currentTimeMillis();
+  private long started = 0;
+  private long finished = 0;
+
+  private String error = null;
+
+  public TilingJob(long id, int priority, String scheme, MagickTiler tiler, File input, File output) {
+    this.id = id;
+    this.priority = priority;
+    this.scheme = scheme;
+    this.tiler = tiler;
+    this.input = input;
+    this.output = output;
+  }
+
+  /**
+   * Runs the job in the current thread, unless it was cancelled.
+   */
+  public void run() {
+    synchronized (this) {
+      if (status != Status.QUEUED)
+        return;
+      status = Status.RUNNING;
+      started = System.currentTimeMillis();
+      phaseStartTime = started;
+      thread = Thread.currentThread();
+    }
+
+    tiler.setProgressListener(this);
+    tiler.setProcessGroup(processes);
+    try {
+      tiler.convert(input, output);
+      finish(Status.DONE, null);
+    } catch (TilingException e) {
+      finish(Status.FAILED, e.getMessage());
+    } catch (RuntimeException e) {
+      finish(Status.FAILED, e.toString());
+    } finally {
+      // Do not pass an interrupt from cancelling on to the next job of the thread
+      Thread.interrupted();
+    }
+  }
+
+  /**
+   * Cancels the job: a queued job is not started anymore, a running job is stopped by
+   * killing its image processing processes and interrupting its threads.
+   * 
+   * @return false if the job had already finished
+   */
+  public boolean cancel() {
+    synchronized (this) {
+      if (status != Status.QUEUED && status != Status.RUNNING)
+        return false;
+      if (status == Status.RUNNING)
+        thread.interrupt();
+      finish(Status.CANCELLED, null);
+    }
+    processes.cancel();
+    return true;
+  }
+
+  private synchronized void finish(Status status, String error) {
+    if (this.status == Status.CANCELLED)
+      return;
+    endPhase();
+    this.status = status;
+    this.error = error;
+    this.finished = System.currentTimeMillis();
+    this.thread = null;
+  }
+
+  /**
+   * Adds the time spent in the current phase to its timing.
+   */
+  private void endPhase() {
+    if (phase == null)
+      return;
+    long now = System.currentTimeMillis();
+    Long time = timings.get(phase);
+    timings.put(phase, ((time != null) ? time : 0) + now - phaseStartTime);
+    phaseStartTime = now;
+  }
+
+  public synchronized void phaseStarted(String phase) {
+    if (status != Status.RUNNING)
+      return;
+    endPhase();
+    this.phase = phase;
+    this.phaseStartTime = System.currentTimeMillis();
+    this.completed = 0;
+    this.total = 0;
+  }
+
+  public synchronized void progress(int completed, int total) {
+    this.completed = completed;
+    this.total = total;
+  }
+
+  public int compareTo(TilingJob other) {
+    if (priority != other.priority)
+      return (priority > other.priority) ? -1 : 1;
+    return (id < other.id) ? -1 : ((id == other.id) ? 0 : 1);
+  }
+
+  public long getId() {
+    return id;
+  }
+
+  public int getPriority() {
+    return priority;
+  }
+
+  public synchronized Status getStatus() {
+    return status;
+  }
+
+  public synchronized String getPhase() {
+    return phase;
+  }
+
+  /**
+   * Returns when the job finished.
+   * 
+   * @return the time in ms, or 0 if the job has not finished
+   */
+  public synchronized long getFinished() {
+    return finished;
+  }
+
+  public synchronized String getError() {
+    return error;
+  }
+
+  /**
+   * Returns the time spent in each phase so far (including the current one), in ms.
+   * 
+   * @return the timings, in the order the phases started
+   */
+  public synchronized Map<String, Long> getTimings() {
+    Map<String, Long> result = new LinkedHashMap<String, Long>(timings);
+    if (status == Status.RUNNING && phase != null) {
+      Long time = result.get(phase);
+      result.put(phase, ((time != null) ? time : 0) + System.currentTimeMillis() - phaseStartTime);
+    }
+    return result;
+  }
+
+  /**
+   * Returns the job as a JSON object.
+   * 
+   * @return the JSON string
+   */
+  public synchronized String toJSON() {
+    StringBuilder json = new StringBuilder("{");
+    json.append("\"id\":").append(id);
+    json.append(",\"status\":").append(quote(status.name()));
+    json.append(",\"priority\":").append(priority);
+    json.append(",\"scheme\":").append(quote(scheme));
+    json.append(",\"input\":").append(quote(input.getAbsolutePath()));
+    json.append(",\"output\":").append((output != null) ? quote(output.getAbsolutePath()) : "null");
+    json.append(",\"phase\":").append(quote(phase));
+    json.append(",\"completed\":").append(completed);
+    json.append(",\"total\":").append(total);
+    json.append(",\"submitted\":").append(submitted);
+    json.append(",\"started\":").append(started);
+    json.append(",\"finished\":").append(finished);
+    json.append(",\"timings\":{");
+    String separator = "";
+    for (Map.Entry<String, Long> timing : getTimings().entrySet()) {
+      json.append(separator).append(quote(timing.getKey())).append(':').append(timing.getValue());
+      separator = ",";
+    }
+    json.append("},\"error\":").append(quote(error));
+    return json.append('}').toString();
+  }
+
+  /**
+   * Returns a string as a JSON string literal (or null).
+   */
+  static String quote(String value) {
+    if (value == null)
+      return "null";
+    StringBuilder quoted = new StringBuilder("\"");
+    for (char c : value.toCharArray()) {
+      if (c == '"' || c == '\\')
+        quoted.append('\\').append(c);
+      else if (c < 0x20)
+        quoted.append(String.format("\\u%04x", (int) c));
+      else
+        quoted.append(c);
+    }
+    return quoted.append('"').toString();
+  }
+}
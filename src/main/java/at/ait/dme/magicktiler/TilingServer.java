@@ -0,0 +1,528 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import at.ait.dme.magicktiler.composite.CompositeTiler;
+import at.ait.dme.magicktiler.composite.CompositeTiler.Scheme;
+import at.ait.dme.magicktiler.gmaps.GoogleMapsTiler;
+import at.ait.dme.magicktiler.image.CommandScheduler;
+import at.ait.dme.magicktiler.image.ImageFormat;
+import at.ait.dme.magicktiler.ptif.PTIFConverter;
+import at.ait.dme.magicktiler.tms.TMSTiler;
+import at.ait.dme.magicktiler.zoomify.ZoomifyTiler;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * An embedded HTTP service for submitting conversions, listening on the loopback
+ * interface only. Requests and responses:
+ * <br><br>
+ * <em>POST /jobs</em> submits a job, with the parameters (in the query string or as a
+ * form-encoded body) <em>scheme</em> ('tms', 'zoomify', 'gmap' or 'ptif', or a
+ * comma-separated list of schemes), <em>input</em>, and optionally <em>output</em>,
+ * <em>format</em> ('jpeg' or 'png'), <em>quality</em> (0 - 100), <em>background</em>
+ * and <em>priority</em> (default: 0). Returns the job (201), or the error (400).<br>
+ * <em>GET /jobs</em> returns all jobs, <em>GET /jobs/[id]</em> one job: its status,
+ * the current phase and its progress, and the time spent in each phase.<br>
+ * <em>DELETE /jobs/[id]</em> cancels a job. Returns the job, or 409 if it had already
+ * finished.
+ * <br><br>
+ * Every request must carry the server's token (see {@link #getToken()}) in an
+ * <em>Authorization: Bearer [token]</em> header, which browsers do not send across
+ * origins without a CORS preflight (which the server does not answer). Requests with an
+ * <em>Origin</em> header other than the server's own are rejected (403), so web pages
+ * open in a local browser cannot submit jobs that read and write local files.
+ * <br><br>
+ * Jobs are queued by priority (highest first), then in the order of submission, and
+ * run by a fixed number of workers: by default, one per CPU, as far as the JVM's
+ * maximum heap allows {@link #HEAP_PER_JOB} per job. The workers share the CPUs for
+ * their threads, and a {@link CommandScheduler} that runs at most one image processing
+ * command per CPU, within a memory budget (none by default, see {@link #setMemoryBudget(long)}).
+ * Cancelling a running job kills its image processing processes; the partial tileset is
+ * left in place. Finished jobs are kept for {@link #DEFAULT_RETENTION_TIME} ms, and at
+ * most {@link #DEFAULT_RETENTION_COUNT} of them (see {@link #setRetention(long, int)}).
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class TilingServer {
+
+  /**
+   * The path of the job resources
+   */
+  public static final String JOBS_PATH = "/jobs";
+
+  /**
+   * JVM heap assumed per running job (for in-process tiling), when choosing the default number of workers
+   */
+  public static final long HEAP_PER_JOB = 256L << 20;
+
+  /**
+   * Default time finished jobs are kept for, in ms (1 hour)
+   */
+  public static final long DEFAULT_RETENTION_TIME = 3600000L;
+
+  /**
+   * Default maximum number of finished jobs kept
+   */
+  public static final int DEFAULT_RETENTION_COUNT = 1000;
+
+  /**
+   * Log4j logger
+   */
+  private static Logger log = Logger.getLogger(TilingServer.class);
+
+  /**
+   * The port (0 for any free port)
+   */
+  private int port;
+
+  /**
+   * The working directory of the tilers
+   */
+  private File workingDirectory = new File(".");
+
+  /**
+   * Number of jobs run at the same time
+   */
+  private int workers;
+
+  /**
+   * The scheduler for the image processing commands of all jobs
+   */
+  private CommandScheduler scheduler;
+
+  /**
+   * The token that requests must carry
+   */
+  private String token;
+
+  /**
+   * Time finished jobs are kept for, in ms
+   */
+  private long retentionTime = DEFAULT_RETENTION_TIME;
+
+  /**
+   * Maximum number of finished jobs kept
+   */
+  private int retentionCount = DEFAULT_RETENTION_COUNT;
+
+  /**
+   * The queued jobs
+   */
+  private PriorityBlockingQueue<TilingJob> queue = new PriorityBlockingQueue<TilingJob>();
+
+  /**
+   * All jobs, by ID
+   */
+  private Map<Long, TilingJob> jobs = new ConcurrentSkipListMap<Long, TilingJob>();
+
+  /**
+   * The last job ID
+   */
+  private AtomicLong lastId = new AtomicLong();
+
+  private HttpServer server = null;
+
+  private ExecutorService executor = null;
+
+  public TilingServer(int port) {
+    this.port = port;
+    int cpus = Runtime.getRuntime().availableProcessors();
+    this.workers = (int) Math.max(1, Math.min(cpus, Runtime.getRuntime().maxMemory() / HEAP_PER_JOB));
+    this.scheduler = new CommandScheduler(Long.MAX_VALUE, cpus);
+    byte[] random = new byte[16];
+    new SecureRandom().nextBytes(random);
+    StringBuilder hex = new StringBuilder();
+    for (byte b : random)
+      hex.append(String.format("%02x", b & 0xff));
+    this.token = hex.toString();
+  }
+
+  /**
+   * Sets the number of jobs that run at the same time.
+   * 
+   * @param workers the number of workers
+   */
+  public void setWorkers(int workers) {
+    if (workers < 1)
+      throw new IllegalArgumentException("Invalid number of workers: " + workers);
+    this.workers = workers;
+  }
+
+  /**
+   * Sets the memory budget for the image processing commands of all jobs
+   * (default: no budget).
+   * 
+   * @param bytes the budget in bytes (Long.MAX_VALUE for no budget)
+   */
+  public void setMemoryBudget(long bytes) {
+    scheduler.setMemoryBudget(bytes);
+  }
+
+  /**
+   * Returns the token that requests must carry.
+   * 
+   * @return the token
+   */
+  public String getToken() {
+    return token;
+  }
+
+  /**
+   * Sets the token that requests must carry (by default, a random token).
+   * 
+   * @param token the token
+   */
+  public void setToken(String token) {
+    if (token == null || token.isEmpty())
+      throw new IllegalArgumentException("Token required");
+    this.token = token;
+  }
+
+  /**
+   * Sets how long, and how many, finished jobs are kept.
+   * 
+   * @param time the time after which finished jobs are removed, in ms
+   * @param count the maximum number of finished jobs kept (the first finished ones are removed first)
+   */
+  public void setRetention(long time, int count) {
+    if (time < 0 || count < 0)
+      throw new IllegalArgumentException("Invalid retention: " + time + " ms, " + count + " jobs");
+    this.retentionTime = time;
+    this.retentionCount = count;
+  }
+
+  public void setWorkingDirectory(File workingDirectory) {
+    this.workingDirectory = workingDirectory;
+  }
+
+  /**
+   * Returns the port the server listens on.
+   * 
+   * @return the port
+   */
+  public int getPort() {
+    return (server != null) ? server.getAddress().getPort() : port;
+  }
+
+  /**
+   * Starts the server and its workers.
+   * 
+   * @throws IOException if the server cannot be started
+   */
+  public synchronized void start() throws IOException {
+    if (server != null)
+      throw new IllegalStateException("Server already started");
+    server = HttpServer.create(new InetSocketAddress(InetAddress.getByName(null), port), 0);
+    server.createContext(JOBS_PATH, new JobsHandler());
+    executor = Executors.newFixedThreadPool(workers);
+    for (int i = 0; i < workers; i++) {
+      executor.execute(new Runnable() {
+        public void run() {
+          try {
+            while (true)
+              runJob(queue.take());
+          } catch (InterruptedException e) {
+            // Server stopped
+          }
+        }
+      });
+    }
+    server.start();
+    log.info("Listening on http://localhost:" + getPort() + JOBS_PATH + " with " + workers + " workers");
+  }
+
+  /**
+   * Stops the server, and cancels all queued and running jobs.
+   */
+  public synchronized void stop() {
+    if (server == null)
+      return;
+    server.stop(0);
+    for (TilingJob job : jobs.values())
+      job.cancel();
+    executor.shutdownNow();
+    server = null;
+  }
+
+  /**
+   * Submits a job.
+   * 
+   * @param params the job parameters (see above)
+   * @return the job
+   * @throws IllegalArgumentException if a parameter is missing or invalid
+   */
+  public TilingJob submit(Map<String, String> params) {
+    String scheme = params.get("scheme");
+    if (scheme == null || params.get("input") == null)
+      throw new IllegalArgumentException("Parameters 'scheme' and 'input' are mandatory");
+    File input = new File(params.get("input"));
+    if (!input.exists())
+      throw new IllegalArgumentException("File not found: " + input);
+    File output = (params.get("output") != null) ? new File(params.get("output")) : null;
+
+    MagickTiler tiler = createTiler(scheme);
+    if (tiler == null)
+      throw new IllegalArgumentException("Unsupported tiling scheme: " + scheme);
+    tiler.setWorkingDirectory(workingDirectory);
+    tiler.setThreads(Math.max(1, Runtime.getRuntime().availableProcessors() / workers));
+    tiler.processor.setCommandScheduler(scheduler);
+
+    String format = params.get("format");
+    if (format != null) {
+      if (format.equalsIgnoreCase("png"))
+        tiler.setTileFormat(ImageFormat.PNG);
+      else if (!format.equalsIgnoreCase("jpeg"))
+        throw new IllegalArgumentException("Unsupported tile format: " + format);
+    }
+    String quality = params.get("quality");
+    if (quality != null) {
+      try {
+        tiler.setJPEGCompressionQuality(Integer.parseInt(quality));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Invalid JPEG compression setting: " + quality);
+      }
+    }
+    if (params.get("background") != null)
+      tiler.setBackgroundColor(params.get("background"));
+    int priority = 0;
+    if (params.get("priority") != null) {
+      try {
+        priority = Integer.parseInt(params.get("priority"));
+      } catch (NumberFormatException e) {
+        throw new IllegalArgumentException("Invalid priority: " + params.get("priority"));
+      }
+    }
+
+    TilingJob job = new TilingJob(lastId.incrementAndGet(), priority, scheme, tiler, input, output);
+    removeFinishedJobs();
+    jobs.put(job.getId(), job);
+    queue.add(job);
+    log.info("Job " + job.getId() + " queued: " + scheme + " for " + input);
+    return job;
+  }
+
+  public TilingJob getJob(long id) {
+    return jobs.get(id);
+  }
+
+  public List<TilingJob> getJobs() {
+    removeFinishedJobs();
+    return new ArrayList<TilingJob>(jobs.values());
+  }
+
+  /**
+   * Removes the finished jobs that are past the retention time, and the jobs that
+   * finished first beyond the retention count.
+   */
+  private synchronized void removeFinishedJobs() {
+    long now = System.currentTimeMillis();
+    List<TilingJob> finished = new ArrayList<TilingJob>();
+    for (Iterator<TilingJob> it = jobs.values().iterator(); it.hasNext();) {
+      TilingJob job = it.next();
+      if (job.getFinished() == 0)
+        continue;
+      if (now - job.getFinished() > retentionTime)
+        it.remove();
+      else
+        finished.add(job);
+    }
+    Collections.sort(finished, new Comparator<TilingJob>() {
+      public int compare(TilingJob job1, TilingJob job2) {
+        return (job1.getFinished() < job2.getFinished()) ? -1 : ((job1.getFinished() == job2.getFinished()) ? 0 : 1);
+      }
+    });
+    for (int i = 0; i < finished.size() - retentionCount; i++)
+      jobs.remove(finished.get(i).getId());
+  }
+
+  /**
+   * Cancels a job (see {@link TilingJob#cancel()}).
+   * 
+   * @param id the job ID
+   * @return false if the job had already finished
+   */
+  public boolean cancel(long id) {
+    TilingJob job = jobs.get(id);
+    if (job == null || !job.cancel())
+      return false;
+    queue.remove(job);
+    log.info("Job " + id + " cancelled");
+    return true;
+  }
+
+  /**
+   * Creates the tiler for a scheme, as the command-line interface does.
+   * 
+   * @param scheme the scheme name, or a comma-separated list of schemes
+   * @return the tiler, or null if the scheme is not supported
+   */
+  protected MagickTiler createTiler(String scheme) {
+    if (scheme.indexOf(',') > -1) {
+      List<Scheme> list = new ArrayList<Scheme>();
+      for (String name : scheme.split(",")) {
+        if (Scheme.forName(name) == null)
+          return null;
+        list.add(Scheme.forName(name));
+      }
+      return new CompositeTiler(list.toArray(new Scheme[list.size()]));
+    } else if (scheme.equalsIgnoreCase("tms")) {
+      return new TMSTiler();
+    } else if (scheme.equalsIgnoreCase("zoomify")) {
+      return new ZoomifyTiler();
+    } else if (scheme.equalsIgnoreCase("gmap")) {
+      return new GoogleMapsTiler();
+    } else if (scheme.equalsIgnoreCase("ptif")) {
+      return new PTIFConverter();
+    }
+    return null;
+  }
+
+  private void runJob(TilingJob job) {
+    log.info("Job " + job.getId() + " started");
+    job.run();
+    log.info("Job " + job.getId() + " " + job.getStatus().name().toLowerCase()
+        + ((job.getError() != null) ? ": " + job.getError() : ""));
+  }
+
+  /**
+   * Handles the requests to {@link TilingServer#JOBS_PATH}
+   */
+  private class JobsHandler implements HttpHandler {
+
+    public void handle(HttpExchange exchange) throws IOException {
+      try {
+        String origin = exchange.getRequestHeaders().getFirst("Origin");
+        if (origin != null && !origin.equals("http://localhost:" + getPort())
+            && !origin.equals("http://127.0.0.1:" + getPort())) {
+          respond(exchange, 403, "{\"error\":\"Foreign origin\"}");
+          return;
+        }
+        if (!("Bearer " + token).equals(exchange.getRequestHeaders().getFirst("Authorization"))) {
+          respond(exchange, 401, "{\"error\":\"Token required\"}");
+          return;
+        }
+
+        String method = exchange.getRequestMethod();
+        String path = exchange.getRequestURI().getPath().substring(JOBS_PATH.length());
+        if (path.isEmpty() || path.equals("/")) {
+          if (method.equals("POST")) {
+            Map<String, String> params = parseParams(exchange.getRequestURI().getRawQuery());
+            params.putAll(parseParams(readBody(exchange.getRequestBody())));
+            try {
+              TilingJob job = submit(params);
+              exchange.getResponseHeaders().set("Location", JOBS_PATH + "/" + job.getId());
+              respond(exchange, 201, job.toJSON());
+            } catch (IllegalArgumentException e) {
+              respond(exchange, 400, "{\"error\":" + TilingJob.quote(e.getMessage()) + "}");
+            }
+          } else if (method.equals("GET")) {
+            StringBuilder json = new StringBuilder("[");
+            for (TilingJob job : getJobs())
+              json.append((json.length() > 1) ? "," : "").append(job.toJSON());
+            respond(exchange, 200, json.append(']').toString());
+          } else {
+            respond(exchange, 405, "{\"error\":\"Method not allowed\"}");
+          }
+          return;
+        }
+
+        TilingJob job = null;
+        try {
+          job = getJob(Long.parseLong(path.substring(1)));
+        } catch (NumberFormatException e) {
+          // Not found
+        }
+        if (job == null) {
+          respond(exchange, 404, "{\"error\":\"No such job\"}");
+        } else if (method.equals("GET")) {
+          respond(exchange, 200, job.toJSON());
+        } else if (method.equals("DELETE")) {
+          respond(exchange, cancel(job.getId()) ? 200 : 409, job.toJSON());
+        } else {
+          respond(exchange, 405, "{\"error\":\"Method not allowed\"}");
+        }
+      } finally {
+        exchange.close();
+      }
+    }
+
+    private void respond(HttpExchange exchange, int status, String json) throws IOException {
+      byte[] body = json.getBytes("UTF-8");
+      exchange.getResponseHeaders().set("Content-Type", "application/json; charset=UTF-8");
+      exchange.sendResponseHeaders(status, body.length);
+      OutputStream out = exchange.getResponseBody();
+      out.write(body);
+      out.close();
+    }
+
+    private String readBody(InputStream in) throws IOException {
+      ByteArrayOutputStream body = new ByteArrayOutputStream();
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) > 0)
+        body.write(buffer, 0, read);
+      return body.toString("UTF-8");
+    }
+
+    private Map<String, String> parseParams(String query) throws IOException {
+      Map<String, String> params = new HashMap<String, String>();
+      if (query == null || query.isEmpty())
+        return params;
+      for (String param : query.split("&")) {
+        int separator = param.indexOf('=');
+        if (separator > 0)
+          params.put(URLDecoder.decode(param.substring(0, separator), "UTF-8"),
+              URLDecoder.decode(param.substring(separator + 1), "UTF-8"));
+      }
+      return params;
+    }
+  }
+}
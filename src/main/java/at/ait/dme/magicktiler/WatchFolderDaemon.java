@@ -0,0 +1,444 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.text.SimpleDateFormat;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * A daemon that watches a spool directory and tiles every file dropped into it.
+ * <br><br>
+ * A new file is picked up once it is fully written, i.e. once its size and
+ * modification time have not changed for the settle time (see
+ * {@link #setSettleTime(long)}). It is then moved to the <em>processing</em>
+ * sub-directory of the spool directory and tiled by a pool of workers, all
+ * sharing the same tiler. The tileset is generated under a hidden name in the
+ * output directory and renamed to the name of the input file when it is complete,
+ * so the output directory only ever contains complete tilesets. The input file is
+ * then moved to the <em>done</em> sub-directory. If tiling fails, the input file is
+ * moved to the <em>quarantine</em> sub-directory, next to a <em>[name].error</em>
+ * file with the error message, and is not picked up again. In both directories, the
+ * names get a timestamp prefix (<em>yyyyMMdd-HHmmss-SSS-[name]</em>), so that files
+ * of the same name dropped again do not collide.
+ * <br><br>
+ * Files that are left in the processing directory (e.g. after a crash) are moved
+ * back to the spool directory on start - or to the quarantine directory, if a new
+ * file of the same name has been dropped in the meantime. Sub-directories and hidden
+ * files in the spool directory are ignored. Files are never moved over existing ones.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class WatchFolderDaemon {
+
+  /**
+   * Name of the sub-directory for files being tiled
+   */
+  public static final String PROCESSING_DIR = "processing";
+
+  /**
+   * Name of the sub-directory for files that were tiled
+   */
+  public static final String DONE_DIR = "done";
+
+  /**
+   * Name of the sub-directory for files that could not be tiled
+   */
+  public static final String QUARANTINE_DIR = "quarantine";
+
+  /**
+   * Suffix of the files with the error messages in the quarantine directory
+   */
+  public static final String ERROR_SUFFIX = ".error";
+
+  /**
+   * Log4j logger
+   */
+  private static Logger log = Logger.getLogger(WatchFolderDaemon.class);
+
+  /**
+   * A file in the spool directory that is (possibly) still being written
+   */
+  private static class Candidate {
+
+    long size, lastModified, since;
+
+    Candidate(long size, long lastModified, long since) {
+      this.size = size;
+      this.lastModified = lastModified;
+      this.since = since;
+    }
+  }
+
+  /**
+   * The tiler
+   */
+  private MagickTiler tiler;
+
+  /**
+   * The spool directory
+   */
+  private Path spool;
+
+  /**
+   * The output directory for the tilesets
+   */
+  private Path output;
+
+  /**
+   * Number of files tiled at the same time (default: 2)
+   */
+  private int workers = 2;
+
+  /**
+   * Time in milliseconds a file must remain unchanged before it is picked up (default: 5 s)
+   */
+  private long settleTime = 5000;
+
+  /**
+   * The files that are not yet fully written
+   */
+  private Map<Path, Candidate> candidates = new HashMap<Path, Candidate>();
+
+  /**
+   * The watch service (while running)
+   */
+  private volatile WatchService watcher;
+
+  /**
+   * The worker pool (while running)
+   */
+  private ExecutorService pool;
+
+  /**
+   * @param tiler the tiler
+   * @param spool the spool directory
+   * @param output the output directory for the tilesets
+   */
+  public WatchFolderDaemon(MagickTiler tiler, File spool, File output) {
+    this.tiler = tiler;
+    this.spool = spool.toPath().toAbsolutePath();
+    this.output = output.toPath().toAbsolutePath();
+  }
+
+  /**
+   * Sets the number of files that are tiled at the same time.
+   * 
+   * @param workers the number of workers
+   */
+  public void setWorkers(int workers) {
+    if (workers < 1)
+      throw new IllegalArgumentException("At least one worker required: " + workers);
+    this.workers = workers;
+  }
+
+  /**
+   * Sets the time a new file must remain unchanged (in size and modification time)
+   * before it is considered fully written and picked up.
+   * 
+   * @param millis the settle time in milliseconds
+   */
+  public void setSettleTime(long millis) {
+    this.settleTime = millis;
+  }
+
+  /**
+   * Watches the spool directory until {@link #stop()} is called, then waits
+   * until the files being tiled are done.
+   * 
+   * @throws IOException if the directories cannot be set up or watched
+   */
+  public void run() throws IOException {
+    for (Path dir : Arrays.asList(spool, output, spool.resolve(PROCESSING_DIR), spool.resolve(DONE_DIR),
+        spool.resolve(QUARANTINE_DIR)))
+      Files.createDirectories(dir);
+    recover();
+
+    pool = Executors.newFixedThreadPool(workers);
+    watcher = FileSystems.getDefault().newWatchService();
+    try {
+      spool.register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+      log.info("Watching " + spool + " (" + workers + " workers)");
+      scan();
+
+      long interval = Math.max(100, settleTime / 2);
+      while (true) {
+        WatchKey key = watcher.poll(interval, TimeUnit.MILLISECONDS);
+        if (key != null) {
+          for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW)
+              scan();
+            else
+              observe(spool.resolve((Path) event.context()));
+          }
+          key.reset();
+        }
+        submitSettled();
+      }
+    } catch (ClosedWatchServiceException e) {
+      // Stopped
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    } finally {
+      watcher.close();
+      pool.shutdown();
+      try {
+        pool.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      log.info("Stopped watching " + spool);
+    }
+  }
+
+  /**
+   * Stops watching the spool directory. Files that are being tiled are completed.
+   */
+  public void stop() {
+    try {
+      if (watcher != null)
+        watcher.close();
+    } catch (IOException e) {
+      log.error("Error closing watch service: " + e.getMessage());
+    }
+  }
+
+  /**
+   * Moves the files left in the processing directory back to the spool directory.
+   */
+  private void recover() throws IOException {
+    DirectoryStream<Path> files = Files.newDirectoryStream(spool.resolve(PROCESSING_DIR));
+    try {
+      for (Path file : files) {
+        Path target = spool.resolve(file.getFileName());
+        if (Files.exists(target)) {
+          log.warn("Not retrying " + file.getFileName() + " (left in " + PROCESSING_DIR
+              + "), a new file of the same name is waiting");
+          Path quarantined = moveUnique(file, spool.resolve(QUARANTINE_DIR));
+          Files.write(Paths.get(quarantined + ERROR_SUFFIX), "Superseded by a new file of the same name"
+              .getBytes(Charset.forName("UTF-8")));
+        } else {
+          log.warn("Retrying " + file.getFileName() + " (left in " + PROCESSING_DIR + ")");
+          move(file, target);
+        }
+      }
+    } finally {
+      files.close();
+    }
+  }
+
+  /**
+   * Registers all files in the spool directory as candidates.
+   */
+  private void scan() throws IOException {
+    DirectoryStream<Path> files = Files.newDirectoryStream(spool);
+    try {
+      for (Path file : files)
+        observe(file);
+    } finally {
+      files.close();
+    }
+  }
+
+  /**
+   * Registers a new or changed file as a candidate (or updates it).
+   */
+  private void observe(Path file) {
+    if (!Files.isRegularFile(file) || file.getFileName().toString().startsWith("."))
+      return;
+
+    File f = file.toFile();
+    Candidate candidate = candidates.get(file);
+    if (candidate == null || candidate.size != f.length() || candidate.lastModified != f.lastModified())
+      candidates.put(file, new Candidate(f.length(), f.lastModified(), System.currentTimeMillis()));
+  }
+
+  /**
+   * Submits all candidates that have not changed for the settle time.
+   */
+  private void submitSettled() {
+    long now = System.currentTimeMillis();
+    Iterator<Map.Entry<Path, Candidate>> it = candidates.entrySet().iterator();
+    while (it.hasNext()) {
+      Map.Entry<Path, Candidate> entry = it.next();
+      File f = entry.getKey().toFile();
+      Candidate candidate = entry.getValue();
+      if (!f.isFile()) {
+        it.remove();
+      } else if (candidate.size != f.length() || candidate.lastModified != f.lastModified()) {
+        entry.setValue(new Candidate(f.length(), f.lastModified(), now));
+      } else if (now - candidate.since >= settleTime) {
+        final Path claimed = spool.resolve(PROCESSING_DIR).resolve(entry.getKey().getFileName());
+        try {
+          if (Files.exists(claimed))
+            throw new IOException("a file of the same name is still being tiled");
+          move(entry.getKey(), claimed);
+        } catch (IOException e) {
+          // Try again after the settle time
+          log.warn("Cannot pick up " + f.getName() + ": " + e.getMessage());
+          candidate.since = now;
+          continue;
+        }
+        it.remove();
+        pool.submit(new Runnable() {
+          public void run() {
+            process(claimed);
+          }
+        });
+      }
+    }
+  }
+
+  /**
+   * Tiles a file from the processing directory and moves it (and the tileset) to its destination.
+   */
+  private void process(Path input) {
+    String name = input.getFileName().toString();
+    Path staging = output.resolve("." + name + ".partial");
+    Path tileset = output.resolve(name);
+    long startTime = System.currentTimeMillis();
+    try {
+      deleteRecursively(staging);
+      tiler.convert(input.toFile(), staging.toFile());
+      publish(staging, tileset);
+    } catch (TilingException e) {
+      quarantine(input, staging, e.getMessage());
+      return;
+    } catch (IOException e) {
+      quarantine(input, staging, e.getMessage());
+      return;
+    } catch (RuntimeException e) {
+      quarantine(input, staging, e.toString());
+      return;
+    } catch (Error e) {
+      // E.g. out of memory - do not leave the file in the processing directory
+      quarantine(input, staging, e.toString());
+      throw e;
+    }
+
+    try {
+      moveUnique(input, spool.resolve(DONE_DIR));
+      log.info("[DONE] " + name + " (" + (System.currentTimeMillis() - startTime) + " ms)");
+    } catch (IOException e) {
+      log.error("Tiled " + name + ", but cannot move it to " + DONE_DIR + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Renames a complete tileset to its final name, replacing an older tileset of the same name.
+   */
+  private void publish(Path staging, Path tileset) throws IOException {
+    Path old = null;
+    if (Files.exists(tileset)) {
+      old = output.resolve("." + tileset.getFileName() + ".old");
+      deleteRecursively(old);
+      move(tileset, old);
+    }
+    move(staging, tileset);
+    if (old != null)
+      deleteRecursively(old);
+  }
+
+  private void quarantine(Path input, Path staging, String message) {
+    String name = input.getFileName().toString();
+    log.error("[FAILED] " + name + " - " + message);
+    try {
+      deleteRecursively(staging);
+      Path quarantined = moveUnique(input, spool.resolve(QUARANTINE_DIR));
+      Files.write(Paths.get(quarantined + ERROR_SUFFIX), String.valueOf(message).getBytes(Charset.forName("UTF-8")));
+    } catch (IOException e) {
+      log.error("Cannot quarantine " + name + ": " + e.getMessage());
+    }
+  }
+
+  /**
+   * Moves a file into a directory, under its name with a timestamp prefix (and a counter,
+   * if that name is taken as well).
+   * 
+   * @return the new path of the file
+   */
+  private static synchronized Path moveUnique(Path source, Path directory) throws IOException {
+    String prefix = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date()) + "-";
+    String name = source.getFileName().toString();
+    Path target = directory.resolve(prefix + name);
+    for (int i = 1; Files.exists(target) || Files.exists(Paths.get(target + ERROR_SUFFIX)); i++)
+      target = directory.resolve(prefix + i + "-" + name);
+    move(source, target);
+    return target;
+  }
+
+  /**
+   * Moves a file or directory atomically, or - if the file system does not support
+   * atomic moves - as a regular rename. Never replaces an existing file (which an
+   * atomic move would do silently on some platforms).
+   */
+  private static void move(Path source, Path target) throws IOException {
+    if (Files.exists(target, LinkOption.NOFOLLOW_LINKS))
+      throw new FileAlreadyExistsException(target.toString());
+    try {
+      Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+    } catch (AtomicMoveNotSupportedException e) {
+      Files.move(source, target);
+    }
+  }
+
+  private static void deleteRecursively(Path path) throws IOException {
+    if (Files.isDirectory(path) && !Files.isSymbolicLink(path)) {
+      DirectoryStream<Path> children = Files.newDirectoryStream(path);
+      try {
+        for (Path child : children)
+          deleteRecursively(child);
+      } finally {
+        children.close();
+      }
+    }
+    Files.deleteIfExists(path);
+  }
+
+}
@@ -0,0 +1,493 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.composite;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
+
+import org.apache.log4j.Logger;
+
+import at.ait.dme.magicktiler.MagickTiler;
+import at.ait.dme.magicktiler.TileLayout;
+import at.ait.dme.magicktiler.TilesetInfo;
+import at.ait.dme.magicktiler.TilingException;
+import at.ait.dme.magicktiler.gmaps.GoogleMapsTileLayout;
+import at.ait.dme.magicktiler.gmaps.GoogleMapsTiler;
+import at.ait.dme.magicktiler.image.BandReader;
+import at.ait.dme.magicktiler.image.ImageFormat;
+import at.ait.dme.magicktiler.image.ImageInfo;
+import at.ait.dme.magicktiler.image.RawRaster;
+import at.ait.dme.magicktiler.image.ResamplingFilter;
+import at.ait.dme.magicktiler.image.TileEncoder;
+import at.ait.dme.magicktiler.image.TiledTIFFWriter;
+import at.ait.dme.magicktiler.tms.TMSTileLayout;
+import at.ait.dme.magicktiler.tms.TMSTiler;
+import at.ait.dme.magicktiler.zoomify.ZoomifyTileLayout;
+import at.ait.dme.magicktiler.zoomify.ZoomifyTiler;
+
+/**
+ * A tiler that generates several tiling schemes from one source image in a single
+ * pass. Instead of running each scheme's tiler on its own - which would decode the
+ * source and compute the pyramid once per scheme - the pyramid is computed only once,
+ * and every level is cut into the tiles of all requested schemes before the next
+ * level is computed.
+ * <br><br>
+ * The tilesets are created in sub-directories of the target directory:
+ * <em>tms</em>, <em>zoomify</em> and <em>gmap</em>; the Pyramid TIFF is written to
+ * <em>[image name].tif</em>. Several tile sizes can be generated in the same pass
+ * (see {@link #setTileSizes(int...)}); each of them gets its own tilesets.
+ * <br><br>
+ * The conversion process is as follows:
+ * <ol>
+ * <li>The source image is converted to an uncompressed raster file (see {@link RawRaster}) -
+ * band by band if it can be streamed, or by the image processing system otherwise.</li>
+ * <li>For each zoom level, starting with the base level, the tiles of all schemes are cut
+ * from the level raster in parallel. Padding and centering are applied as the tiles
+ * are cut.</li>
+ * <li>The next level raster is computed from the current one, which is then deleted.</li>
+ * <li>The metadata files (and HTML previews, if requested) of all schemes are written.</li>
+ * </ol>
+ * Since the pyramid is shared, the results differ slightly from those of the individual
+ * tilers: all levels are scaled from the top-left corner of the image (so TMS and Google
+ * Maps tiles may be offset by a pixel at lower zoom levels), the Google Maps image is
+ * centered on its square canvas rather than resized, and base tiles are never cut
+ * losslessly from the source. The {@link MagickTiler.PyramidMode} is ignored.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class CompositeTiler extends MagickTiler {
+
+  /**
+   * The tiling schemes that can be generated
+   */
+  public enum Scheme {
+    TMS("tms"), ZOOMIFY("zoomify"), GMAP("gmap"), PTIF("ptif");
+
+    /**
+     * The scheme name (as used on the command line and for the tileset directories)
+     */
+    private String name;
+
+    private Scheme(String name) {
+      this.name = name;
+    }
+
+    public String getName() {
+      return name;
+    }
+
+    /**
+     * Returns the scheme with the specified name.
+     *
+     * @param name the name (case-insensitive)
+     * @return the scheme, or null if there is no such scheme
+     */
+    public static Scheme forName(String name) {
+      for (Scheme scheme : values()) {
+        if (scheme.name.equalsIgnoreCase(name.trim()))
+          return scheme;
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Log4j logger
+   */
+  private static Logger log = Logger.getLogger(CompositeTiler.class);
+
+  /**
+   * The schemes to generate
+   */
+  private Set<Scheme> schemes;
+
+  /**
+   * The (square) tile sizes to generate (default: the tile width)
+   */
+  private int[] tileSizes = new int[] { tileWidth };
+
+  public CompositeTiler(Scheme... schemes) {
+    if (schemes.length == 0)
+      throw new IllegalArgumentException("No tiling scheme specified");
+    this.schemes = Collections.unmodifiableSet(EnumSet.of(schemes[0], schemes));
+  }
+
+  public Set<Scheme> getSchemes() {
+    return schemes;
+  }
+
+  public int[] getTileSizes() {
+    return tileSizes.clone();
+  }
+
+  /**
+   * Sets the tile sizes to generate. Every scheme is generated once per tile size,
+   * all from the same pyramid levels. Since each size gets its own zoom levels, a
+   * tileset with 512 pixel tiles is the '@2x' (retina) version of the tileset with
+   * 256 pixel tiles: its tiles cover the same areas at the same zoom levels.
+   *
+   * @param sizes the tile sizes (multiples of 16, for JPEG and PTIF)
+   */
+  public void setTileSizes(int... sizes) {
+    if (sizes.length == 0)
+      throw new IllegalArgumentException("No tile size specified");
+    for (int size : sizes) {
+      if (size <= 0 || size % 16 != 0)
+        throw new IllegalArgumentException("Tile size must be a positive multiple of 16: " + size);
+    }
+    this.tileSizes = sizes.clone();
+  }
+
+  /**
+   * Returns the tileset directory (or, for {@link Scheme#PTIF}, the file) of a scheme,
+   * for the default tile size.
+   *
+   * @param scheme the scheme
+   * @return the tileset directory or file
+   */
+  public File getTilesetRootDir(Scheme scheme) {
+    return getTilesetRootDir(scheme, tileWidth);
+  }
+
+  /**
+   * Returns the tileset directory (or, for {@link Scheme#PTIF}, the file) of a scheme
+   * and tile size. Tile sizes other than the default are suffixed with the size,
+   * e.g. <em>tms-512</em>.
+   *
+   * @param scheme the scheme
+   * @param tileSize the tile size
+   * @return the tileset directory or file
+   */
+  public File getTilesetRootDir(Scheme scheme, int tileSize) {
+    String suffix = (tileSize == tileWidth) ? "" : "-" + tileSize;
+    if (scheme == Scheme.PTIF)
+      return new File(tilesetRootDir, tilesetRootDir.getName() + suffix + ".tif");
+    return new File(tilesetRootDir, scheme.getName() + suffix);
+  }
+
+  @Override
+  protected TilesetInfo convert(File image, TilesetInfo info) throws TilingException {
+    long startTime = System.currentTimeMillis();
+    log.info("Generating " + schemes + " for file " + image.getName() + ": " + info.getImageWidth() + "x"
+        + info.getImageHeight() + ", tile sizes " + Arrays.toString(tileSizes));
+
+    final TileEncoder encoder = createTileEncoder();
+    final int channels = encoder.hasAlpha() ? 4 : 3;
+    final byte[] background = toBytes(getBackgroundARGB(), channels);
+    ResamplingFilter filter = (processor.getResamplingFilter() == null) ? ResamplingFilter.BOX : processor
+        .getResamplingFilter();
+
+    // One tileset per scheme and tile size, all sharing the same pyramid levels
+    List<Tileset> tilesets = new ArrayList<Tileset>();
+    int zoomlevels = 0;
+    for (int size : tileSizes) {
+      for (Scheme scheme : schemes) {
+        TilesetInfo tilesetInfo = new TilesetInfo(new ImageInfo(image, info.getImageWidth(), info.getImageHeight()),
+            size, size, info.getTileFormat());
+        tilesets.add(new Tileset(scheme, tilesetInfo, getTilesetRootDir(scheme, size)));
+        zoomlevels = Math.max(zoomlevels, tilesetInfo.getZoomLevels());
+      }
+    }
+
+    RawRaster level = null;
+    try {
+      // Step 1 - convert the source image to a raw base level raster
+      startPhase("Decoding base level");
+      String baseName = tilesetRootDir.getName();
+      level = createBaseRaster(image, info, new File(tempDirectory, baseName + "-0.raw"), channels);
+
+      for (Tileset tileset : tilesets)
+        tileset.open();
+
+      for (int z = 0; z < zoomlevels; z++) {
+        // Step 2 - cut the tiles of all tilesets from this level
+        startPhase("Tiling level " + z);
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for (Tileset tileset : tilesets) {
+          if (z >= tileset.info.getZoomLevels())
+            continue;
+          for (int row = 0; row < tileset.info.getNumberOfYTiles(z); row++) {
+            if (tileset.ptif != null)
+              tasks.add(new PTIFRowTask(level, tileset.ptif, tileset.info, z, row, background));
+            else
+              tasks.add(new TileRowTask(level, tileset.layout, tileset.root, z, row, encoder, background));
+          }
+        }
+        runInParallel(tasks);
+
+        // Step 3 - compute the next level
+        if (z < zoomlevels - 1) {
+          RawRaster next = level.downsample(new File(tempDirectory, baseName + "-" + (z + 1) + ".raw"), filter);
+          if (!level.delete())
+            log.error("Failed to delete temp file:" + level.getFile());
+          level = next;
+        }
+      }
+    } catch (IOException e) {
+      throw new TilingException(e.getMessage());
+    } finally {
+      for (Tileset tileset : tilesets) {
+        try {
+          tileset.close();
+        } catch (IOException e) {
+          log.error("Error closing PTIF: " + e.getMessage());
+        }
+      }
+      try {
+        if (level != null && !level.delete())
+          log.error("Failed to delete temp file:" + level.getFile());
+      } catch (IOException e) {
+        log.error("Error closing temp file: " + e.getMessage());
+      }
+    }
+
+    // Step 4 - generate metadata and (optional) previews
+    for (Tileset tileset : tilesets)
+      tileset.writeMetadata();
+
+    log.info("Took " + (System.currentTimeMillis() - startTime) + " ms.");
+    return info;
+  }
+
+  private RawRaster createBaseRaster(File image, TilesetInfo info, File target, int channels)
+      throws TilingException {
+    if (BandReader.canStream(image)) {
+      BandReader reader = null;
+      try {
+        reader = new BandReader(image);
+        return RawRaster.fromBands(reader, target, channels);
+      } catch (IOException e) {
+        log.warn("Streaming failed, falling back to " + processor.getImageProcessingSystem() + ": "
+            + e.getMessage());
+      } finally {
+        if (reader != null) {
+          try {
+            reader.close();
+          } catch (IOException e) {
+            log.error("Error closing image: " + e.getMessage());
+          }
+        }
+      }
+    }
+
+    try {
+      processor.writeRaw(image.getAbsolutePath(), target.getAbsolutePath(), channels == 4);
+      return new RawRaster(target, info.getImageWidth(), info.getImageHeight(), channels);
+    } catch (Exception e) {
+      throw new TilingException(e.getMessage());
+    }
+  }
+
+  /**
+   * Converts an ARGB color to one pixel in raster layout.
+   */
+  private static byte[] toBytes(int argb, int channels) {
+    byte[] pixel = new byte[] { (byte) (argb >> 16), (byte) (argb >> 8), (byte) argb, (byte) (argb >>> 24) };
+    if (channels == 3)
+      return new byte[] { pixel[0], pixel[1], pixel[2] };
+    return pixel;
+  }
+
+  /**
+   * Reads a tile-sized region of a level raster, filled with the background color
+   * where the region extends beyond the raster.
+   */
+  private static byte[] readTile(RawRaster level, Rectangle region, byte[] background) throws IOException {
+    int channels = level.getChannels();
+    byte[] tile = new byte[region.width * region.height * channels];
+    if (!new Rectangle(0, 0, level.getWidth(), level.getHeight()).contains(region)) {
+      for (int i = 0; i < tile.length; i += channels)
+        System.arraycopy(background, 0, tile, i, channels);
+    }
+    level.readRegion(region, tile, region.width, 0, 0);
+    return tile;
+  }
+
+  /**
+   * The output of one scheme in one tile size.
+   */
+  private class Tileset {
+
+    private Scheme scheme;
+    private TilesetInfo info;
+    private File root;
+
+    /**
+     * The tile layout (null for PTIF)
+     */
+    private TileLayout layout;
+
+    /**
+     * The tileset info written to the metadata - the square canvas for Google Maps
+     */
+    private TilesetInfo metadataInfo;
+
+    /**
+     * The PTIF writer (PTIF only, while open)
+     */
+    private TiledTIFFWriter ptif;
+
+    Tileset(Scheme scheme, TilesetInfo info, File root) {
+      this.scheme = scheme;
+      this.info = info;
+      this.root = root;
+      this.metadataInfo = info;
+      if (scheme == Scheme.TMS) {
+        layout = new TMSTileLayout(info);
+      } else if (scheme == Scheme.ZOOMIFY) {
+        layout = new ZoomifyTileLayout(info);
+      } else if (scheme == Scheme.GMAP) {
+        // Google Maps needs a square canvas of tileSize * 2^n pixels, on which the image is centered
+        int size = info.getTileWidth() << (info.getZoomLevels() - 1);
+        metadataInfo = new TilesetInfo(new ImageInfo(info.getImageFile(), size, size), info.getTileWidth(),
+            info.getTileHeight(), info.getTileFormat());
+        layout = new GoogleMapsTileLayout(metadataInfo, info.getImageWidth(), info.getImageHeight());
+      }
+    }
+
+    void open() throws IOException, TilingException {
+      if (scheme == Scheme.PTIF) {
+        ptif = new TiledTIFFWriter(root, info.getTileWidth(), info.getTileHeight());
+        for (int z = 0; z < info.getZoomLevels(); z++)
+          ptif.addLevel(info.getLevelWidth(z), info.getLevelHeight(z));
+      } else if (!root.exists()) {
+        createDir(root);
+      }
+    }
+
+    void close() throws IOException {
+      if (ptif != null)
+        ptif.close();
+      ptif = null;
+    }
+
+    void writeMetadata() throws TilingException {
+      MagickTiler tiler = null;
+      if (scheme == Scheme.TMS)
+        tiler = new TMSTiler();
+      else if (scheme == Scheme.ZOOMIFY)
+        tiler = new ZoomifyTiler();
+      else if (scheme == Scheme.GMAP)
+        tiler = new GoogleMapsTiler();
+
+      if (tiler != null) {
+        tiler.setTileFormat(processor.getImageFormat());
+        tiler.setGeneratePreviewHTML(generatePreview);
+        tiler.writeMetadata(metadataInfo, root);
+      }
+    }
+  }
+
+  /**
+   * Cuts one row of tiles of a directory-based scheme.
+   */
+  private static class TileRowTask implements Callable<Void> {
+
+    private RawRaster level;
+    private TileLayout layout;
+    private File root;
+    private int zoomlevel;
+    private int row;
+    private TileEncoder encoder;
+    private byte[] background;
+
+    TileRowTask(RawRaster level, TileLayout layout, File root, int zoomlevel, int row, TileEncoder encoder,
+        byte[] background) {
+      this.level = level;
+      this.layout = layout;
+      this.root = root;
+      this.zoomlevel = zoomlevel;
+      this.row = row;
+      this.encoder = encoder;
+      this.background = background;
+    }
+
+    public Void call() throws IOException {
+      for (int col = 0; col < layout.getColumns(zoomlevel); col++) {
+        Rectangle region = layout.getLevelRegion(zoomlevel, col, row);
+        byte[] tile = readTile(level, region, background);
+
+        File file = layout.getTileFile(root, zoomlevel, col, row);
+        encoder.encode(RawRaster.createImage(tile, region.width, region.height, level.getChannels()), file);
+      }
+      return null;
+    }
+  }
+
+  /**
+   * Encodes one row of PTIF tiles. PTIF tiles always have full size and are JPEG-compressed,
+   * so the alpha channel (if any) is dropped.
+   */
+  private class PTIFRowTask implements Callable<Void> {
+
+    private RawRaster level;
+    private TiledTIFFWriter ptif;
+    private TilesetInfo info;
+    private int zoomlevel;
+    private int row;
+    private byte[] background;
+
+    PTIFRowTask(RawRaster level, TiledTIFFWriter ptif, TilesetInfo info, int zoomlevel, int row,
+        byte[] background) {
+      this.level = level;
+      this.ptif = ptif;
+      this.info = info;
+      this.zoomlevel = zoomlevel;
+      this.row = row;
+      this.background = background;
+    }
+
+    public Void call() throws IOException {
+      TileEncoder jpeg = new TileEncoder(ImageFormat.JPEG, processor.getJPEGQuality());
+      Dimension size = new Dimension(info.getTileWidth(), info.getTileHeight());
+      for (int col = 0; col < info.getNumberOfXTiles(zoomlevel); col++) {
+        Rectangle region = new Rectangle(col * size.width, row * size.height, size.width, size.height);
+        byte[] tile = readTile(level, region, background);
+        if (level.getChannels() == 4) {
+          byte[] rgb = new byte[size.width * size.height * 3];
+          for (int i = 0, j = 0; i < rgb.length; i += 3, j += 4) {
+            rgb[i] = tile[j];
+            rgb[i + 1] = tile[j + 1];
+            rgb[i + 2] = tile[j + 2];
+          }
+          tile = rgb;
+        }
+        BufferedImage image = RawRaster.createImage(tile, size.width, size.height, 3);
+        ptif.writeTile(zoomlevel, col, row, jpeg.encode(image));
+      }
+      return null;
+    }
+  }
+
+}
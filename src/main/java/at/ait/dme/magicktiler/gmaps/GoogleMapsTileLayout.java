@@ -0,0 +1,56 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.gmaps;
+
+import java.io.File;
+
+import at.ait.dme.magicktiler.TileLayout;
+import at.ait.dme.magicktiler.TilesetInfo;
+
+/**
+ * The Google Maps tile layout: the image is centered on a square tile grid, tile rows
+ * are counted from the top and all tiles have full size. Tiles are stored as
+ * <em>zoomlevel_column_row.ext</em>, where zoom level 0 is the lowest-resolution level.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class GoogleMapsTileLayout extends TileLayout {
+
+  /**
+   * @param info the (squared) tileset info
+   * @param imageWidth the width of the base image
+   * @param imageHeight the height of the base image
+   */
+  public GoogleMapsTileLayout(TilesetInfo info, int imageWidth, int imageHeight) {
+    super(info, imageWidth, imageHeight, info.getImageWidth(), info.getImageHeight(),
+        (info.getImageWidth() - imageWidth) / 2, (info.getImageHeight() - imageHeight) / 2, Origin.TOP_LEFT, true);
+  }
+
+  @Override
+  public File getTileFile(File tilesetRoot, int zoomlevel, int col, int row) {
+    return new File(tilesetRoot, (info.getZoomLevels() - zoomlevel - 1) + "_" + col + "_" + row + "."
+        + info.getTileFormat().getExtension());
+  }
+
+}
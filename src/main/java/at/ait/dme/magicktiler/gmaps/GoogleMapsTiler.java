@@ -1,5 +1,7 @@
 package at.ait.dme.magicktiler.gmaps;
 
+import java.awt.Dimension;
+import java.awt.Point;
 import java.io.BufferedReader;
 import java.io.File;
 import java.io.FileOutputStream;
@@ -7,7 +9,9 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
 import java.util.ArrayList;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 
 import org.apache.log4j.Logger;
 import org.im4java.core.IM4JavaException;
@@ -17,6 +21,7 @@ import at.ait.dme.magicktiler.Stripe;
 import at.ait.dme.magicktiler.TilesetInfo;
 import at.ait.dme.magicktiler.TilingException;
 import at.ait.dme.magicktiler.Stripe.Orientation;
+import at.ait.dme.magicktiler.image.ImageInfo;
 import at.ait.dme.magicktiler.image.ImageProcessor;
 
 import com.thoughtworks.xstream.XStream;
@@ -39,10 +44,11 @@ import com.thoughtworks.xstream.io.xml.DomDriver;
  * <br><br>
  * The implemented tiling algorithm works as follows:
  * <ol>
- * <li>Resize the image so that the longest dimension equals the closest 256*n^2</li>
  * <li>For performance reasons, the base image is cut into vertical or 
  * horizontal stripes (depending on the image orientation). Thereby the image 
- * is squared adding background-color buffer to the stripes where necessary.</li>
+ * is resized so that the longest dimension equals the closest 256*n^2, and
+ * squared adding background-color buffer to the stripes where necessary - in
+ * one pass, without writing the resized image first.</li>
  * <li>For all zoomlevels, the stripes of the zoom level beneath (if any) are merged 
  * and are then cut to tiles (The number of tiles per zoomlevel is 4^zoomlevel).</li>
  * <li>The HTML preview file is generated (if requested).</li>
@@ -59,26 +65,37 @@ public class GoogleMapsTiler extends MagickTiler {
   protected TilesetInfo convert(File image, TilesetInfo info) throws TilingException {
     long startTime = System.currentTimeMillis();
     log.info("Generating Google Map tiles for file " + image.getName());
+    if (pyramidMode != PyramidMode.STRIPES)
+      log.warn("Pyramid mode " + pyramidMode + " not supported, falling back to " + PyramidMode.STRIPES);
 
-    OutputStream metadata = null;
-    List<Stripe> allStripes = new ArrayList<Stripe>();
     try {
-      log.debug("Resizing base image");
-      // Step 1: resize to the closest 256*n^2
-      String src = tilesetRootDir.getAbsolutePath() + "/gmapbase." + processor.getImageFormat().getExtension();
-      info = resizeBaseImage(image, info, src);
-
-      log.debug("Striping base image");
-      // Step 2: cut the image into stripes, thereby creating a squared result image 
-      List<Stripe> stripes = stripeBaseImage(info);
-      allStripes.addAll(stripes);
+      // Step 1: compute the base image size - the closest 256*n^2
+      Dimension base = getBaseDimension(info);
+      int baseWidth = base.width;
+      int baseHeight = base.height;
+      boolean resize = baseWidth != info.getImageWidth() || baseHeight != info.getImageHeight();
+      info = new TilesetInfo(new ImageInfo(image, baseWidth, baseHeight), tileWidth, tileHeight,
+          processor.getImageFormat());
+
+      startPhase("Striping base image");
+      // Step 2: cut the image into stripes, thereby resizing it and creating a squared result image
+      List<Stripe> stripes = stripeBaseImage(info, resize);
+
+      // Base tiles can only be cut losslessly from the (unresized) source, centered on whole pixels
+      Set<Point> losslessTiles = new HashSet<Point>();
+      if (!resize && (info.getImageWidth() - baseWidth) % 2 == 0 && (info.getImageHeight() - baseHeight) % 2 == 0)
+        losslessTiles = cropLosslessBaseTiles(image, new GoogleMapsTileLayout(info, baseWidth, baseHeight));
 
       for (int z = info.getZoomLevels() - 1; z >= 0; z--) {
-        log.debug("Tiling level " + z);
+        startPhase("Tiling level " + z);
         // Step 3: create the tiles for this zoom level
         String tileBase = tilesetRootDir.getAbsolutePath() + File.separator + z;
         for (int s = 0; s < stripes.size(); s++) {
           Stripe stripe = stripes.get(s);
+          if (z == info.getZoomLevels() - 1 && !losslessTiles.isEmpty()) {
+            generateRemainingBaseTiles(stripe, s, tileBase, losslessTiles);
+            continue;
+          }
           processor.crop(stripe.getImageFile().getAbsolutePath(), tileBase + "_" + "%d" + "."
               + processor.getImageFormat().getExtension(), tileWidth, tileHeight);
 
@@ -96,27 +113,34 @@ public class GoogleMapsTiler extends MagickTiler {
           }
         }
         stripes = createStripesForNextZoomLevel(stripes, image.getName(), info.getZoomLevels() - z);
-        allStripes.addAll(stripes);
       }
+      for (Stripe s : stripes)
+        tempDisk.delete(s);
 
-      //step 3: optionally create the preview.html
-      if (generatePreview)
-        generatePreview(info);
-
-      //step 4: write the metadata file
-      metadata = new FileOutputStream(tilesetRootDir + "/" + METADATA_FILE);
-      new XStream(new DomDriver()).toXML(info, metadata);
+      //step 3: optionally create the preview.html and write the metadata file
+      writeMetadata(info, tilesetRootDir);
 
       log.info("Took " + (System.currentTimeMillis() - startTime) + " ms.");
     } catch (Exception e) {
       log.error("Failed to tile image", e);
       throw new TilingException(e.getMessage());
-    } finally {
-      // clean up
-      for (Stripe s : allStripes)
-        if (!s.getImageFile().delete())
-          log.error("Could not delete stripe:" + s.getImageFile());
+    }
+    return info;
+  }
 
+  @Override
+  public void writeMetadata(TilesetInfo info, File target) throws TilingException {
+    tilesetRootDir = target;
+    OutputStream metadata = null;
+    try {
+      if (generatePreview)
+        generatePreview(info);
+
+      metadata = new FileOutputStream(new File(tilesetRootDir, METADATA_FILE));
+      new XStream(new DomDriver()).toXML(info, metadata);
+    } catch (IOException e) {
+      throw new TilingException("Error writing metadata: " + e.getMessage());
+    } finally {
       try {
         if (metadata != null)
           metadata.close();
@@ -124,11 +148,31 @@ public class GoogleMapsTiler extends MagickTiler {
         log.error("Could not close metadata file");
       }
     }
-    return info;
   }
 
-  private List<Stripe> stripeBaseImage(TilesetInfo info) throws IOException, InterruptedException, IM4JavaException,
-      TilingException {
+  private void generateRemainingBaseTiles(Stripe stripe, int s, String tileBase, Set<Point> existingTiles)
+      throws IOException, InterruptedException, IM4JavaException {
+
+    int tiles = (stripe.getOrientation() == Orientation.HORIZONTAL) ? 
+        stripe.getWidth() / tileWidth : stripe.getHeight() / tileHeight;
+
+    for (int t = 0; t < tiles; t++) {
+      int column = (stripe.getOrientation() == Orientation.HORIZONTAL) ? t : s;
+      int row = (stripe.getOrientation() == Orientation.HORIZONTAL) ? s : t;
+      if (!existingTiles.contains(new Point(column, row))) {
+        int x = (stripe.getOrientation() == Orientation.HORIZONTAL) ? t * tileWidth : 0;
+        int y = (stripe.getOrientation() == Orientation.HORIZONTAL) ? 0 : t * tileHeight;
+        processor.crop(stripe.getImageFile().getAbsolutePath(), tileBase + "_" + column + "_" + row + "."
+            + processor.getImageFormat().getExtension(), tileWidth, tileHeight, x, y);
+      }
+    }
+  }
+
+  private List<Stripe> stripeBaseImage(TilesetInfo info, boolean resize) throws IOException, InterruptedException,
+      IM4JavaException, TilingException {
+
+    int baseWidth = info.getImageWidth();
+    int baseHeight = info.getImageHeight();
 
     String prefix = info.getImageFile().getName().substring(0, info.getImageFile().getName().lastIndexOf('.')) + "-0-";
 
@@ -152,34 +196,75 @@ public class GoogleMapsTiler extends MagickTiler {
       info.setDimension(canvasWidth, canvasWidth);
     }
 
-    return stripeImage(info.getImageFile(), orientation, stripes, stripeWidth, stripeHeight, canvasWidth, canvasHeight,
-        ImageProcessor.GRAVITY_CENTER, prefix);
+    if (!resize)
+      return stripeImage(info.getImageFile(), orientation, stripes, stripeWidth, stripeHeight, canvasWidth,
+          canvasHeight, ImageProcessor.GRAVITY_CENTER, prefix);
+
+    // Resize, square and stripe in one pass - the squared canvas is a multiple of the tile size,
+    // so all stripes span the full canvas
+    int size = Math.max(canvasWidth, canvasHeight);
+    int w = (orientation == Orientation.VERTICAL) ? stripeWidth : size;
+    int h = (orientation == Orientation.VERTICAL) ? size : stripeHeight;
+    String[] names = new String[stripes];
+    for (int i = 0; i < stripes; i++)
+      names[i] = prefix + i + getIntermediateExtension();
+    File directory = tempDisk.place(tempDirectory, stripes * estimateTempBytes(w, h), names);
+    boolean resized = false;
+    try {
+      processor.resizeAndCrop(info.getImageFile().getAbsolutePath(), directory.getAbsolutePath()
+          + File.separator + prefix + "%d" + getIntermediateExtension(), baseWidth, baseHeight, size, size,
+          ImageProcessor.GRAVITY_CENTER, w, h);
+      resized = true;
+    } finally {
+      if (!resized)
+        tempDisk.discard(directory, names);
+    }
+
+    List<Stripe> result = new ArrayList<Stripe>();
+    for (int i = 0; i < stripes; i++)
+      result.add(new Stripe(new File(directory, names[i]), w, h, orientation));
+    return tempDisk.add(result);
   }
 
+  /**
+   * Merges the stripes of a zoom level pairwise into the stripes of the next zoom level.
+   * Each pair is deleted as soon as it has been merged.
+   */
   private List<Stripe> createStripesForNextZoomLevel(List<Stripe> stripes, String baseFileName, int z)
-      throws IOException, InterruptedException, IM4JavaException {
+      throws IOException, InterruptedException, IM4JavaException, TilingException {
 
-    String baseName = workingDirectory.getAbsolutePath() + File.separator
-        + baseFileName.substring(0, baseFileName.lastIndexOf('.'));
+    String baseName = baseFileName.substring(0, baseFileName.lastIndexOf('.'));
 
     List<Stripe> nextLevel = new ArrayList<Stripe>();
     for (int i = 0; i < Math.ceil((double) stripes.size() / 2); i++) {
-      File targetStripe = new File(baseName + "-" + z + "-" + i + ".tif");
       Stripe stripe1 = stripes.get(i * 2);
       Stripe stripe2 = ((i * 2 + 1) < stripes.size()) ? stripes.get(i * 2 + 1) : null;
 
       // we should always have an even number of stripes
       if (stripe2 != null) {
-        Stripe result = stripe1.merge(stripe2, targetStripe, processor.getImageProcessingSystem());
-        nextLevel.add(result);
+        // The merged stripe has half the pixels of the pair
+        File targetStripe = createTempFile(baseName + "-" + z + "-" + i + getIntermediateExtension(),
+            stripe1.getWidth(), stripe1.getHeight() / 2);
+        Stripe result = null;
+        try {
+          result = stripe1.merge(stripe2, null, -1, -1, null, targetStripe, processor);
+        } finally {
+          if (result == null)
+            tempDisk.delete(targetStripe);
+        }
+        tempDisk.delete(stripe2);
+        nextLevel.add(tempDisk.add(result));
       }
+      tempDisk.delete(stripe1);
     }
     return nextLevel;
   }
 
-  private TilesetInfo resizeBaseImage(File image, TilesetInfo info, String targetFileName) throws IOException,
-      InterruptedException, IM4JavaException, TilingException {
-
+  /**
+   * Computes the size of the base image: the longest dimension is scaled to the
+   * closest 256*n^2, the other one keeps the aspect ratio.
+   */
+  private Dimension getBaseDimension(TilesetInfo info) {
     // find the closest multiple of 256 and the power of 2
     int maxDim = Math.max(info.getImageWidth(), info.getImageHeight());
     int newMaxDim = 0, prevMaxDim = 0;
@@ -191,17 +276,11 @@ public class GoogleMapsTiler extends MagickTiler {
       newMaxDim = prevMaxDim;
 
     // calculate the new height and width
-    int newHeight = 0, newWidth = 0;
-    if (maxDim == info.getImageHeight()) {
-      newHeight = newMaxDim;
-      newWidth = newHeight * (int) Math.ceil(((float) info.getImageWidth() / info.getImageHeight()));
-    } else {
-      newWidth = newMaxDim;
-      newHeight = newWidth * (int) Math.ceil(((float) info.getImageWidth() / info.getImageHeight()));
-    }
-
-    processor.resize(image.getAbsolutePath(), targetFileName, newWidth, newHeight);
-    return new TilesetInfo(new File(targetFileName), tileWidth, tileHeight, processor);
+    double scale = (double) newMaxDim / maxDim;
+    if (maxDim == info.getImageHeight())
+      return new Dimension(Math.max(1, (int) Math.round(info.getImageWidth() * scale)), newMaxDim);
+    else
+      return new Dimension(newMaxDim, Math.max(1, (int) Math.round(info.getImageHeight() * scale)));
   }
 
   private void generatePreview(TilesetInfo info) throws IOException {
@@ -0,0 +1,153 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package at.ait.dme.magicktiler.image;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageTypeSpecifier;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Reads an image in horizontal bands of scanlines through ImageIO source
+ * regions, so that only one band needs to be held in memory at a time.
+ * <br><br>
+ * This is only efficient for formats which allow the reader to skip to the
+ * requested rows (e.g. stripped or tiled TIFF). Sequential formats like JPEG
+ * or PNG would have to be decoded from the start for every band.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class BandReader {
+
+  /**
+   * The input stream
+   */
+  private ImageInputStream in;
+
+  /**
+   * The ImageIO reader
+   */
+  private ImageReader reader;
+
+  /**
+   * Image width in pixel
+   */
+  private int width;
+
+  /**
+   * Image height in pixel
+   */
+  private int height;
+
+  /**
+   * Flag indicating whether the image has an alpha channel
+   */
+  private boolean alpha;
+
+  public BandReader(File image) throws IOException {
+    in = ImageIO.createImageInputStream(image);
+    if (in == null)
+      throw new IOException("Cannot open " + image.getName());
+
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+    if (!readers.hasNext()) {
+      in.close();
+      throw new IOException("No ImageIO reader for " + image.getName());
+    }
+    reader = readers.next();
+    reader.setInput(in, false, true);
+    width = reader.getWidth(0);
+    height = reader.getHeight(0);
+
+    ImageTypeSpecifier type = reader.getRawImageType(0);
+    if (type == null)
+      type = reader.getImageTypes(0).next();
+    alpha = type.getColorModel().hasAlpha();
+  }
+
+  /**
+   * Checks whether the image is in a format that can be read band by band
+   * efficiently, and an ImageIO reader for it is installed.
+   * 
+   * @param image the image file
+   * @return true if the image can be streamed
+   */
+  public static boolean canStream(File image) {
+    String name = image.getName().toLowerCase();
+    if (!name.endsWith(".tif") && !name.endsWith(".tiff"))
+      return false;
+    return ImageIO.getImageReadersBySuffix("tif").hasNext();
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public boolean hasAlpha() {
+    return alpha;
+  }
+
+  /**
+   * Reads a band of full-width scanlines.
+   * 
+   * @param y the first row of the band
+   * @param rows the number of rows
+   * @return the pixels of the band as (non-premultiplied) ARGB values, row by row
+   * @throws IOException if anything goes wrong
+   */
+  public int[] readBand(int y, int rows) throws IOException {
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceRegion(new Rectangle(0, y, width, rows));
+    BufferedImage band = reader.read(0, param);
+    return band.getRGB(0, 0, width, rows, null, 0, width);
+  }
+
+  /**
+   * Reads a region of the image.
+   * 
+   * @param region the region (must lie within the image)
+   * @return the region
+   * @throws IOException if anything goes wrong
+   */
+  public BufferedImage readRegion(Rectangle region) throws IOException {
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceRegion(region);
+    return reader.read(0, param);
+  }
+
+  public void close() throws IOException {
+    reader.dispose();
+    in.close();
+  }
+}
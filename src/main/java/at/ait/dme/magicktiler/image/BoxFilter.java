@@ -0,0 +1,269 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.image;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A 2x2 box filter that scales packed-byte rasters down by 50%, i.e. each target
+ * pixel is the (rounded) average of a 2x2 block of source pixels. Rasters are
+ * interleaved byte arrays with 1 - 4 channels per pixel, in whatever channel order
+ * the caller uses (e.g. the layout of a TYPE_3BYTE_BGR or TYPE_4BYTE_ABGR
+ * BufferedImage). Channels are averaged independently (i.e. alpha is not
+ * premultiplied).
+ * <br><br>
+ * If the source width or height is odd, the last target column or row averages
+ * the remaining source pixels only. The scaled image can be placed anywhere on a
+ * larger target raster, in which case the rest of the target is filled with a
+ * background color.
+ * <br><br>
+ * Rasters with 3 or 4 channels are processed 8 bytes at a time: a horizontal pair of
+ * pixels is read from both source rows as one <code>long</code> each, the bytes are
+ * spread into 16-bit lanes, and all channels of the pair are summed with a handful
+ * of <code>long</code> additions (SIMD within a register). The plain per-channel
+ * implementation is available as {@link #downsampleScalar}.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class BoxFilter {
+
+  /**
+   * Rounding constant for the packed sums (+2 in every 16-bit lane)
+   */
+  private static final long ROUNDING = 0x0002000200020002L;
+
+  /**
+   * Mask for the low byte of every 16-bit lane
+   */
+  private static final long LANE_MASK = 0x00ff00ff00ff00ffL;
+
+  /**
+   * Returns the target size for a source dimension.
+   * 
+   * @param size the source width or height
+   * @return the target width or height
+   */
+  public static int scaledSize(int size) {
+    return (size + 1) / 2;
+  }
+
+  /**
+   * Scales a raster down by 50%.
+   * 
+   * @param src the source raster
+   * @param width the source width
+   * @param height the source height
+   * @param channels the number of channels (bytes per pixel)
+   * @return the target raster, of size {@link #scaledSize}(width) x {@link #scaledSize}(height)
+   */
+  public static byte[] downsample(byte[] src, int width, int height, int channels) {
+    byte[] dst = new byte[scaledSize(width) * scaledSize(height) * channels];
+    downsample(src, width, height, channels, dst, scaledSize(width), scaledSize(height), 0, 0, null);
+    return dst;
+  }
+
+  /**
+   * Scales a raster down by 50% and places the result on a target raster.
+   * 
+   * @param src the source raster
+   * @param width the source width
+   * @param height the source height
+   * @param channels the number of channels (bytes per pixel)
+   * @param dst the target raster
+   * @param dstWidth the target raster width
+   * @param dstHeight the target raster height
+   * @param dstX the X offset of the scaled image on the target raster
+   * @param dstY the Y offset of the scaled image on the target raster
+   * @param background the background color (one byte per channel, in raster channel order),
+   * used for the target area not covered by the scaled image. May be null if the scaled
+   * image covers the whole target raster.
+   */
+  public static void downsample(byte[] src, int width, int height, int channels, byte[] dst, int dstWidth,
+      int dstHeight, int dstX, int dstY, byte[] background) {
+    checkArguments(src, width, height, channels, dst, dstWidth, dstHeight, dstX, dstY, background);
+    fillBackground(dst, dstWidth, dstHeight, channels, dstX, dstY, scaledSize(width), scaledSize(height), background);
+
+    if (channels < 3) {
+      scale(src, width, height, channels, dst, dstWidth, dstX, dstY);
+      return;
+    }
+
+    ByteBuffer in = ByteBuffer.wrap(src).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer out4 = ByteBuffer.wrap(dst).order(ByteOrder.LITTLE_ENDIAN);
+    int w = width / 2;
+    int stride = width * channels;
+    for (int y = 0; y < scaledSize(height); y++) {
+      int row0 = y * 2 * stride;
+      int row1 = (y * 2 + 1 < height) ? row0 + stride : row0;
+      int out = ((dstY + y) * dstWidth + dstX) * channels;
+
+      // Pairs that can be read with 8-byte reads (all but the last near the end of the raster)
+      int room = src.length - 8 - row1;
+      int packed = (room < 0) ? 0 : Math.min(w, room / (2 * channels) + 1);
+      if (channels == 4)
+        packed4(in, out4, row0, row1, packed, out);
+      else
+        packed3(in, dst, row0, row1, packed, out);
+      out += packed * channels;
+
+      for (int x = packed; x < w; x++) {
+        int i = x * 2 * channels;
+        scalePixel(src, row0 + i, row1 + i, channels, channels, dst, out);
+        out += channels;
+      }
+
+      // Odd width: last column
+      if (w < scaledSize(width))
+        scalePixel(src, row0 + w * 2 * channels, row1 + w * 2 * channels, 0, channels, dst, out);
+    }
+  }
+
+  /**
+   * Averages the given number of horizontal 4-channel pixel pairs. Both rows are read
+   * 8 bytes (i.e. one pair) at a time, with even and odd bytes spread into 16-bit lanes;
+   * the right pixel of the pair is 2 lanes further.
+   */
+  private static void packed4(ByteBuffer in, ByteBuffer out, int row0, int row1, int pairs, int offset) {
+    for (int x = 0; x < pairs; x++) {
+      long upper = in.getLong(row0 + x * 8);
+      long lower = in.getLong(row1 + x * 8);
+      long even = (upper & LANE_MASK) + (lower & LANE_MASK);
+      long odd = ((upper >>> 8) & LANE_MASK) + ((lower >>> 8) & LANE_MASK);
+      even = ((even + (even >>> 32) + ROUNDING) >>> 2) & LANE_MASK;
+      odd = ((odd + (odd >>> 32) + ROUNDING) >>> 2) & LANE_MASK;
+      out.putInt(offset + x * 4, (int) (even | (odd << 8)));
+    }
+  }
+
+  /**
+   * Averages the given number of horizontal 3-channel pixel pairs, as {@link #packed4}.
+   * The right pixel of the pair is 3 bytes further: bytes 0 and 2 pair with the odd
+   * bytes 3 and 5, byte 1 with the even byte 4.
+   */
+  private static void packed3(ByteBuffer in, byte[] dst, int row0, int row1, int pairs, int offset) {
+    for (int x = 0; x < pairs; x++) {
+      long upper = in.getLong(row0 + x * 6);
+      long lower = in.getLong(row1 + x * 6);
+      long even = (upper & LANE_MASK) + (lower & LANE_MASK);
+      long odd = ((upper >>> 8) & LANE_MASK) + ((lower >>> 8) & LANE_MASK);
+      long c02 = ((even + (odd >>> 16) + ROUNDING) >>> 2) & LANE_MASK;
+      long c1 = ((odd + (even >>> 32) + ROUNDING) >>> 2) & LANE_MASK;
+      int out = offset + x * 3;
+      dst[out] = (byte) c02;
+      dst[out + 1] = (byte) c1;
+      dst[out + 2] = (byte) (c02 >>> 16);
+    }
+  }
+
+  /**
+   * Scales a raster down by 50%, one channel at a time. Produces the same result as
+   * {@link #downsample(byte[], int, int, int, byte[], int, int, int, int, byte[])}.
+   */
+  public static void downsampleScalar(byte[] src, int width, int height, int channels, byte[] dst, int dstWidth,
+      int dstHeight, int dstX, int dstY, byte[] background) {
+    checkArguments(src, width, height, channels, dst, dstWidth, dstHeight, dstX, dstY, background);
+    fillBackground(dst, dstWidth, dstHeight, channels, dstX, dstY, scaledSize(width), scaledSize(height), background);
+    scale(src, width, height, channels, dst, dstWidth, dstX, dstY);
+  }
+
+  private static void scale(byte[] src, int width, int height, int channels, byte[] dst, int dstWidth, int dstX,
+      int dstY) {
+    int stride = width * channels;
+    for (int y = 0; y < scaledSize(height); y++) {
+      int row0 = y * 2 * stride;
+      int row1 = (y * 2 + 1 < height) ? row0 + stride : row0;
+      int out = ((dstY + y) * dstWidth + dstX) * channels;
+      for (int x = 0; x < scaledSize(width); x++) {
+        int i = x * 2 * channels;
+        int next = (x * 2 + 1 < width) ? channels : 0;
+        scalePixel(src, row0 + i, row1 + i, next, channels, dst, out);
+        out += channels;
+      }
+    }
+  }
+
+  /**
+   * Averages one 2x2 block (given by the offsets of its left pixels in the upper
+   * and lower row, and the offset to the right pixels, which is 0 at an odd border).
+   */
+  private static void scalePixel(byte[] src, int upper, int lower, int next, int channels, byte[] dst, int out) {
+    for (int c = 0; c < channels; c++) {
+      int sum = (src[upper + c] & 0xff) + (src[upper + next + c] & 0xff) + (src[lower + c] & 0xff)
+          + (src[lower + next + c] & 0xff);
+      dst[out + c] = (byte) ((sum + 2) >> 2);
+    }
+  }
+
+  static void fillBackground(byte[] dst, int dstWidth, int dstHeight, int channels, int dstX, int dstY,
+      int width, int height, byte[] background) {
+    if (dstX == 0 && dstY == 0 && width == dstWidth && height == dstHeight)
+      return;
+
+    int stride = dstWidth * channels;
+    byte[] row = new byte[stride];
+    for (int i = 0; i < stride; i += channels)
+      System.arraycopy(background, 0, row, i, channels);
+
+    for (int y = 0; y < dstHeight; y++) {
+      if (y < dstY || y >= dstY + height) {
+        System.arraycopy(row, 0, dst, y * stride, stride);
+      } else {
+        System.arraycopy(row, 0, dst, y * stride, dstX * channels);
+        int right = (dstX + width) * channels;
+        System.arraycopy(row, right, dst, y * stride + right, stride - right);
+      }
+    }
+  }
+
+  static void checkArguments(byte[] src, int width, int height, int channels, byte[] dst, int dstWidth,
+      int dstHeight, int dstX, int dstY, byte[] background) {
+    if (channels < 1 || channels > 4)
+      throw new IllegalArgumentException("Unsupported number of channels: " + channels);
+    if (width < 1 || height < 1 || src.length < width * height * channels)
+      throw new IllegalArgumentException("Invalid source raster: " + width + "x" + height);
+    if (dstX < 0 || dstY < 0 || dstX + scaledSize(width) > dstWidth || dstY + scaledSize(height) > dstHeight
+        || dst.length < dstWidth * dstHeight * channels)
+      throw new IllegalArgumentException("Scaled image does not fit the target raster");
+    boolean covered = dstX == 0 && dstY == 0 && scaledSize(width) == dstWidth && scaledSize(height) == dstHeight;
+    if (!covered && (background == null || background.length != channels))
+      throw new IllegalArgumentException("Background must have " + channels + " channels");
+  }
+
+  /**
+   * Converts an ARGB color into
+   * raster channel order - i.e. B, G, R for 3 channels and A, B, G, R for 4 channels,
+   * as used by TYPE_3BYTE_BGR and TYPE_4BYTE_ABGR images.
+   * 
+   * @param argb the color
+   * @param channels the number of channels (3 or 4)
+   * @return the background bytes
+   */
+  public static byte[] toBGR(int argb, int channels) {
+    if (channels == 3)
+      return new byte[] { (byte) argb, (byte) (argb >>> 8), (byte) (argb >>> 16) };
+    return new byte[] { (byte) (argb >>> 24), (byte) argb, (byte) (argb >>> 8), (byte) (argb >>> 16) };
+  }
+
+}
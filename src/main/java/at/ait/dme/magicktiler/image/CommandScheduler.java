@@ -0,0 +1,279 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.image;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Admission control for GraphicsMagick/ImageMagick commands. Every {@link ImageProcessor}
+ * command is admitted by a scheduler before it is started: at most a maximum number
+ * of commands run at the same time, and the estimated pixel memory of all running
+ * commands stays within a memory budget. A command that exceeds the budget on its
+ * own is admitted when no other command is running.
+ * <br><br>
+ * Pixel memory is estimated from the dimensions of the command's source images
+ * (read from the image headers) and output images, at {@link #BYTES_PER_PIXEL} bytes
+ * per pixel. Each command is passed matching <em>-limit memory/map</em> settings, so
+ * GM spills its pixel cache to disk rather than exceeding the estimate, and a
+ * <em>-limit threads</em> setting that divides the CPUs among the concurrent commands.
+ * <br><br>
+ * By default, all image processors share one scheduler (see {@link #getShared()}), so
+ * that all tilers in a JVM share one budget. The shared scheduler has no memory
+ * budget and no process limit, i.e. admits all commands immediately.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class CommandScheduler {
+
+  /**
+   * Estimated pixel cache size per pixel (16-bit RGBA, as in a Q16 GraphicsMagick build)
+   */
+  public static final int BYTES_PER_PIXEL = 8;
+
+  /**
+   * Number of bytes read to find the dimensions in the header of an MPC image
+   */
+  private static final int MPC_HEADER_BYTES = 4096;
+
+  /**
+   * Log4j logger
+   */
+  private static Logger log = Logger.getLogger(CommandScheduler.class);
+
+  /**
+   * The scheduler shared by all image processors (unless they are given another one)
+   */
+  private static CommandScheduler shared = new CommandScheduler(Long.MAX_VALUE, Integer.MAX_VALUE);
+
+  /**
+   * Memory budget for all running commands, in bytes
+   */
+  private long memoryBudget;
+
+  /**
+   * Maximum number of commands running at the same time
+   */
+  private int maxProcesses;
+
+  /**
+   * Estimated memory of the running commands, in bytes
+   */
+  private long memoryInUse = 0;
+
+  /**
+   * Number of running commands
+   */
+  private int processes = 0;
+
+  /**
+   * Creates a scheduler.
+   *
+   * @param memoryBudget the memory budget in bytes (Long.MAX_VALUE for no budget)
+   * @param maxProcesses the maximum number of concurrent commands (Integer.MAX_VALUE for no limit)
+   */
+  public CommandScheduler(long memoryBudget, int maxProcesses) {
+    setMemoryBudget(memoryBudget);
+    setMaxProcesses(maxProcesses);
+  }
+
+  /**
+   * Returns the scheduler shared by all image processors.
+   *
+   * @return the shared scheduler
+   */
+  public static CommandScheduler getShared() {
+    return shared;
+  }
+
+  public synchronized long getMemoryBudget() {
+    return memoryBudget;
+  }
+
+  public synchronized void setMemoryBudget(long memoryBudget) {
+    if (memoryBudget <= 0)
+      throw new IllegalArgumentException("Invalid memory budget: " + memoryBudget);
+    this.memoryBudget = memoryBudget;
+    notifyAll();
+  }
+
+  public synchronized int getMaxProcesses() {
+    return maxProcesses;
+  }
+
+  public synchronized void setMaxProcesses(int maxProcesses) {
+    if (maxProcesses <= 0)
+      throw new IllegalArgumentException("Invalid maximum number of processes: " + maxProcesses);
+    this.maxProcesses = maxProcesses;
+    notifyAll();
+  }
+
+  /**
+   * Returns true if this scheduler has a memory budget, i.e. needs memory estimates.
+   *
+   * @return true if there is a memory budget
+   */
+  public synchronized boolean hasMemoryBudget() {
+    return memoryBudget < Long.MAX_VALUE;
+  }
+
+  /**
+   * Estimates the pixel memory of a command.
+   *
+   * @param sources the source images of the command
+   * @param outputPixels the number of pixels of the output images, as far as known
+   * @return the estimated memory in bytes (0 if there is no memory budget)
+   */
+  public long estimate(List<String> sources, long outputPixels) {
+    if (!hasMemoryBudget())
+      return 0;
+
+    long pixels = outputPixels;
+    for (String source : sources)
+      pixels += getPixels(new File(source));
+    return pixels * BYTES_PER_PIXEL;
+  }
+
+  /**
+   * Waits until a command can be admitted, and registers it as running.
+   *
+   * @param memory the estimated memory of the command in bytes
+   * @return the memory granted to the command (the estimate, capped at the budget),
+   * to be passed to {@link #release(long)}
+   * @throws InterruptedException if the thread is interrupted while waiting
+   */
+  public synchronized long acquire(long memory) throws InterruptedException {
+    long granted = Math.min(memory, memoryBudget);
+    while (processes >= maxProcesses || (processes > 0 && memoryInUse + granted > memoryBudget)) {
+      wait();
+      granted = Math.min(memory, memoryBudget);
+    }
+    processes++;
+    memoryInUse += granted;
+    return granted;
+  }
+
+  /**
+   * Unregisters a command that has finished.
+   *
+   * @param granted the memory granted by {@link #acquire(long)}
+   */
+  public synchronized void release(long granted) {
+    processes--;
+    memoryInUse -= granted;
+    notifyAll();
+  }
+
+  /**
+   * Returns the GM/IM <em>-limit</em> arguments for a command.
+   *
+   * @param granted the memory granted to the command
+   * @return the arguments (empty if there are no limits)
+   */
+  public synchronized List<String> getLimitArgs(long granted) {
+    List<String> args = new ArrayList<String>();
+    if (granted > 0) {
+      String mb = Long.toString(Math.max(1, granted >> 20)) + "MB";
+      args.add("-limit");
+      args.add("memory");
+      args.add(mb);
+      args.add("-limit");
+      args.add("map");
+      args.add(mb);
+    }
+    if (maxProcesses < Integer.MAX_VALUE) {
+      args.add("-limit");
+      args.add("threads");
+      args.add(Integer.toString(Math.max(1, Runtime.getRuntime().availableProcessors() / maxProcesses)));
+    }
+    return args;
+  }
+
+  /**
+   * Reads the number of pixels of an image from its header (the first image of a TIFF).
+   *
+   * @return the number of pixels, or 0 if the image header cannot be read
+   */
+  private static long getPixels(File image) {
+    try {
+      if (image.getName().endsWith("." + IntermediateFormat.MPC.getExtension()))
+        return getMPCPixels(image);
+
+      if (TiledTIFF.isTIFF(image)) {
+        TiledTIFF tiff = new TiledTIFF(image);
+        try {
+          TiledTIFF.Directory dir = tiff.getDirectories().get(0);
+          return (long) dir.getWidth() * dir.getHeight();
+        } finally {
+          tiff.close();
+        }
+      }
+
+      BandReader reader = new BandReader(image);
+      try {
+        return (long) reader.getWidth() * reader.getHeight();
+      } finally {
+        reader.close();
+      }
+    } catch (IOException e) {
+      log.debug("Cannot estimate size of " + image + ": " + e.getMessage());
+      return 0;
+    } catch (RuntimeException e) {
+      log.debug("Cannot estimate size of " + image + ": " + e.getMessage());
+      return 0;
+    }
+  }
+
+  /**
+   * Reads the number of pixels of an MPC image from its (plain text) header.
+   */
+  private static long getMPCPixels(File image) throws IOException {
+    byte[] header = new byte[MPC_HEADER_BYTES];
+    InputStream in = new FileInputStream(image);
+    int length = 0;
+    try {
+      int read;
+      while (length < header.length && (read = in.read(header, length, header.length - length)) > 0)
+        length += read;
+    } finally {
+      in.close();
+    }
+
+    long columns = 0, rows = 0;
+    for (String token : new String(header, 0, length, "ISO-8859-1").split("\\s+")) {
+      if (token.startsWith("columns="))
+        columns = Long.parseLong(token.substring(8));
+      else if (token.startsWith("rows="))
+        rows = Long.parseLong(token.substring(5));
+    }
+    return columns * rows;
+  }
+
+}
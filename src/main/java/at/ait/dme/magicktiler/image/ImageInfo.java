@@ -74,6 +74,19 @@ public class ImageInfo {
     }
   }
 
+  /**
+   * Creates image information for an image whose dimensions are already known.
+   * 
+   * @param image the image file
+   * @param width the image width
+   * @param height the image height
+   */
+  public ImageInfo(File image, int width, int height) {
+    this.file = image;
+    this.width = width;
+    this.height = height;
+  }
+
   public File getFile() {
     return file;
   }
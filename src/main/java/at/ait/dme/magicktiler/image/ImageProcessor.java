@@ -22,9 +22,13 @@
 package at.ait.dme.magicktiler.image;
 
 import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.List;
 import java.util.Map;
 
@@ -33,6 +37,7 @@ import org.im4java.core.ConvertCmd;
 import org.im4java.core.IM4JavaException;
 import org.im4java.core.IMOperation;
 import org.im4java.core.IdentifyCmd;
+import org.im4java.core.ImageCommand;
 import org.im4java.core.MontageCmd;
 import org.im4java.process.OutputConsumer;
 
@@ -57,6 +62,12 @@ public class ImageProcessor {
    */
   public static final String GRAVITY_CENTER = "Center";
   public static final String GRAVITY_SOUTHWEST = "SouthWest";
+  public static final String GRAVITY_NORTHWEST = "NorthWest";
+
+  /**
+   * Source list for commands whose sources are not (completely) decoded
+   */
+  private static final List<String> NO_SOURCES = Collections.emptyList();
 
   /**
    * The processing system used by this ImageProcessor
@@ -78,6 +89,26 @@ public class ImageProcessor {
    */
   private String backgroundColor;
 
+  /**
+   * The filter used for resizing (default: null, i.e. the defaults of the processing system)
+   */
+  private ResamplingFilter filter;
+
+  /**
+   * The scheduler that admits the commands of this processor (default: the shared scheduler)
+   */
+  private CommandScheduler scheduler = CommandScheduler.getShared();
+
+  /**
+   * The group the processes of this processor belong to, so they can be cancelled (or null)
+   */
+  private ProcessGroup processGroup = null;
+
+  /**
+   * The format of intermediate images (default: null, i.e. the fastest format of the processing system)
+   */
+  private IntermediateFormat intermediateFormat;
+
   public ImageProcessor(ImageProcessingSystem processingSystem) {
     this.processingSystem = processingSystem;
   }
@@ -102,6 +133,19 @@ public class ImageProcessor {
     this(processingSystem, format, null, jpegQuality);
   }
 
+  /**
+   * Creates a copy of an image processor, with the same settings.
+   * 
+   * @param other the image processor to copy
+   */
+  public ImageProcessor(ImageProcessor other) {
+    this(other.processingSystem, other.format, other.backgroundColor, other.jpegQuality);
+    this.filter = other.filter;
+    this.scheduler = other.scheduler;
+    this.processGroup = other.processGroup;
+    this.intermediateFormat = other.intermediateFormat;
+  }
+
   /**
    * Crops an image using the width and height provided
    * 
@@ -121,9 +165,36 @@ public class ImageProcessor {
     op.addImage(src);
     op.crop(width, height);
     op.p_adjoin();
-    op.addImage(target);
+    addOutput(op, target);
 
-    new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK).run(op);
+    run(new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK), op, Arrays.asList(src), 0);
+  }
+
+  /**
+   * Crops a single region from an image
+   * 
+   * @param src  absolute path to source image
+   * @param target  absolute path to target image
+   * @param width  the width of the region
+   * @param height  the height of the region
+   * @param x  the x offset of the region
+   * @param y  the y offset of the region
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws IM4JavaException
+   */
+  public void crop(String src, String target, int width, int height, int x, int y) throws IOException,
+      InterruptedException, IM4JavaException {
+
+    IMOperation op = createOperation();
+    op.addImage(src);
+    op.crop(width, height, x, y);
+    op.p_repage();
+    addOutput(op, target);
+
+    run(new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK), op,
+        Arrays.asList(src), (long) width * height);
   }
 
   /**
@@ -152,9 +223,87 @@ public class ImageProcessor {
     op.addImage(src);
     op.gravity(gravity);
     op.extent(canvasWidth, canvasHeight);
-    op.addImage(target);
+    addOutput(op, target);
+
+    run(new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK), op,
+        Arrays.asList(src), (long) canvasWidth * canvasHeight);
+  }
+
+  /**
+   * Resizes an image to exactly the specified width and height, places it on a canvas
+   * with the specified gravity, width and height, and cuts the canvas into pieces of
+   * the given size - all in one pass, without writing the resized image.
+   * 
+   * @param src  absolute path to source image
+   * @param target  absolute path to target image (a pattern with %d for the piece index)
+   * @param resizeWidth  the width of the resized image
+   * @param resizeHeight  the height of the resized image
+   * @param canvasWidth  the width of the canvas
+   * @param canvasHeight the height of the canvas
+   * @param gravity  the gravity specifies the location of the resized image on the canvas
+   * @param width  the width of the resulting images
+   * @param height the height of the resulting images
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws IM4JavaException
+   */
+  public void resizeAndCrop(String src, String target, int resizeWidth, int resizeHeight, int canvasWidth,
+      int canvasHeight, String gravity, int width, int height) throws IOException, InterruptedException,
+      IM4JavaException {
+
+    IMOperation op = createOperation();
+    op.addImage(src);
+    addFilter(op);
+    op.resize(resizeWidth, resizeHeight, '!');
+    op.background(backgroundColor);
+    op.gravity(gravity);
+    op.extent(canvasWidth, canvasHeight);
+    op.gravity(GRAVITY_NORTHWEST);
+    op.crop(width, height);
+    op.p_repage();
+    op.p_adjoin();
+    addOutput(op, target);
 
-    new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK).run(op);
+    run(new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK), op,
+        Arrays.asList(src), (long) resizeWidth * resizeHeight + (long) canvasWidth * canvasHeight);
+  }
+
+  /**
+   * Reads a rectangular region of an image and places it on a canvas of the given size,
+   * filled with the background color. The region is passed to the decoder as part of
+   * the file name (<em>image[WxH+X+Y]</em>), so decoders that support it (e.g. the
+   * ImageMagick JPEG 2000 coder) decode only the requested region.
+   * 
+   * @param src  absolute path to source image
+   * @param target  absolute path to target image
+   * @param width  the width of the region
+   * @param height  the height of the region
+   * @param x  the x offset of the region
+   * @param y  the y offset of the region
+   * @param canvasWidth  the width of the canvas
+   * @param canvasHeight  the height of the canvas
+   * @param gravity  the location of the region on the canvas
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws IM4JavaException
+   */
+  public void extractRegion(String src, String target, int width, int height, int x, int y, int canvasWidth,
+      int canvasHeight, String gravity) throws IOException, InterruptedException, IM4JavaException {
+
+    IMOperation op = createOperation();
+    op.addImage(src + "[" + width + "x" + height + "+" + x + "+" + y + "]");
+    if (canvasWidth != width || canvasHeight != height) {
+      op.background(backgroundColor);
+      op.gravity(gravity);
+      op.extent(canvasWidth, canvasHeight);
+    }
+    op.p_repage();
+    addOutput(op, target);
+
+    run(new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK), op,
+        NO_SOURCES, (long) width * height + (long) canvasWidth * canvasHeight);
   }
 
   /**
@@ -180,9 +329,10 @@ public class ImageProcessor {
       color = color.substring(0, 7);
     }
     op.addRawArgs("xc:" + color);
-    op.addImage(target);
+    addOutput(op, target);
 
-    new CompositeCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK).run(op);
+    run(new CompositeCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK), op,
+        Arrays.asList(src), (long) dim * dim);
   }
 
   /**
@@ -202,9 +352,70 @@ public class ImageProcessor {
 
     IMOperation op = createOperation();
     op.addImage(src);
+    addFilter(op);
     op.resize(width, height);
-    op.addImage(target);
-    new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK).run(op);
+    addOutput(op, target);
+    run(new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK), op,
+        Arrays.asList(src), (long) width * height);
+  }
+
+  /**
+   * Resizes an image to exactly the specified width and height, hinting the decoder
+   * that a reduced-scale version of the source is sufficient. For JPEG sources this
+   * lets the decoder skip most of the inverse DCT work (and memory), since it can
+   * decode directly at 1/2, 1/4 or 1/8 scale before the final resize. All other
+   * sources are decoded at full resolution.
+   * 
+   * @param src  absolute path to source image
+   * @param target  absolute path to target image
+   * @param width  the width of the resulting image
+   * @param height  the height of the resulting image
+   * 
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws IM4JavaException
+   */
+  public void resizeReducedScale(String src, String target, int width, int height) throws IOException,
+      InterruptedException, IM4JavaException {
+
+    IMOperation op = createOperation();
+    if (processingSystem == ImageProcessingSystem.GRAPHICSMAGICK) {
+      op.size(width, height);
+    } else {
+      op.define("jpeg:size=" + width + "x" + height);
+    }
+    op.addImage(src);
+    addFilter(op);
+    op.resize(width, height, '!');
+    addOutput(op, target);
+    if (isJPEG(new File(src))) {
+      // The decoder produces at most twice the target size in each dimension
+      run(new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK), op, NO_SOURCES,
+          5L * width * height);
+    } else {
+      run(new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK), op, Arrays.asList(src),
+          (long) width * height);
+    }
+  }
+
+  /**
+   * Checks whether a file is a JPEG image, i.e. whether it starts with a SOI marker
+   * followed by another marker.
+   * 
+   * @param file the file
+   * @return true if the file is a JPEG image, false if not (or if it cannot be read)
+   */
+  public static boolean isJPEG(File file) {
+    try {
+      InputStream in = new FileInputStream(file);
+      try {
+        return in.read() == 0xff && in.read() == 0xd8 && in.read() == 0xff;
+      } finally {
+        in.close();
+      }
+    } catch (IOException e) {
+      return false;
+    }
   }
 
   /**
@@ -227,9 +438,30 @@ public class ImageProcessor {
       for (String rawArg : rawArgs.keySet())
         op.addRawArgs(rawArg, rawArgs.get(rawArg));
     }
-    op.addImage(target);
+    addOutput(op, target);
 
-    new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK).run(op);
+    run(new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK), op, Arrays.asList(src), 0);
+  }
+
+  /**
+   * Converts an image to raw, interleaved 8-bit RGB or RGBA samples (see {@link RawRaster})
+   *
+   * @param src  absolute path to source image
+   * @param target  absolute path to target file
+   * @param alpha  true to include the alpha channel
+   *
+   * @throws IOException
+   * @throws InterruptedException
+   * @throws IM4JavaException
+   */
+  public void writeRaw(String src, String target, boolean alpha) throws IOException, InterruptedException,
+      IM4JavaException {
+
+    IMOperation op = new IMOperation();
+    op.addImage(src);
+    op.depth(8);
+    op.addImage((alpha ? "rgba:" : "rgb:") + target);
+    run(new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK), op, Arrays.asList(src), 0);
   }
 
   /**
@@ -256,7 +488,7 @@ public class ImageProcessor {
 
     IMOperation op = new IMOperation();
     op.addImage(src);
-    identify.run(op);
+    run(identify, op, NO_SOURCES, 0);
 
     return result.toString();
   }
@@ -283,11 +515,12 @@ public class ImageProcessor {
       op.addImage(src);
     }
 
-    new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK).run(op);
+    run(new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK), op, srcs, 0);
   }
 
   /**
-   * Scales an image to the given size
+   * Scales an image to the given size. If a resampling filter is set, the image
+   * is resized with that filter; otherwise it is scaled by pixel averaging.
    * 
    * @param src  absolute path to source image
    * @param target  absolute path to target image
@@ -303,11 +536,17 @@ public class ImageProcessor {
 
     IMOperation op = createOperation();
     op.size(width, height);
-    op.scale(width, height);
+    if (filter != null) {
+      op.filter(filter.getName());
+      op.resize(width, height, '!');
+    } else {
+      op.scale(width, height);
+    }
     op.addImage(src);
-    op.addImage(target);
+    addOutput(op, target);
 
-    new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK).run(op);
+    run(new ConvertCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK), op,
+        Arrays.asList(src), (long) width * height);
   }
 
   /**
@@ -328,14 +567,15 @@ public class ImageProcessor {
 
     IMOperation op = createOperation();
     op.tile(xTiles, yTiles);
+    addFilter(op);
     if (rawArgs != null) {
       for (String rawArg : rawArgs.keySet())
         op.addRawArgs(rawArg, rawArgs.get(rawArg));
     }
     op.addImage(srcs.toArray(new String[srcs.size()]));
-    op.addImage(target);
+    addOutput(op, target);
 
-    new MontageCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK).run(op);
+    run(new MontageCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK), op, srcs, 0);
   }
 
   /**
@@ -361,11 +601,52 @@ public class ImageProcessor {
     op.tile(xTiles, yTiles);
     op.gravity(gravity);
     op.background(backgroundColor);
+    addFilter(op);
     op.geometry(width, height);
     op.addImage(srcs.toArray(new String[srcs.size()]));
-    op.addImage(target);
+    addOutput(op, target);
 
-    new MontageCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK).run(op);
+    run(new MontageCmd(processingSystem == ImageProcessingSystem.GRAPHICSMAGICK), op,
+        srcs, (long) width * height * xTiles * yTiles);
+  }
+
+  /**
+   * Runs a command, as soon as the scheduler admits it (as a process of the process group, if any).
+   * 
+   * @param cmd  the command
+   * @param op  the operation
+   * @param sources  the source images (to estimate the pixel memory of the command)
+   * @param outputPixels  the number of output pixels (as far as known)
+   */
+  private void run(ImageCommand cmd, IMOperation op, List<String> sources, long outputPixels) throws IOException,
+      InterruptedException, IM4JavaException {
+
+    long granted = scheduler.acquire(scheduler.estimate(sources, outputPixels));
+    try {
+      op.getCmdArgs().addAll(0, scheduler.getLimitArgs(granted));
+      if (processGroup != null)
+        processGroup.run(cmd, op);
+      else
+        cmd.run(op);
+    } finally {
+      scheduler.release(granted);
+    }
+  }
+
+  private void addFilter(IMOperation op) {
+    if (filter != null)
+      op.filter(filter.getName());
+  }
+
+  /**
+   * Adds the target image to an operation, with the compression of the intermediate
+   * format if the target is an intermediate image.
+   */
+  private void addOutput(IMOperation op, String target) {
+    IntermediateFormat intermediate = getIntermediateFormat();
+    if (intermediate.getCompression() != null && target.endsWith("." + intermediate.getExtension()))
+      op.compress(intermediate.getCompression());
+    op.addImage(target);
   }
 
   private IMOperation createOperation() {
@@ -410,4 +691,42 @@ public class ImageProcessor {
   public void setBackground(String color) {
     this.backgroundColor = color;
   }
+
+  public ResamplingFilter getResamplingFilter() {
+    return filter;
+  }
+
+  public void setResamplingFilter(ResamplingFilter filter) {
+    this.filter = filter;
+  }
+
+  public CommandScheduler getCommandScheduler() {
+    return scheduler;
+  }
+
+  public void setCommandScheduler(CommandScheduler scheduler) {
+    this.scheduler = scheduler;
+  }
+
+  public ProcessGroup getProcessGroup() {
+    return processGroup;
+  }
+
+  public void setProcessGroup(ProcessGroup processGroup) {
+    this.processGroup = processGroup;
+  }
+
+  /**
+   * Returns the format of intermediate images, i.e. the format that stripes and level
+   * images should be written in.
+   * 
+   * @return the intermediate format
+   */
+  public IntermediateFormat getIntermediateFormat() {
+    return (intermediateFormat != null) ? intermediateFormat : IntermediateFormat.getDefault(processingSystem);
+  }
+
+  public void setIntermediateFormat(IntermediateFormat intermediateFormat) {
+    this.intermediateFormat = intermediateFormat;
+  }
 }
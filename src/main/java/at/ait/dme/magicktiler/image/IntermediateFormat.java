@@ -0,0 +1,136 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.image;
+
+import java.io.File;
+
+import at.ait.dme.magicktiler.image.ImageProcessor.ImageProcessingSystem;
+
+/**
+ * The formats available for intermediate images (stripes and zoom level images), which
+ * the image processing system writes once and reads back at least once. From fastest
+ * to smallest:
+ * <ul>
+ * <li>{@link #MPC} - the native pixel cache of GraphicsMagick/ImageMagick. It is
+ * memory-mapped on read, without any decoding, but it stores the pixels at the
+ * quantum depth of the processing system (e.g. 8 bytes per pixel for a Q16 build)
+ * and consists of two files (<em>.mpc</em> and <em>.cache</em>). It is only valid for
+ * the build of the processing system that wrote it.</li>
+ * <li>{@link #TIFF} - uncompressed TIFF, 3-4 bytes per pixel; cheap to decode.</li>
+ * <li>{@link #TIFF_LZW} - LZW-compressed TIFF; the least temp disk space (depending on
+ * the image content), at the cost of compressing and decompressing every stripe.</li>
+ * </ul>
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public enum IntermediateFormat {
+
+  MPC("mpc", null, 8), TIFF("tif", "None", 4), TIFF_LZW("tif", "LZW", 4);
+
+  /**
+   * Extension of the pixel cache file that accompanies an MPC file
+   */
+  private static final String CACHE_EXTENSION = ".cache";
+
+  /**
+   * The file extension
+   */
+  private String extension;
+
+  /**
+   * The compression, as understood by GraphicsMagick and ImageMagick (null for none)
+   */
+  private String compression;
+
+  /**
+   * The (maximum) number of bytes per pixel on disk
+   */
+  private int bytesPerPixel;
+
+  private IntermediateFormat(String extension, String compression, int bytesPerPixel) {
+    this.extension = extension;
+    this.compression = compression;
+    this.bytesPerPixel = bytesPerPixel;
+  }
+
+  public String getExtension() {
+    return extension;
+  }
+
+  public String getCompression() {
+    return compression;
+  }
+
+  public int getBytesPerPixel() {
+    return bytesPerPixel;
+  }
+
+  /**
+   * Returns the fastest intermediate format supported by an image processing system.
+   * Both GraphicsMagick and ImageMagick read and write their pixel cache.
+   * 
+   * @param system the image processing system
+   * @return the default intermediate format
+   */
+  public static IntermediateFormat getDefault(ImageProcessingSystem system) {
+    return MPC;
+  }
+
+  /**
+   * Returns the temp disk space taken by an intermediate image, including the pixel
+   * cache file of an MPC image.
+   * 
+   * @param file the intermediate image file
+   * @return the size in bytes
+   */
+  public static long length(File file) {
+    File cache = getPixelCache(file);
+    return file.length() + ((cache != null) ? cache.length() : 0);
+  }
+
+  /**
+   * Deletes an intermediate image, including the pixel cache file of an MPC image.
+   * 
+   * @param file the intermediate image file
+   * @return true if the file was deleted
+   */
+  public static boolean delete(File file) {
+    File cache = getPixelCache(file);
+    if (cache != null)
+      cache.delete();
+    return file.delete();
+  }
+
+  /**
+   * Returns the pixel cache file of an MPC image (or null for other formats).
+   */
+  private static File getPixelCache(File file) {
+    String name = file.getName();
+    if (!name.endsWith("." + MPC.extension))
+      return null;
+    return new File(file.getParentFile(), name.substring(0, name.length() - MPC.extension.length() - 1)
+        + CACHE_EXTENSION);
+  }
+
+}
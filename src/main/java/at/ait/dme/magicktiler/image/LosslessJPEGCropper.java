@@ -0,0 +1,859 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package at.ait.dme.magicktiler.image;
+
+import java.awt.Rectangle;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import javax.imageio.plugins.jpeg.JPEGHuffmanTable;
+
+/**
+ * Lossless cropping of baseline JPEG images, similar to <em>jpegtran -crop</em>.
+ * <br><br>
+ * The cropper works on the quantized DCT coefficient blocks of the source image:
+ * the entropy-coded data is decoded to coefficients and the blocks of each crop
+ * region are re-encoded (with the standard Huffman tables) into a new JPEG file.
+ * Since no inverse DCT, color conversion or quantization takes place, the crops
+ * are pixel-identical to the corresponding regions of the source image.
+ * <br><br>
+ * Crop regions must start on an MCU boundary (i.e. their x/y offsets must be
+ * multiples of {@link #getMCUWidth()}/{@link #getMCUHeight()}). Their width and height
+ * are arbitrary, as long as the region lies within the image. The source is decoded
+ * sequentially, in a single pass, and only the MCU rows spanned by pending crop
+ * regions are held in memory.
+ * <br><br>
+ * The source can be a file or a JPEG held in memory, and each crop is written to a file
+ * or to an output stream.
+ * <br><br>
+ * Only baseline (and extended sequential, 8-bit) Huffman-coded JPEGs with a single,
+ * interleaved scan are supported. Opening any other JPEG fails with an {@link IOException}.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class LosslessJPEGCropper {
+
+  /**
+   * JPEG marker codes
+   */
+  private static final int SOI = 0xd8;
+  private static final int EOI = 0xd9;
+  private static final int SOF0 = 0xc0;
+  private static final int SOF1 = 0xc1;
+  private static final int DHT = 0xc4;
+  private static final int DQT = 0xdb;
+  private static final int DRI = 0xdd;
+  private static final int SOS = 0xda;
+  private static final int APP0 = 0xe0;
+  private static final int APP15 = 0xef;
+  private static final int RST0 = 0xd0;
+  private static final int RST7 = 0xd7;
+
+  /**
+   * The source image file (null for an in-memory source)
+   */
+  private File file;
+
+  /**
+   * The source image data (null for a file source)
+   */
+  private byte[] data;
+
+  /**
+   * Description of the source, for error messages
+   */
+  private String source;
+
+  /**
+   * Image dimensions
+   */
+  private int width, height;
+
+  /**
+   * MCU dimensions and MCU grid
+   */
+  private int mcuWidth, mcuHeight, mcusPerLine, mcuRows;
+
+  /**
+   * Restart interval (in MCUs, 0 = no restart markers)
+   */
+  private int restartInterval = 0;
+
+  /**
+   * Image components (in scan order)
+   */
+  private Component[] components;
+
+  /**
+   * Quantization table segments by table ID (precision/ID byte + table)
+   */
+  private byte[][] quantizationTables = new byte[4][];
+
+  /**
+   * Huffman decoding tables by table ID
+   */
+  private HuffmanDecoder[] dcDecoders = new HuffmanDecoder[4];
+  private HuffmanDecoder[] acDecoders = new HuffmanDecoder[4];
+
+  /**
+   * APPn segments (e.g. JFIF, EXIF, ICC profiles, Adobe) which are copied to every crop
+   */
+  private List<byte[]> appSegments = new ArrayList<byte[]>();
+
+  /**
+   * Offset of the entropy-coded data in the source
+   */
+  private long scanOffset;
+
+  /**
+   * The registered crops
+   */
+  private List<Crop> crops = new ArrayList<Crop>();
+
+  public LosslessJPEGCropper(File file) throws IOException {
+    this.file = file;
+    this.source = file.toString();
+    RandomAccessFile in = new RandomAccessFile(file, "r");
+    try {
+      parseHeaders(in);
+      scanOffset = in.getFilePointer();
+    } finally {
+      in.close();
+    }
+  }
+
+  public LosslessJPEGCropper(byte[] data) throws IOException {
+    this.data = data;
+    this.source = "in-memory JPEG";
+    ByteArrayInputStream in = new ByteArrayInputStream(data);
+    parseHeaders(new DataInputStream(in));
+    scanOffset = data.length - in.available();
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getMCUWidth() {
+    return mcuWidth;
+  }
+
+  public int getMCUHeight() {
+    return mcuHeight;
+  }
+
+  /**
+   * Checks whether the specified region can be cropped losslessly.
+   *
+   * @param region the crop region
+   * @return true if the region starts on an MCU boundary and lies within the image
+   */
+  public boolean canCrop(Rectangle region) {
+    return region.width > 0 && region.height > 0 && region.x >= 0 && region.y >= 0
+        && region.x + region.width <= width && region.y + region.height <= height && region.x % mcuWidth == 0
+        && region.y % mcuHeight == 0;
+  }
+
+  /**
+   * Registers a crop. Crops are written when {@link #execute()} is called.
+   *
+   * @param region the crop region
+   * @param target the target JPEG file
+   */
+  public void addCrop(Rectangle region, File target) {
+    if (!canCrop(region))
+      throw new IllegalArgumentException("Region " + region + " cannot be cropped losslessly from " + source);
+    crops.add(new Crop(new Rectangle(region), target, null));
+  }
+
+  /**
+   * Registers a crop. Crops are written when {@link #execute()} is called. The
+   * stream is not closed.
+   *
+   * @param region the crop region
+   * @param target the stream to write the JPEG to
+   */
+  public void addCrop(Rectangle region, OutputStream target) {
+    if (!canCrop(region))
+      throw new IllegalArgumentException("Region " + region + " cannot be cropped losslessly from " + source);
+    crops.add(new Crop(new Rectangle(region), null, target));
+  }
+
+  /**
+   * Decodes the source image and writes all registered crops.
+   *
+   * @throws IOException if something goes wrong
+   */
+  public void execute() throws IOException {
+    if (crops.isEmpty())
+      return;
+
+    List<Crop> pending = new ArrayList<Crop>(crops);
+    Collections.sort(pending, new Comparator<Crop>() {
+      public int compare(Crop a, Crop b) {
+        return a.lastMCURow - b.lastMCURow;
+      }
+    });
+
+    Map<Integer, short[][]> window = new HashMap<Integer, short[][]>();
+    InputStream in = (data != null) ? new ByteArrayInputStream(data)
+        : new BufferedInputStream(new FileInputStream(file), 65536);
+    try {
+      skipFully(in, scanOffset);
+      BitReader reader = new BitReader(in);
+      int[] predictors = new int[components.length];
+      int mcuCount = 0;
+
+      for (int row = 0; row < mcuRows && !pending.isEmpty(); row++) {
+        // Decode one MCU row
+        short[][] coefficients = new short[components.length][];
+        for (int c = 0; c < components.length; c++)
+          coefficients[c] = new short[components[c].blocksPerLine * components[c].v * 64];
+
+        for (int col = 0; col < mcusPerLine; col++) {
+          if (restartInterval > 0 && mcuCount > 0 && mcuCount % restartInterval == 0) {
+            reader.restart();
+            for (int c = 0; c < predictors.length; c++)
+              predictors[c] = 0;
+          }
+          for (int c = 0; c < components.length; c++) {
+            Component comp = components[c];
+            for (int v = 0; v < comp.v; v++) {
+              for (int h = 0; h < comp.h; h++) {
+                int block = v * comp.blocksPerLine + col * comp.h + h;
+                predictors[c] = decodeBlock(reader, comp, predictors[c], coefficients[c], block * 64);
+              }
+            }
+          }
+          mcuCount++;
+        }
+        window.put(Integer.valueOf(row), coefficients);
+
+        // Write all crops that are complete
+        while (!pending.isEmpty() && pending.get(0).lastMCURow == row)
+          writeCrop(pending.remove(0), window);
+
+        // Release rows no longer needed
+        int firstNeeded = Integer.MAX_VALUE;
+        for (Crop crop : pending)
+          firstNeeded = Math.min(firstNeeded, crop.region.y / mcuHeight);
+        for (Iterator<Integer> it = window.keySet().iterator(); it.hasNext();) {
+          if (it.next().intValue() < firstNeeded)
+            it.remove();
+        }
+      }
+
+      if (!pending.isEmpty())
+        throw new IOException("Unexpected end of image data in " + source);
+    } finally {
+      in.close();
+    }
+  }
+
+  private void parseHeaders(DataInput in) throws IOException {
+    if (in.readUnsignedByte() != 0xff || in.readUnsignedByte() != SOI)
+      throw new IOException("Not a JPEG image: " + source);
+
+    boolean frame = false;
+    while (true) {
+      int marker = readMarker(in);
+      if (marker == EOI)
+        throw new IOException("No scan found in " + source);
+      if (marker >= RST0 && marker <= RST7)
+        continue;
+
+      byte[] segment = new byte[in.readUnsignedShort() - 2];
+      in.readFully(segment);
+
+      if (marker == SOF0 || marker == SOF1) {
+        parseFrame(segment);
+        frame = true;
+      } else if (marker >= 0xc2 && marker <= 0xcf && marker != DHT && marker != 0xc8 && marker != 0xcc) {
+        throw new IOException("Unsupported JPEG process (SOF" + (marker - 0xc0) + ") in " + source);
+      } else if (marker == DQT) {
+        parseQuantizationTables(segment);
+      } else if (marker == DHT) {
+        parseHuffmanTables(segment);
+      } else if (marker == DRI) {
+        restartInterval = ((segment[0] & 0xff) << 8) | (segment[1] & 0xff);
+      } else if (marker >= APP0 && marker <= APP15) {
+        byte[] app = new byte[segment.length + 4];
+        app[0] = (byte) 0xff;
+        app[1] = (byte) marker;
+        app[2] = (byte) ((segment.length + 2) >> 8);
+        app[3] = (byte) (segment.length + 2);
+        System.arraycopy(segment, 0, app, 4, segment.length);
+        appSegments.add(app);
+      } else if (marker == SOS) {
+        if (!frame)
+          throw new IOException("Scan before frame header in " + source);
+        parseScan(segment);
+        return;
+      }
+    }
+  }
+
+  private int readMarker(DataInput in) throws IOException {
+    if (in.readUnsignedByte() != 0xff)
+      throw new IOException("Invalid marker in " + source);
+    int marker;
+    do {
+      marker = in.readUnsignedByte();
+    } while (marker == 0xff);
+    return marker;
+  }
+
+  private void parseFrame(byte[] segment) throws IOException {
+    if ((segment[0] & 0xff) != 8)
+      throw new IOException("Unsupported sample precision in " + source);
+
+    height = ((segment[1] & 0xff) << 8) | (segment[2] & 0xff);
+    width = ((segment[3] & 0xff) << 8) | (segment[4] & 0xff);
+    if (height == 0 || width == 0)
+      throw new IOException("Unsupported image dimensions in " + source);
+
+    int n = segment[5] & 0xff;
+    components = new Component[n];
+    int hMax = 1, vMax = 1;
+    for (int i = 0; i < n; i++) {
+      Component c = new Component();
+      c.id = segment[6 + i * 3] & 0xff;
+      c.h = (segment[7 + i * 3] & 0xff) >> 4;
+      c.v = segment[7 + i * 3] & 0x0f;
+      c.tq = segment[8 + i * 3] & 0xff;
+      if (c.h < 1 || c.h > 4 || c.v < 1 || c.v > 4 || c.tq > 3)
+        throw new IOException("Invalid component parameters in " + source);
+      hMax = Math.max(hMax, c.h);
+      vMax = Math.max(vMax, c.v);
+      components[i] = c;
+    }
+
+    if (n == 1) {
+      // Non-interleaved: one block per MCU, regardless of the sampling factors
+      components[0].h = components[0].v = 1;
+      hMax = vMax = 1;
+    }
+
+    mcuWidth = hMax * 8;
+    mcuHeight = vMax * 8;
+    mcusPerLine = (width + mcuWidth - 1) / mcuWidth;
+    mcuRows = (height + mcuHeight - 1) / mcuHeight;
+    for (Component c : components)
+      c.blocksPerLine = mcusPerLine * c.h;
+  }
+
+  private void parseQuantizationTables(byte[] segment) {
+    int pos = 0;
+    while (pos < segment.length) {
+      int precision = (segment[pos] & 0xff) >> 4;
+      int id = segment[pos] & 0x0f;
+      int length = 1 + ((precision == 0) ? 64 : 128);
+      byte[] table = new byte[length];
+      System.arraycopy(segment, pos, table, 0, length);
+      quantizationTables[id & 3] = table;
+      pos += length;
+    }
+  }
+
+  private void parseHuffmanTables(byte[] segment) {
+    int pos = 0;
+    while (pos < segment.length) {
+      int tableClass = (segment[pos] & 0xff) >> 4;
+      int id = segment[pos] & 0x03;
+      short[] lengths = new short[16];
+      int total = 0;
+      for (int i = 0; i < 16; i++) {
+        lengths[i] = (short) (segment[pos + 1 + i] & 0xff);
+        total += lengths[i];
+      }
+      short[] values = new short[total];
+      for (int i = 0; i < total; i++)
+        values[i] = (short) (segment[pos + 17 + i] & 0xff);
+
+      if (tableClass == 0)
+        dcDecoders[id] = new HuffmanDecoder(lengths, values);
+      else
+        acDecoders[id] = new HuffmanDecoder(lengths, values);
+      pos += 17 + total;
+    }
+  }
+
+  private void parseScan(byte[] segment) throws IOException {
+    int n = segment[0] & 0xff;
+    if (n != components.length)
+      throw new IOException("Unsupported multi-scan JPEG: " + source);
+
+    Component[] ordered = new Component[n];
+    for (int i = 0; i < n; i++) {
+      int id = segment[1 + i * 2] & 0xff;
+      int tables = segment[2 + i * 2] & 0xff;
+      for (Component c : components) {
+        if (c.id == id) {
+          ordered[i] = c;
+          c.dc = dcDecoders[(tables >> 4) & 3];
+          c.ac = acDecoders[tables & 3];
+        }
+      }
+      if (ordered[i] == null || ordered[i].dc == null || ordered[i].ac == null
+          || quantizationTables[ordered[i].tq] == null)
+        throw new IOException("Invalid scan header in " + source);
+    }
+    components = ordered;
+
+    int ss = segment[1 + n * 2] & 0xff;
+    int se = segment[2 + n * 2] & 0xff;
+    int approximation = segment[3 + n * 2] & 0xff;
+    if (ss != 0 || se != 63 || approximation != 0)
+      throw new IOException("Unsupported scan parameters in " + source);
+  }
+
+  private int decodeBlock(BitReader reader, Component comp, int predictor, short[] coefficients, int offset)
+      throws IOException {
+
+    // DC coefficient
+    int s = comp.dc.decode(reader);
+    int dc = predictor + ((s == 0) ? 0 : extend(reader.receive(s), s));
+    coefficients[offset] = (short) dc;
+
+    // AC coefficients (kept in zig-zag order)
+    for (int k = 1; k < 64;) {
+      int rs = comp.ac.decode(reader);
+      int r = rs >> 4;
+      s = rs & 0x0f;
+      if (s == 0) {
+        if (r != 15)
+          break;
+        k += 16;
+      } else {
+        k += r;
+        if (k > 63)
+          throw new IOException("Corrupt image data in " + source);
+        coefficients[offset + k] = (short) extend(reader.receive(s), s);
+        k++;
+      }
+    }
+    return dc;
+  }
+
+  private void writeCrop(Crop crop, Map<Integer, short[][]> window) throws IOException {
+    if (crop.stream != null) {
+      OutputStream out = new BufferedOutputStream(crop.stream, 16384);
+      writeJPEG(crop.region, window, out);
+      out.flush();
+    } else {
+      OutputStream out = new BufferedOutputStream(new FileOutputStream(crop.target), 16384);
+      try {
+        writeJPEG(crop.region, window, out);
+      } finally {
+        out.close();
+      }
+    }
+  }
+
+  private void writeJPEG(Rectangle r, Map<Integer, short[][]> window, OutputStream out) throws IOException {
+    out.write(0xff);
+    out.write(SOI);
+    for (byte[] app : appSegments)
+      out.write(app);
+
+    // Quantization tables
+    boolean[] written = new boolean[4];
+    boolean extended = false;
+    for (Component c : components) {
+      if (!written[c.tq]) {
+        writeSegmentHeader(out, DQT, quantizationTables[c.tq].length);
+        out.write(quantizationTables[c.tq]);
+        written[c.tq] = true;
+        extended |= (quantizationTables[c.tq][0] & 0xf0) != 0;
+      }
+    }
+
+    // Frame header (16-bit quantization tables are not allowed in baseline JPEGs)
+    writeSegmentHeader(out, extended ? SOF1 : SOF0, 6 + components.length * 3);
+    out.write(8);
+    out.write(r.height >> 8);
+    out.write(r.height);
+    out.write(r.width >> 8);
+    out.write(r.width);
+    out.write(components.length);
+    for (Component c : components) {
+      out.write(c.id);
+      out.write((c.h << 4) | c.v);
+      out.write(c.tq);
+    }
+
+    // Standard Huffman tables: #0 for the first component, #1 for all others
+    writeHuffmanTable(out, 0x00, JPEGHuffmanTable.StdDCLuminance);
+    writeHuffmanTable(out, 0x10, JPEGHuffmanTable.StdACLuminance);
+    if (components.length > 1) {
+      writeHuffmanTable(out, 0x01, JPEGHuffmanTable.StdDCChrominance);
+      writeHuffmanTable(out, 0x11, JPEGHuffmanTable.StdACChrominance);
+    }
+
+    // Scan header
+    writeSegmentHeader(out, SOS, 4 + components.length * 2);
+    out.write(components.length);
+    for (int i = 0; i < components.length; i++) {
+      out.write(components[i].id);
+      out.write((i == 0) ? 0x00 : 0x11);
+    }
+    out.write(0);
+    out.write(63);
+    out.write(0);
+
+    // Entropy-coded data
+    BitWriter writer = new BitWriter(out);
+    int[] predictors = new int[components.length];
+    int firstRow = r.y / mcuHeight;
+    int firstCol = r.x / mcuWidth;
+    int rows = (r.height + mcuHeight - 1) / mcuHeight;
+    int cols = (r.width + mcuWidth - 1) / mcuWidth;
+    for (int row = 0; row < rows; row++) {
+      short[][] coefficients = window.get(Integer.valueOf(firstRow + row));
+      for (int col = firstCol; col < firstCol + cols; col++) {
+        for (int c = 0; c < components.length; c++) {
+          Component comp = components[c];
+          HuffmanEncoder dc = (c == 0) ? HuffmanEncoder.DC_LUMINANCE : HuffmanEncoder.DC_CHROMINANCE;
+          HuffmanEncoder ac = (c == 0) ? HuffmanEncoder.AC_LUMINANCE : HuffmanEncoder.AC_CHROMINANCE;
+          for (int v = 0; v < comp.v; v++) {
+            for (int h = 0; h < comp.h; h++) {
+              int block = v * comp.blocksPerLine + col * comp.h + h;
+              predictors[c] = encodeBlock(writer, dc, ac, predictors[c], coefficients[c], block * 64);
+            }
+          }
+        }
+      }
+    }
+    writer.flush();
+
+    out.write(0xff);
+    out.write(EOI);
+  }
+
+  private int encodeBlock(BitWriter writer, HuffmanEncoder dc, HuffmanEncoder ac, int predictor,
+      short[] coefficients, int offset) throws IOException {
+
+    int value = coefficients[offset];
+    int diff = value - predictor;
+    int s = category(diff);
+    dc.encode(writer, s);
+    if (s > 0)
+      writer.write(bits(diff, s), s);
+
+    int run = 0;
+    for (int k = 1; k < 64; k++) {
+      int coefficient = coefficients[offset + k];
+      if (coefficient == 0) {
+        run++;
+      } else {
+        while (run > 15) {
+          ac.encode(writer, 0xf0);
+          run -= 16;
+        }
+        s = category(coefficient);
+        if (s > 10)
+          throw new IOException("Coefficient out of range in " + source);
+        ac.encode(writer, (run << 4) | s);
+        writer.write(bits(coefficient, s), s);
+        run = 0;
+      }
+    }
+    if (run > 0)
+      ac.encode(writer, 0x00);
+    return value;
+  }
+
+  private void writeHuffmanTable(OutputStream out, int classAndId, JPEGHuffmanTable table) throws IOException {
+    short[] lengths = table.getLengths();
+    short[] values = table.getValues();
+    writeSegmentHeader(out, DHT, 1 + 16 + values.length);
+    out.write(classAndId);
+    for (int i = 0; i < 16; i++)
+      out.write((i < lengths.length) ? lengths[i] : 0);
+    for (short value : values)
+      out.write(value);
+  }
+
+  private void writeSegmentHeader(OutputStream out, int marker, int payloadLength) throws IOException {
+    out.write(0xff);
+    out.write(marker);
+    out.write((payloadLength + 2) >> 8);
+    out.write(payloadLength + 2);
+  }
+
+  private static int extend(int v, int s) {
+    return (v < (1 << (s - 1))) ? v - (1 << s) + 1 : v;
+  }
+
+  private static int category(int value) {
+    int magnitude = (value < 0) ? -value : value;
+    int s = 0;
+    while (magnitude > 0) {
+      magnitude >>= 1;
+      s++;
+    }
+    return s;
+  }
+
+  private static int bits(int value, int s) {
+    return ((value < 0) ? value - 1 : value) & ((1 << s) - 1);
+  }
+
+  private static void skipFully(InputStream in, long n) throws IOException {
+    while (n > 0) {
+      long skipped = in.skip(n);
+      if (skipped <= 0) {
+        if (in.read() < 0)
+          throw new EOFException();
+        skipped = 1;
+      }
+      n -= skipped;
+    }
+  }
+
+  /**
+   * An image component.
+   */
+  private static class Component {
+
+    int id, h, v, tq, blocksPerLine;
+
+    HuffmanDecoder dc, ac;
+
+  }
+
+  /**
+   * A registered crop.
+   */
+  private class Crop {
+
+    Rectangle region;
+
+    File target;
+
+    OutputStream stream;
+
+    int lastMCURow;
+
+    Crop(Rectangle region, File target, OutputStream stream) {
+      this.region = region;
+      this.target = target;
+      this.stream = stream;
+      this.lastMCURow = (region.y + region.height - 1) / mcuHeight;
+    }
+
+  }
+
+  /**
+   * Huffman decoding table, as in ITU T.81, Annex F.2.2.3.
+   */
+  private static class HuffmanDecoder {
+
+    int[] minCode = new int[17];
+    int[] maxCode = new int[18];
+    int[] valPtr = new int[17];
+    short[] values;
+
+    HuffmanDecoder(short[] lengths, short[] values) {
+      this.values = values;
+      int code = 0, k = 0;
+      for (int l = 1; l <= 16; l++) {
+        valPtr[l] = k;
+        minCode[l] = code;
+        code += lengths[l - 1];
+        k += lengths[l - 1];
+        maxCode[l] = (lengths[l - 1] > 0) ? code - 1 : -1;
+        code <<= 1;
+      }
+      maxCode[17] = Integer.MAX_VALUE;
+    }
+
+    int decode(BitReader reader) throws IOException {
+      int code = reader.readBit();
+      int l = 1;
+      while (code > maxCode[l]) {
+        code = (code << 1) | reader.readBit();
+        l++;
+        if (l > 16)
+          throw new IOException("Invalid Huffman code");
+      }
+      return values[valPtr[l] + code - minCode[l]];
+    }
+
+  }
+
+  /**
+   * Huffman encoding table, as in ITU T.81, Annex C.
+   */
+  private static class HuffmanEncoder {
+
+    static final HuffmanEncoder DC_LUMINANCE = new HuffmanEncoder(JPEGHuffmanTable.StdDCLuminance);
+    static final HuffmanEncoder AC_LUMINANCE = new HuffmanEncoder(JPEGHuffmanTable.StdACLuminance);
+    static final HuffmanEncoder DC_CHROMINANCE = new HuffmanEncoder(JPEGHuffmanTable.StdDCChrominance);
+    static final HuffmanEncoder AC_CHROMINANCE = new HuffmanEncoder(JPEGHuffmanTable.StdACChrominance);
+
+    int[] codes = new int[256];
+    int[] sizes = new int[256];
+
+    HuffmanEncoder(JPEGHuffmanTable table) {
+      short[] lengths = table.getLengths();
+      short[] values = table.getValues();
+      int code = 0, k = 0;
+      for (int l = 1; l <= lengths.length; l++) {
+        for (int i = 0; i < lengths[l - 1]; i++) {
+          codes[values[k]] = code++;
+          sizes[values[k]] = l;
+          k++;
+        }
+        code <<= 1;
+      }
+    }
+
+    void encode(BitWriter writer, int symbol) throws IOException {
+      if (sizes[symbol] == 0)
+        throw new IOException("No Huffman code for symbol " + symbol);
+      writer.write(codes[symbol], sizes[symbol]);
+    }
+
+  }
+
+  /**
+   * Reads bits from entropy-coded data, removing stuffed bytes and handling restart markers.
+   */
+  private static class BitReader {
+
+    InputStream in;
+    int buffer, bits;
+    int marker = -1;
+
+    BitReader(InputStream in) {
+      this.in = in;
+    }
+
+    int readBit() throws IOException {
+      if (bits == 0) {
+        buffer = nextByte();
+        bits = 8;
+      }
+      bits--;
+      return (buffer >> bits) & 1;
+    }
+
+    int receive(int s) throws IOException {
+      int v = 0;
+      for (int i = 0; i < s; i++)
+        v = (v << 1) | readBit();
+      return v;
+    }
+
+    void restart() throws IOException {
+      bits = 0;
+      if (marker < 0) {
+        int b = in.read();
+        while (b == 0xff)
+          b = in.read();
+        marker = b;
+      }
+      if (marker < RST0 || marker > RST7)
+        throw new IOException("Expected restart marker");
+      marker = -1;
+    }
+
+    private int nextByte() throws IOException {
+      // Once a marker is hit, the decoder is fed with zeros (ITU T.81, F.2.2.5)
+      if (marker >= 0)
+        return 0;
+
+      int b = in.read();
+      if (b < 0)
+        throw new EOFException("Unexpected end of image data");
+      if (b == 0xff) {
+        int b2 = in.read();
+        while (b2 == 0xff)
+          b2 = in.read();
+        if (b2 != 0) {
+          marker = b2;
+          return 0;
+        }
+      }
+      return b;
+    }
+
+  }
+
+  /**
+   * Writes bits to entropy-coded data, stuffing a zero byte after each 0xff.
+   */
+  private static class BitWriter {
+
+    OutputStream out;
+    int buffer, bits;
+
+    BitWriter(OutputStream out) {
+      this.out = out;
+    }
+
+    void write(int value, int size) throws IOException {
+      for (int i = size - 1; i >= 0; i--) {
+        buffer = (buffer << 1) | ((value >> i) & 1);
+        bits++;
+        if (bits == 8) {
+          out.write(buffer);
+          if (buffer == 0xff)
+            out.write(0);
+          buffer = 0;
+          bits = 0;
+        }
+      }
+    }
+
+    void flush() throws IOException {
+      if (bits > 0)
+        write(0x7f, 8 - bits);
+    }
+
+  }
+
+}
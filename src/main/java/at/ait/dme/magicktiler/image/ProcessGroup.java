@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.image;
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import org.im4java.core.IM4JavaException;
+import org.im4java.core.ImageCommand;
+import org.im4java.core.Operation;
+import org.im4java.process.ProcessEvent;
+import org.im4java.process.ProcessEventListener;
+import org.im4java.process.ProcessTask;
+
+/**
+ * The GraphicsMagick/ImageMagick processes started by the image processors of one
+ * job (see {@link ImageProcessor#setProcessGroup(ProcessGroup)}), so that the job can
+ * be cancelled: {@link #cancel()} kills all running processes of the group, and every
+ * command started afterwards fails right away.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class ProcessGroup implements ProcessEventListener {
+
+  /**
+   * The running processes
+   */
+  private Set<Process> running = new HashSet<Process>();
+
+  /**
+   * Whether the group was cancelled
+   */
+  private boolean cancelled = false;
+
+  /**
+   * Runs a command in the current thread, as a process of this group.
+   * 
+   * @param cmd the command
+   * @param op the operation
+   * @throws InterruptedException if the group is (or gets) cancelled
+   */
+  public void run(ImageCommand cmd, Operation op) throws IOException, InterruptedException, IM4JavaException {
+    if (isCancelled())
+      throw new InterruptedException("Cancelled");
+
+    // Only the process task of im4java reports its process to listeners
+    cmd.addProcessEventListener(this);
+    ProcessTask task = cmd.getProcessTask(op);
+    task.run();
+    ProcessEvent event;
+    try {
+      event = task.get();
+    } catch (ExecutionException e) {
+      throw new IM4JavaException(e.getCause());
+    }
+
+    if (isCancelled())
+      throw new InterruptedException("Cancelled");
+    Exception e = event.getException();
+    if (e instanceof IM4JavaException)
+      throw (IM4JavaException) e;
+    if (e instanceof IOException)
+      throw (IOException) e;
+    if (e != null)
+      throw new IM4JavaException(e);
+  }
+
+  /**
+   * Kills all running processes of the group, and makes all further commands fail.
+   */
+  public synchronized void cancel() {
+    cancelled = true;
+    for (Process process : running)
+      process.destroy();
+    running.clear();
+  }
+
+  public synchronized boolean isCancelled() {
+    return cancelled;
+  }
+
+  /**
+   * Returns the number of running processes.
+   * 
+   * @return the number of processes
+   */
+  public synchronized int getRunning() {
+    return running.size();
+  }
+
+  public void processInitiated(ProcessEvent event) {
+  }
+
+  public synchronized void processStarted(ProcessEvent event) {
+    if (cancelled)
+      event.getProcess().destroy();
+    else
+      running.add(event.getProcess());
+  }
+
+  public synchronized void processTerminated(ProcessEvent event) {
+    running.remove(event.getProcess());
+  }
+}
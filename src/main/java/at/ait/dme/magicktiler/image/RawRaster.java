@@ -0,0 +1,278 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.image;
+
+import java.awt.Rectangle;
+import java.awt.Transparency;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.ComponentColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.Raster;
+import java.awt.image.WritableRaster;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * An uncompressed, file-backed raster with 8 bits per channel, stored row by row
+ * with interleaved R, G, B (and A) samples - i.e. the layout of the 'rgb:' and
+ * 'rgba:' raw formats of GraphicsMagick and ImageMagick. Rows and regions are read
+ * and written with positional file access, so any number of threads can read
+ * from the same raster concurrently.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class RawRaster {
+
+  /**
+   * Maximum size of a band of rows processed at once (in bytes)
+   */
+  private static final int BAND_BYTES = 1 << 24;
+
+  /**
+   * The raster file
+   */
+  private File file;
+
+  /**
+   * The file channel
+   */
+  private FileChannel channel;
+
+  /**
+   * Raster width in pixel
+   */
+  private int width;
+
+  /**
+   * Raster height in pixel
+   */
+  private int height;
+
+  /**
+   * Number of channels per pixel (3 or 4)
+   */
+  private int channels;
+
+  /**
+   * Opens a raster file, creating it if it does not exist.
+   *
+   * @param file the raster file
+   * @param width the raster width
+   * @param height the raster height
+   * @param channels the number of channels (3 = RGB, 4 = RGBA)
+   * @throws IOException if the file cannot be opened
+   */
+  public RawRaster(File file, int width, int height, int channels) throws IOException {
+    if (channels != 3 && channels != 4)
+      throw new IllegalArgumentException("Unsupported number of channels: " + channels);
+    this.file = file;
+    this.width = width;
+    this.height = height;
+    this.channels = channels;
+    this.channel = new RandomAccessFile(file, "rw").getChannel();
+  }
+
+  /**
+   * Copies an image, band by band, into a new raster.
+   *
+   * @param reader the image
+   * @param file the raster file
+   * @param channels the number of channels (3 = RGB, 4 = RGBA)
+   * @return the raster
+   * @throws IOException if anything goes wrong
+   */
+  public static RawRaster fromBands(BandReader reader, File file, int channels) throws IOException {
+    RawRaster raster = new RawRaster(file, reader.getWidth(), reader.getHeight(), channels);
+    int rows = raster.getBandRows(1);
+    for (int y = 0; y < raster.height; y += rows) {
+      int n = Math.min(rows, raster.height - y);
+      int[] argb = reader.readBand(y, n);
+      byte[] band = new byte[argb.length * channels];
+      for (int i = 0, j = 0; i < argb.length; i++, j += channels) {
+        band[j] = (byte) (argb[i] >> 16);
+        band[j + 1] = (byte) (argb[i] >> 8);
+        band[j + 2] = (byte) argb[i];
+        if (channels == 4)
+          band[j + 3] = (byte) (argb[i] >>> 24);
+      }
+      raster.writeRows(y, n, band);
+    }
+    return raster;
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public int getWidth() {
+    return width;
+  }
+
+  public int getHeight() {
+    return height;
+  }
+
+  public int getChannels() {
+    return channels;
+  }
+
+  /**
+   * Writes a band of full rows.
+   *
+   * @param y the first row
+   * @param rows the number of rows
+   * @param data the pixels (at least rows x width x channels bytes)
+   * @throws IOException if anything goes wrong
+   */
+  public void writeRows(int y, int rows, byte[] data) throws IOException {
+    ByteBuffer buffer = ByteBuffer.wrap(data, 0, rows * width * channels);
+    long position = (long) y * width * channels;
+    while (buffer.hasRemaining())
+      position += channel.write(buffer, position);
+  }
+
+  /**
+   * Reads a band of full rows.
+   *
+   * @param y the first row
+   * @param rows the number of rows
+   * @return the pixels
+   * @throws IOException if anything goes wrong
+   */
+  public byte[] readRows(int y, int rows) throws IOException {
+    byte[] data = new byte[rows * width * channels];
+    read(ByteBuffer.wrap(data), (long) y * width * channels);
+    return data;
+  }
+
+  /**
+   * Reads a region of the raster into a (larger) pixel array with the same
+   * number of channels. The region is clipped to the raster; target pixels
+   * outside the clipped region are left unchanged.
+   *
+   * @param region the region (may extend beyond the raster)
+   * @param dst the target pixels
+   * @param dstWidth the width of the target
+   * @param dstX the x position of the region on the target
+   * @param dstY the y position of the region on the target
+   * @throws IOException if anything goes wrong
+   */
+  public void readRegion(Rectangle region, byte[] dst, int dstWidth, int dstX, int dstY) throws IOException {
+    Rectangle clipped = region.intersection(new Rectangle(0, 0, width, height));
+    if (clipped.isEmpty())
+      return;
+
+    int x = dstX + clipped.x - region.x;
+    int y = dstY + clipped.y - region.y;
+    for (int row = 0; row < clipped.height; row++) {
+      ByteBuffer buffer = ByteBuffer.wrap(dst, ((y + row) * dstWidth + x) * channels, clipped.width * channels);
+      read(buffer, ((long) (clipped.y + row) * width + clipped.x) * channels);
+    }
+  }
+
+  /**
+   * Scales this raster down by 50% into a new raster, band by band. Every band
+   * is read with the filter's margin above and below, so the result does not
+   * depend on the band size.
+   *
+   * @param target the file for the new raster
+   * @param filter the resampling filter
+   * @return the new raster
+   * @throws IOException if anything goes wrong
+   */
+  public RawRaster downsample(File target, ResamplingFilter filter) throws IOException {
+    RawRaster result = new RawRaster(target, BoxFilter.scaledSize(width), BoxFilter.scaledSize(height), channels);
+
+    // Bands and margins start at even rows, so every band maps onto whole target rows
+    int margin = (filter.getMargin() + 1) & ~1;
+    int rows = Math.max(2, getBandRows(2) & ~1);
+    for (int y = 0; y < height; y += rows) {
+      int top = Math.max(0, y - margin);
+      int bottom = Math.min(height, y + rows + margin);
+      byte[] band = filter.downsample(readRows(top, bottom - top), width, bottom - top, channels);
+
+      int skip = (y - top) / 2 * result.width * channels;
+      int n = Math.min(rows / 2, result.height - y / 2);
+      byte[] scaled = new byte[n * result.width * channels];
+      System.arraycopy(band, skip, scaled, 0, scaled.length);
+      result.writeRows(y / 2, n, scaled);
+    }
+    return result;
+  }
+
+  /**
+   * Creates an image backed by pixels in raster layout (interleaved R, G, B
+   * and optionally A samples). The pixels are not copied.
+   *
+   * @param pixels the pixels
+   * @param width the image width
+   * @param height the image height
+   * @param channels the number of channels (3 = RGB, 4 = RGBA)
+   * @return the image
+   */
+  public static BufferedImage createImage(byte[] pixels, int width, int height, int channels) {
+    int[] offsets = (channels == 4) ? new int[] { 0, 1, 2, 3 } : new int[] { 0, 1, 2 };
+    WritableRaster raster = Raster.createInterleavedRaster(new DataBufferByte(pixels, width * height * channels),
+        width, height, width * channels, channels, offsets, null);
+    ComponentColorModel colorModel = new ComponentColorModel(ColorSpace.getInstance(ColorSpace.CS_sRGB),
+        channels == 4, false, (channels == 4) ? Transparency.TRANSLUCENT : Transparency.OPAQUE,
+        DataBuffer.TYPE_BYTE);
+    return new BufferedImage(colorModel, raster, false, null);
+  }
+
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  /**
+   * Closes and deletes the raster file.
+   *
+   * @return true if the file was deleted
+   * @throws IOException if the file cannot be closed
+   */
+  public boolean delete() throws IOException {
+    close();
+    return file.delete();
+  }
+
+  private int getBandRows(int minimum) {
+    return Math.max(minimum, BAND_BYTES / (width * channels));
+  }
+
+  private void read(ByteBuffer buffer, long position) throws IOException {
+    while (buffer.hasRemaining()) {
+      int read = channel.read(buffer, position);
+      if (read < 0)
+        throw new EOFException("Unexpected end of raster file " + file.getName());
+      position += read;
+    }
+  }
+
+}
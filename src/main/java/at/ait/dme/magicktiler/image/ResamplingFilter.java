@@ -0,0 +1,127 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.image;
+
+/**
+ * The resampling filters available for computing the zoom levels of a pyramid,
+ * from fastest to highest quality. The filter is passed on to the image processing
+ * system (as <em>-filter</em>) and is also used for levels computed in-process, where
+ * each filter has its own implementation for the exact 2:1 case.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public enum ResamplingFilter {
+
+  /**
+   * 2x2 box filter (pixel averaging) - fastest, slightly blocky
+   */
+  BOX("Box", null),
+
+  /**
+   * Triangle (bilinear) filter, 4 taps per direction at 2:1
+   */
+  TRIANGLE("Triangle", new SeparableFilter(1) {
+    @Override
+    double kernel(double x) {
+      return 1 - x;
+    }
+  }),
+
+  /**
+   * Lanczos filter (3 lobes), 12 taps per direction at 2:1 - sharpest, slowest
+   */
+  LANCZOS("Lanczos", new SeparableFilter(3) {
+    @Override
+    double kernel(double x) {
+      if (x == 0)
+        return 1;
+      double px = Math.PI * x;
+      return 3 * Math.sin(px) * Math.sin(px / 3) / (px * px);
+    }
+  });
+
+  /**
+   * The filter name, as understood by GraphicsMagick and ImageMagick
+   */
+  private String name;
+
+  /**
+   * The in-process 2:1 implementation (null for the box filter)
+   */
+  private SeparableFilter separable;
+
+  private ResamplingFilter(String name, SeparableFilter separable) {
+    this.name = name;
+    this.separable = separable;
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the number of source pixels beyond a 2x2 block that this filter reads
+   * on each side when scaling down by 50%.
+   * 
+   * @return the margin in pixels
+   */
+  public int getMargin() {
+    return (separable == null) ? 0 : separable.getMargin();
+  }
+
+  /**
+   * Scales a packed-byte raster down by 50% with this filter. The parameters are
+   * the same as for {@link BoxFilter#downsample(byte[], int, int, int, byte[], int, int, int, int, byte[])}.
+   * Source pixels beyond the raster borders are replicated from the border.
+   */
+  public void downsample(byte[] src, int width, int height, int channels, byte[] dst, int dstWidth, int dstHeight,
+      int dstX, int dstY, byte[] background) {
+    if (separable == null) {
+      BoxFilter.downsample(src, width, height, channels, dst, dstWidth, dstHeight, dstX, dstY, background);
+    } else {
+      BoxFilter.checkArguments(src, width, height, channels, dst, dstWidth, dstHeight, dstX, dstY, background);
+      BoxFilter.fillBackground(dst, dstWidth, dstHeight, channels, dstX, dstY, BoxFilter.scaledSize(width),
+          BoxFilter.scaledSize(height), background);
+      separable.downsample(src, width, height, channels, dst, dstWidth, dstX, dstY);
+    }
+  }
+
+  /**
+   * Scales a packed-byte raster down by 50% with this filter.
+   * 
+   * @param src the source raster
+   * @param width the source width
+   * @param height the source height
+   * @param channels the number of channels (bytes per pixel)
+   * @return the target raster, of size {@link BoxFilter#scaledSize}(width) x {@link BoxFilter#scaledSize}(height)
+   */
+  public byte[] downsample(byte[] src, int width, int height, int channels) {
+    int w = BoxFilter.scaledSize(width);
+    int h = BoxFilter.scaledSize(height);
+    byte[] dst = new byte[w * h * channels];
+    downsample(src, width, height, channels, dst, w, h, 0, 0, null);
+    return dst;
+  }
+
+}
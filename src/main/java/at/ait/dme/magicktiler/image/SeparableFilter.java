@@ -0,0 +1,141 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.image;
+
+/**
+ * A separable resampling filter, specialised for scaling down by exactly 50%.
+ * At 2:1, target pixel <em>x</em> is centered between source pixels 2x and 2x+1,
+ * so the taps sit at fixed distances of 0.5, 1.5, 2.5, ... source pixels on either
+ * side, and the weights are the same for every target pixel. They are computed
+ * once, as 12-bit fixed-point integers. The raster is filtered horizontally into
+ * an intermediate buffer (keeping 6 fractional bits) and then vertically.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+abstract class SeparableFilter {
+
+  /**
+   * Fixed-point precision of the weights
+   */
+  private static final int WEIGHT_BITS = 12;
+
+  /**
+   * Fractional bits kept after the horizontal pass
+   */
+  private static final int INTERMEDIATE_BITS = 6;
+
+  /**
+   * Taps on either side of the target pixel center
+   */
+  private int taps;
+
+  /**
+   * The weights, from the outermost left tap to the outermost right tap
+   */
+  private int[] weights;
+
+  /**
+   * @param support the filter support (radius) at source scale
+   */
+  SeparableFilter(int support) {
+    // Scaling down by 2 doubles the support
+    taps = support * 2;
+    double[] w = new double[taps * 2];
+    double sum = 0;
+    for (int i = 0; i < taps; i++) {
+      double x = (i + 0.5) / 2;
+      w[taps + i] = w[taps - i - 1] = kernel(x);
+      sum += 2 * w[taps + i];
+    }
+
+    // Round to fixed point, distributing the rounding error to the center taps
+    weights = new int[taps * 2];
+    int total = 0;
+    for (int i = 0; i < weights.length; i++) {
+      weights[i] = (int) Math.round(w[i] / sum * (1 << WEIGHT_BITS));
+      total += weights[i];
+    }
+    int error = (1 << WEIGHT_BITS) - total;
+    weights[taps - 1] += error / 2;
+    weights[taps] += error - error / 2;
+  }
+
+  int getMargin() {
+    return taps - 1;
+  }
+
+  /**
+   * The filter kernel, for 0 &lt;= x &lt; support
+   */
+  abstract double kernel(double x);
+
+  void downsample(byte[] src, int width, int height, int channels, byte[] dst, int dstWidth, int dstX, int dstY) {
+    int tw = BoxFilter.scaledSize(width);
+    int th = BoxFilter.scaledSize(height);
+    int n = weights.length;
+
+    // Source column (in bytes) of every tap, clamped to the raster
+    int[] columns = new int[tw * n];
+    for (int x = 0; x < tw; x++) {
+      for (int k = 0; k < n; k++)
+        columns[x * n + k] = Math.min(Math.max(x * 2 + 1 - taps + k, 0), width - 1) * channels;
+    }
+
+    // Horizontal pass
+    int[] rows = new int[tw * channels * height];
+    int stride = width * channels;
+    int shift = WEIGHT_BITS - INTERMEDIATE_BITS;
+    for (int y = 0; y < height; y++) {
+      int in = y * stride;
+      int out = y * tw * channels;
+      for (int x = 0; x < tw; x++) {
+        for (int c = 0; c < channels; c++) {
+          int sum = 0;
+          for (int k = 0; k < n; k++)
+            sum += (src[in + columns[x * n + k] + c] & 0xff) * weights[k];
+          rows[out++] = (sum + (1 << (shift - 1))) >> shift;
+        }
+      }
+    }
+
+    // Vertical pass
+    int rowLength = tw * channels;
+    int bits = WEIGHT_BITS + INTERMEDIATE_BITS;
+    int[] sourceRows = new int[n];
+    for (int y = 0; y < th; y++) {
+      for (int k = 0; k < n; k++)
+        sourceRows[k] = Math.min(Math.max(y * 2 + 1 - taps + k, 0), height - 1) * rowLength;
+
+      int out = ((dstY + y) * dstWidth + dstX) * channels;
+      for (int i = 0; i < rowLength; i++) {
+        int sum = 0;
+        for (int k = 0; k < n; k++)
+          sum += rows[sourceRows[k] + i] * weights[k];
+        int value = (sum + (1 << (bits - 1))) >> bits;
+        dst[out + i] = (byte) ((value < 0) ? 0 : (value > 255) ? 255 : value);
+      }
+    }
+  }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package at.ait.dme.magicktiler.image;
+
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * Writes an uncompressed, single-strip, 8-bit RGB(A) TIFF file row by row.
+ * Since the image dimensions are known up front, the header is written first
+ * and the pixel data can be appended in order without buffering the image.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class TIFFStripeWriter {
+
+  /**
+   * Offset of the pixel data (= header + IFD + BitsPerSample values)
+   */
+  private static final int DATA_OFFSET = 8 + 2 + 11 * 12 + 4 + 8;
+
+  /**
+   * The output stream
+   */
+  private OutputStream out;
+
+  /**
+   * Image width in pixel
+   */
+  private int width;
+
+  /**
+   * Number of samples per pixel (3 or 4)
+   */
+  private int samples;
+
+  /**
+   * Row buffer
+   */
+  private byte[] row;
+
+  /**
+   * Number of rows still to be written
+   */
+  private int remainingRows;
+
+  public TIFFStripeWriter(File file, int width, int height, boolean alpha) throws IOException {
+    this.width = width;
+    this.samples = alpha ? 4 : 3;
+    this.row = new byte[width * samples];
+    this.remainingRows = height;
+
+    long dataSize = (long) width * height * samples;
+    if (dataSize > 0xffffffffL - DATA_OFFSET)
+      throw new IOException("Stripe too large for TIFF: " + width + "x" + height);
+
+    out = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+    ByteBuffer header = ByteBuffer.allocate(DATA_OFFSET).order(ByteOrder.LITTLE_ENDIAN);
+    header.put(new byte[] { 'I', 'I', 42, 0 }).putInt(8);
+    int entries = alpha ? 11 : 10;
+    header.putShort((short) entries);
+    putEntry(header, 256, 4, 1, width);
+    putEntry(header, 257, 4, 1, height);
+    putEntry(header, 258, 3, samples, DATA_OFFSET - 8);
+    putEntry(header, 259, 3, 1, 1);
+    putEntry(header, 262, 3, 1, 2);
+    putEntry(header, 273, 4, 1, DATA_OFFSET);
+    putEntry(header, 277, 3, 1, samples);
+    putEntry(header, 278, 4, 1, height);
+    putEntry(header, 279, 4, 1, (int) dataSize);
+    putEntry(header, 284, 3, 1, 1);
+    if (alpha)
+      putEntry(header, 338, 3, 1, 2);
+    header.putInt(0);
+    header.position(DATA_OFFSET - 8);
+    for (int i = 0; i < 4; i++)
+      header.putShort((short) 8);
+    out.write(header.array());
+  }
+
+  private void putEntry(ByteBuffer buffer, int tag, int type, int count, int value) {
+    buffer.putShort((short) tag);
+    buffer.putShort((short) type);
+    buffer.putInt(count);
+    if (type == 3 && count == 1) {
+      buffer.putShort((short) value);
+      buffer.putShort((short) 0);
+    } else {
+      buffer.putInt(value);
+    }
+  }
+
+  /**
+   * Writes the next row. Pixels left and right of the given
+   * span are filled with the background color.
+   * 
+   * @param argb the source pixels (ARGB)
+   * @param offset the index of the first source pixel
+   * @param x the column at which the source pixels start
+   * @param length the number of source pixels
+   * @param background the background color (ARGB)
+   * @throws IOException if anything goes wrong
+   */
+  public void writeRow(int[] argb, int offset, int x, int length, int background) throws IOException {
+    if (remainingRows-- <= 0)
+      throw new IOException("Too many rows");
+
+    int i = 0;
+    for (int col = 0; col < width; col++) {
+      int p = (col >= x && col < x + length) ? argb[offset + col - x] : background;
+      row[i++] = (byte) (p >> 16);
+      row[i++] = (byte) (p >> 8);
+      row[i++] = (byte) p;
+      if (samples == 4)
+        row[i++] = (byte) (p >>> 24);
+    }
+    out.write(row);
+  }
+
+  /**
+   * Writes a row filled with the background color.
+   * 
+   * @param background the background color (ARGB)
+   * @throws IOException if anything goes wrong
+   */
+  public void writeBackgroundRow(int background) throws IOException {
+    writeRow(null, 0, 0, 0, background);
+  }
+
+  public void close() throws IOException {
+    out.close();
+    if (remainingRows > 0)
+      throw new IOException(remainingRows + " rows missing");
+  }
+}
@@ -0,0 +1,188 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package at.ait.dme.magicktiler.image;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes tiles that were rendered in-process (rather than by the image
+ * processing system) to tile files, using ImageIO. With a {@link TileWriter},
+ * the tile files are written behind, by the writer's I/O threads.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class TileEncoder {
+
+  /**
+   * The tile format
+   */
+  private ImageFormat format;
+
+  /**
+   * JPEG compression quality (0 - 100)
+   */
+  private int jpegQuality;
+
+  /**
+   * The tile writer (or null to write tiles synchronously)
+   */
+  private TileWriter writer;
+
+  public TileEncoder(ImageFormat format, int jpegQuality) {
+    this(format, jpegQuality, null);
+  }
+
+  public TileEncoder(ImageFormat format, int jpegQuality, TileWriter writer) {
+    this.format = format;
+    this.jpegQuality = jpegQuality;
+    this.writer = writer;
+  }
+
+  public TileWriter getWriter() {
+    return writer;
+  }
+
+  public ImageFormat getFormat() {
+    return format;
+  }
+
+  /**
+   * Returns whether tiles are encoded with an alpha channel. This is
+   * the case for all formats except JPEG.
+   * 
+   * @return true if the tile format has an alpha channel
+   */
+  public boolean hasAlpha() {
+    return format != ImageFormat.JPEG;
+  }
+
+  /**
+   * Returns the BufferedImage type to render tiles into: RGB for JPEG
+   * (which has no alpha channel), ARGB otherwise.
+   * 
+   * @return the image type
+   */
+  public int getImageType() {
+    return hasAlpha() ? BufferedImage.TYPE_INT_ARGB : BufferedImage.TYPE_INT_RGB;
+  }
+
+  /**
+   * Encodes a tile and writes it (or queues it, with a tile writer).
+   * 
+   * @param tile the tile image
+   * @param target the tile file (its directory is created if necessary)
+   * @throws IOException if anything goes wrong
+   */
+  public void encode(BufferedImage tile, File target) throws IOException {
+    if (writer != null) {
+      writer.write(encode(tile), target);
+      return;
+    }
+
+    createParentDir(target);
+    if (format == ImageFormat.JPEG) {
+      ImageOutputStream out = ImageIO.createImageOutputStream(target);
+      try {
+        writeJPEG(tile, out);
+      } finally {
+        out.close();
+      }
+    } else if (!ImageIO.write(tile, format.getExtension(), target)) {
+      throw new IOException("No ImageIO writer for " + format.getExtension());
+    }
+  }
+
+  /**
+   * Encodes a tile into memory.
+   * 
+   * @param tile the tile image
+   * @return the encoded tile
+   * @throws IOException if anything goes wrong
+   */
+  public byte[] encode(BufferedImage tile) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    if (format == ImageFormat.JPEG) {
+      ImageOutputStream out = ImageIO.createImageOutputStream(bytes);
+      try {
+        writeJPEG(tile, out);
+      } finally {
+        out.close();
+      }
+    } else if (!ImageIO.write(tile, format.getExtension(), bytes)) {
+      throw new IOException("No ImageIO writer for " + format.getExtension());
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Writes an already encoded tile (or queues it, with a tile writer).
+   * 
+   * @param data the encoded tile
+   * @param target the tile file (its directory is created if necessary)
+   * @throws IOException if anything goes wrong
+   */
+  public void write(byte[] data, File target) throws IOException {
+    if (writer != null) {
+      writer.write(data, target);
+      return;
+    }
+
+    createParentDir(target);
+    FileOutputStream out = new FileOutputStream(target);
+    try {
+      out.write(data);
+    } finally {
+      out.close();
+    }
+  }
+
+  private static void createParentDir(File target) throws IOException {
+    File dir = target.getAbsoluteFile().getParentFile();
+    if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory())
+      throw new IOException("Problem creating directory:" + dir);
+  }
+
+  private void writeJPEG(BufferedImage tile, ImageOutputStream out) throws IOException {
+    ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+    try {
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setCompressionQuality(jpegQuality / 100f);
+      writer.setOutput(out);
+      writer.write(null, new IIOImage(tile, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+  }
+
+}
@@ -0,0 +1,357 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Writes encoded tiles behind the tiling threads: tiles are put into a bounded
+ * queue and written by dedicated I/O threads, which create each tile directory
+ * once, write the tiles of a batch grouped by directory and sync them according
+ * to a {@link Durability} policy. The tiling threads only block if the queue is full.
+ * <br><br>
+ * Tiles that are still queued can be read back with {@link #getPending(File)}.
+ * I/O errors are reported by the next {@link #write(byte[], File)}, and by
+ * {@link #close()}, which waits until all tiles are written.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class TileWriter {
+
+  /**
+   * When written tiles are synced to disk
+   */
+  public enum Durability {
+    /**
+     * Never - left to the operating system
+     */
+    NONE,
+
+    /**
+     * After each batch, per directory: the tiles, then the directory
+     */
+    DIRECTORY,
+
+    /**
+     * Once, when the writer is closed: all tiles and directories written to
+     */
+    END_OF_RUN
+  }
+
+  /**
+   * Maximum number of queued tiles
+   */
+  public static final int QUEUE_CAPACITY = 256;
+
+  /**
+   * Maximum number of tiles an I/O thread takes from the queue at once
+   */
+  private static final int BATCH_SIZE = 64;
+
+  /**
+   * Log4j logger
+   */
+  private static Logger log = Logger.getLogger(TileWriter.class);
+
+  /**
+   * Queue entry that tells an I/O thread to stop
+   */
+  private static final Entry END = new Entry(null, null);
+
+  /**
+   * A queued tile
+   */
+  private static class Entry {
+
+    final File target;
+
+    final byte[] data;
+
+    Entry(File target, byte[] data) {
+      this.target = target;
+      this.data = data;
+    }
+  }
+
+  /**
+   * The durability policy
+   */
+  private Durability durability;
+
+  /**
+   * The queued tiles
+   */
+  private BlockingQueue<Entry> queue = new ArrayBlockingQueue<Entry>(QUEUE_CAPACITY);
+
+  /**
+   * The tiles that have not been written completely yet
+   */
+  private ConcurrentMap<File, byte[]> pending = new ConcurrentHashMap<File, byte[]>();
+
+  /**
+   * The directories that have been created (or found)
+   */
+  private Set<File> directories = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+  /**
+   * The I/O threads
+   */
+  private List<Thread> workers = new ArrayList<Thread>();
+
+  /**
+   * Number of queued tiles that have not been written yet
+   */
+  private int queued = 0;
+
+  /**
+   * The first I/O error
+   */
+  private volatile IOException error;
+
+  /**
+   * @param threads the number of I/O threads
+   * @param durability the durability policy
+   */
+  public TileWriter(int threads, Durability durability) {
+    if (threads < 1)
+      throw new IllegalArgumentException("At least one I/O thread required: " + threads);
+    this.durability = durability;
+    for (int i = 0; i < threads; i++) {
+      Thread worker = new Thread("tile-writer-" + i) {
+        @Override
+        public void run() {
+          work();
+        }
+      };
+      worker.setDaemon(true);
+      worker.start();
+      workers.add(worker);
+    }
+  }
+
+  public Durability getDurability() {
+    return durability;
+  }
+
+  /**
+   * Queues a tile for writing. Blocks while the queue is full.
+   * 
+   * @param data the encoded tile
+   * @param target the tile file (its directory is created if necessary)
+   * @throws IOException if an earlier tile could not be written
+   */
+  public void write(byte[] data, File target) throws IOException {
+    checkError();
+    pending.put(target, data);
+    synchronized (this) {
+      queued++;
+    }
+    try {
+      queue.put(new Entry(target, data));
+    } catch (InterruptedException e) {
+      pending.remove(target, data);
+      done(1);
+      throw new InterruptedIOException("Interrupted while queueing tile " + target);
+    }
+  }
+
+  /**
+   * Waits until all tiles queued so far are written.
+   * 
+   * @throws IOException if a tile could not be written
+   */
+  public void flush() throws IOException {
+    synchronized (this) {
+      try {
+        while (queued > 0)
+          wait();
+      } catch (InterruptedException e) {
+        throw new InterruptedIOException("Interrupted while writing tiles");
+      }
+    }
+    checkError();
+  }
+
+  private synchronized void done(int tiles) {
+    queued -= tiles;
+    notifyAll();
+  }
+
+  /**
+   * Returns a tile that has been queued but not completely written yet.
+   * 
+   * @param target the tile file
+   * @return the encoded tile, or null if the tile is not pending (i.e. it is on disk, if it was written at all)
+   */
+  public byte[] getPending(File target) {
+    return pending.get(target);
+  }
+
+  /**
+   * Waits until all queued tiles are written, stops the I/O threads and, with
+   * {@link Durability#END_OF_RUN}, syncs all tiles and directories written to.
+   * 
+   * @throws IOException if a tile could not be written or synced
+   */
+  public void close() throws IOException {
+    try {
+      queue.put(END);
+      for (Thread worker : workers)
+        worker.join();
+    } catch (InterruptedException e) {
+      throw new InterruptedIOException("Interrupted while writing tiles");
+    }
+    checkError();
+
+    if (durability == Durability.END_OF_RUN) {
+      long startTime = System.currentTimeMillis();
+      for (File dir : directories) {
+        File[] files = dir.listFiles();
+        if (files == null)
+          continue;
+        for (File file : files) {
+          if (file.isFile())
+            sync(file, false);
+        }
+        sync(dir, true);
+      }
+      log.debug("Synced " + directories.size() + " tile directories in " + (System.currentTimeMillis() - startTime)
+          + " ms");
+    }
+  }
+
+  private void checkError() throws IOException {
+    if (error != null)
+      throw new IOException("Failed to write tiles: " + error.getMessage());
+  }
+
+  /**
+   * Writes batches of tiles until the end marker is reached. After an error, the
+   * remaining tiles are discarded, so that no tiling thread blocks on a full queue.
+   */
+  private void work() {
+    List<Entry> batch = new ArrayList<Entry>(BATCH_SIZE);
+    boolean end = false;
+    while (!end) {
+      try {
+        batch.add(queue.take());
+      } catch (InterruptedException e) {
+        return;
+      }
+      queue.drainTo(batch, BATCH_SIZE - 1);
+      end = batch.remove(END);
+      if (end)
+        queue.add(END); // for the other I/O threads
+
+      try {
+        if (error == null)
+          writeBatch(batch);
+      } catch (IOException e) {
+        log.error("Failed to write tiles: " + e.getMessage());
+        if (error == null)
+          error = e;
+      } finally {
+        for (Entry entry : batch)
+          pending.remove(entry.target, entry.data);
+        done(batch.size());
+        batch.clear();
+      }
+    }
+  }
+
+  private void writeBatch(List<Entry> batch) throws IOException {
+    Collections.sort(batch, new Comparator<Entry>() {
+      public int compare(Entry e1, Entry e2) {
+        int dir = e1.target.getAbsoluteFile().getParent().compareTo(e2.target.getAbsoluteFile().getParent());
+        return (dir != 0) ? dir : e1.target.getName().compareTo(e2.target.getName());
+      }
+    });
+
+    boolean syncEach = durability == Durability.DIRECTORY;
+    File dir = null;
+    for (Entry entry : batch) {
+      File parent = entry.target.getAbsoluteFile().getParentFile();
+      if (!parent.equals(dir)) {
+        if (dir != null && syncEach)
+          sync(dir, true);
+        dir = parent;
+        // Another I/O thread may have registered the directory, but not created it yet
+        if (directories.add(dir) || !dir.isDirectory()) {
+          if (!dir.mkdirs() && !dir.isDirectory())
+            throw new IOException("Problem creating directory:" + dir);
+        }
+      }
+
+      FileChannel channel = FileChannel.open(entry.target.toPath(), StandardOpenOption.CREATE,
+          StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      try {
+        ByteBuffer buffer = ByteBuffer.wrap(entry.data);
+        while (buffer.hasRemaining())
+          channel.write(buffer);
+        if (syncEach)
+          channel.force(true);
+      } finally {
+        channel.close();
+      }
+    }
+    if (dir != null && syncEach)
+      sync(dir, true);
+  }
+
+  /**
+   * Syncs a file or directory to disk. Directories cannot be opened on all platforms;
+   * failures to sync them are ignored.
+   */
+  private static void sync(File file, boolean directory) throws IOException {
+    try {
+      FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+    } catch (IOException e) {
+      if (!directory)
+        throw e;
+      log.debug("Cannot sync directory " + file + ": " + e.getMessage());
+    }
+  }
+
+}
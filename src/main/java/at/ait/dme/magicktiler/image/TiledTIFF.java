@@ -0,0 +1,463 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package at.ait.dme.magicktiler.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Random access to the tiles of a tiled TIFF or BigTIFF file. The image file
+ * directories (IFDs) are parsed once, when the file is opened; after that, the
+ * stored (compressed) bytes of any tile can be read without touching the rest
+ * of the file. Files up to 2 GB are memory-mapped.
+ * <br><br>
+ * JPEG-compressed tiles can be retrieved as standalone JPEG files: if the TIFF
+ * stores its JPEG tables separately (tag <em>JPEGTables</em>), they are merged
+ * into the tile, and an Adobe marker is added to tiles that are stored as RGB
+ * (rather than YCbCr), so that any JPEG decoder interprets the colors correctly.
+ * <br><br>
+ * Instances are thread-safe.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class TiledTIFF {
+
+  /**
+   * TIFF tag numbers used by this reader
+   */
+  private static final int TAG_IMAGE_WIDTH = 256;
+  private static final int TAG_IMAGE_LENGTH = 257;
+  private static final int TAG_COMPRESSION = 259;
+  private static final int TAG_PHOTOMETRIC = 262;
+  private static final int TAG_SAMPLES_PER_PIXEL = 277;
+  private static final int TAG_PLANAR_CONFIGURATION = 284;
+  private static final int TAG_TILE_WIDTH = 322;
+  private static final int TAG_TILE_LENGTH = 323;
+  private static final int TAG_TILE_OFFSETS = 324;
+  private static final int TAG_TILE_BYTE_COUNTS = 325;
+  private static final int TAG_JPEG_TABLES = 347;
+
+  /**
+   * TIFF field types used by this reader
+   */
+  private static final int TYPE_BYTE = 1;
+  private static final int TYPE_SHORT = 3;
+  private static final int TYPE_LONG = 4;
+  private static final int TYPE_UNDEFINED = 7;
+  private static final int TYPE_LONG8 = 16;
+
+  /**
+   * TIFF compression and photometric interpretation constants
+   */
+  public static final int COMPRESSION_NONE = 1;
+  public static final int COMPRESSION_JPEG = 7;
+  public static final int PHOTOMETRIC_RGB = 2;
+
+  /**
+   * Maximum number of image file directories (a pyramid TIFF has one per zoom level)
+   */
+  private static final int MAX_DIRECTORIES = 1024;
+
+  /**
+   * Adobe APP14 marker segment declaring the JPEG components as untransformed RGB
+   */
+  private static final byte[] ADOBE_RGB_MARKER = new byte[] { (byte) 0xff, (byte) 0xee, 0x00, 0x0e, 'A', 'd', 'o',
+      'b', 'e', 0x00, 0x64, 0x00, 0x00, 0x00, 0x00, 0x00 };
+
+  /**
+   * The TIFF file
+   */
+  private File file;
+
+  /**
+   * The file channel
+   */
+  private FileChannel channel;
+
+  /**
+   * The memory-mapped file content (null if the file is too large to be mapped at once)
+   */
+  private MappedByteBuffer mapped;
+
+  /**
+   * Byte order of the TIFF file
+   */
+  private ByteOrder byteOrder;
+
+  /**
+   * Flag indicating whether this is a BigTIFF file (64-bit offsets)
+   */
+  private boolean bigTIFF;
+
+  /**
+   * The image file directories, in file order
+   */
+  private List<Directory> directories = new ArrayList<Directory>();
+
+  public TiledTIFF(File file) throws IOException {
+    this.file = file;
+    this.channel = new RandomAccessFile(file, "r").getChannel();
+    try {
+      if (channel.size() <= Integer.MAX_VALUE)
+        mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+      parseHeader();
+    } catch (IOException e) {
+      channel.close();
+      throw e;
+    } catch (RuntimeException e) {
+      channel.close();
+      throw new IOException("Not a valid TIFF: " + file + " (" + e.getMessage() + ")");
+    }
+  }
+
+  /**
+   * Checks (by the file name) whether a file may be a TIFF.
+   * 
+   * @param image the image file
+   * @return true if the file has a TIFF file extension
+   */
+  public static boolean isTIFF(File image) {
+    String name = image.getName().toLowerCase();
+    return name.endsWith(".tif") || name.endsWith(".tiff") || name.endsWith(".ptif");
+  }
+
+  public File getFile() {
+    return file;
+  }
+
+  public boolean isBigTIFF() {
+    return bigTIFF;
+  }
+
+  /**
+   * Returns the image file directories, in file order.
+   * 
+   * @return the directories
+   */
+  public List<Directory> getDirectories() {
+    return Collections.unmodifiableList(directories);
+  }
+
+  /**
+   * Returns the stored bytes of a tile.
+   * 
+   * @param dir the directory
+   * @param col the tile column (counted from the left)
+   * @param row the tile row (counted from the top)
+   * @return the tile data
+   * @throws IOException if the tile could not be read
+   */
+  public byte[] getTileData(Directory dir, int col, int row) throws IOException {
+    int idx = row * dir.columns + col;
+    if (dir.byteCounts[idx] > Integer.MAX_VALUE)
+      throw new IOException("Tile too large: " + col + "-" + row);
+    return read(dir.offsets[idx], (int) dir.byteCounts[idx]);
+  }
+
+  /**
+   * Returns a JPEG-compressed tile as standalone JPEG file content.
+   * 
+   * @param dir the directory
+   * @param col the tile column (counted from the left)
+   * @param row the tile row (counted from the top)
+   * @return the JPEG tile
+   * @throws IOException if the tile could not be read
+   */
+  public byte[] getJPEGTile(Directory dir, int col, int row) throws IOException {
+    if (dir.compression != COMPRESSION_JPEG)
+      throw new IOException("Not a JPEG-compressed image: " + file);
+
+    byte[] data = getTileData(dir, col, row);
+    if (dir.jpegTables == null && dir.photometric != PHOTOMETRIC_RGB)
+      return data;
+
+    // Assemble SOI + [Adobe marker] + [tables] + tile data (minus SOI)
+    int tablesLength = (dir.jpegTables == null) ? 0 : dir.jpegTables.length - 4;
+    int markerLength = (dir.photometric == PHOTOMETRIC_RGB) ? ADOBE_RGB_MARKER.length : 0;
+    byte[] jpeg = new byte[data.length + tablesLength + markerLength];
+    jpeg[0] = (byte) 0xff;
+    jpeg[1] = (byte) 0xd8;
+    int pos = 2;
+    if (markerLength > 0) {
+      System.arraycopy(ADOBE_RGB_MARKER, 0, jpeg, pos, markerLength);
+      pos += markerLength;
+    }
+    if (tablesLength > 0) {
+      System.arraycopy(dir.jpegTables, 2, jpeg, pos, tablesLength);
+      pos += tablesLength;
+    }
+    System.arraycopy(data, 2, jpeg, pos, data.length - 2);
+    return jpeg;
+  }
+
+  /**
+   * Closes the underlying file.
+   * 
+   * @throws IOException if something goes wrong
+   */
+  public void close() throws IOException {
+    channel.close();
+  }
+
+  private void parseHeader() throws IOException {
+    ByteBuffer header = ByteBuffer.wrap(read(0, 8));
+    if (header.get(0) == 'I' && header.get(1) == 'I')
+      byteOrder = ByteOrder.LITTLE_ENDIAN;
+    else if (header.get(0) == 'M' && header.get(1) == 'M')
+      byteOrder = ByteOrder.BIG_ENDIAN;
+    else
+      throw new IOException("Not a TIFF file: " + file);
+    header.order(byteOrder);
+
+    long ifdOffset;
+    int version = header.getShort(2);
+    if (version == 42) {
+      ifdOffset = header.getInt(4) & 0xffffffffL;
+    } else if (version == 43) {
+      bigTIFF = true;
+      if (header.getShort(4) != 8)
+        throw new IOException("Unsupported BigTIFF offset size in file: " + file);
+      ifdOffset = ByteBuffer.wrap(read(8, 8)).order(byteOrder).getLong(0);
+    } else {
+      throw new IOException("Unsupported TIFF version in file: " + file);
+    }
+
+    // Guard against corrupt IFD chains, which may point back to an earlier IFD or out of the file
+    Set<Long> visited = new HashSet<Long>();
+    long headerSize = bigTIFF ? 16 : 8;
+    while (ifdOffset != 0) {
+      if (ifdOffset < headerSize || ifdOffset >= channel.size())
+        throw new IOException("Invalid IFD offset (" + ifdOffset + ") in file: " + file);
+      if (!visited.add(ifdOffset))
+        throw new IOException("Circular IFD chain in file: " + file);
+      if (visited.size() > MAX_DIRECTORIES)
+        throw new IOException("Too many IFDs in file: " + file);
+      ifdOffset = parseIFD(ifdOffset);
+    }
+  }
+
+  private long parseIFD(long offset) throws IOException {
+    int countSize = bigTIFF ? 8 : 2;
+    int entrySize = bigTIFF ? 20 : 12;
+    int valueSize = bigTIFF ? 8 : 4;
+
+    ByteBuffer count = ByteBuffer.wrap(read(offset, countSize)).order(byteOrder);
+    long n = bigTIFF ? count.getLong(0) : count.getShort(0) & 0xffff;
+    if (n > 0xffff)
+      throw new IOException("Too many IFD entries in file: " + file);
+    int entries = (int) n;
+    ByteBuffer ifd = ByteBuffer.wrap(read(offset + countSize, entries * entrySize + valueSize)).order(byteOrder);
+
+    Directory dir = new Directory();
+    for (int i = 0; i < entries; i++) {
+      int pos = i * entrySize;
+      int tag = ifd.getShort(pos) & 0xffff;
+      int type = ifd.getShort(pos + 2) & 0xffff;
+      long c = bigTIFF ? ifd.getLong(pos + 4) : ifd.getInt(pos + 4) & 0xffffffffL;
+      if (c > Integer.MAX_VALUE)
+        throw new IOException("Invalid TIFF field count in file: " + file);
+      int values = (int) c;
+      int valuePos = pos + (bigTIFF ? 12 : 8);
+
+      switch (tag) {
+      case TAG_IMAGE_WIDTH:
+        dir.width = (int) getValues(ifd, valuePos, type, values)[0];
+        break;
+      case TAG_IMAGE_LENGTH:
+        dir.height = (int) getValues(ifd, valuePos, type, values)[0];
+        break;
+      case TAG_COMPRESSION:
+        dir.compression = (int) getValues(ifd, valuePos, type, values)[0];
+        break;
+      case TAG_PHOTOMETRIC:
+        dir.photometric = (int) getValues(ifd, valuePos, type, values)[0];
+        break;
+      case TAG_SAMPLES_PER_PIXEL:
+        dir.samplesPerPixel = (int) getValues(ifd, valuePos, type, values)[0];
+        break;
+      case TAG_PLANAR_CONFIGURATION:
+        dir.planarConfiguration = (int) getValues(ifd, valuePos, type, values)[0];
+        break;
+      case TAG_TILE_WIDTH:
+        dir.tileWidth = (int) getValues(ifd, valuePos, type, values)[0];
+        break;
+      case TAG_TILE_LENGTH:
+        dir.tileHeight = (int) getValues(ifd, valuePos, type, values)[0];
+        break;
+      case TAG_TILE_OFFSETS:
+        dir.offsets = getValues(ifd, valuePos, type, values);
+        break;
+      case TAG_TILE_BYTE_COUNTS:
+        dir.byteCounts = getValues(ifd, valuePos, type, values);
+        break;
+      case TAG_JPEG_TABLES:
+        if (type != TYPE_UNDEFINED && type != TYPE_BYTE)
+          throw new IOException("Invalid JPEGTables field in file: " + file);
+        dir.jpegTables = (values > 4) ? read(getOffset(ifd, valuePos), values) : null;
+        break;
+      }
+    }
+
+    if (dir.isTiled()) {
+      dir.columns = (dir.width + dir.tileWidth - 1) / dir.tileWidth;
+      dir.rows = (dir.height + dir.tileHeight - 1) / dir.tileHeight;
+      int tiles = dir.columns * dir.rows * ((dir.planarConfiguration == 2) ? dir.samplesPerPixel : 1);
+      if (dir.offsets.length < tiles || dir.byteCounts.length < tiles)
+        throw new IOException("Incomplete tile table in file: " + file);
+    }
+    directories.add(dir);
+
+    return bigTIFF ? ifd.getLong(entries * entrySize) : ifd.getInt(entries * entrySize) & 0xffffffffL;
+  }
+
+  private long getOffset(ByteBuffer ifd, int valuePos) {
+    return bigTIFF ? ifd.getLong(valuePos) : ifd.getInt(valuePos) & 0xffffffffL;
+  }
+
+  private long[] getValues(ByteBuffer ifd, int valuePos, int type, int n) throws IOException {
+    int size;
+    if (type == TYPE_SHORT)
+      size = 2;
+    else if (type == TYPE_LONG)
+      size = 4;
+    else if (type == TYPE_LONG8)
+      size = 8;
+    else
+      throw new IOException("Unexpected TIFF field type (" + type + ") in file: " + file);
+
+    ByteBuffer values;
+    if ((long) n * size <= (bigTIFF ? 8 : 4)) {
+      values = ifd.duplicate().order(byteOrder);
+      values.position(valuePos);
+      values = values.slice().order(byteOrder);
+    } else {
+      values = ByteBuffer.wrap(read(getOffset(ifd, valuePos), n * size)).order(byteOrder);
+    }
+
+    long[] result = new long[n];
+    for (int i = 0; i < n; i++) {
+      if (size == 2)
+        result[i] = values.getShort(i * 2) & 0xffff;
+      else if (size == 4)
+        result[i] = values.getInt(i * 4) & 0xffffffffL;
+      else
+        result[i] = values.getLong(i * 8);
+    }
+    return result;
+  }
+
+  private byte[] read(long offset, int length) throws IOException {
+    byte[] bytes = new byte[length];
+    if (mapped != null) {
+      if (offset + length > mapped.capacity())
+        throw new IOException("Unexpected end of file: " + file);
+
+      ByteBuffer buffer = mapped.duplicate();
+      buffer.position((int) offset);
+      buffer.get(bytes);
+    } else {
+      ByteBuffer buffer = ByteBuffer.wrap(bytes);
+      while (buffer.hasRemaining()) {
+        if (channel.read(buffer, offset + buffer.position()) < 0)
+          throw new IOException("Unexpected end of file: " + file);
+      }
+    }
+    return bytes;
+  }
+
+  /**
+   * A single image file directory.
+   */
+  public static class Directory {
+
+    private int width, height, tileWidth, tileHeight, columns, rows;
+
+    private int compression = COMPRESSION_NONE;
+
+    private int photometric;
+
+    private int samplesPerPixel = 1;
+
+    private int planarConfiguration = 1;
+
+    private long[] offsets, byteCounts;
+
+    private byte[] jpegTables;
+
+    public boolean isTiled() {
+      return offsets != null && byteCounts != null && tileWidth > 0 && tileHeight > 0;
+    }
+
+    public int getWidth() {
+      return width;
+    }
+
+    public int getHeight() {
+      return height;
+    }
+
+    public int getTileWidth() {
+      return tileWidth;
+    }
+
+    public int getTileHeight() {
+      return tileHeight;
+    }
+
+    public int getColumns() {
+      return columns;
+    }
+
+    public int getRows() {
+      return rows;
+    }
+
+    public int getCompression() {
+      return compression;
+    }
+
+    public int getPhotometric() {
+      return photometric;
+    }
+
+    public int getSamplesPerPixel() {
+      return samplesPerPixel;
+    }
+
+    public int getPlanarConfiguration() {
+      return planarConfiguration;
+    }
+
+  }
+
+}
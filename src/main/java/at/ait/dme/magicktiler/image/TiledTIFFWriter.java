@@ -0,0 +1,264 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.image;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Writes a tiled, JPEG-compressed, multi-resolution TIFF file (i.e. a Pyramid TIFF
+ * as expected by IIPImage) from tiles that were encoded in-process. Every tile is
+ * stored as a complete YCbCr JPEG stream with 2x2 chroma subsampling - the default
+ * output of the ImageIO JPEG writer for RGB images.
+ * <br><br>
+ * Tiles can be written in any order and from several threads. They are appended to
+ * the file as they arrive; the image file directories (IFDs) are written when the
+ * writer is closed. If the file exceeds 4 GB by then, it is written as a BigTIFF.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class TiledTIFFWriter {
+
+  /**
+   * Space reserved for the file header (large enough for BigTIFF)
+   */
+  private static final int HEADER_SIZE = 16;
+
+  private static final int TYPE_SHORT = 3;
+  private static final int TYPE_LONG = 4;
+  private static final int TYPE_LONG8 = 16;
+
+  /**
+   * The output file
+   */
+  private RandomAccessFile out;
+
+  /**
+   * Tile width in pixel
+   */
+  private int tileWidth;
+
+  /**
+   * Tile height in pixel
+   */
+  private int tileHeight;
+
+  /**
+   * The current end of the file
+   */
+  private long position = HEADER_SIZE;
+
+  /**
+   * The levels added so far (starting with highest-resolution level)
+   */
+  private List<Level> levels = new ArrayList<Level>();
+
+  public TiledTIFFWriter(File file, int tileWidth, int tileHeight) throws IOException {
+    if (tileWidth % 16 != 0 || tileHeight % 16 != 0)
+      throw new IllegalArgumentException("TIFF tile sizes must be multiples of 16");
+    this.tileWidth = tileWidth;
+    this.tileHeight = tileHeight;
+    this.out = new RandomAccessFile(file, "rw");
+    out.setLength(0);
+  }
+
+  /**
+   * Adds a resolution level. The first level is the full-resolution image,
+   * every further level is stored as a reduced-resolution image.
+   *
+   * @param width the level width
+   * @param height the level height
+   * @return the index of the level
+   */
+  public synchronized int addLevel(int width, int height) {
+    levels.add(new Level(width, height));
+    return levels.size() - 1;
+  }
+
+  /**
+   * Stores a tile. Tiles always have the full tile size - border tiles are padded.
+   *
+   * @param level the level index
+   * @param col the tile column (counted from the left)
+   * @param row the tile row (counted from the top)
+   * @param jpeg the JPEG-encoded tile
+   * @throws IOException if anything goes wrong
+   */
+  public synchronized void writeTile(int level, int col, int row, byte[] jpeg) throws IOException {
+    Level l = levels.get(level);
+    if (col < 0 || col >= l.columns || row < 0 || row >= l.rows)
+      throw new IllegalArgumentException("No tile " + col + "/" + row + " in level " + level);
+
+    int index = row * l.columns + col;
+    l.offsets[index] = position;
+    l.byteCounts[index] = jpeg.length;
+    out.seek(position);
+    out.write(jpeg);
+    position += jpeg.length + (jpeg.length & 1);
+  }
+
+  /**
+   * Writes the image file directories and the header, and closes the file.
+   *
+   * @throws IOException if anything goes wrong
+   */
+  public synchronized void close() throws IOException {
+    try {
+      // IFDs plus out-of-line values need at most 512 bytes + 16 bytes per tile
+      long directories = 0;
+      for (Level l : levels)
+        directories += 512 + 16L * l.offsets.length;
+      boolean bigTIFF = position + directories > 0xffffffffL;
+
+      ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      header.put((byte) 'I').put((byte) 'I');
+      if (bigTIFF)
+        header.putShort((short) 43).putShort((short) 8).putShort((short) 0).putLong(position);
+      else
+        header.putShort((short) 42).putInt((int) position);
+      out.seek(0);
+      out.write(header.array());
+
+      for (int i = 0; i < levels.size(); i++) {
+        ByteBuffer ifd = createDirectory(levels.get(i), i > 0, i == levels.size() - 1, bigTIFF);
+        out.seek(position);
+        out.write(ifd.array(), 0, ifd.limit());
+        position += ifd.limit();
+      }
+    } finally {
+      out.close();
+    }
+  }
+
+  private ByteBuffer createDirectory(Level level, boolean reduced, boolean last, boolean bigTIFF) {
+    int entries = 13;
+    int entrySize = bigTIFF ? 20 : 12;
+    int directorySize = bigTIFF ? 8 + entries * entrySize + 8 : 2 + entries * entrySize + 4;
+    int tiles = level.offsets.length;
+
+    ByteBuffer ifd = ByteBuffer.allocate(directorySize + 16 + tiles * 16).order(ByteOrder.LITTLE_ENDIAN);
+    ByteBuffer values = ifd.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+    values.position(directorySize);
+
+    if (bigTIFF)
+      ifd.putLong(entries);
+    else
+      ifd.putShort((short) entries);
+
+    long[] byteCounts = new long[tiles];
+    for (int i = 0; i < tiles; i++)
+      byteCounts[i] = level.byteCounts[i];
+
+    // Entries must be sorted by tag
+    putEntry(ifd, values, bigTIFF, 254, TYPE_LONG, reduced ? 1 : 0);
+    putEntry(ifd, values, bigTIFF, 256, TYPE_LONG, level.width);
+    putEntry(ifd, values, bigTIFF, 257, TYPE_LONG, level.height);
+    putEntry(ifd, values, bigTIFF, 258, TYPE_SHORT, 8, 8, 8);
+    putEntry(ifd, values, bigTIFF, 259, TYPE_SHORT, TiledTIFF.COMPRESSION_JPEG);
+    putEntry(ifd, values, bigTIFF, 262, TYPE_SHORT, 6);
+    putEntry(ifd, values, bigTIFF, 277, TYPE_SHORT, 3);
+    putEntry(ifd, values, bigTIFF, 284, TYPE_SHORT, 1);
+    putEntry(ifd, values, bigTIFF, 322, TYPE_LONG, tileWidth);
+    putEntry(ifd, values, bigTIFF, 323, TYPE_LONG, tileHeight);
+    putEntry(ifd, values, bigTIFF, 324, bigTIFF ? TYPE_LONG8 : TYPE_LONG, level.offsets);
+    putEntry(ifd, values, bigTIFF, 325, bigTIFF ? TYPE_LONG8 : TYPE_LONG, byteCounts);
+    putEntry(ifd, values, bigTIFF, 530, TYPE_SHORT, 2, 2);
+
+    // The next IFD follows directly after this one
+    long next = last ? 0 : position + values.position();
+    if (bigTIFF)
+      ifd.putLong(next);
+    else
+      ifd.putInt((int) next);
+
+    ifd.position(0);
+    ifd.limit(values.position());
+    return ifd;
+  }
+
+  /**
+   * Writes an IFD entry. Values that do not fit into the entry are appended to
+   * the values buffer (which starts right behind the IFD).
+   */
+  private void putEntry(ByteBuffer ifd, ByteBuffer values, boolean bigTIFF, int tag, int type, long... value) {
+    int size = (type == TYPE_SHORT) ? 2 : (type == TYPE_LONG) ? 4 : 8;
+    int inline = bigTIFF ? 8 : 4;
+
+    ifd.putShort((short) tag);
+    ifd.putShort((short) type);
+    if (bigTIFF)
+      ifd.putLong(value.length);
+    else
+      ifd.putInt(value.length);
+
+    ByteBuffer target = ifd;
+    int start = ifd.position();
+    if (value.length * size > inline) {
+      long offset = position + values.position();
+      if (bigTIFF)
+        ifd.putLong(offset);
+      else
+        ifd.putInt((int) offset);
+      target = values;
+    }
+    for (long v : value) {
+      if (size == 2)
+        target.putShort((short) v);
+      else if (size == 4)
+        target.putInt((int) v);
+      else
+        target.putLong(v);
+    }
+    if (target == ifd)
+      ifd.position(start + inline);
+  }
+
+  /**
+   * A resolution level and the location of its tiles in the file.
+   */
+  private class Level {
+
+    private int width;
+    private int height;
+    private int columns;
+    private int rows;
+    private long[] offsets;
+    private int[] byteCounts;
+
+    private Level(int width, int height) {
+      this.width = width;
+      this.height = height;
+      this.columns = (width + tileWidth - 1) / tileWidth;
+      this.rows = (height + tileHeight - 1) / tileHeight;
+      this.offsets = new long[columns * rows];
+      this.byteCounts = new int[columns * rows];
+    }
+  }
+
+}
@@ -25,8 +25,13 @@ import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.apache.log4j.Logger;
 import org.im4java.core.IM4JavaException;
@@ -49,6 +54,9 @@ import at.ait.dme.magicktiler.tms.TMSTiler;
  * <br><br>
  * Note: this KML Superoverlay implementation generates a standard TMS 
  * tile/directory structure, but adds appropriate KML files for each tile.
+ * The KML files are written once all tiles exist, in parallel per tile column.
+ * Alternatively (see {@link #setKMZDepth(int)}), the KML files and tiles of each
+ * region subtree are packed into one KMZ archive.
  * <br><br>
  * Additional Note: this implementation is currently UNFINISHED! 
  * <br><br>
@@ -59,13 +67,14 @@ import at.ait.dme.magicktiler.tms.TMSTiler;
  */
 public class KMLSuperOverlayTiler extends TMSTiler {
 
-	private static final String ROOT_KML_TEMPLATE =
+	private static final KMLTemplate ROOT_KML_TEMPLATE = new KMLTemplate(
 			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
 					"<kml xmlns=\"http://earth.google.com/kml/2.1\">\n" +
 					"@network.link@" +
-					"</kml>";
+					"</kml>",
+			"network.link");
 
-	private static final String TILE_KML_TEMPLATE =
+	private static final KMLTemplate TILE_KML_HEADER_TEMPLATE = new KMLTemplate(
 			"<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" +
 					"<kml xmlns=\"http://earth.google.com/kml/2.1\">\n" +
 					"  <Document>\n" +
@@ -80,9 +89,11 @@ public class KMLSuperOverlayTiler extends TMSTiler {
 					"        <east>@east@</east>\n" +
 					"        <west>@west@</west>\n" +
 					"      </LatLonAltBox>\n" +
-					"    </Region>\n" +
-					"@network.links@" +
-					"    <GroundOverlay>\n" +
+					"    </Region>\n",
+			"north", "south", "east", "west");
+
+	private static final KMLTemplate TILE_KML_FOOTER_TEMPLATE = new KMLTemplate(
+			"    <GroundOverlay>\n" +
 					"      <drawOrder>5</drawOrder>\n" +
 					"      <Icon>\n" +
 					"        <href>@img.href@</href>\n" +
@@ -95,9 +106,10 @@ public class KMLSuperOverlayTiler extends TMSTiler {
 					"      </LatLonBox>\n" +
 					"    </GroundOverlay>\n" +
 					"  </Document>\n" +
-					"</kml>";
+					"</kml>",
+			"north", "south", "east", "west", "img.href");
 
-	private static final String NETWORK_LINK_TEMPLATE =
+	private static final KMLTemplate NETWORK_LINK_TEMPLATE = new KMLTemplate(
 			"    <NetworkLink>\n" +
 					"      <name>@name@</name>\n" +
 					"      <Region>\n" +
@@ -116,7 +128,10 @@ public class KMLSuperOverlayTiler extends TMSTiler {
 					"        <href>@href@</href>\n" +
 					"        <viewRefreshMode>onRegion</viewRefreshMode>\n" +
 					"      </Link>\n" +
-					"    </NetworkLink>\n";
+					"    </NetworkLink>\n",
+			"name", "north", "south", "east", "west", "href");
+
+	private static final Charset UTF8 = Charset.forName("UTF-8");
 
 	/**
 	 * Log4j logger
@@ -128,6 +143,26 @@ public class KMLSuperOverlayTiler extends TMSTiler {
 	 */
 	private BoundingBox bbox = null;
 
+	/**
+	 * Number of zoom levels per KMZ archive (0 = no KMZ archives)
+	 */
+	private int kmzDepth = 0;
+
+	/**
+	 * Number of tile columns per zoom level (indexed by TMS zoom level, 0 = lowest resolution)
+	 */
+	private int[] columns;
+
+	/**
+	 * Number of tile rows per zoom level (indexed by TMS zoom level, 0 = lowest resolution)
+	 */
+	private int[] rows;
+
+	/**
+	 * Longitude and latitude extent of a base level tile
+	 */
+	private double tileLonExtent, tileLatExtent;
+
 	@Override
 	protected TilesetInfo convert(File image, TilesetInfo info) throws TilingException {
 		if (bbox == null)
@@ -140,11 +175,17 @@ public class KMLSuperOverlayTiler extends TMSTiler {
 				info.getZoomLevels() + " zoom levels, " +
 				info.getTotalNumberOfTiles() + " tiles total"
 				);
+		if (pyramidMode != PyramidMode.STRIPES)
+			log.warn("Pyramid mode " + pyramidMode + " not supported, falling back to " + PyramidMode.STRIPES);
 
 		String baseName = image.getName().substring(0, image.getName().lastIndexOf('.'));
+		columns = new int[info.getZoomLevels()];
+		rows = new int[info.getZoomLevels()];
+		tileLonExtent = bbox.getLonExtent() * tileWidth / info.getImageWidth();
+		tileLatExtent = bbox.getLatExtent() * tileHeight / info.getImageHeight();
 
 		// Step 1 - stripe the base image
-		log.debug("Striping base image");
+		startPhase("Striping base image");
 		String basestripePrefix = baseName + "-0-";
 		List<Stripe> baseStripes;
 		try {
@@ -157,7 +198,7 @@ public class KMLSuperOverlayTiler extends TMSTiler {
 		}
 
 		// Step 2 - tile base image stripes
-		log.debug("Tiling level 1");
+		startPhase("Tiling level 1");
 		File baselayerDir = new File(tilesetRootDir, Integer.toString(info.getZoomLevels() - 1));
 		createDir(baselayerDir);
 		for (int i = 0; i < baseStripes.size(); i++) {
@@ -174,7 +215,7 @@ public class KMLSuperOverlayTiler extends TMSTiler {
 		List<Stripe> levelBeneath = baseStripes;
 		List<Stripe> thisLevel = new ArrayList<Stripe>();
 		for (int i = 1; i < info.getZoomLevels(); i++) {
-			log.debug("Tiling level " + (i + 1));
+			startPhase("Tiling level " + (i + 1));
 			File zoomLevelDir = new File(tilesetRootDir, Integer.toString(info.getZoomLevels() - i - 1));
 			createDir(zoomLevelDir);
 
@@ -183,7 +224,7 @@ public class KMLSuperOverlayTiler extends TMSTiler {
 					// Step 3a - merge stripes from level beneath
 					Stripe stripe1 = levelBeneath.get(j * 2);
 					Stripe stripe2 = ((j * 2 + 1) < levelBeneath.size()) ? levelBeneath.get(j * 2 + 1) : null;
-					Stripe result = mergeStripes(stripe1, stripe2, baseName + "-" + i + "-" + j + ".tif");
+					Stripe result = mergeStripes(stripe1, stripe2, baseName + "-" + i + "-" + j + getIntermediateExtension());
 					thisLevel.add(result);
 
 					// Step 3b - tile result stripe
@@ -195,16 +236,20 @@ public class KMLSuperOverlayTiler extends TMSTiler {
 				}
 			}
 
-			for (Stripe s : levelBeneath)
-				s.delete();
+			// The stripes of the level beneath were deleted as soon as they were merged
 			levelBeneath = thisLevel;
 			thisLevel = new ArrayList<Stripe>();
 		}
 
 		for (Stripe s : levelBeneath)
-			s.delete();
+			tempDisk.delete(s);
+
+		// Step 4 - generate the tile KML files (or KMZ archives) and the root KML file
+		if (kmzDepth > 0)
+			generateKMZArchives(info);
+		else
+			generateTileKMLFiles(info);
 
-		// Step 4 - generate the root KML file
 		try {
 			generateRootKMLFile(info);
 		} catch (IOException e) {
@@ -247,7 +292,7 @@ public class KMLSuperOverlayTiler extends TMSTiler {
 					// Step 3a - merge stripes from level beneath
 					Stripe stripe1 = levelBeneath.get(j * 2);
 					Stripe stripe2 = ((j * 2 + 1) < levelBeneath.size()) ? levelBeneath.get(j * 2 + 1) : null;
-					Stripe result = mergeStripes(stripe1, stripe2, baseName + "-" + i + "-" + j + ".tif");
+					Stripe result = mergeStripes(stripe1, stripe2, baseName + "-" + i + "-" + j + getIntermediateExtension());
 					thisLevel.add(result);
 					
 					// Step 3b - tile result stripe
@@ -282,67 +327,188 @@ public class KMLSuperOverlayTiler extends TMSTiler {
 		this.bbox = bbox;
 	}
 
+	/**
+	 * Packs the KML files and tiles into KMZ archives, one per region subtree of the
+	 * given number of zoom levels: the tile at the top of the subtree is stored as
+	 * <em>zoomlevel/column/row.kmz</em>, and Google Earth fetches one archive (rather
+	 * than two files per tile) for all regions of the subtree.
+	 * @param kmzDepth the number of zoom levels per archive (0 = no KMZ archives, default)
+	 */
+	public void setKMZDepth(int kmzDepth) {
+		if (kmzDepth < 0)
+			throw new IllegalArgumentException("Invalid KMZ depth: " + kmzDepth);
+		this.kmzDepth = kmzDepth;
+	}
+
 	private void generateLOD(Stripe stripe, int zoomlevel, int col) throws IOException,
 			InterruptedException, IM4JavaException, TilingException {
 
 		// Tile the stripe
-		String filenamePattern = tilesetRootDir.getAbsolutePath() + File.separator + "tmp-%d.jpg";
+		String tmp = getTempPrefix() + "-%d";
+		String filenamePattern = tilesetRootDir.getAbsolutePath() + File.separator + tmp + ".jpg";
 		processor.crop(stripe.getImageFile().getAbsolutePath(), filenamePattern, tileWidth, tileHeight);
 
-		// Tile boundaries
-		double width = bbox.getLonExtent() / Math.pow(2, zoomlevel);
-		double height = bbox.getLatExtent() / Math.pow(2, zoomlevel);
-
-		double north = bbox.getNorth();
-		double west = bbox.getWest() + col * width;
-
+		// Rename result files (the KML files are generated once all tiles exist)
 		int rows = stripe.getHeight() / tileHeight;
 		for (int i = 0; i < rows; i++) {
-			// Rename result files
 			File fOld = new File(filenamePattern.replace("%d", Integer.toString(i)));
-			File fNew = new File(filenamePattern.replace("tmp-%d",
+			File fNew = new File(filenamePattern.replace(tmp,
 					Integer.toString((stripe.getHeight() / tileHeight) - i - 1)));
 			if (!fOld.renameTo(fNew))
 				throw new TilingException("Failed to rename file: " + fOld);
+		}
+		this.columns[zoomlevel] = Math.max(this.columns[zoomlevel], col + 1);
+		this.rows[zoomlevel] = rows;
+	}
 
-			// Generate KML
-			generateTileKML(zoomlevel, col, rows - i - 1, north, west, width, height, fNew);
-			north -= height;
+	private void generateTileKMLFiles(TilesetInfo info) throws TilingException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int z = 0; z < info.getZoomLevels(); z++) {
+			for (int c = 0; c < columns[z]; c++) {
+				final int zoomlevel = z;
+				final int col = c;
+				tasks.add(new Callable<Void>() {
+					public Void call() throws IOException {
+						File columnDir = new File(new File(tilesetRootDir, Integer.toString(zoomlevel)), Integer.toString(col));
+						StringBuilder kml = new StringBuilder();
+						for (int row = 0; row < rows[zoomlevel]; row++) {
+							kml.setLength(0);
+							appendTileKML(kml, zoomlevel, col, row, -1);
+							writeToFile(new File(columnDir, row + ".kml"), kml);
+						}
+						return null;
+					}
+				});
+			}
 		}
+		runInParallel(tasks);
 	}
 
-	private void generateTileKML(int zoomlevel, int col, int row, double north, double west, double width, double height,
-			File forTile) throws IOException {
-		StringBuffer networkLinks = new StringBuffer();
-		for (int x = 0; x < 2; x++) {
-			for (int y = 0; y < 2; y++) {
-				String subRegion =
-						"../../" +
-								(zoomlevel + 1) + "/" +
-								(col * 2 + x) + "/" +
-								(row * 2 + y) + ".kml";
-
-				networkLinks.append(NETWORK_LINK_TEMPLATE
-						.replace("@name@", forTile.getName())
-						.replace("@north@", Double.toString(north - height * y / 2))
-						.replace("@south@", Double.toString(north - height * (1 + y) / 2))
-						.replace("@west@", Double.toString(west + width * x / 2))
-						.replace("@east@", Double.toString(west + width * (1 + x) / 2))
-						.replace("@href@", subRegion));
+	private void generateKMZArchives(TilesetInfo info) throws TilingException {
+		List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+		for (int z = 0; z < info.getZoomLevels(); z += kmzDepth) {
+			for (int c = 0; c < columns[z]; c++) {
+				for (int r = 0; r < rows[z]; r++) {
+					final int zoomlevel = z;
+					final int col = c;
+					final int row = r;
+					tasks.add(new Callable<Void>() {
+						public Void call() throws IOException {
+							generateKMZ(zoomlevel, col, row);
+							return null;
+						}
+					});
+				}
+			}
+		}
+		runInParallel(tasks);
+
+		// Remove the (now empty) directories of the levels inside the archives
+		for (int z = 0; z < columns.length; z++) {
+			if (z % kmzDepth != 0) {
+				File levelDir = new File(tilesetRootDir, Integer.toString(z));
+				for (int col = 0; col < columns[z]; col++)
+					new File(levelDir, Integer.toString(col)).delete();
+				if (!levelDir.delete())
+					log.warn("Failed to delete directory: " + levelDir);
 			}
 		}
+	}
 
-		String kml = TILE_KML_TEMPLATE
-				.replace("@north@", Double.toString(north))
-				.replace("@south@", Double.toString(north - height))
-				.replace("@west@", Double.toString(west))
-				.replace("@east@", Double.toString(west + width))
-				.replace("@network.links@", networkLinks.toString())
-				.replace("@img.href@", row + ".jpg");
+	/**
+	 * Packs the KML files and tiles of one region subtree into a KMZ archive. The
+	 * top tile's KML is the first entry, so Google Earth opens it as the archive's
+	 * document. Within the archive, files keep their paths relative to the tileset
+	 * root, so the links between regions of the subtree are the same as without KMZ.
+	 */
+	private void generateKMZ(int zoomlevel, int col, int row) throws IOException {
+		int bottom = Math.min(zoomlevel + kmzDepth, columns.length);
+		File kmz = new File(new File(new File(tilesetRootDir, Integer.toString(zoomlevel)), Integer.toString(col)), row
+				+ ".kmz");
+
+		ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(kmz.toPath()));
+		try {
+			StringBuilder kml = new StringBuilder();
+			for (int z = zoomlevel; z < bottom; z++) {
+				int shift = z - zoomlevel;
+				int lastCol = Math.min(columns[z], (col + 1) << shift);
+				int lastRow = Math.min(rows[z], (row + 1) << shift);
+				for (int c = col << shift; c < lastCol; c++) {
+					for (int r = row << shift; r < lastRow; r++) {
+						String path = z + "/" + c + "/" + r;
+						kml.setLength(0);
+						appendTileKML(kml, z, c, r, bottom);
+						out.putNextEntry(new ZipEntry(path + ".kml"));
+						out.write(kml.toString().getBytes(UTF8));
+						out.closeEntry();
+
+						File tile = new File(tilesetRootDir, path + ".jpg");
+						out.putNextEntry(new ZipEntry(path + ".jpg"));
+						Files.copy(tile.toPath(), out);
+						out.closeEntry();
+						if (!tile.delete())
+							log.warn("Failed to delete tile: " + tile);
+					}
+				}
+			}
+		} finally {
+			out.close();
+		}
+	}
+
+	/**
+	 * Appends the KML document of one tile.
+	 * @param kml the buffer
+	 * @param zoomlevel the (TMS) zoom level of the tile
+	 * @param col the tile column
+	 * @param row the tile row
+	 * @param kmzLevel the top zoom level of the next KMZ archives (or -1 if no KMZ archives are generated)
+	 */
+	private void appendTileKML(StringBuilder kml, int zoomlevel, int col, int row, int kmzLevel) {
+		double[] bounds = getTileBounds(zoomlevel, col, row);
+		TILE_KML_HEADER_TEMPLATE.append(kml, bounds[0], bounds[1], bounds[2], bounds[3]);
+
+		// Links to the sub-regions (if there is a zoom level beneath, and as far as the sub-regions exist)
+		if (zoomlevel + 1 < columns.length) {
+			for (int x = 0; x < 2; x++) {
+				for (int y = 0; y < 2; y++) {
+					if (col * 2 + x >= columns[zoomlevel + 1] || row * 2 + y >= rows[zoomlevel + 1])
+						continue;
+
+					String subRegion = (zoomlevel + 1) + "/" + (col * 2 + x) + "/" + (row * 2 + y);
+					if (zoomlevel + 1 == kmzLevel) {
+						// The archive acts as a directory: leave it, then its column and level directories
+						subRegion = "../../../../../" + subRegion + ".kmz";
+					} else {
+						subRegion = "../../" + subRegion + ".kml";
+					}
+
+					double[] sub = getTileBounds(zoomlevel + 1, col * 2 + x, row * 2 + y);
+					NETWORK_LINK_TEMPLATE.append(kml, row + ".jpg", sub[0], sub[1], sub[2], sub[3], subRegion);
+				}
+			}
+		}
 
-		String file = forTile.getAbsolutePath();
-		file = file.substring(0, file.lastIndexOf('.')) + ".kml";
-		writeToFile(new File(file), kml);
+		TILE_KML_FOOTER_TEMPLATE.append(kml, bounds[0], bounds[1], bounds[2], bounds[3], row + ".jpg");
+	}
+
+	/**
+	 * Returns the bounds of a tile (north, south, east, west). Like the image on the TMS
+	 * tile canvas, the tiles are aligned to the south-west corner of the bounding box, and
+	 * tile rows count from the south. The tiles on the north and east border may extend
+	 * beyond the bounding box, by the background padding of the tile.
+	 * @param zoomlevel the (TMS) zoom level of the tile
+	 * @param col the tile column
+	 * @param row the tile row
+	 * @return the tile bounds
+	 */
+	private double[] getTileBounds(int zoomlevel, int col, int row) {
+		double scale = Math.pow(2, columns.length - 1 - zoomlevel);
+		double width = tileLonExtent * scale;
+		double height = tileLatExtent * scale;
+		double south = bbox.getSouth() + row * height;
+		double west = bbox.getWest() + col * width;
+		return new double[] { south + height, south, west + width, west };
 	}
 
 	/*
@@ -427,21 +593,22 @@ public class KMLSuperOverlayTiler extends TMSTiler {
 		String name = info.getImageFile().getName();
 		name = name.substring(0, name.lastIndexOf('.'));
 
-		String networkLink = NETWORK_LINK_TEMPLATE
-				.replace("@name@", name)
-				.replace("@north@", Double.toString(bbox.getNorth()))
-				.replace("@south@", Double.toString(bbox.getSouth()))
-				.replace("@east@", Double.toString(bbox.getEast()))
-				.replace("@west@", Double.toString(bbox.getWest()))
-				.replace("@href@", "0/0/0.kml");
+		double[] bounds = getTileBounds(0, 0, 0);
+		StringBuilder networkLink = NETWORK_LINK_TEMPLATE.append(new StringBuilder(), name,
+				bounds[0], bounds[1], bounds[2], bounds[3],
+				(kmzDepth > 0) ? "0/0/0.kmz" : "0/0/0.kml");
 
-		writeToFile(new File(tilesetRootDir, name + ".kml"), ROOT_KML_TEMPLATE.replace("@network.link@", networkLink));
+		writeToFile(new File(tilesetRootDir, name + ".kml"),
+				ROOT_KML_TEMPLATE.append(new StringBuilder(), networkLink));
 	}
 
-	private void writeToFile(File f, String s) throws IOException {
+	private void writeToFile(File f, CharSequence s) throws IOException {
 		BufferedWriter out = new BufferedWriter(new FileWriter(f));
-		out.write(s);
-		out.close();
+		try {
+			out.append(s);
+		} finally {
+			out.close();
+		}
 	}
 
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.kml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A text template with <em>@placeholder@</em> slots, split into its literal segments
+ * once, when it is created. Filling it in appends the segments and values to a
+ * buffer, rather than creating a new string per placeholder (as a chain of
+ * <code>String.replace</code> calls would).
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class KMLTemplate {
+
+  /**
+   * The literal segments (one more than there are slots)
+   */
+  private String[] segments;
+
+  /**
+   * The placeholder (index) that follows each segment
+   */
+  private int[] slots;
+
+  /**
+   * Compiles a template.
+   *
+   * @param template the template text
+   * @param placeholders the names of the placeholders (without the '@' delimiters),
+   * in the order their values are passed to {@link #append(StringBuilder, Object...)}
+   */
+  public KMLTemplate(String template, String... placeholders) {
+    List<String> segments = new ArrayList<String>();
+    List<Integer> slots = new ArrayList<Integer>();
+
+    int pos = 0;
+    while (true) {
+      // Find the next placeholder
+      int next = -1;
+      int slot = -1;
+      for (int i = 0; i < placeholders.length; i++) {
+        int idx = template.indexOf("@" + placeholders[i] + "@", pos);
+        if (idx > -1 && (next == -1 || idx < next)) {
+          next = idx;
+          slot = i;
+        }
+      }
+
+      if (next == -1) {
+        segments.add(template.substring(pos));
+        break;
+      }
+      segments.add(template.substring(pos, next));
+      slots.add(slot);
+      pos = next + placeholders[slot].length() + 2;
+    }
+
+    this.segments = segments.toArray(new String[segments.size()]);
+    this.slots = new int[slots.size()];
+    for (int i = 0; i < this.slots.length; i++)
+      this.slots[i] = slots.get(i);
+  }
+
+  /**
+   * Appends the filled-in template to a buffer.
+   *
+   * @param out the buffer
+   * @param values the placeholder values, in the order the placeholders were passed to the constructor
+   * @return the buffer
+   */
+  public StringBuilder append(StringBuilder out, Object... values) {
+    for (int i = 0; i < slots.length; i++)
+      out.append(segments[i]).append(values[slots[i]]);
+    return out.append(segments[slots.length]);
+  }
+
+}
@@ -0,0 +1,214 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.mosaic;
+
+import java.awt.Rectangle;
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileReader;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import at.ait.dme.magicktiler.image.BandReader;
+
+/**
+ * A mosaic of source images, each placed at a pixel offset. Images may overlap;
+ * where they do, images added later are drawn over images added earlier.
+ * <br><br>
+ * A mosaic can be read from a placement file with one image per line, given as
+ * the image path (relative to the placement file) followed by its x and y offset:
+ * <br><br>
+ * <em>sheet-01.tif 0 0<br>sheet-02.tif 9850 0<br># comments and blank lines are ignored</em>
+ * <br><br>
+ * Only the image headers are read when images are added; pixels are read region by
+ * region, when needed. Formats that can be read region by region (e.g. tiled or
+ * stripped TIFF) are the most efficient sources.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class Mosaic {
+
+  /**
+   * A line of a placement file: image path (which may contain blanks), x and y offset
+   */
+  private static final Pattern PLACEMENT = Pattern.compile("(.*\\S)\\s+(-?\\d+)\\s+(-?\\d+)");
+
+  /**
+   * The mosaic name (used as tileset name)
+   */
+  private String name;
+
+  /**
+   * The placed images
+   */
+  private List<Placement> placements = new ArrayList<Placement>();
+
+  /**
+   * The bounding box of all images
+   */
+  private Rectangle bounds;
+
+  public Mosaic(String name) {
+    this.name = name;
+  }
+
+  /**
+   * Reads a mosaic from a placement file.
+   *
+   * @param file the placement file
+   * @return the mosaic
+   * @throws IOException if the file or one of the images cannot be read
+   */
+  public static Mosaic read(File file) throws IOException {
+    String name = file.getName();
+    Mosaic mosaic = new Mosaic(name.indexOf('.') > -1 ? name.substring(0, name.lastIndexOf('.')) : name);
+
+    BufferedReader reader = new BufferedReader(new FileReader(file));
+    try {
+      String line;
+      int lineNumber = 0;
+      while ((line = reader.readLine()) != null) {
+        lineNumber++;
+        line = line.trim();
+        if (line.length() == 0 || line.startsWith("#"))
+          continue;
+
+        Matcher matcher = PLACEMENT.matcher(line);
+        if (!matcher.matches())
+          throw new IOException("Invalid placement in line " + lineNumber + " of " + file.getName());
+
+        File image = new File(matcher.group(1));
+        if (!image.isAbsolute())
+          image = new File(file.getAbsoluteFile().getParentFile(), matcher.group(1));
+        mosaic.add(image, Integer.parseInt(matcher.group(2)), Integer.parseInt(matcher.group(3)));
+      }
+    } finally {
+      reader.close();
+    }
+    return mosaic;
+  }
+
+  /**
+   * Adds an image to the mosaic.
+   *
+   * @param image the image file
+   * @param x the x offset of the image
+   * @param y the y offset of the image
+   * @throws IOException if the image cannot be read
+   */
+  public void add(File image, int x, int y) throws IOException {
+    BandReader reader = new BandReader(image);
+    try {
+      Placement placement = new Placement(image, new Rectangle(x, y, reader.getWidth(), reader.getHeight()));
+      placements.add(placement);
+      bounds = (bounds == null) ? placement.getBounds() : bounds.union(placement.getBounds());
+    } finally {
+      reader.close();
+    }
+  }
+
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the width of the mosaic, i.e. of the bounding box of all images.
+   *
+   * @return the width
+   */
+  public int getWidth() {
+    return (bounds == null) ? 0 : bounds.width;
+  }
+
+  /**
+   * Returns the height of the mosaic, i.e. of the bounding box of all images.
+   *
+   * @return the height
+   */
+  public int getHeight() {
+    return (bounds == null) ? 0 : bounds.height;
+  }
+
+  public List<Placement> getPlacements() {
+    return Collections.unmodifiableList(placements);
+  }
+
+  /**
+   * Returns the images that intersect a region of the mosaic, in drawing order.
+   *
+   * @param region the region, relative to the top-left corner of the mosaic
+   * @return the images
+   */
+  public List<Placement> getPlacements(Rectangle region) {
+    List<Placement> result = new ArrayList<Placement>();
+    for (Placement placement : placements) {
+      if (placement.getBounds(this).intersects(region))
+        result.add(placement);
+    }
+    return result;
+  }
+
+  /**
+   * An image placed on the mosaic.
+   */
+  public static class Placement {
+
+    private File image;
+    private Rectangle bounds;
+
+    private Placement(File image, Rectangle bounds) {
+      this.image = image;
+      this.bounds = bounds;
+    }
+
+    public File getImage() {
+      return image;
+    }
+
+    /**
+     * Returns the bounds of the image, as placed.
+     *
+     * @return the bounds
+     */
+    public Rectangle getBounds() {
+      return new Rectangle(bounds);
+    }
+
+    /**
+     * Returns the bounds of the image relative to the top-left corner of a mosaic
+     * (which may lie at negative offsets).
+     *
+     * @param mosaic the mosaic
+     * @return the bounds
+     */
+    public Rectangle getBounds(Mosaic mosaic) {
+      return new Rectangle(bounds.x - mosaic.bounds.x, bounds.y - mosaic.bounds.y, bounds.width, bounds.height);
+    }
+  }
+
+}
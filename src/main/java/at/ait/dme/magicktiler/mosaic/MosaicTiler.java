@@ -0,0 +1,220 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.mosaic;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+
+import org.apache.log4j.Logger;
+
+import at.ait.dme.magicktiler.MagickTiler;
+import at.ait.dme.magicktiler.TileLayout;
+import at.ait.dme.magicktiler.TilesetInfo;
+import at.ait.dme.magicktiler.TilingException;
+import at.ait.dme.magicktiler.composite.CompositeTiler.Scheme;
+import at.ait.dme.magicktiler.image.BandReader;
+import at.ait.dme.magicktiler.image.ImageInfo;
+import at.ait.dme.magicktiler.image.TileEncoder;
+import at.ait.dme.magicktiler.mosaic.Mosaic.Placement;
+import at.ait.dme.magicktiler.tms.TMSTileLayout;
+import at.ait.dme.magicktiler.tms.TMSTiler;
+import at.ait.dme.magicktiler.zoomify.ZoomifyTileLayout;
+import at.ait.dme.magicktiler.zoomify.ZoomifyTiler;
+
+/**
+ * A tiler that generates a single TMS or Zoomify tileset from a {@link Mosaic} of
+ * source images, without stitching them into one composite image first.
+ * <br><br>
+ * The conversion process is as follows:
+ * <ol>
+ * <li>The base level is divided into regions of up to {@link #REGION_TILES} tiles of
+ * one tile row. For each region, in parallel, only the source images that intersect
+ * it are read - and only the part that intersects it - and drawn onto the region,
+ * which is then cut into tiles.</li>
+ * <li>The higher zoom levels are computed from the base tiles, as in
+ * {@link MagickTiler.PyramidMode#TILES} (or {@link MagickTiler.PyramidMode#QUADTREE},
+ * if selected).</li>
+ * <li>The metadata file (and HTML preview, if requested) is written.</li>
+ * </ol>
+ * The input of {@link #convert(File)} is a placement file (see {@link Mosaic#read(File)}).
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class MosaicTiler extends MagickTiler {
+
+  /**
+   * Maximum number of base tiles per region
+   */
+  public static final int REGION_TILES = 16;
+
+  /**
+   * Log4j logger
+   */
+  private static Logger log = Logger.getLogger(MosaicTiler.class);
+
+  /**
+   * The tiling scheme (TMS or Zoomify)
+   */
+  private Scheme scheme;
+
+  /**
+   * The mosaic being converted
+   */
+  private Mosaic mosaic;
+
+  public MosaicTiler(Scheme scheme) {
+    if (scheme != Scheme.TMS && scheme != Scheme.ZOOMIFY)
+      throw new IllegalArgumentException("Unsupported tiling scheme for mosaics: " + scheme);
+    this.scheme = scheme;
+  }
+
+  /**
+   * Generates a tileset from a mosaic.
+   *
+   * @param mosaic the mosaic
+   * @param target the target directory for the tileset (or null for a directory
+   * named after the mosaic, in the working directory)
+   * @return some information about the generated tileset
+   * @throws TilingException if anything goes wrong
+   */
+  public TilesetInfo convert(Mosaic mosaic, File target) throws TilingException {
+    MosaicTiler run = (MosaicTiler) newRun();
+    run.mosaic = mosaic;
+    return execute(run, null, target);
+  }
+
+  /**
+   * Generates a tileset from a placement file (see {@link Mosaic#read(File)}), or
+   * from the mosaic passed to {@link #convert(Mosaic, File)} if the file is null.
+   *
+   * @param placementFile the placement file (or null)
+   * @param target the target directory for the tileset
+   * @return some information about the generated tileset
+   * @throws TilingException if anything goes wrong
+   */
+  @Override
+  protected TilesetInfo convertFile(File placementFile, File target) throws TilingException {
+    if (placementFile != null) {
+      try {
+        mosaic = Mosaic.read(placementFile);
+      } catch (IOException e) {
+        throw new TilingException(e.getMessage());
+      }
+    }
+    if (mosaic.getPlacements().isEmpty())
+      throw new TilingException("Mosaic " + mosaic.getName() + " is empty");
+
+    tilesetRootDir = target;
+    createTargetDir(mosaic.getName());
+
+    ImageInfo image = new ImageInfo(new File(mosaic.getName()), mosaic.getWidth(), mosaic.getHeight());
+    return convert(image.getFile(), new TilesetInfo(image, tileWidth, tileHeight, processor.getImageFormat()));
+  }
+
+  @Override
+  protected TilesetInfo convert(File image, TilesetInfo info) throws TilingException {
+    long startTime = System.currentTimeMillis();
+    log.info("Generating " + scheme + " tiles for mosaic " + mosaic.getName() + ": "
+        + mosaic.getPlacements().size() + " images, " + info.getImageWidth() + "x" + info.getImageHeight());
+
+    final TileLayout layout = (scheme == Scheme.TMS) ? new TMSTileLayout(info) : new ZoomifyTileLayout(info);
+    final TileEncoder encoder = createTileEncoder();
+    final Color background = new Color(getBackgroundARGB(), true);
+
+    // Step 1 - generate the base tiles, region by region
+    startPhase("Generating base tiles");
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    for (int row = 0; row < layout.getRows(0); row++) {
+      for (int col = 0; col < layout.getColumns(0); col += REGION_TILES) {
+        final int r = row;
+        final int c = col;
+        tasks.add(new Callable<Void>() {
+          public Void call() throws IOException {
+            generateRegion(layout, r, c, Math.min(c + REGION_TILES, layout.getColumns(0)), encoder, background);
+            return null;
+          }
+        });
+      }
+    }
+    runInParallel(tasks);
+
+    // Step 2 - compute the higher zoom levels from the base tiles
+    buildPyramidFromTiles(layout);
+
+    // Step 3 - generate metadata and (optional) preview
+    MagickTiler tiler = (scheme == Scheme.TMS) ? new TMSTiler() : new ZoomifyTiler();
+    tiler.setTileFormat(processor.getImageFormat());
+    tiler.setGeneratePreviewHTML(generatePreview);
+    tiler.writeMetadata(info, tilesetRootDir);
+
+    log.info("Took " + (System.currentTimeMillis() - startTime) + " ms.");
+    return info;
+  }
+
+  /**
+   * Draws the intersecting source images onto one region of base tiles and cuts it into tiles.
+   */
+  private void generateRegion(TileLayout layout, int row, int firstCol, int lastCol, TileEncoder encoder,
+      Color background) throws IOException {
+
+    Rectangle region = layout.getLevelRegion(0, firstCol, row);
+    for (int col = firstCol + 1; col < lastCol; col++)
+      region = region.union(layout.getLevelRegion(0, col, row));
+
+    BufferedImage canvas = new BufferedImage(region.width, region.height, encoder.getImageType());
+    Graphics2D g = canvas.createGraphics();
+    try {
+      g.setBackground(background);
+      g.clearRect(0, 0, region.width, region.height);
+      for (Placement placement : mosaic.getPlacements(region)) {
+        Rectangle bounds = placement.getBounds(mosaic);
+        Rectangle part = bounds.intersection(region);
+        BandReader reader = new BandReader(placement.getImage());
+        try {
+          BufferedImage source = reader.readRegion(new Rectangle(part.x - bounds.x, part.y - bounds.y, part.width,
+              part.height));
+          g.drawImage(source, part.x - region.x, part.y - region.y, null);
+        } finally {
+          reader.close();
+        }
+      }
+    } finally {
+      g.dispose();
+    }
+
+    for (int col = firstCol; col < lastCol; col++) {
+      Rectangle tile = layout.getLevelRegion(0, col, row);
+      File file = layout.getTileFile(tilesetRootDir, 0, col, row);
+      encoder.encode(canvas.getSubimage(tile.x - region.x, tile.y - region.y, tile.width, tile.height), file);
+    }
+  }
+
+}
@@ -25,6 +25,7 @@ import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.Logger;
 import org.im4java.core.IM4JavaException;
@@ -45,7 +46,9 @@ import at.ait.dme.magicktiler.TilingException;
  * <br><br> 
  * The implemented conversion algorithm works around this as follows:
  * <ol>
- * <li>Each pyramid level is computed and stored as a temporary file</li>
+ * <li>Each pyramid level is computed and stored as a temporary file (either from the
+ * level beneath, or - in {@link PyramidMode#LEVEL_PARALLEL} mode - directly from the
+ * source image, all levels in parallel)</li>
  * <li>The temporary files are merged into a single (temporary) multi-level TIFF
  * with JPEG compression and 256x256 tile geometry.</li>
  * <li>The temporary PTIF file is renamed to the specified output file name.
@@ -78,12 +81,15 @@ public class PTIFConverter extends MagickTiler {
 
     try {
       // Step 1 - compute pyramid
-      log.debug("Computing pyramid");
+      startPhase("Computing pyramid");
+      if (pyramidMode == PyramidMode.QUADTREE || pyramidMode == PyramidMode.TILES)
+        log.warn("Pyramid mode " + pyramidMode + " not supported, falling back to " + PyramidMode.STRIPES);
+      checkLevelParallelSource(image);
       List<String> levels = computePyramid(info);
 
       // Step 2 - merge
-      log.debug("Merging");
-      File tempFile = new File(image.getParent(), "tmp.tif");
+      startPhase("Merging");
+      File tempFile = new File(tilesetRootDir.getAbsoluteFile().getParentFile(), getTempPrefix() + ".tif");
       levels.add(tempFile.getAbsolutePath());
       processor.merge(levels, "tiff:tile-geometry=" + TILE_SIZE + "x" + TILE_SIZE, "jpeg");
 
@@ -118,17 +124,37 @@ public class PTIFConverter extends MagickTiler {
     return info;
   }
 
-  private List<String> computePyramid(TilesetInfo info) throws IOException, InterruptedException, IM4JavaException {
+  private List<String> computePyramid(TilesetInfo info) throws IOException, InterruptedException,
+      IM4JavaException, TilingException {
     ArrayList<String> pyramid = new ArrayList<String>();
 
-    String inputFile = info.getImageFile().getAbsolutePath();
+    final String inputFile = info.getImageFile().getAbsolutePath();
     pyramid.add(inputFile);
 
-    String tempFilePrefix = inputFile.substring(0, inputFile.lastIndexOf('.'));
+    String tempFilePrefix = new File(tempDirectory, "level").getAbsolutePath();
 
     int w = info.getImageWidth();
     int h = info.getImageHeight();
 
+    if (pyramidMode == PyramidMode.LEVEL_PARALLEL) {
+      // Scale each level directly from the source image, all levels in parallel
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for (int i = 1; i < info.getZoomLevels(); i++) {
+        final String level = tempFilePrefix + "-" + i + ".tif";
+        final int width = w >> i;
+        final int height = h >> i;
+        tasks.add(new Callable<Void>() {
+          public Void call() throws Exception {
+            processor.resizeReducedScale(inputFile, level, width, height);
+            return null;
+          }
+        });
+        pyramid.add(level);
+      }
+      runInParallel(tasks);
+      return pyramid;
+    }
+
     String previousLevel = inputFile;
     String thisLevel;
 
@@ -0,0 +1,348 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+package at.ait.dme.magicktiler.ptif;
+
+import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+import at.ait.dme.magicktiler.image.LosslessJPEGCropper;
+import at.ait.dme.magicktiler.image.TiledTIFF;
+import at.ait.dme.magicktiler.image.TiledTIFF.Directory;
+import at.ait.dme.magicktiler.zoomify.ZoomifyTiler;
+
+/**
+ * A reader that serves the tiles of a Pyramid TIFF (as produced by the {@link PTIFConverter})
+ * straight from the file: as a 'virtual' Zoomify tileset, or addressed in the style of the
+ * TMS and Google Maps schemes.
+ * <br><br>
+ * The PTIF file is opened as a {@link TiledTIFF}, i.e. its image file directories
+ * (IFDs) are parsed once, when the reader is opened. After that, every tile request
+ * is answered by copying the stored JPEG tile bytes out of the file - tiles are never
+ * decoded or re-encoded. If the PTIF stores its JPEG tables separately (TIFF tag
+ * <em>JPEGTables</em>), they are merged into each tile so that the result is a
+ * standalone JPEG file. BigTIFF files are supported as well.
+ * <br><br>
+ * The Zoomify view is laid out like the output of the {@link ZoomifyTiler}: border tiles
+ * are cropped (losslessly, with the {@link LosslessJPEGCropper}) to the image, and an
+ * ImageProperties.xml descriptor is served. The zoom levels are those of the PTIF, i.e.
+ * each level is half the size of the level beneath, rounded down.
+ * <br><br>
+ * The TMS and Google Maps views are <em>not</em> drop-in replacements for the output of
+ * the respective tilers, since matching those would require re-encoding tiles: their tile
+ * grid is anchored at the top-left corner of every level (TMS rows are counted from the
+ * bottom of that grid, which the TMS origin cannot describe for all levels, so no
+ * tilemapresource.xml is served), border tiles are padded to the full tile size as stored
+ * in the PTIF, and images are not squared for Google Maps. Use them with viewers that
+ * are configured for this layout.
+ * <br><br>
+ * Instances are thread-safe and can be shared by concurrent requests.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class PTIFReader {
+
+  /**
+   * The underlying TIFF file
+   */
+  private TiledTIFF tiff;
+
+  /**
+   * The pyramid levels (starting with highest-resolution level)
+   */
+  private List<Directory> levels = new ArrayList<Directory>();
+
+  public PTIFReader(File file) throws IOException {
+    this.tiff = new TiledTIFF(file);
+    try {
+      for (Directory dir : tiff.getDirectories()) {
+        // Only JPEG-compressed, tiled images can be served without re-encoding
+        if (dir.isTiled()) {
+          if (dir.getCompression() != TiledTIFF.COMPRESSION_JPEG)
+            throw new IOException("Unsupported compression (" + dir.getCompression() + ") in file: " + file);
+          levels.add(dir);
+        }
+      }
+      if (levels.isEmpty())
+        throw new IOException("No tiled image found in file: " + file);
+    } catch (IOException e) {
+      tiff.close();
+      throw e;
+    }
+
+    Collections.sort(levels, new Comparator<Directory>() {
+      public int compare(Directory a, Directory b) {
+        return b.getWidth() - a.getWidth();
+      }
+    });
+  }
+
+  public File getFile() {
+    return tiff.getFile();
+  }
+
+  /**
+   * Returns the number of zoom levels in this PTIF.
+   *
+   * @return the number of zoom levels
+   */
+  public int getZoomLevels() {
+    return levels.size();
+  }
+
+  public int getImageWidth() {
+    return levels.get(0).getWidth();
+  }
+
+  public int getImageHeight() {
+    return levels.get(0).getHeight();
+  }
+
+  public int getTileWidth() {
+    return levels.get(0).getTileWidth();
+  }
+
+  public int getTileHeight() {
+    return levels.get(0).getTileHeight();
+  }
+
+  /**
+   * Returns the number of tiles in X direction in the specified level
+   * (0 = highest-resolution level, as in {@link at.ait.dme.magicktiler.TilesetInfo}).
+   *
+   * @param level the level
+   * @return the number of tiles in X direction
+   */
+  public int getNumberOfXTiles(int level) {
+    return levels.get(level).getColumns();
+  }
+
+  /**
+   * Returns the number of tiles in Y direction in the specified level
+   * (0 = highest-resolution level, as in {@link at.ait.dme.magicktiler.TilesetInfo}).
+   *
+   * @param level the level
+   * @return the number of tiles in Y direction
+   */
+  public int getNumberOfYTiles(int level) {
+    return levels.get(level).getRows();
+  }
+
+  /**
+   * Returns a tile as standalone JPEG file content.
+   *
+   * @param level the level (0 = highest-resolution level)
+   * @param col the tile column (counted from the left)
+   * @param row the tile row (counted from the top)
+   * @return the JPEG tile, or <code>null</code> if there is no such tile
+   * @throws IOException if the tile could not be read
+   */
+  public byte[] getTile(int level, int col, int row) throws IOException {
+    if (level < 0 || level >= levels.size())
+      return null;
+
+    Directory dir = levels.get(level);
+    if (col < 0 || col >= dir.getColumns() || row < 0 || row >= dir.getRows())
+      return null;
+
+    return tiff.getJPEGTile(dir, col, row);
+  }
+
+  /**
+   * Returns a tile addressed in the style of the TMS scheme (see the notes on the
+   * TMS view above).
+   *
+   * @param z the TMS zoom level (0 = lowest-resolution level)
+   * @param x the tile column (counted from the left)
+   * @param y the tile row (counted from the bottom)
+   * @return the JPEG tile, or <code>null</code> if there is no such tile
+   * @throws IOException if the tile could not be read
+   */
+  public byte[] getTMSTile(int z, int x, int y) throws IOException {
+    int level = levels.size() - z - 1;
+    if (level < 0 || level >= levels.size())
+      return null;
+    return getTile(level, x, levels.get(level).getRows() - y - 1);
+  }
+
+  /**
+   * Returns a tile addressed according to the Zoomify scheme. Border tiles are
+   * cropped to the image.
+   *
+   * @param z the Zoomify zoom level (0 = lowest-resolution level)
+   * @param x the tile column (counted from the left)
+   * @param y the tile row (counted from the top)
+   * @return the JPEG tile, or <code>null</code> if there is no such tile
+   * @throws IOException if the tile could not be read or cropped
+   */
+  public byte[] getZoomifyTile(int z, int x, int y) throws IOException {
+    byte[] tile = getTile(levels.size() - z - 1, x, y);
+    if (tile == null)
+      return null;
+
+    Directory dir = levels.get(levels.size() - z - 1);
+    int width = Math.min(dir.getTileWidth(), dir.getWidth() - x * dir.getTileWidth());
+    int height = Math.min(dir.getTileHeight(), dir.getHeight() - y * dir.getTileHeight());
+    if (width == dir.getTileWidth() && height == dir.getTileHeight())
+      return tile;
+    return crop(tile, width, height);
+  }
+
+  /**
+   * Returns the content of the ImageProperties.xml descriptor of the Zoomify view.
+   *
+   * @return the ImageProperties XML
+   */
+  public String getZoomifyImageProperties() {
+    int tiles = 0;
+    for (Directory dir : levels)
+      tiles += dir.getColumns() * dir.getRows();
+    return ZoomifyTiler.getImageProperties(getImageWidth(), getImageHeight(), tiles, getTileWidth());
+  }
+
+  /**
+   * Returns the Zoomify TileGroup number that a tile belongs to.
+   *
+   * @param z the Zoomify zoom level (0 = lowest-resolution level)
+   * @param x the tile column (counted from the left)
+   * @param y the tile row (counted from the top)
+   * @return the TileGroup number
+   */
+  public int getZoomifyTileGroup(int z, int x, int y) {
+    int idx = 0;
+    for (int i = levels.size() - 1; i > levels.size() - z - 1; i--)
+      idx += levels.get(i).getColumns() * levels.get(i).getRows();
+    idx += y * levels.get(levels.size() - z - 1).getColumns() + x;
+    return idx / ZoomifyTiler.MAX_TILES_PER_GROUP;
+  }
+
+  /**
+   * Returns a tile addressed in the style of the Google Maps scheme (see the notes
+   * on the Google Maps view above).
+   *
+   * @param z the Google Maps zoom level (0 = lowest-resolution level)
+   * @param x the tile column (counted from the left)
+   * @param y the tile row (counted from the top)
+   * @return the JPEG tile, or <code>null</code> if there is no such tile
+   * @throws IOException if the tile could not be read
+   */
+  public byte[] getGoogleMapsTile(int z, int x, int y) throws IOException {
+    return getTile(levels.size() - z - 1, x, y);
+  }
+
+  /**
+   * Resolves a file path relative to the root of a virtual tileset, i.e. a tile path
+   * (see {@link #getTile(String)}) or the Zoomify view's <em>ImageProperties.xml</em>.
+   *
+   * @param path the file path
+   * @return the file content, or <code>null</code> if the path does not denote a file
+   * @throws IOException if the tile could not be read
+   */
+  public byte[] getResource(String path) throws IOException {
+    String p = path.replace('\\', '/');
+    while (p.startsWith("/"))
+      p = p.substring(1);
+    if (p.equals("ImageProperties.xml"))
+      return getZoomifyImageProperties().getBytes("UTF-8");
+    return getTile(p);
+  }
+
+  /**
+   * Resolves a tile path relative to the root of a virtual tileset, i.e.
+   * <em>z/x/y.jpg</em> (TMS), <em>TileGroupN/z-x-y.jpg</em> (Zoomify)
+   * or <em>z_x_y.jpg</em> (Google Maps).
+   *
+   * @param path the tile path
+   * @return the JPEG tile, or <code>null</code> if the path does not denote a tile
+   * @throws IOException if the tile could not be read
+   */
+  public byte[] getTile(String path) throws IOException {
+    String p = path.replace('\\', '/');
+    while (p.startsWith("/"))
+      p = p.substring(1);
+    if (!p.endsWith(".jpg"))
+      return null;
+    p = p.substring(0, p.length() - 4);
+
+    try {
+      if (p.startsWith(ZoomifyTiler.TILEGROUP)) {
+        int slash = p.indexOf('/');
+        if (slash < 0)
+          return null;
+        int group = Integer.parseInt(p.substring(ZoomifyTiler.TILEGROUP.length(), slash));
+        String[] zxy = p.substring(slash + 1).split("-");
+        if (zxy.length != 3)
+          return null;
+        int z = Integer.parseInt(zxy[0]);
+        int x = Integer.parseInt(zxy[1]);
+        int y = Integer.parseInt(zxy[2]);
+        if (z < 0 || z >= levels.size() || getZoomifyTileGroup(z, x, y) != group)
+          return null;
+        return getZoomifyTile(z, x, y);
+      }
+
+      String[] zxy = p.split("/");
+      if (zxy.length == 3)
+        return getTMSTile(Integer.parseInt(zxy[0]), Integer.parseInt(zxy[1]), Integer.parseInt(zxy[2]));
+
+      zxy = p.split("_");
+      if (zxy.length == 3)
+        return getGoogleMapsTile(Integer.parseInt(zxy[0]), Integer.parseInt(zxy[1]), Integer.parseInt(zxy[2]));
+    } catch (NumberFormatException e) {
+      // Not a tile path
+    }
+    return null;
+  }
+
+  /**
+   * Crops the top-left region of a JPEG tile losslessly.
+   *
+   * @param tile the JPEG tile
+   * @param width the width of the region
+   * @param height the height of the region
+   * @return the cropped JPEG tile
+   * @throws IOException if the tile cannot be cropped
+   */
+  private byte[] crop(byte[] tile, int width, int height) throws IOException {
+    LosslessJPEGCropper cropper = new LosslessJPEGCropper(tile);
+    ByteArrayOutputStream out = new ByteArrayOutputStream(tile.length);
+    cropper.addCrop(new Rectangle(0, 0, width, height), out);
+    cropper.execute();
+    return out.toByteArray();
+  }
+
+  /**
+   * Closes the underlying file.
+   *
+   * @throws IOException if something goes wrong
+   */
+  public void close() throws IOException {
+    tiff.close();
+  }
+
+}
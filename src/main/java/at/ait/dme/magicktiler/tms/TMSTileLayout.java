@@ -0,0 +1,54 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.tms;
+
+import java.io.File;
+
+import at.ait.dme.magicktiler.TileLayout;
+import at.ait.dme.magicktiler.TilesetInfo;
+
+/**
+ * The TMS tile layout: the image is anchored at the bottom-left corner of the tile
+ * grid, tile rows are counted from the bottom and border tiles are padded. Tiles
+ * are stored as <em>zoomlevel/column/row.ext</em>, where zoom level 0 is the
+ * lowest-resolution level.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class TMSTileLayout extends TileLayout {
+
+  public TMSTileLayout(TilesetInfo info) {
+    super(info, info.getImageWidth(), info.getImageHeight(), info.getNumberOfXTiles(0) * info.getTileWidth(), info
+        .getNumberOfYTiles(0) * info.getTileHeight(), 0, info.getNumberOfYTiles(0) * info.getTileHeight()
+        - info.getImageHeight(), Origin.BOTTOM_LEFT, true);
+  }
+
+  @Override
+  public File getTileFile(File tilesetRoot, int zoomlevel, int col, int row) {
+    File columnDir = new File(new File(tilesetRoot, Integer.toString(info.getZoomLevels() - zoomlevel - 1)),
+        Integer.toString(col));
+    return new File(columnDir, row + "." + info.getTileFormat().getExtension());
+  }
+
+}
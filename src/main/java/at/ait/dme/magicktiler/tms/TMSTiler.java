@@ -21,6 +21,7 @@
 
 package at.ait.dme.magicktiler.tms;
 
+import java.awt.Point;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -29,6 +30,8 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.Logger;
 import org.im4java.core.IM4JavaException;
@@ -66,7 +69,12 @@ import at.ait.dme.magicktiler.Stripe.Orientation;
  * is added if necessary in the same step.</li>
  * <li>The base image stripes are cut to tiles.</li>
  * <li>For each additional zoom level, the stripes of the zoom level beneath 
- * are merged (adding color buffer if necessary) and cut to tiles.</li>
+ * are merged (adding color buffer if necessary) and cut to tiles. (In {@link PyramidMode#LEVEL_PARALLEL}
+ * mode, each zoom level is instead rendered directly from the base image, and
+ * all levels are striped and tiled in parallel. In {@link PyramidMode#QUADTREE} and
+ * {@link PyramidMode#TILES} mode, each tile is computed in-process from its four child tiles.
+ * This also applies to the default mode if all base tiles were taken straight from the source,
+ * e.g. from a tiled TIFF, which is then never striped.)</li>
  * <li>tilemapresource.xml is generated.</li>
  * <li>HTML preview file is generated (if requested).</li>
  * </ol>
@@ -116,36 +124,54 @@ public class TMSTiler extends MagickTiler {
 
     String baseName = image.getName().substring(0, image.getName().lastIndexOf('.'));
 
-    // Step 1 - stripe the base image
-    log.debug("Striping base image");
-    List<Stripe> baseStripes;
-    try {
-      int canvasHeight = info.getImageHeight() + tileHeight - (info.getImageHeight() % tileHeight);
-      baseStripes = stripeImage(image, Orientation.VERTICAL, info.getNumberOfXTiles(0), tileWidth,
-          info.getImageHeight(), tileWidth, canvasHeight, ImageProcessor.GRAVITY_SOUTHWEST, baseName + "-0-");
-    } catch (Exception e) {
-      throw new TilingException(e.getMessage());
+    checkLevelParallelSource(image);
+    if (pyramidMode == PyramidMode.LEVEL_PARALLEL) {
+      // Steps 1-3 - compute all zoom levels independently, in parallel
+      generateLevelsInParallel(image, info, baseName);
+    } else if (pyramidMode == PyramidMode.QUADTREE || pyramidMode == PyramidMode.TILES) {
+      // Steps 1 & 2 - tile the base image (its stripes are not needed beyond that)
+      for (Stripe s : generateBaseLevel(image, info, baseName))
+        tempDisk.delete(s);
+
+      // Step 3 - compute the pyramid from the base tiles
+      buildPyramidFromTiles(new TMSTileLayout(info));
+    } else {
+      // Steps 1 & 2 - stripe and tile the base image
+      List<Stripe> baseStripes = generateBaseLevel(image, info, baseName);
+
+      // Step 3 - compute the pyramid, from the base tiles if they were all taken from the source
+      if (baseStripes.isEmpty())
+        buildPyramidFromTiles(new TMSTileLayout(info));
+      else
+        buildPyramidFromStripes(baseStripes, info, baseName);
     }
 
-    // Step 2 - tile base image stripes
-    log.debug("Tiling level 1");
-    File baselayerDir = new File(tilesetRootDir, Integer.toString(info.getZoomLevels() - 1));
-    createDir(baselayerDir);
-    for (int i = 0; i < baseStripes.size(); i++) {
-      File targetDir = new File(baselayerDir, Integer.toString(i));
-      createDir(targetDir);
+    // Step 4 - generate metadata and (optional) preview
+    writeMetadata(info, tilesetRootDir);
+
+    log.info("Took " + (System.currentTimeMillis() - startTime) + " ms.");
+    return info;
+  }
+
+  @Override
+  public void writeMetadata(TilesetInfo info, File target) throws TilingException {
+    tilesetRootDir = target;
+    generateTilemapresourceXML(info);
+    if (generatePreview) {
       try {
-        generateTMSTiles(baseStripes.get(i), info, targetDir);
-      } catch (Exception e) {
-        throw new TilingException(e.getMessage());
+        generatePreview(info);
+      } catch (IOException e) {
+        throw new TilingException("Error writing preview HTML: " + e.getMessage());
       }
     }
+  }
 
-    // Step 3 - compute the pyramid
+  private void buildPyramidFromStripes(List<Stripe> baseStripes, TilesetInfo info, String baseName)
+      throws TilingException {
     List<Stripe> levelBeneath = baseStripes;
     List<Stripe> thisLevel = new ArrayList<Stripe>();
     for (int i = 1; i < info.getZoomLevels(); i++) {
-      log.debug("Tiling level " + (i + 1));
+      startPhase("Tiling level " + (i + 1));
       File zoomLevelDir = new File(tilesetRootDir, Integer.toString(info.getZoomLevels() - i - 1));
       createDir(zoomLevelDir);
 
@@ -154,7 +180,7 @@ public class TMSTiler extends MagickTiler {
           // Step 3a - merge stripes from level beneath
           Stripe stripe1 = levelBeneath.get(j * 2);
           Stripe stripe2 = ((j * 2 + 1) < levelBeneath.size()) ? levelBeneath.get(j * 2 + 1) : null;
-          Stripe result = mergeStripes(stripe1, stripe2, baseName + "-" + i + "-" + j + ".tif");
+          Stripe result = mergeStripes(stripe1, stripe2, baseName + "-" + i + "-" + j + getIntermediateExtension());
           thisLevel.add(result);
 
           // Step 3b - tile result stripe
@@ -166,63 +192,171 @@ public class TMSTiler extends MagickTiler {
         }
       }
 
-      for (Stripe s : levelBeneath)
-        s.delete();
+      // The stripes of the level beneath were deleted as soon as they were merged
       levelBeneath = thisLevel;
       thisLevel = new ArrayList<Stripe>();
     }
     for (Stripe s : levelBeneath)
-      s.delete();
+      tempDisk.delete(s);
+  }
 
-    // Step 4 - generate tilemapresource.xml
-    generateTilemapresourceXML(info);
+  private List<Stripe> generateBaseLevel(File image, TilesetInfo info, String baseName) throws TilingException {
+    File baselayerDir = new File(tilesetRootDir, Integer.toString(info.getZoomLevels() - 1));
+    createDir(baselayerDir);
+    for (int i = 0; i < info.getNumberOfXTiles(0); i++)
+      createDir(new File(baselayerDir, Integer.toString(i)));
 
-    // Step 5 (optional) - generate OpenLayers preview
-    if (generatePreview) {
+    // Step 1 - take all base tiles possible straight from the source
+    Set<Point> existingTiles = generateBaseTilesFromSource(image, new TMSTileLayout(info));
+    if (existingTiles.size() == info.getNumberOfXTiles(0) * info.getNumberOfYTiles(0))
+      return new ArrayList<Stripe>();
+
+    // Step 2 - stripe the base image
+    startPhase("Striping base image");
+    List<Stripe> baseStripes;
+    try {
+      int canvasHeight = info.getImageHeight() + tileHeight - (info.getImageHeight() % tileHeight);
+      baseStripes = stripeImage(image, Orientation.VERTICAL, info.getNumberOfXTiles(0), tileWidth,
+          info.getImageHeight(), tileWidth, canvasHeight, ImageProcessor.GRAVITY_SOUTHWEST, baseName + "-0-");
+    } catch (Exception e) {
+      throw new TilingException(e.getMessage());
+    }
+
+    // Step 3 - tile base image stripes
+    startPhase("Tiling level 1");
+    for (int i = 0; i < baseStripes.size(); i++) {
+      File targetDir = new File(baselayerDir, Integer.toString(i));
       try {
-        generatePreview(info);
-      } catch (IOException e) {
-        throw new TilingException("Error writing preview HTML: " + e.getMessage());
+        generateTMSTiles(baseStripes.get(i), info, targetDir, i, existingTiles);
+      } catch (Exception e) {
+        throw new TilingException(e.getMessage());
       }
     }
+    return baseStripes;
+  }
 
-    log.info("Took " + (System.currentTimeMillis() - startTime) + " ms.");
-    return info;
+  private void generateLevelsInParallel(final File image, final TilesetInfo info, final String baseName)
+      throws TilingException {
+
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    tasks.add(new Callable<Void>() {
+      public Void call() throws Exception {
+        for (Stripe s : generateBaseLevel(image, info, baseName))
+          tempDisk.delete(s);
+        return null;
+      }
+    });
+
+    for (int i = 1; i < info.getZoomLevels(); i++) {
+      final int zoomlevel = i;
+      tasks.add(new Callable<Void>() {
+        public Void call() throws Exception {
+          int width = info.getLevelWidth(zoomlevel);
+          int height = info.getLevelHeight(zoomlevel);
+
+          // Level image and stripes, until the level image is deleted
+          long reserved = tempDisk.reserve(2 * estimateTempBytes(width, height));
+          long levelStartTime = System.currentTimeMillis();
+          File levelImage = null;
+          try {
+            levelImage = createLevelImage(image, info, zoomlevel, baseName);
+            List<Stripe> stripes = stripeImage(levelImage, Orientation.VERTICAL, info.getNumberOfXTiles(zoomlevel),
+                tileWidth, height, tileWidth, info.getNumberOfYTiles(zoomlevel) * tileHeight,
+                ImageProcessor.GRAVITY_SOUTHWEST, baseName + "-" + zoomlevel + "-");
+
+            File zoomLevelDir = new File(tilesetRootDir, Integer.toString(info.getZoomLevels() - zoomlevel - 1));
+            createDir(zoomLevelDir);
+            for (int j = 0; j < stripes.size(); j++) {
+              File targetDir = new File(zoomLevelDir, Integer.toString(j));
+              createDir(targetDir);
+              generateTMSTiles(stripes.get(j), info, targetDir);
+              tempDisk.delete(stripes.get(j));
+            }
+            log.debug("Tiled level " + (zoomlevel + 1) + " (" + width + "x" + height + ") in "
+                + (System.currentTimeMillis() - levelStartTime) + " ms");
+          } finally {
+            if (levelImage != null && !tempDisk.delete(levelImage))
+              log.error("Failed to delete level image:" + levelImage);
+            tempDisk.release(reserved);
+          }
+          return null;
+        }
+      });
+    }
+
+    runInParallel(tasks);
   }
 
   private void generateTMSTiles(Stripe stripe, TilesetInfo info, File targetDir) throws IOException,
       InterruptedException, IM4JavaException, TilingException {
 
     // Tile the stripe
-    String filenamePattern = targetDir.getAbsolutePath() + File.separator + "tmp-%d."
+    String tmp = getTempPrefix() + "-%d";
+    String filenamePattern = targetDir.getAbsolutePath() + File.separator + tmp + "."
         + info.getTileFormat().getExtension();
     processor.crop(stripe.getImageFile().getAbsolutePath(), filenamePattern, tileWidth, tileHeight);
 
     // Rename result files (not nice, but seems to be the fastest way to do it)
     for (int i = 0; i < (stripe.getHeight() / tileHeight); i++) {
       File fOld = new File(filenamePattern.replace("%d", Integer.toString(i)));
-      File fNew = new File(filenamePattern.replace("tmp-%d",
+      File fNew = new File(filenamePattern.replace(tmp,
           Integer.toString((stripe.getHeight() / tileHeight) - i - 1)));
       if (!fOld.renameTo(fNew))
         throw new TilingException("Failed to rename file:" + fOld);
     }
   }
 
+  private void generateTMSTiles(Stripe stripe, TilesetInfo info, File targetDir, int col, Set<Point> existingTiles)
+      throws IOException, InterruptedException, IM4JavaException, TilingException {
+
+    int rows = stripe.getHeight() / tileHeight;
+    List<Integer> missing = new ArrayList<Integer>();
+    for (int row = 0; row < rows; row++) {
+      if (!existingTiles.contains(new Point(col, row)))
+        missing.add(row);
+    }
+
+    if (missing.size() == rows) {
+      generateTMSTiles(stripe, info, targetDir);
+    } else {
+      // Only crop the tiles that were not generated losslessly
+      for (int row : missing) {
+        File tile = new File(targetDir, row + "." + info.getTileFormat().getExtension());
+        processor.crop(stripe.getImageFile().getAbsolutePath(), tile.getAbsolutePath(), tileWidth, tileHeight, 0,
+            (rows - row - 1) * tileHeight);
+      }
+    }
+  }
+
+  /**
+   * Merges two stripes of a zoom level (or shrinks the last one, if there is no second stripe)
+   * into one stripe of the next zoom level. The source stripes are deleted right away.
+   */
   protected Stripe mergeStripes(Stripe stripe1, Stripe stripe2, String targetFile) throws IOException,
-      InterruptedException, IM4JavaException {
+      InterruptedException, IM4JavaException, TilingException {
 
     int height = stripe1.getHeight() / 2;
     if ((stripe1.getHeight() / tileHeight) % 2 != 0)
       height += tileHeight / 2;
 
-    if (stripe2 == null) {
-      return stripe1.shrink(ImageProcessor.GRAVITY_SOUTHWEST, tileWidth, height, processor.getBackground(), new File(
-          workingDirectory.getAbsolutePath() + File.separator + targetFile), processor.getImageProcessingSystem());
-    } else {
-      return stripe1.merge(stripe2, ImageProcessor.GRAVITY_SOUTHWEST, tileWidth, height, processor.getBackground(),
-          new File(workingDirectory.getAbsolutePath() + File.separator + targetFile),
-          processor.getImageProcessingSystem());
+    File target = createTempFile(targetFile, tileWidth, height);
+    Stripe result = null;
+    try {
+      if (stripe2 == null) {
+        result = stripe1.shrink(ImageProcessor.GRAVITY_SOUTHWEST, tileWidth, height, processor.getBackground(),
+            target, processor);
+      } else {
+        result = stripe1.merge(stripe2, ImageProcessor.GRAVITY_SOUTHWEST, tileWidth, height,
+            processor.getBackground(), target, processor);
+        tempDisk.delete(stripe2);
+      }
+    } finally {
+      // Release the placement of a failed merge
+      if (result == null)
+        tempDisk.delete(target);
     }
+    tempDisk.delete(stripe1);
+    return tempDisk.add(result);
   }
 
   private void generateTilemapresourceXML(TilesetInfo info) {
@@ -235,7 +369,8 @@ public class TMSTiler extends MagickTiler {
     String metadata = METADATA_TEMPLATE.replace("@title@", info.getImageFile().getName())
         .replace("@width@", Integer.toString(info.getImageWidth()))
         .replace("@height@", Integer.toString(info.getImageHeight()))
-        .replace("@tilewidth@", Integer.toString(tileWidth)).replace("@tileheight@", Integer.toString(tileHeight))
+        .replace("@tilewidth@", Integer.toString(info.getTileWidth()))
+        .replace("@tileheight@", Integer.toString(info.getTileHeight()))
         .replace("@mimetype@", info.getTileFormat().getMimeType())
         .replace("@ext@", info.getTileFormat().getExtension()).replace("@tilesets@", tilesets.toString());
 
@@ -272,6 +407,8 @@ public class TMSTiler extends MagickTiler {
           .replace("@maxZoom@", Integer.toString(info.getZoomLevels() - 1))
           .replace("@maxResolution@", Integer.toString((int) Math.pow(2, info.getZoomLevels() - 1)))
           .replace("@numZoomLevels@", Integer.toString(info.getZoomLevels()))
+          .replace("@tilewidth@", Integer.toString(info.getTileWidth()))
+          .replace("@tileheight@", Integer.toString(info.getTileHeight()))
           .replace("@tilesetpath@", tilesetRootDir.getAbsolutePath().replace("\\", "/") + "/")
           .replace("@ext@", info.getTileFormat().getExtension());
 
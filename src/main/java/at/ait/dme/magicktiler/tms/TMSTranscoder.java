@@ -0,0 +1,303 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.tms;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.xml.parsers.DocumentBuilderFactory;
+
+import org.apache.log4j.Logger;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+
+import at.ait.dme.magicktiler.MagickTiler;
+import at.ait.dme.magicktiler.TileLayout;
+import at.ait.dme.magicktiler.TilesetInfo;
+import at.ait.dme.magicktiler.TilingException;
+import at.ait.dme.magicktiler.composite.CompositeTiler.Scheme;
+import at.ait.dme.magicktiler.gmaps.GoogleMapsTileLayout;
+import at.ait.dme.magicktiler.gmaps.GoogleMapsTiler;
+import at.ait.dme.magicktiler.image.ImageFormat;
+import at.ait.dme.magicktiler.image.ImageInfo;
+import at.ait.dme.magicktiler.image.TileEncoder;
+import at.ait.dme.magicktiler.zoomify.ZoomifyTileLayout;
+import at.ait.dme.magicktiler.zoomify.ZoomifyTiler;
+
+/**
+ * Transcodes an existing TMS tileset (as produced by the {@link TMSTiler}) into a
+ * Zoomify or Google Maps tileset, without going back to the source image.
+ * <br><br>
+ * Both layouts are computed from the tileset's <em>tilemapresource.xml</em>. Every
+ * target tile that covers exactly the pixels of one TMS tile - i.e. same position on
+ * the level image and same size - is hard-linked (or copied, where links are not
+ * supported) from the TMS tileset. All other tiles are re-rendered from the (up to
+ * four) TMS tiles they intersect. For Zoomify, this affects only the cropped border
+ * tiles if the level heights are multiples of the tile height; otherwise TMS's
+ * bottom-left anchoring shifts every row. Google Maps centers the image on a square
+ * canvas, so usually most tiles have to be re-rendered. Since Zoomify tiles are always
+ * JPEG, PNG tilesets are re-encoded completely when transcoded to Zoomify.
+ * <br><br>
+ * The input of {@link #convert(File)} is the TMS tileset root directory. The zoom
+ * levels are transcoded one after the other, the tile columns of each level in parallel.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class TMSTranscoder extends MagickTiler {
+
+  /**
+   * Log4j logger
+   */
+  private static Logger log = Logger.getLogger(TMSTranscoder.class);
+
+  /**
+   * The target scheme (Zoomify or Google Maps)
+   */
+  private Scheme scheme;
+
+  /**
+   * Flag indicating whether identical tiles should be hard-linked rather than copied (default: true)
+   */
+  private boolean hardLinks = true;
+
+  /**
+   * The TMS tileset being transcoded
+   */
+  private File source;
+
+  public TMSTranscoder(Scheme scheme) {
+    if (scheme != Scheme.ZOOMIFY && scheme != Scheme.GMAP)
+      throw new IllegalArgumentException("Unsupported target scheme: " + scheme);
+    this.scheme = scheme;
+  }
+
+  /**
+   * Enables or disables hard links for tiles that can be taken over unchanged.
+   * If disabled (or not supported by the file system), such tiles are copied.
+   *
+   * @param hardLinks true to hard-link tiles
+   */
+  public void setHardLinks(boolean hardLinks) {
+    this.hardLinks = hardLinks;
+  }
+
+  /**
+   * Transcodes a TMS tileset.
+   *
+   * @param tmsRoot the root directory of the TMS tileset
+   * @param target the target directory for the tileset (or null for a directory
+   * named after the TMS tileset, in the working directory)
+   * @return some information about the generated tileset
+   * @throws TilingException if anything goes wrong
+   */
+  @Override
+  protected TilesetInfo convertFile(File tmsRoot, File target) throws TilingException {
+    File metadata = new File(tmsRoot, "tilemapresource.xml");
+    if (!metadata.exists())
+      throw new TilingException("Not a TMS tileset (tilemapresource.xml missing): " + tmsRoot);
+
+    tilesetRootDir = target;
+    createTargetDir(tmsRoot.getName());
+
+    source = tmsRoot;
+    return convert(tmsRoot, readTilesetInfo(metadata));
+  }
+
+  @Override
+  protected TilesetInfo convert(File tmsRoot, TilesetInfo info) throws TilingException {
+    long startTime = System.currentTimeMillis();
+    log.info("Transcoding TMS tileset " + tmsRoot.getName() + " to " + scheme + ": " + info.getImageWidth() + "x"
+        + info.getImageHeight() + ", " + info.getZoomLevels() + " zoom levels");
+
+    // Zoomify tiles are always JPEG - PNG tilesets have to be re-encoded
+    ImageFormat format = (scheme == Scheme.ZOOMIFY) ? ImageFormat.JPEG : info.getTileFormat();
+    final boolean takeOver = format == info.getTileFormat();
+    setTileFormat(format);
+
+    final TileLayout tms = new TMSTileLayout(info);
+    TilesetInfo targetInfo;
+    final TileLayout layout;
+    if (scheme == Scheme.ZOOMIFY) {
+      targetInfo = new TilesetInfo(new ImageInfo(info.getImageFile(), info.getImageWidth(), info.getImageHeight()),
+          info.getTileWidth(), info.getTileHeight(), format);
+      layout = new ZoomifyTileLayout(targetInfo);
+    } else {
+      int size = info.getTileWidth() << (info.getZoomLevels() - 1);
+      targetInfo = new TilesetInfo(new ImageInfo(info.getImageFile(), size, size), info.getTileWidth(),
+          info.getTileHeight(), format);
+      layout = new GoogleMapsTileLayout(targetInfo, info.getImageWidth(), info.getImageHeight());
+    }
+
+    final TileEncoder encoder = createTileEncoder();
+    final Color background = new Color(getBackgroundARGB(), true);
+    final AtomicInteger linked = new AtomicInteger();
+    final AtomicInteger rendered = new AtomicInteger();
+    for (int z = 0; z < info.getZoomLevels(); z++) {
+      List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+      for (int col = 0; col < layout.getColumns(z); col++) {
+        final int zoomlevel = z;
+        final int c = col;
+        tasks.add(new Callable<Void>() {
+          public Void call() throws IOException {
+            for (int row = 0; row < layout.getRows(zoomlevel); row++) {
+              if (transcodeTile(tms, layout, zoomlevel, c, row, takeOver, encoder, background))
+                linked.incrementAndGet();
+              else
+                rendered.incrementAndGet();
+            }
+            return null;
+          }
+        });
+      }
+      runInParallel(tasks);
+    }
+    log.debug(linked + " tiles taken over, " + rendered + " tiles re-rendered");
+
+    MagickTiler tiler = (scheme == Scheme.ZOOMIFY) ? new ZoomifyTiler() : new GoogleMapsTiler();
+    tiler.setTileFormat(format);
+    tiler.setGeneratePreviewHTML(generatePreview);
+    tiler.writeMetadata(targetInfo, tilesetRootDir);
+
+    log.info("Took " + (System.currentTimeMillis() - startTime) + " ms.");
+    return targetInfo;
+  }
+
+  /**
+   * Generates one target tile, by taking over the TMS tile with identical pixels
+   * (if there is one) or by re-rendering it.
+   *
+   * @return true if the tile was taken over, false if it was re-rendered
+   */
+  private boolean transcodeTile(TileLayout tms, TileLayout layout, int zoomlevel, int col, int row,
+      boolean takeOver, TileEncoder encoder, Color background) throws IOException {
+
+    File target = layout.getTileFile(tilesetRootDir, zoomlevel, col, row);
+    File dir = target.getParentFile();
+    if (!dir.mkdirs() && !dir.isDirectory())
+      throw new IOException("Problem creating directory:" + dir);
+
+    // The range of TMS tiles intersecting the target tile (TMS rows count upwards)
+    Rectangle region = layout.getLevelRegion(zoomlevel, col, row);
+    int tw = tms.getTilesetInfo().getTileWidth();
+    int th = tms.getTilesetInfo().getTileHeight();
+    Rectangle origin = tms.getLevelRegion(zoomlevel, 0, 0);
+    int firstCol = Math.max(0, floorDiv(region.x - origin.x, tw));
+    int lastCol = Math.min(tms.getColumns(zoomlevel) - 1, floorDiv(region.x + region.width - 1 - origin.x, tw));
+    int firstRow = Math.max(0, floorDiv(origin.y + th - region.y - region.height, th));
+    int lastRow = Math.min(tms.getRows(zoomlevel) - 1, floorDiv(origin.y + th - 1 - region.y, th));
+
+    if (takeOver && firstCol == lastCol && firstRow == lastRow && tms.getLevelRegion(zoomlevel, firstCol, firstRow).equals(region)) {
+      File tile = tms.getTileFile(source, zoomlevel, firstCol, firstRow);
+      if (tile.exists()) {
+        linkOrCopy(tile, target);
+        return true;
+      }
+    }
+
+    BufferedImage image = new BufferedImage(region.width, region.height, encoder.getImageType());
+    Graphics2D g = image.createGraphics();
+    try {
+      g.setBackground(background);
+      g.clearRect(0, 0, region.width, region.height);
+      for (int c = firstCol; c <= lastCol; c++) {
+        for (int r = firstRow; r <= lastRow; r++) {
+          File tile = tms.getTileFile(source, zoomlevel, c, r);
+          if (!tile.exists())
+            continue;
+          BufferedImage child = ImageIO.read(tile);
+          if (child == null)
+            throw new IOException("Cannot read tile " + tile);
+          Rectangle bounds = tms.getLevelRegion(zoomlevel, c, r);
+          g.drawImage(child, bounds.x - region.x, bounds.y - region.y, null);
+        }
+      }
+    } finally {
+      g.dispose();
+    }
+    encoder.encode(image, target);
+    return false;
+  }
+
+  private void linkOrCopy(File tile, File target) throws IOException {
+    if (hardLinks) {
+      try {
+        Files.deleteIfExists(target.toPath());
+        Files.createLink(target.toPath(), tile.toPath());
+        return;
+      } catch (IOException e) {
+        log.debug("Cannot link " + tile + ", copying: " + e.getMessage());
+      } catch (UnsupportedOperationException e) {
+        log.debug("Cannot link " + tile + ", copying: " + e.getMessage());
+      }
+    }
+    Files.copy(tile.toPath(), target.toPath(), StandardCopyOption.REPLACE_EXISTING);
+  }
+
+  /**
+   * Reads the tileset properties from a tilemapresource.xml file.
+   */
+  private TilesetInfo readTilesetInfo(File metadata) throws TilingException {
+    try {
+      Document doc = DocumentBuilderFactory.newInstance().newDocumentBuilder().parse(metadata);
+      Element bbox = (Element) doc.getElementsByTagName("BoundingBox").item(0);
+      Element format = (Element) doc.getElementsByTagName("TileFormat").item(0);
+      int tileSets = doc.getElementsByTagName("TileSet").getLength();
+
+      // The TMSTiler writes the image height as -minx and the width as maxy
+      int width = (int) Math.round(Double.parseDouble(bbox.getAttribute("maxy")));
+      int height = (int) Math.round(-Double.parseDouble(bbox.getAttribute("minx")));
+      int tileWidth = Integer.parseInt(format.getAttribute("width"));
+      int tileHeight = Integer.parseInt(format.getAttribute("height"));
+      ImageFormat tileFormat = ImageFormat.PNG.getExtension().equals(format.getAttribute("extension")) ? ImageFormat.PNG
+          : ImageFormat.JPEG;
+
+      String title = doc.getElementsByTagName("Title").item(0).getTextContent();
+      TilesetInfo info = new TilesetInfo(new ImageInfo(new File(title), width, height), tileWidth, tileHeight,
+          tileFormat);
+      if (info.getZoomLevels() != tileSets)
+        throw new TilingException("Unexpected number of zoom levels in " + metadata + ": " + tileSets);
+      return info;
+    } catch (TilingException e) {
+      throw e;
+    } catch (Exception e) {
+      throw new TilingException("Cannot read " + metadata + ": " + e.getMessage());
+    }
+  }
+
+  private static int floorDiv(int a, int b) {
+    return (int) Math.floor((double) a / b);
+  }
+
+}
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2010 Austrian Institute of Technology
+ *
+ * Licensed under the EUPL, Version 1.1 or - as soon they
+ * will be approved by the European Commission - subsequent
+ * versions of the EUPL (the "Licence");
+ * you may not use this work except in compliance with the
+ * Licence.
+ * You may obtain a copy of the Licence at:
+ *
+ * http://ec.europa.eu/idabc/eupl
+ *
+ * Unless required by applicable law or agreed to in
+ * writing, software distributed under the Licence is
+ * distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either
+ * express or implied.
+ * See the Licence for the specific language governing
+ * permissions and limitations under the Licence.
+ */
+
+
+package at.ait.dme.magicktiler.zoomify;
+
+import java.io.File;
+
+import at.ait.dme.magicktiler.TileLayout;
+import at.ait.dme.magicktiler.TilesetInfo;
+
+/**
+ * The Zoomify tile layout: the image is anchored at the top-left corner of the tile
+ * grid and border tiles are cropped. Tiles are stored as
+ * <em>TileGroupN/zoomlevel-column-row.jpg</em>, where zoom level 0 is the
+ * lowest-resolution level and each TileGroup holds up to
+ * {@link ZoomifyTiler#MAX_TILES_PER_GROUP} tiles.
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class ZoomifyTileLayout extends TileLayout {
+
+  public ZoomifyTileLayout(TilesetInfo info) {
+    super(info, info.getImageWidth(), info.getImageHeight(), info.getImageWidth(), info.getImageHeight(), 0, 0,
+        Origin.TOP_LEFT, false);
+  }
+
+  /**
+   * Returns the TileGroup number that a tile belongs to.
+   * 
+   * @param zoomlevel the zoom level (0 = highest-resolution level)
+   * @param col the tile column
+   * @param row the tile row
+   * @return the TileGroup number
+   */
+  public int getTileGroup(int zoomlevel, int col, int row) {
+    int idx = 0;
+    for (int i = info.getZoomLevels() - 1; i > zoomlevel; i--)
+      idx += info.getNumberOfXTiles(i) * info.getNumberOfYTiles(i);
+    idx += row * info.getNumberOfXTiles(zoomlevel) + col;
+    return idx / ZoomifyTiler.MAX_TILES_PER_GROUP;
+  }
+
+  @Override
+  public File getTileFile(File tilesetRoot, int zoomlevel, int col, int row) {
+    File tileGroupDir = new File(tilesetRoot, ZoomifyTiler.TILEGROUP + getTileGroup(zoomlevel, col, row));
+    return new File(tileGroupDir, (info.getZoomLevels() - zoomlevel - 1) + "-" + col + "-" + row + ".jpg");
+  }
+
+}
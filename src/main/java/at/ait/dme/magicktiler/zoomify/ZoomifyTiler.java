@@ -21,6 +21,7 @@
 
 package at.ait.dme.magicktiler.zoomify;
 
+import java.awt.Point;
 import java.io.BufferedReader;
 import java.io.BufferedWriter;
 import java.io.File;
@@ -29,6 +30,8 @@ import java.io.IOException;
 import java.io.InputStreamReader;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Callable;
 
 import org.apache.log4j.Logger;
 import org.im4java.core.IM4JavaException;
@@ -72,7 +75,12 @@ import at.ait.dme.magicktiler.Stripe.Orientation;
  * <li>The base image (highest-resolution zoom level) stripes are cut to tiles and
  * placed into the correct TileGroup folders.</li>
  * <li>For each additional zoom level, the stripes of the zoom level beneath 
- * are merged, cut to tiles, and placed in the correct TileGroup folder.</li>
+ * are merged, cut to tiles, and placed in the correct TileGroup folder. (In {@link PyramidMode#LEVEL_PARALLEL}
+ * mode, each zoom level is instead rendered directly from the base image, and
+ * all levels are striped and tiled in parallel. In {@link PyramidMode#QUADTREE} and
+ * {@link PyramidMode#TILES} mode, each tile is computed in-process from its four child tiles.
+ * This also applies to the default mode if all base tiles were taken straight from the source,
+ * e.g. from a tiled TIFF, which is then never striped.)</li>
  * <li>ImageProperties.xml is generated.</li>
  * <li>HTML preview file is generated (if requested).</li>
  * </ol>
@@ -108,43 +116,67 @@ public class ZoomifyTiler extends MagickTiler {
 
     String baseName = image.getName().substring(0, image.getName().lastIndexOf('.'));
 
-    // Step 1 - stripe the base image
-    log.debug("Striping base image");
-    List<Stripe> baseStripes;
-    try {
-      baseStripes = stripeImage(image, Orientation.HORIZONTAL, info.getNumberOfYTiles(0), info.getImageWidth(),
-          tileHeight, baseName + "-0-");
-    } catch (Exception e) {
-      throw new TilingException(e.getMessage());
+    // Steps 1-3 - generate the tiles
+    generatePyramid(image, info, baseName);
+
+    // Step 4 - generate metadata and (optional) preview
+    writeMetadata(info, tilesetRootDir);
+
+    log.info("Took " + (System.currentTimeMillis() - startTime) + " ms.");
+    return info;
+  }
+
+  private void generatePyramid(File image, TilesetInfo info, String baseName) throws TilingException {
+    checkLevelParallelSource(image);
+    if (pyramidMode == PyramidMode.LEVEL_PARALLEL) {
+      // Steps 1-3 - compute all zoom levels independently, in parallel
+      generateLevelsInParallel(image, info, baseName);
+    } else if (pyramidMode == PyramidMode.QUADTREE || pyramidMode == PyramidMode.TILES) {
+      // Steps 1 & 2 - tile the base image (its stripes are not needed beyond that)
+      for (Stripe s : generateBaseLevel(image, info, baseName))
+        tempDisk.delete(s);
+
+      // Step 3 - compute the pyramid from the base tiles
+      buildPyramidFromTiles(new ZoomifyTileLayout(info));
+    } else {
+      // Steps 1 & 2 - stripe and tile the base image
+      List<Stripe> baseStripes = generateBaseLevel(image, info, baseName);
+
+      // Step 3 - compute the pyramid, from the base tiles if they were all taken from the source
+      if (baseStripes.isEmpty())
+        buildPyramidFromTiles(new ZoomifyTileLayout(info));
+      else
+        buildPyramidFromStripes(baseStripes, info, baseName);
     }
+  }
 
-    // Step 2 - tile base image stripes
-    log.debug("Tiling level 1");
-    int zoomlevelStartIdx = info.getTotalNumberOfTiles() - info.getNumberOfXTiles(0) * info.getNumberOfYTiles(0);
-    int offset = zoomlevelStartIdx;
-    for (int i = 0; i < baseStripes.size(); i++) {
+  @Override
+  public void writeMetadata(TilesetInfo info, File target) throws TilingException {
+    tilesetRootDir = target;
+    generateImagePropertiesXML(info);
+    if (generatePreview) {
       try {
-        generateZoomifyTiles(baseStripes.get(i), info.getZoomLevels() - 1, info.getNumberOfXTiles(0), offset, i);
-        offset += info.getNumberOfXTiles(0);
-      } catch (Exception e) {
-        throw new TilingException(e.getMessage());
+        generatePreview(info);
+      } catch (IOException e) {
+        throw new TilingException("Error writing preview HTML: " + e.getMessage());
       }
     }
+  }
 
-    // Step 3 - compute the pyramid
+  private void buildPyramidFromStripes(List<Stripe> baseStripes, TilesetInfo info, String baseName)
+      throws TilingException {
     List<Stripe> levelBeneath = baseStripes;
     List<Stripe> thisLevel = new ArrayList<Stripe>();
 
     for (int i = 1; i < info.getZoomLevels(); i++) {
-      log.debug("Tiling level " + (i + 1));
-      zoomlevelStartIdx -= info.getNumberOfXTiles(i) * info.getNumberOfYTiles(i);
-      offset = zoomlevelStartIdx;
+      startPhase("Tiling level " + (i + 1));
+      int offset = getStartIndex(info, i);
       for (int j = 0; j < Math.ceil((double) levelBeneath.size() / 2); j++) {
         try {
           // Step 3a - merge stripes from level beneath
           Stripe stripe1 = levelBeneath.get(j * 2);
           Stripe stripe2 = ((j * 2 + 1) < levelBeneath.size()) ? levelBeneath.get(j * 2 + 1) : null;
-          Stripe result = mergeStripes(stripe1, stripe2, baseName + "-" + i + "-" + j + ".tif");
+          Stripe result = mergeStripes(stripe1, stripe2, baseName + "-" + i + "-" + j + getIntermediateExtension());
           thisLevel.add(result);
 
           // Step 3b - tile result stripe
@@ -155,72 +187,205 @@ public class ZoomifyTiler extends MagickTiler {
         }
       }
 
-      for (Stripe s : levelBeneath)
-        s.delete();
+      // The stripes of the level beneath were deleted as soon as they were merged
       levelBeneath = thisLevel;
       thisLevel = new ArrayList<Stripe>();
     }
 
     for (Stripe s : levelBeneath)
-      s.delete();
+      tempDisk.delete(s);
+  }
 
-    // Step 4 - generate ImageProperties.xml file
-    generateImagePropertiesXML(info);
+  private List<Stripe> generateBaseLevel(File image, TilesetInfo info, String baseName) throws TilingException {
+    // Step 1 - take all base tiles possible straight from the source
+    Set<Point> existingTiles = generateBaseTilesFromSource(image, new ZoomifyTileLayout(info));
+    if (existingTiles.size() == info.getNumberOfXTiles(0) * info.getNumberOfYTiles(0))
+      return new ArrayList<Stripe>();
 
-    // Step 5 (optional) - generate OpenLayers preview
-    if (generatePreview) {
+    // Step 2 - stripe the base image
+    startPhase("Striping base image");
+    List<Stripe> baseStripes;
+    try {
+      baseStripes = stripeImage(image, Orientation.HORIZONTAL, info.getNumberOfYTiles(0), info.getImageWidth(),
+          tileHeight, baseName + "-0-");
+    } catch (Exception e) {
+      throw new TilingException(e.getMessage());
+    }
+
+    // Step 3 - tile base image stripes
+    startPhase("Tiling level 1");
+    int offset = getStartIndex(info, 0);
+    for (int i = 0; i < baseStripes.size(); i++) {
       try {
-        generatePreview(info);
-      } catch (IOException e) {
-        throw new TilingException("Error writing preview HTML: " + e.getMessage());
+        generateZoomifyTiles(baseStripes.get(i), info.getZoomLevels() - 1, info.getNumberOfXTiles(0), offset, i,
+            existingTiles);
+        offset += info.getNumberOfXTiles(0);
+      } catch (Exception e) {
+        throw new TilingException(e.getMessage());
       }
     }
+    return baseStripes;
+  }
 
-    log.info("Took " + (System.currentTimeMillis() - startTime) + " ms.");
-    return info;
+  private void generateLevelsInParallel(final File image, final TilesetInfo info, final String baseName)
+      throws TilingException {
+
+    List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+    tasks.add(new Callable<Void>() {
+      public Void call() throws Exception {
+        for (Stripe s : generateBaseLevel(image, info, baseName))
+          tempDisk.delete(s);
+        return null;
+      }
+    });
+
+    for (int i = 1; i < info.getZoomLevels(); i++) {
+      final int zoomlevel = i;
+      tasks.add(new Callable<Void>() {
+        public Void call() throws Exception {
+          int width = info.getLevelWidth(zoomlevel);
+
+          // Level image and stripes, until the level image is deleted
+          long reserved = tempDisk.reserve(2 * estimateTempBytes(width, info.getLevelHeight(zoomlevel)));
+          long levelStartTime = System.currentTimeMillis();
+          File levelImage = null;
+          try {
+            levelImage = createLevelImage(image, info, zoomlevel, baseName);
+            List<Stripe> stripes = stripeImage(levelImage, Orientation.HORIZONTAL,
+                info.getNumberOfYTiles(zoomlevel), width, tileHeight, baseName + "-" + zoomlevel + "-");
+
+            int offset = getStartIndex(info, zoomlevel);
+            for (int j = 0; j < stripes.size(); j++) {
+              generateZoomifyTiles(stripes.get(j), info.getZoomLevels() - zoomlevel - 1,
+                  info.getNumberOfXTiles(zoomlevel), offset, j);
+              offset += info.getNumberOfXTiles(zoomlevel);
+              tempDisk.delete(stripes.get(j));
+            }
+            log.debug("Tiled level " + (zoomlevel + 1) + " (" + width + "x" + info.getLevelHeight(zoomlevel)
+                + ") in " + (System.currentTimeMillis() - levelStartTime) + " ms");
+          } finally {
+            if (levelImage != null && !tempDisk.delete(levelImage))
+              log.error("Failed to delete level image:" + levelImage);
+            tempDisk.release(reserved);
+          }
+          return null;
+        }
+      });
+    }
+
+    runInParallel(tasks);
+  }
+
+  /**
+   * Returns the index of the first tile of a zoom level in the TileGroup
+   * numbering (which starts at the lowest-resolution level).
+   */
+  private int getStartIndex(TilesetInfo info, int zoomlevel) {
+    int idx = info.getTotalNumberOfTiles();
+    for (int i = 0; i <= zoomlevel; i++)
+      idx -= info.getNumberOfXTiles(i) * info.getNumberOfYTiles(i);
+    return idx;
+  }
+
+  private synchronized File getTileGroupDir(int tileGroup) throws TilingException {
+    File tileGroupDir = new File(tilesetRootDir.getAbsolutePath() + File.separator + TILEGROUP + tileGroup);
+    if (!tileGroupDir.exists() && !tileGroupDir.mkdir() && !tileGroupDir.isDirectory())
+      throw new TilingException("Problem creating directory:" + tileGroupDir);
+    return tileGroupDir;
   }
 
   private void generateZoomifyTiles(Stripe stripe, int zoomlevel, int xTiles, int startIdx, int rowNumber)
       throws IOException, InterruptedException, IM4JavaException, TilingException {
 
-    String filenamePattern = tilesetRootDir + File.separator + "tmp-%d.jpg";
+    // Temp file names must be unique per zoom level, since levels may be tiled in parallel
+    String filenamePattern = tilesetRootDir + File.separator + getTempPrefix() + "-" + zoomlevel + "-%d.jpg";
     processor.crop(stripe.getImageFile().getAbsolutePath(), filenamePattern, tileWidth, tileHeight);
 
     // Rename result files (not nice, but seems to be the fastest way to do it)
     for (int idx = 0; idx < xTiles; idx++) {
-      int tileGroup = (startIdx + idx) / MAX_TILES_PER_GROUP;
-      File tileGroupDir = new File(tilesetRootDir.getAbsolutePath() + File.separator + TILEGROUP + tileGroup);
-      if (!tileGroupDir.exists())
-        createDir(tileGroupDir);
+      File tileGroupDir = getTileGroupDir((startIdx + idx) / MAX_TILES_PER_GROUP);
 
       File fOld = new File(filenamePattern.replace("%d", Integer.toString(idx)));
-
-      File fNew = new File(
-          filenamePattern.replace("tmp-%d", TILEGROUP + tileGroup + File.separator + Integer.toString(zoomlevel) + "-"
-              + (idx % xTiles) + "-" + rowNumber));
+      File fNew = new File(tileGroupDir, zoomlevel + "-" + (idx % xTiles) + "-" + rowNumber + ".jpg");
 
       if (!fOld.renameTo(fNew))
         throw new TilingException("Failed to rename file:" + fOld);
     }
   }
 
-  private Stripe mergeStripes(Stripe stripe1, Stripe stripe2, String targetFile) throws IOException,
-      InterruptedException, IM4JavaException {
+  private void generateZoomifyTiles(Stripe stripe, int zoomlevel, int xTiles, int startIdx, int rowNumber,
+      Set<Point> existingTiles) throws IOException, InterruptedException, IM4JavaException, TilingException {
 
-    if (stripe2 == null) {
-      return stripe1.shrink(new File(workingDirectory.getAbsolutePath() + File.separator + targetFile),
-          processor.getImageProcessingSystem());
+    List<Integer> missing = new ArrayList<Integer>();
+    for (int idx = 0; idx < xTiles; idx++) {
+      if (!existingTiles.contains(new Point(idx, rowNumber)))
+        missing.add(idx);
+    }
+
+    if (missing.size() == xTiles) {
+      generateZoomifyTiles(stripe, zoomlevel, xTiles, startIdx, rowNumber);
     } else {
-      return stripe1.merge(stripe2, new File(workingDirectory.getAbsolutePath() + File.separator + targetFile),
-          processor.getImageProcessingSystem());
+      // Only crop the tiles that were not generated losslessly
+      for (int idx : missing) {
+        File tileGroupDir = getTileGroupDir((startIdx + idx) / MAX_TILES_PER_GROUP);
+
+        File tile = new File(tileGroupDir, zoomlevel + "-" + idx + "-" + rowNumber + ".jpg");
+        processor.crop(stripe.getImageFile().getAbsolutePath(), tile.getAbsolutePath(), tileWidth, tileHeight, idx
+            * tileWidth, 0);
+      }
+    }
+  }
+
+  /**
+   * Merges two stripes of a zoom level (or shrinks the last one, if there is no second stripe)
+   * into one stripe of the next zoom level. The source stripes are deleted right away.
+   */
+  private Stripe mergeStripes(Stripe stripe1, Stripe stripe2, String targetFile) throws IOException,
+      InterruptedException, IM4JavaException, TilingException {
+
+    int height = (stripe1.getHeight() + ((stripe2 != null) ? stripe2.getHeight() : 0)) / 2;
+    File target = createTempFile(targetFile, stripe1.getWidth() / 2, height);
+
+    Stripe result = null;
+    try {
+      if (stripe2 == null) {
+        result = stripe1.shrink(null, -1, -1, null, target, processor);
+      } else {
+        result = stripe1.merge(stripe2, null, -1, -1, null, target, processor);
+        tempDisk.delete(stripe2);
+      }
+    } finally {
+      // Release the placement of a failed merge
+      if (result == null)
+        tempDisk.delete(target);
     }
+    tempDisk.delete(stripe1);
+    return tempDisk.add(result);
+  }
+
+  private String getImageProperties(TilesetInfo info) {
+    return getImageProperties(info.getImageWidth(), info.getImageHeight(), info.getTotalNumberOfTiles(),
+        info.getTileHeight());
+  }
+
+  /**
+   * Returns the content of an ImageProperties.xml descriptor.
+   * 
+   * @param width the image width
+   * @param height the image height
+   * @param numTiles the total number of tiles
+   * @param tileSize the tile size
+   * @return the ImageProperties XML
+   */
+  public static String getImageProperties(int width, int height, int numTiles, int tileSize) {
+    return METADATA_TEMPLATE.replace("@width@", Integer.toString(width))
+        .replace("@height@", Integer.toString(height))
+        .replace("@numtiles@", Integer.toString(numTiles))
+        .replace("@tilesize@", Integer.toString(tileSize));
   }
 
   private void generateImagePropertiesXML(TilesetInfo info) {
-    String metadata = METADATA_TEMPLATE.replace("@width@", Integer.toString(info.getImageWidth()))
-        .replace("@height@", Integer.toString(info.getImageHeight()))
-        .replace("@numtiles@", Integer.toString(info.getTotalNumberOfTiles()))
-        .replace("@tilesize@", Integer.toString(tileHeight));
+    String metadata = getImageProperties(info);
 
     // Write to file
     BufferedWriter out = null;
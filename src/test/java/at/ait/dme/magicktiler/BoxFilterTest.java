@@ -0,0 +1,69 @@
+package at.ait.dme.magicktiler;
+
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+import at.ait.dme.magicktiler.image.BoxFilter;
+
+/**
+ * Box filter tests
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class BoxFilterTest extends BaseTest {
+
+  @Test
+  public void testPackedMatchesScalar() {
+    Random random = new Random(42);
+    int[][] sizes = new int[][] { { 1, 1 }, { 2, 2 }, { 5, 3 }, { 256, 256 }, { 257, 131 } };
+    for (int channels = 1; channels <= 4; channels++) {
+      for (int[] size : sizes) {
+        byte[] src = new byte[size[0] * size[1] * channels];
+        random.nextBytes(src);
+
+        int w = BoxFilter.scaledSize(size[0]);
+        int h = BoxFilter.scaledSize(size[1]);
+        byte[] expected = new byte[w * h * channels];
+        BoxFilter.downsampleScalar(src, size[0], size[1], channels, expected, w, h, 0, 0, null);
+        assertTrue("Mismatch for " + size[0] + "x" + size[1] + "x" + channels,
+            Arrays.equals(expected, BoxFilter.downsample(src, size[0], size[1], channels)));
+      }
+    }
+  }
+
+  @Test
+  public void testAverages() {
+    // 3x3 RGB: the last column and row only average the remaining pixels
+    byte[] src = new byte[] { 0, 0, 0, 4, 4, 4, 9, 9, 9,
+                              8, 8, 8, 12, 12, 12, 1, 1, 1,
+                              (byte) 200, 0, 0, (byte) 100, 0, 0, 50, 0, 0 };
+    byte[] dst = BoxFilter.downsample(src, 3, 3, 3);
+    assertEquals(12, dst.length);
+    assertEquals(6, dst[0]);
+    assertEquals(5, dst[3]);
+    assertEquals(150, dst[6] & 0xff);
+    assertEquals(50, dst[9]);
+  }
+
+  @Test
+  public void testBackground() {
+    // 4x2 RGBA, placed at the bottom of a 3x3 target
+    byte[] src = new byte[4 * 2 * 4];
+    Arrays.fill(src, (byte) 10);
+    byte[] background = BoxFilter.toBGR(0x80ff0000, 4);
+    byte[] dst = new byte[3 * 3 * 4];
+    BoxFilter.downsample(src, 4, 2, 4, dst, 3, 3, 0, 2, background);
+
+    for (int y = 0; y < 3; y++) {
+      for (int x = 0; x < 3; x++) {
+        int i = (y * 3 + x) * 4;
+        boolean image = y == 2 && x < 2;
+        byte[] expected = image ? new byte[] { 10, 10, 10, 10 } : new byte[] { (byte) 0x80, 0, 0, (byte) 0xff };
+        assertTrue("Wrong pixel at " + x + "," + y, Arrays.equals(expected, Arrays.copyOfRange(dst, i, i + 4)));
+      }
+    }
+  }
+}
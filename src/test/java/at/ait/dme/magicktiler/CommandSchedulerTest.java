@@ -0,0 +1,80 @@
+package at.ait.dme.magicktiler;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import at.ait.dme.magicktiler.image.CommandScheduler;
+
+/**
+ * Command scheduler tests
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class CommandSchedulerTest extends BaseTest {
+
+  @Test
+  public void testAdmission() throws InterruptedException {
+    final CommandScheduler scheduler = new CommandScheduler(100 << 20, 2);
+
+    // Two commands of 60 MB don't fit the budget together
+    long first = scheduler.acquire(60 << 20);
+    final CountDownLatch admitted = new CountDownLatch(1);
+    Thread second = new Thread() {
+      public void run() {
+        try {
+          long granted = scheduler.acquire(60 << 20);
+          admitted.countDown();
+          scheduler.release(granted);
+        } catch (InterruptedException e) {
+          // Test fails below
+        }
+      }
+    };
+    second.start();
+    assertFalse("Command admitted beyond budget!", admitted.await(200, TimeUnit.MILLISECONDS));
+    scheduler.release(first);
+    assertTrue("Command not admitted!", admitted.await(5, TimeUnit.SECONDS));
+    second.join();
+
+    // A command larger than the budget runs alone, capped at the budget
+    long granted = scheduler.acquire(500 << 20);
+    assertEquals("Wrong memory granted!", 100 << 20, granted);
+    assertEquals("Wrong limits!", Arrays.asList("-limit", "memory", "100MB", "-limit", "map", "100MB", "-limit",
+        "threads", Integer.toString(Math.max(1, Runtime.getRuntime().availableProcessors() / 2))),
+        scheduler.getLimitArgs(granted));
+    scheduler.release(granted);
+  }
+
+  @Test
+  public void testSharedScheduler() throws InterruptedException, IOException {
+    File workingDir = new File("test/scheduler");
+    deleteDir(workingDir);
+    workingDir.mkdirs();
+    File image = new File(workingDir, "source.png");
+    ImageIO.write(new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB), "png", image);
+    List<String> sources = Arrays.asList(image.getAbsolutePath());
+
+    // Without a budget, nothing is estimated or limited
+    CommandScheduler shared = CommandScheduler.getShared();
+    assertEquals("Unexpected estimate!", 0,
+        shared.estimate(sources, 1000));
+    assertEquals("Unexpected limits!", Collections.emptyList(), shared.getLimitArgs(shared.acquire(0)));
+    shared.release(0);
+
+    // With a budget, the source dimensions are read from the header
+    CommandScheduler scheduler = new CommandScheduler(1L << 30, 4);
+    assertEquals("Wrong estimate!", (300 * 200 + 1000) * CommandScheduler.BYTES_PER_PIXEL,
+        scheduler.estimate(sources, 1000));
+  }
+}
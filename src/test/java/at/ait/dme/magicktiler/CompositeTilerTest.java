@@ -0,0 +1,114 @@
+package at.ait.dme.magicktiler;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import at.ait.dme.magicktiler.composite.CompositeTiler;
+import at.ait.dme.magicktiler.composite.CompositeTiler.Scheme;
+import at.ait.dme.magicktiler.image.TiledTIFFWriter;
+import at.ait.dme.magicktiler.ptif.PTIFReader;
+
+/**
+ * Composite tiling tests
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class CompositeTilerTest extends BaseTest {
+
+  private File workingDir = new File("test/composite");
+
+  @Before
+  public void setUp() {
+    deleteDir(workingDir);
+  }
+
+  @Test
+  public void testCompositeTiling() throws TilingException, IOException {
+    CompositeTiler t = new CompositeTiler(Scheme.TMS, Scheme.ZOOMIFY, Scheme.GMAP, Scheme.PTIF);
+    t.setWorkingDirectory(workingDir);
+    TilesetInfo info = t.convert(new File("src/test/resources/Hong_Kong_Night_Skyline.jpg"));
+    assertEquals("Wrong number of zoom levels!", 6, info.getZoomLevels());
+
+    // TMS: 19x8 base tiles, rows counted from the bottom
+    File tms = t.getTilesetRootDir(Scheme.TMS);
+    assertTrue("tilemapresource.xml missing!", new File(tms, "tilemapresource.xml").exists());
+    assertTrue("TMS base tile missing!", new File(tms, "5/18/7.jpg").exists());
+    assertFalse("Unexpected TMS tile!", new File(tms, "5/19/0.jpg").exists());
+
+    // Zoomify: 208 tiles in TileGroup0
+    File zoomify = t.getTilesetRootDir(Scheme.ZOOMIFY);
+    assertTrue("ImageProperties.xml missing!", new File(zoomify, "ImageProperties.xml").exists());
+    assertEquals("Wrong number of Zoomify tiles!", 208, new File(zoomify, "TileGroup0").list().length);
+
+    // Google Maps: 32x32 base tiles on the square canvas
+    File gmap = t.getTilesetRootDir(Scheme.GMAP);
+    assertTrue("Google Maps metadata missing!", new File(gmap, "gmap_tileset.info").exists());
+    assertTrue("Google Maps base tile missing!", new File(gmap, "5_31_31.jpg").exists());
+
+    // PTIF: one IFD per zoom level
+    PTIFReader reader = new PTIFReader(t.getTilesetRootDir(Scheme.PTIF));
+    try {
+      assertEquals("Wrong number of PTIF levels!", 6, reader.getZoomLevels());
+      assertEquals("Wrong PTIF width!", 4670, reader.getImageWidth());
+      assertNotNull("PTIF tile missing!", reader.getTile(0, 18, 7));
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testTileSizes() throws TilingException {
+    CompositeTiler t = new CompositeTiler(Scheme.TMS);
+    t.setWorkingDirectory(workingDir);
+    t.setTileSizes(256, 512);
+    t.convert(new File("src/test/resources/Hong_Kong_Night_Skyline.jpg"));
+
+    // 512 pixel tiles: 10x4 base tiles, one zoom level less
+    File tms256 = t.getTilesetRootDir(Scheme.TMS, 256);
+    File tms512 = t.getTilesetRootDir(Scheme.TMS, 512);
+    assertEquals("Wrong tileset directory!", "tms-512", tms512.getName());
+    assertTrue("tilemapresource.xml missing!", new File(tms512, "tilemapresource.xml").exists());
+    assertTrue("Base tile missing!", new File(tms256, "5/18/7.jpg").exists());
+    assertTrue("Base tile missing!", new File(tms512, "4/9/3.jpg").exists());
+    assertFalse("Unexpected zoom level!", new File(tms512, "5").exists());
+  }
+
+  @Test
+  public void testTiledTIFFWriter() throws IOException {
+    workingDir.mkdirs();
+    File file = new File(workingDir, "written.tif");
+
+    // 600x300 -> 3x2 tiles, 300x150 -> 2x1 tiles, written out of order
+    TiledTIFFWriter writer = new TiledTIFFWriter(file, 256, 256);
+    writer.addLevel(600, 300);
+    writer.addLevel(300, 150);
+    writer.writeTile(1, 1, 0, fakeJPEG(1, 1, 0));
+    for (int row = 1; row >= 0; row--) {
+      for (int col = 0; col < 3; col++)
+        writer.writeTile(0, col, row, fakeJPEG(0, col, row));
+    }
+    writer.writeTile(1, 0, 0, fakeJPEG(1, 0, 0));
+    writer.close();
+
+    PTIFReader reader = new PTIFReader(file);
+    try {
+      assertEquals("Wrong number of levels!", 2, reader.getZoomLevels());
+      assertEquals("Wrong image height!", 300, reader.getImageHeight());
+      assertEquals("Wrong number of x-tiles!", 2, reader.getNumberOfXTiles(1));
+      assertTrue("Wrong tile!", Arrays.equals(fakeJPEG(0, 2, 1), reader.getTile(0, 2, 1)));
+      assertTrue("Wrong tile!", Arrays.equals(fakeJPEG(1, 0, 0), reader.getTile(1, 0, 0)));
+      assertTrue("Wrong tile!", Arrays.equals(fakeJPEG(1, 1, 0), reader.getTMSTile(0, 1, 0)));
+    } finally {
+      reader.close();
+    }
+  }
+
+  private byte[] fakeJPEG(int level, int col, int row) {
+    return new byte[] { (byte) 0xff, (byte) 0xd8, (byte) level, (byte) col, (byte) row, (byte) 0xff, (byte) 0xd9 };
+  }
+}
@@ -1,9 +1,34 @@
 package at.ait.dme.magicktiler;
 
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.nio.file.Files;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import javax.imageio.ImageIO;
+import javax.xml.parsers.DocumentBuilderFactory;
 
 import org.junit.Before;
 import org.junit.Test;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.NodeList;
+
+import at.ait.dme.magicktiler.geo.BoundingBox;
+import at.ait.dme.magicktiler.kml.KMLSuperOverlayTiler;
+import at.ait.dme.magicktiler.kml.KMLTemplate;
 
 /**
  * KML tiling tests
@@ -24,12 +49,148 @@ public class KMLTest extends BaseTest {
   }
 
   @Test
-  public void testKMLTiling() throws TilingException {
-    /* Generate a KML tileset from the test image
+  public void testKMZSuperOverlay() throws Exception {
+    // Tile a small JPEG (4x2 base tiles, 3 zoom levels) into KMZ archives of two zoom levels
+    workingDir.mkdirs();
+    File source = new File(workingDir, "map.jpg");
+    BufferedImage image = new BufferedImage(1000, 500, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < image.getHeight(); y++)
+      for (int x = 0; x < image.getWidth(); x++)
+        image.setRGB(x, y, ((x * 255 / 1000) << 16) | ((y * 255 / 500) << 8));
+    ImageIO.write(image, "jpeg", source);
+
     KMLSuperOverlayTiler t = new KMLSuperOverlayTiler();
     t.setWorkingDirectory(workingDir);
     t.setBoundingBox(new BoundingBox(48, 38, 20, 0));
-    t.convert(new File("src/test/resources/OrteliusWorldMap1570.jpg"));
-    */
+    t.setKMZDepth(2);
+    TilesetInfo info = t.convert(source);
+    assertEquals("Wrong number of zoom levels!", 3, info.getZoomLevels());
+
+    // Read the tileset - the entries of an archive are read as files below the archive
+    Map<String, byte[]> files = new HashMap<String, byte[]>();
+    Map<String, String> archiveDocuments = new HashMap<String, String>();
+    readTileset(t.getTilesetRootDir(), "", files, archiveDocuments);
+    assertEquals("Wrong number of KMZ archives!", 1 + 8, archiveDocuments.size());
+    for (Map.Entry<String, String> archive : archiveDocuments.entrySet()) {
+      String kmz = archive.getKey();
+      assertEquals("Wrong first entry in " + kmz + "!",
+          kmz + "/" + kmz.substring(0, kmz.length() - ".kmz".length()) + ".kml", archive.getValue());
+    }
+
+    // Follow the network links from the root KML: each tile must be reached exactly once, and
+    // the region of each link must be the linked tile's region (and lie within the linking tile)
+    Set<String> visited = new HashSet<String>();
+    LinkedList<String> queue = new LinkedList<String>();
+    Map<String, double[]> linkedRegions = new HashMap<String, double[]>();
+    queue.add("map.kml");
+    while (!queue.isEmpty()) {
+      String path = queue.removeFirst();
+      assertTrue("Missing KML document: " + path, files.containsKey(path));
+      Document kml = DocumentBuilderFactory.newInstance().newDocumentBuilder()
+          .parse(new ByteArrayInputStream(files.get(path)));
+
+      double[] region = null;
+      if (linkedRegions.containsKey(path)) {
+        assertTrue("Tile reached twice: " + path, visited.add(path));
+        Element document = (Element) kml.getElementsByTagName("Document").item(0);
+        region = getBox((Element) document.getElementsByTagName("LatLonAltBox").item(0));
+        assertBox("Wrong region in " + path, linkedRegions.get(path), region);
+
+        Element overlay = (Element) document.getElementsByTagName("GroundOverlay").item(0);
+        String img = resolve(path, getText(overlay, "href"));
+        assertTrue("Missing tile: " + img, files.containsKey(img));
+        assertBox("Wrong overlay bounds in " + path, region,
+            getBox((Element) overlay.getElementsByTagName("LatLonBox").item(0)));
+      }
+
+      NodeList links = kml.getElementsByTagName("NetworkLink");
+      for (int i = 0; i < links.getLength(); i++) {
+        Element link = (Element) links.item(i);
+        String target = resolve(path, getText(link, "href"));
+        if (target.endsWith(".kmz")) {
+          assertTrue("Missing KMZ archive: " + target, archiveDocuments.containsKey(target));
+          target = archiveDocuments.get(target);
+        }
+        double[] linkRegion = getBox((Element) link.getElementsByTagName("LatLonAltBox").item(0));
+        if (region != null) {
+          assertTrue("Region of " + target + " outside of " + path,
+              linkRegion[0] <= region[0] && linkRegion[1] >= region[1] &&
+              linkRegion[2] <= region[2] && linkRegion[3] >= region[3]);
+        }
+        linkedRegions.put(target, linkRegion);
+        queue.add(target);
+      }
+    }
+    assertEquals("Not all tiles linked!", info.getTotalNumberOfTiles(), visited.size());
+
+    // The top tile covers the bounding box, aligned to its south-west corner
+    double[] top = linkedRegions.get("0/0/0.kmz/0/0/0.kml");
+    assertBox("Wrong top tile region", new double[] { 38 + 10.0 * 1024 / 500, 38, 20.0 * 1024 / 1000, 0 }, top);
+  }
+
+  @Test
+  public void testKMLTemplate() {
+    KMLTemplate template = new KMLTemplate("<north>@north@</north><south>@south@</south><n>@north@</n>", "south",
+        "north");
+    StringBuilder kml = new StringBuilder("<kml>");
+    template.append(kml, 38.5, 48.0);
+    assertEquals("Wrong KML!", "<kml><north>48.0</north><south>38.5</south><n>48.0</n>", kml.toString());
+
+    // Templates can be re-used, and unknown placeholders are left alone
+    template = new KMLTemplate("@href@ @unknown@", "href");
+    assertEquals("Wrong KML!", "0/0/0.kml @unknown@", template.append(new StringBuilder(), "0/0/0.kml").toString());
+  }
+
+  private void readTileset(File dir, String path, Map<String, byte[]> files, Map<String, String> archiveDocuments)
+      throws IOException {
+    for (File file : dir.listFiles()) {
+      String filePath = path + file.getName();
+      if (file.isDirectory()) {
+        readTileset(file, filePath + "/", files, archiveDocuments);
+      } else if (filePath.endsWith(".kmz")) {
+        ZipInputStream in = new ZipInputStream(new FileInputStream(file));
+        try {
+          ZipEntry entry;
+          while ((entry = in.getNextEntry()) != null) {
+            String entryPath = filePath + "/" + entry.getName();
+            if (!archiveDocuments.containsKey(filePath))
+              archiveDocuments.put(filePath, entryPath);
+            files.put(entryPath, readFully(in));
+          }
+        } finally {
+          in.close();
+        }
+      } else {
+        files.put(filePath, Files.readAllBytes(file.toPath()));
+      }
+    }
+  }
+
+  private static byte[] readFully(InputStream in) throws IOException {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    byte[] buffer = new byte[8192];
+    int len;
+    while ((len = in.read(buffer)) > 0)
+      out.write(buffer, 0, len);
+    return out.toByteArray();
+  }
+
+  private static String resolve(String path, String href) {
+    return URI.create(path).resolve(href).toString();
+  }
+
+  private static String getText(Element element, String tag) {
+    return element.getElementsByTagName(tag).item(0).getTextContent();
+  }
+
+  private static double[] getBox(Element box) {
+    return new double[] {
+        Double.parseDouble(getText(box, "north")), Double.parseDouble(getText(box, "south")),
+        Double.parseDouble(getText(box, "east")), Double.parseDouble(getText(box, "west")) };
+  }
+
+  private static void assertBox(String message, double[] expected, double[] actual) {
+    for (int i = 0; i < expected.length; i++)
+      assertEquals(message, expected[i], actual[i], 1e-9);
   }
 }
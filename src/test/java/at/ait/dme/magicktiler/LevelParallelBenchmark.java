@@ -0,0 +1,58 @@
+package at.ait.dme.magicktiler;
+
+import java.io.File;
+
+import at.ait.dme.magicktiler.MagickTiler.PyramidMode;
+import at.ait.dme.magicktiler.tms.TMSTiler;
+
+/**
+ * Benchmark comparing the STRIPES and LEVEL_PARALLEL pyramid modes: tiles a JPEG in both
+ * modes and prints the time taken and the PSNR between the two results for every zoom level.
+ * Not part of the unit tests - run it with 'ant benchmark' (the image defaults to the
+ * test image, use -Dbenchmark.image=... to specify another JPEG).
+ *
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class LevelParallelBenchmark {
+
+  public static void main(String[] args) throws Exception {
+    File source = new File((args.length > 0) ? args[0] : "src/test/resources/Hong_Kong_Night_Skyline.jpg");
+    File workingDir = new File("test/benchmark");
+    String baseName = source.getName().substring(0, source.getName().lastIndexOf('.'));
+
+    TilesetInfo info = null;
+    for (PyramidMode mode : new PyramidMode[] { PyramidMode.STRIPES, PyramidMode.LEVEL_PARALLEL }) {
+      File dir = new File(workingDir, mode.name());
+      deleteDir(dir);
+
+      MagickTiler t = new TMSTiler();
+      t.setWorkingDirectory(dir);
+      t.setPyramidMode(mode);
+      long startTime = System.currentTimeMillis();
+      info = t.convert(source);
+      System.out.println(mode + ": " + (System.currentTimeMillis() - startTime) + " ms");
+    }
+
+    File stripes = new File(workingDir, PyramidMode.STRIPES.name() + File.separator + baseName);
+    File parallel = new File(workingDir, PyramidMode.LEVEL_PARALLEL.name() + File.separator + baseName);
+    for (int i = 0; i < info.getZoomLevels(); i++) {
+      double psnr = TMSTest.getPSNR(stripes, parallel, i);
+      System.out.println("Zoom level " + i + ": PSNR " + Math.round(psnr * 10) / 10.0 + " dB");
+    }
+  }
+
+  private static void deleteDir(File path) {
+    File[] files = path.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        if (file.isDirectory())
+          deleteDir(file);
+        else
+          file.delete();
+      }
+    }
+    path.delete();
+  }
+
+}
@@ -0,0 +1,204 @@
+package at.ait.dme.magicktiler;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import at.ait.dme.magicktiler.image.LosslessJPEGCropper;
+
+/**
+ * Lossless JPEG cropping tests
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class LosslessJPEGCropperTest extends BaseTest {
+
+  private File workingDir = new File("test/lossless");
+
+  @Test
+  public void testGrayscaleCrop() throws IOException {
+    // Grayscale crops must be pixel-identical to the source
+    assertCrops(BufferedImage.TYPE_BYTE_GRAY, 0);
+  }
+
+  @Test
+  public void testColorCrop() throws IOException {
+    // Chroma upsampling uses neighbouring pixels - ignore the crop borders
+    assertCrops(BufferedImage.TYPE_INT_RGB, 1);
+  }
+
+  @Test
+  public void testAPPSegments() throws IOException {
+    deleteDir(workingDir);
+    workingDir.mkdirs();
+
+    // Insert an APP2 (ICC profile) segment after the SOI marker
+    ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+    ImageIO.write(new BufferedImage(64, 64, BufferedImage.TYPE_INT_RGB), "jpeg", jpeg);
+    byte[] data = jpeg.toByteArray();
+    byte[] app2 = new byte[] { (byte) 0xff, (byte) 0xe2, 0, 8, 'I', 'C', 'C', '_', '_', '_' };
+    File source = new File(workingDir, "app.jpg");
+    OutputStream out = new FileOutputStream(source);
+    out.write(data, 0, 2);
+    out.write(app2);
+    out.write(data, 2, data.length - 2);
+    out.close();
+
+    LosslessJPEGCropper cropper = new LosslessJPEGCropper(source);
+    File crop = new File(workingDir, "app-crop.jpg");
+    cropper.addCrop(new Rectangle(0, 0, 32, 32), crop);
+    cropper.execute();
+
+    String result = new String(Files.readAllBytes(crop.toPath()), "ISO-8859-1");
+    assertTrue("APP2 segment dropped!", result.contains(new String(app2, "ISO-8859-1")));
+    assertEquals(32, ImageIO.read(crop).getWidth());
+  }
+
+  @Test
+  public void testInMemoryCrop() throws IOException {
+    deleteDir(workingDir);
+    workingDir.mkdirs();
+
+    File source = new File(workingDir, "source.jpg");
+    ImageIO.write(new BufferedImage(100, 70, BufferedImage.TYPE_INT_RGB), "jpeg", source);
+    Rectangle region = new Rectangle(32, 16, 50, 40);
+
+    LosslessJPEGCropper fromFile = new LosslessJPEGCropper(source);
+    File crop = new File(workingDir, "crop.jpg");
+    fromFile.addCrop(region, crop);
+    fromFile.execute();
+
+    // Cropping in memory must give the same JPEG as cropping the file
+    LosslessJPEGCropper inMemory = new LosslessJPEGCropper(Files.readAllBytes(source.toPath()));
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    inMemory.addCrop(region, out);
+    inMemory.execute();
+    assertTrue("In-memory crop differs!", Arrays.equals(Files.readAllBytes(crop.toPath()), out.toByteArray()));
+
+    try {
+      new LosslessJPEGCropper(new byte[] { 1, 2, 3 });
+      fail("Invalid JPEG accepted");
+    } catch (IOException e) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void test16BitQuantizationTables() throws IOException {
+    deleteDir(workingDir);
+    workingDir.mkdirs();
+
+    // Re-encode the quantization tables of a JPEG with 16-bit precision (extended sequential, SOF1)
+    BufferedImage img = new BufferedImage(64, 48, BufferedImage.TYPE_BYTE_GRAY);
+    for (int y = 0; y < img.getHeight(); y++)
+      for (int x = 0; x < img.getWidth(); x++)
+        img.setRGB(x, y, ((x * 4) << 16) | ((x * 4) << 8) | (y * 5));
+    ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+    ImageIO.write(img, "jpeg", jpeg);
+    byte[] source = to16BitTables(jpeg.toByteArray());
+    BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(source));
+
+    LosslessJPEGCropper cropper = new LosslessJPEGCropper(source);
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    cropper.addCrop(new Rectangle(16, 8, 40, 32), out);
+    cropper.execute();
+
+    // The crop must be marked as extended sequential, and decode to the same pixels
+    byte[] crop = out.toByteArray();
+    String markers = new String(crop, "ISO-8859-1");
+    assertTrue("SOF1 marker missing!", markers.contains("\u00ff\u00c1"));
+    assertFalse("Baseline SOF0 marker written!", markers.contains("\u00ff\u00c0"));
+    BufferedImage result = ImageIO.read(new ByteArrayInputStream(crop));
+    assertEquals(40, result.getWidth());
+    for (int y = 0; y < result.getHeight(); y++)
+      for (int x = 0; x < result.getWidth(); x++)
+        assertEquals("Pixel mismatch at " + x + "," + y, decoded.getRGB(16 + x, 8 + y), result.getRGB(x, y));
+  }
+
+  /**
+   * Rewrites the DQT segments of a baseline JPEG with 16-bit precision, and SOF0 as SOF1.
+   */
+  private byte[] to16BitTables(byte[] jpeg) {
+    ByteArrayOutputStream out = new ByteArrayOutputStream();
+    out.write(jpeg, 0, 2);
+    int pos = 2;
+    while ((jpeg[pos + 1] & 0xff) != 0xda) {
+      int marker = jpeg[pos + 1] & 0xff;
+      int length = ((jpeg[pos + 2] & 0xff) << 8) | (jpeg[pos + 3] & 0xff);
+      if (marker == 0xdb) {
+        ByteArrayOutputStream tables = new ByteArrayOutputStream();
+        for (int i = pos + 4; i < pos + 2 + length; i += 65) {
+          tables.write(0x10 | (jpeg[i] & 0x0f));
+          for (int k = 1; k <= 64; k++) {
+            tables.write(0);
+            tables.write(jpeg[i + k]);
+          }
+        }
+        out.write(0xff);
+        out.write(0xdb);
+        out.write((tables.size() + 2) >> 8);
+        out.write(tables.size() + 2);
+        out.write(tables.toByteArray(), 0, tables.size());
+      } else {
+        out.write(0xff);
+        out.write((marker == 0xc0) ? 0xc1 : marker);
+        out.write(jpeg, pos + 2, length);
+      }
+      pos += 2 + length;
+    }
+    out.write(jpeg, pos, jpeg.length - pos);
+    return out.toByteArray();
+  }
+
+  private void assertCrops(int type, int border) throws IOException {
+    deleteDir(workingDir);
+    workingDir.mkdirs();
+
+    File source = new File(workingDir, "source.jpg");
+    BufferedImage img = new BufferedImage(203, 141, type);
+    for (int y = 0; y < img.getHeight(); y++)
+      for (int x = 0; x < img.getWidth(); x++)
+        img.setRGB(x, y, ((x * 255 / 203) << 16) | ((y * 255 / 141) << 8) | ((x ^ y) & 0xff));
+    ImageIO.write(img, "jpeg", source);
+    BufferedImage decoded = ImageIO.read(source);
+
+    LosslessJPEGCropper cropper = new LosslessJPEGCropper(source);
+    assertEquals(203, cropper.getWidth());
+    assertEquals(141, cropper.getHeight());
+    assertFalse("Unaligned region accepted!", cropper.canCrop(new Rectangle(4, 0, 64, 64)));
+
+    // Interior tile and a cropped border tile
+    Rectangle[] regions = new Rectangle[] { new Rectangle(64, 64, 64, 64), new Rectangle(192, 128, 11, 13) };
+    for (int i = 0; i < regions.length; i++)
+      cropper.addCrop(regions[i], new File(workingDir, "crop" + i + ".jpg"));
+    cropper.execute();
+
+    for (int i = 0; i < regions.length; i++) {
+      BufferedImage crop = ImageIO.read(new File(workingDir, "crop" + i + ".jpg"));
+      assertEquals("Wrong crop width!", regions[i].width, crop.getWidth());
+      assertEquals("Wrong crop height!", regions[i].height, crop.getHeight());
+      for (int y = border; y < crop.getHeight() - border; y++) {
+        for (int x = border; x < crop.getWidth() - border; x++) {
+          int expected = decoded.getRGB(regions[i].x + x, regions[i].y + y);
+          int actual = crop.getRGB(x, y);
+          for (int shift = 0; shift < 24; shift += 8) {
+            assertEquals("Pixel mismatch at " + x + "," + y + " in crop " + i, (expected >> shift) & 0xff,
+                (actual >> shift) & 0xff);
+          }
+        }
+      }
+    }
+  }
+}
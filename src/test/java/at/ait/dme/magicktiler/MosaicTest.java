@@ -0,0 +1,123 @@
+package at.ait.dme.magicktiler;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import at.ait.dme.magicktiler.composite.CompositeTiler.Scheme;
+import at.ait.dme.magicktiler.image.ImageFormat;
+import at.ait.dme.magicktiler.mosaic.MosaicTiler;
+
+/**
+ * Mosaic tiling tests
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class MosaicTest extends BaseTest {
+
+  private File workingDir = new File("test/mosaic");
+
+  @Before
+  public void setUp() {
+    deleteDir(workingDir);
+  }
+
+  @Test
+  public void testMosaicTiling() throws TilingException, IOException {
+    workingDir.mkdirs();
+
+    // Two overlapping 300x200 sheets -> 550x350 mosaic, the second sheet on top
+    writeSheet(new File(workingDir, "sheet 1.png"), Color.RED);
+    writeSheet(new File(workingDir, "sheet-2.png"), Color.BLUE);
+    File placements = new File(workingDir, "map.txt");
+    FileWriter out = new FileWriter(placements);
+    out.write("# two sheets\nsheet 1.png 0 0\n\nsheet-2.png 250 150\n");
+    out.close();
+
+    MosaicTiler t = new MosaicTiler(Scheme.TMS);
+    t.setWorkingDirectory(workingDir);
+    t.setTileFormat(ImageFormat.PNG);
+    TilesetInfo info = t.convert(placements);
+
+    assertEquals("Wrong mosaic width!", 550, info.getImageWidth());
+    assertEquals("Wrong mosaic height!", 350, info.getImageHeight());
+    assertEquals("Wrong number of zoom levels!", 3, info.getZoomLevels());
+
+    File tilesetRoot = new File(workingDir, "map");
+    assertTrue("tilemapresource.xml missing!", new File(tilesetRoot, "tilemapresource.xml").exists());
+    assertTrue("Top level tile missing!", new File(tilesetRoot, "0/0/0.png").exists());
+
+    // Top-left base tile: padded at the top, first sheet below
+    BufferedImage tile = ImageIO.read(new File(tilesetRoot, "2/0/1.png"));
+    assertEquals("Wrong background!", 0x00ffffff, tile.getRGB(10, 10));
+    assertEquals("Wrong pixel!", Color.RED.getRGB(), tile.getRGB(10, 172));
+
+    // Overlap: the second sheet is drawn over the first
+    tile = ImageIO.read(new File(tilesetRoot, "2/1/0.png"));
+    assertEquals("Wrong pixel!", Color.BLUE.getRGB(), tile.getRGB(10, 100));
+    assertEquals("Wrong pixel!", Color.RED.getRGB(), tile.getRGB(10, 10));
+  }
+
+  @Test
+  public void testConcurrentConversions() throws Exception {
+    workingDir.mkdirs();
+    writeSheet(new File(workingDir, "sheet 1.png"), Color.RED);
+    writeSheet(new File(workingDir, "sheet-2.png"), Color.BLUE);
+    final File placements = new File(workingDir, "map.txt");
+    FileWriter out = new FileWriter(placements);
+    out.write("sheet 1.png 0 0\nsheet-2.png 250 150\n");
+    out.close();
+
+    // One configured tiler, several conversions at the same time
+    final MosaicTiler t = new MosaicTiler(Scheme.ZOOMIFY);
+    t.setWorkingDirectory(workingDir);
+    List<Callable<TilesetInfo>> tasks = new ArrayList<Callable<TilesetInfo>>();
+    for (int i = 0; i < 4; i++) {
+      final File target = new File(workingDir, "tileset-" + i);
+      tasks.add(new Callable<TilesetInfo>() {
+        public TilesetInfo call() throws TilingException {
+          return t.convert(placements, target);
+        }
+      });
+    }
+    ExecutorService executor = Executors.newFixedThreadPool(4);
+    try {
+      for (Future<TilesetInfo> result : executor.invokeAll(tasks))
+        assertEquals("Wrong mosaic width!", 550, result.get().getImageWidth());
+    } finally {
+      executor.shutdown();
+    }
+
+    for (int i = 0; i < 4; i++) {
+      File tilesetRoot = new File(workingDir, "tileset-" + i);
+      assertTrue("ImageProperties.xml missing!", new File(tilesetRoot, "ImageProperties.xml").exists());
+      assertEquals("Unexpected files in tileset!", 2, tilesetRoot.list().length);
+    }
+    for (String name : workingDir.list())
+      assertFalse("Temp directory not deleted: " + name, name.startsWith("magicktiler-"));
+  }
+
+  private void writeSheet(File file, Color color) throws IOException {
+    BufferedImage sheet = new BufferedImage(300, 200, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = sheet.createGraphics();
+    g.setColor(color);
+    g.fillRect(0, 0, 300, 200);
+    g.dispose();
+    ImageIO.write(sheet, "png", file);
+  }
+}
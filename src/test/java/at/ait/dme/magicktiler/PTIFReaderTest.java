@@ -0,0 +1,181 @@
+package at.ait.dme.magicktiler;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import at.ait.dme.magicktiler.ptif.PTIFReader;
+
+/**
+ * PTIF reader tests
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class PTIFReaderTest extends BaseTest {
+
+  /**
+   * Fake JPEG tables (SOI + one marker + EOI)
+   */
+  private static final byte[] TABLES = new byte[] { (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xdb, 0x00, 0x02,
+      (byte) 0xff, (byte) 0xd9 };
+
+  private File workingDir = new File("test/ptifreader");
+
+  @Test
+  public void testVirtualTilesets() throws IOException {
+    deleteDir(workingDir);
+    workingDir.mkdirs();
+
+    // 600x300 base level -> 3x2 tiles, 300x150 -> 2x1 tiles, 150x75 -> 1x1 tiles
+    File ptif = new File(workingDir, "synthetic.tif");
+    writePTIF(ptif, new int[][] { { 600, 300 }, { 300, 150 }, { 150, 75 } }, TABLES, null);
+
+    PTIFReader reader = new PTIFReader(ptif);
+    try {
+      assertEquals("Wrong number of zoom levels!", 3, reader.getZoomLevels());
+      assertEquals("Wrong image width!", 600, reader.getImageWidth());
+      assertEquals("Wrong number of x-basetiles!", 3, reader.getNumberOfXTiles(0));
+      assertEquals("Wrong number of y-basetiles!", 2, reader.getNumberOfYTiles(0));
+
+      // Tables must be merged into the tile
+      byte[] tile = reader.getTile(0, 2, 1);
+      assertTrue("Tables not merged!", Arrays.equals(expectedJPEG(0, 2, 1), tile));
+
+      // TMS counts rows from the bottom, zoom levels from the top
+      assertTrue(Arrays.equals(expectedJPEG(0, 2, 1), reader.getTMSTile(2, 2, 0)));
+      assertTrue(Arrays.equals(expectedJPEG(1, 1, 0), reader.getTMSTile(1, 1, 0)));
+      assertTrue(Arrays.equals(expectedJPEG(2, 0, 0), reader.getTile("0/0/0.jpg")));
+
+      // Zoomify and Google Maps count rows from the top
+      assertTrue(Arrays.equals(expectedJPEG(0, 1, 0), reader.getZoomifyTile(2, 1, 0)));
+      assertTrue(Arrays.equals(expectedJPEG(0, 1, 0), reader.getTile("TileGroup0/2-1-0.jpg")));
+      assertTrue(Arrays.equals(expectedJPEG(1, 1, 0), reader.getTile("1_1_0.jpg")));
+
+      // Out of range and invalid paths
+      assertNull(reader.getTMSTile(2, 3, 0));
+      assertNull(reader.getTile("TileGroup1/2-1-1.jpg"));
+      assertNull(reader.getTile("preview.html"));
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testZoomifyView() throws IOException {
+    deleteDir(workingDir);
+    workingDir.mkdirs();
+
+    // 300x200 base level -> 2x1 tiles, 150x100 -> 1x1 tiles
+    ByteArrayOutputStream jpeg = new ByteArrayOutputStream();
+    ImageIO.write(new BufferedImage(256, 256, BufferedImage.TYPE_INT_RGB), "jpeg", jpeg);
+    File ptif = new File(workingDir, "zoomify.tif");
+    writePTIF(ptif, new int[][] { { 300, 200 }, { 150, 100 } }, null, jpeg.toByteArray());
+
+    PTIFReader reader = new PTIFReader(ptif);
+    try {
+      // Border tiles are cropped to the image, all others are served as stored
+      assertTrue(Arrays.equals(jpeg.toByteArray(), reader.getTile(0, 0, 0)));
+      assertTile(reader.getZoomifyTile(1, 0, 0), 256, 200);
+      assertTile(reader.getZoomifyTile(1, 1, 0), 44, 200);
+      assertTile(reader.getTile("TileGroup0/0-0-0.jpg"), 150, 100);
+
+      String properties = new String(reader.getResource("ImageProperties.xml"), "UTF-8");
+      assertTrue("Wrong image properties: " + properties, properties.contains("WIDTH=\"300\" HEIGHT=\"200\" "
+          + "NUMTILES=\"3\""));
+      assertNull(reader.getResource("tilemapresource.xml"));
+    } finally {
+      reader.close();
+    }
+  }
+
+  private void assertTile(byte[] tile, int width, int height) throws IOException {
+    BufferedImage img = ImageIO.read(new ByteArrayInputStream(tile));
+    assertEquals("Wrong tile width!", width, img.getWidth());
+    assertEquals("Wrong tile height!", height, img.getHeight());
+  }
+
+  private byte[] expectedJPEG(int level, int col, int row) {
+    return new byte[] { (byte) 0xff, (byte) 0xd8, (byte) 0xff, (byte) 0xdb, 0x00, 0x02, (byte) level, (byte) col,
+        (byte) row, (byte) 0xff, (byte) 0xd9 };
+  }
+
+  private void writePTIF(File file, int[][] levels, byte[] tables, byte[] jpeg) throws IOException {
+    ByteArrayOutputStream data = new ByteArrayOutputStream();
+    data.write(new byte[] { 'I', 'I', 42, 0, 8, 0, 0, 0 });
+
+    int tileSize = (jpeg != null) ? jpeg.length : 7;
+    int entries = (tables != null) ? 9 : 8;
+    for (int l = 0; l < levels.length; l++) {
+      int cols = (levels[l][0] + 255) / 256;
+      int rows = (levels[l][1] + 255) / 256;
+      int tiles = cols * rows;
+
+      // IFD with 8 or 9 entries, followed by tables, offsets, byte counts and tile data
+      int ifdStart = data.size();
+      int tablesPos = ifdStart + 2 + entries * 12 + 4;
+      int offsetsPos = tablesPos + ((tables != null) ? tables.length : 0);
+      int countsPos = offsetsPos + tiles * 4;
+      int tilesPos = countsPos + tiles * 4;
+      int end = tilesPos + tiles * tileSize;
+
+      ByteBuffer ifd = ByteBuffer.allocate(end - ifdStart).order(ByteOrder.LITTLE_ENDIAN);
+      ifd.putShort((short) entries);
+      putEntry(ifd, 256, 4, 1, levels[l][0]);
+      putEntry(ifd, 257, 4, 1, levels[l][1]);
+      putEntry(ifd, 259, 3, 1, 7);
+      putEntry(ifd, 262, 3, 1, 6);
+      putEntry(ifd, 322, 3, 1, 256);
+      putEntry(ifd, 323, 3, 1, 256);
+      putEntry(ifd, 324, 4, tiles, (tiles == 1) ? tilesPos : offsetsPos);
+      putEntry(ifd, 325, 4, tiles, (tiles == 1) ? tileSize : countsPos);
+      if (tables != null)
+        putEntry(ifd, 347, 7, tables.length, tablesPos);
+      ifd.putInt((l < levels.length - 1) ? end : 0);
+      if (tables != null)
+        ifd.put(tables);
+      for (int t = 0; t < tiles; t++)
+        ifd.putInt(tilesPos + t * tileSize);
+      for (int t = 0; t < tiles; t++)
+        ifd.putInt(tileSize);
+      for (int t = 0; t < tiles; t++) {
+        if (jpeg != null)
+          ifd.put(jpeg);
+        else
+          ifd.put(new byte[] { (byte) 0xff, (byte) 0xd8, (byte) l, (byte) (t % cols), (byte) (t / cols),
+              (byte) 0xff, (byte) 0xd9 });
+      }
+
+      data.write(ifd.array());
+    }
+
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(data.toByteArray());
+    } finally {
+      out.close();
+    }
+  }
+
+  private void putEntry(ByteBuffer buffer, int tag, int type, int count, int value) {
+    buffer.putShort((short) tag);
+    buffer.putShort((short) type);
+    buffer.putInt(count);
+    if (type == 3 && count == 1) {
+      buffer.putShort((short) value);
+      buffer.putShort((short) 0);
+    } else {
+      buffer.putInt(value);
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package at.ait.dme.magicktiler;
+
+import java.awt.Dimension;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import at.ait.dme.magicktiler.image.ImageFormat;
+import at.ait.dme.magicktiler.image.ImageInfo;
+import at.ait.dme.magicktiler.image.TileEncoder;
+import at.ait.dme.magicktiler.tms.TMSTileLayout;
+import at.ait.dme.magicktiler.zoomify.ZoomifyTileLayout;
+
+/**
+ * Quadtree pyramid tests
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class QuadtreePyramidTest extends BaseTest {
+
+  private static final int COLOR = 0xff336699;
+
+  private static final int BACKGROUND = 0x00ffffff;
+
+  private File workingDir = new File("test/quadtree");
+
+  @Test
+  public void testIrregularBorders() throws IOException {
+    // 1100x600 image -> 5x3, 3x2, 2x1 and 1x1 tiles
+    TilesetInfo info = new TilesetInfo(new ImageInfo(new File("img.png"), 1100, 600), 256, 256, ImageFormat.PNG);
+    TileLayout layout = new ZoomifyTileLayout(info);
+    buildPyramid(layout);
+
+    for (int z = 1; z < info.getZoomLevels(); z++) {
+      for (int col = 0; col < layout.getColumns(z); col++) {
+        for (int row = 0; row < layout.getRows(z); row++) {
+          BufferedImage tile = ImageIO.read(layout.getTileFile(workingDir, z, col, row));
+          Dimension expected = layout.getTileSize(z, col, row);
+          assertEquals("Wrong tile width at " + z + "-" + col + "-" + row, expected.width, tile.getWidth());
+          assertEquals("Wrong tile height at " + z + "-" + col + "-" + row, expected.height, tile.getHeight());
+          assertEquals("Wrong color!", COLOR, tile.getRGB(tile.getWidth() - 1, tile.getHeight() - 1));
+        }
+      }
+    }
+
+    // The top level tile is the whole image at 1/8 scale
+    BufferedImage top = ImageIO.read(layout.getTileFile(workingDir, 3, 0, 0));
+    assertEquals(138, top.getWidth());
+    assertEquals(75, top.getHeight());
+  }
+
+  @Test
+  public void testPaddedBorders() throws IOException {
+    // 600x300 image -> 3x2, 2x1 and 1x1 tiles
+    TilesetInfo info = new TilesetInfo(new ImageInfo(new File("img.png"), 600, 300), 256, 256, ImageFormat.PNG);
+    TileLayout layout = new TMSTileLayout(info);
+    buildPyramid(layout);
+
+    // Level 1, right column: left half covers 88 image pixels (= 44 at this level), the rest is padding
+    BufferedImage tile = ImageIO.read(layout.getTileFile(workingDir, 1, 1, 0));
+    assertEquals(256, tile.getWidth());
+    assertEquals(256, tile.getHeight());
+    assertEquals(COLOR, tile.getRGB(43, 255));
+    assertEquals(BACKGROUND, tile.getRGB(44, 255));
+
+    // Image height at level 1 is 150 - padding on top
+    assertEquals(COLOR, tile.getRGB(0, 256 - 150));
+    assertEquals(BACKGROUND, tile.getRGB(0, 256 - 151));
+  }
+
+  @Test
+  public void testTileByTileMatchesQuadtree() throws IOException {
+    TilesetInfo info = new TilesetInfo(new ImageInfo(new File("img.png"), 1100, 600), 256, 256, ImageFormat.PNG);
+    TileLayout layout = new TMSTileLayout(info);
+    buildPyramid(layout);
+    BufferedImage quadtree = ImageIO.read(layout.getTileFile(workingDir, 2, 1, 0));
+
+    // Recompute the upper levels level by level, from the encoded tiles
+    TileDownsampler downsampler = createDownsampler(layout);
+    for (int z = 1; z < info.getZoomLevels(); z++) {
+      for (int col = 0; col < layout.getColumns(z); col++) {
+        for (int row = 0; row < layout.getRows(z); row++)
+          downsampler.renderTile(z, col, row);
+      }
+    }
+
+    BufferedImage tiles = ImageIO.read(layout.getTileFile(workingDir, 2, 1, 0));
+    for (int y = 0; y < 256; y++) {
+      for (int x = 0; x < 256; x++)
+        assertEquals("Pixel mismatch at " + x + "," + y, quadtree.getRGB(x, y), tiles.getRGB(x, y));
+    }
+  }
+
+  private TileDownsampler createDownsampler(TileLayout layout) {
+    return new TileDownsampler(layout, workingDir, new TileEncoder(ImageFormat.PNG, 75), BACKGROUND);
+  }
+
+  private void buildPyramid(TileLayout layout) throws IOException {
+    deleteDir(workingDir);
+
+    // Write base tiles: image pixels in COLOR, padding in BACKGROUND
+    for (int col = 0; col < layout.getColumns(0); col++) {
+      for (int row = 0; row < layout.getRows(0); row++) {
+        Rectangle bounds = layout.getTileBounds(col, row);
+        Rectangle region = layout.getSourceRegion(col, row);
+        BufferedImage tile = new BufferedImage(bounds.width, bounds.height, BufferedImage.TYPE_INT_ARGB);
+        for (int y = 0; y < bounds.height; y++) {
+          for (int x = 0; x < bounds.width; x++) {
+            int sx = bounds.x + x - layout.getImageX();
+            int sy = bounds.y + y - layout.getImageY();
+            boolean inside = sx >= region.x && sx < region.x + region.width && sy >= region.y
+                && sy < region.y + region.height;
+            tile.setRGB(x, y, inside ? COLOR : BACKGROUND);
+          }
+        }
+        File file = layout.getTileFile(workingDir, 0, col, row);
+        file.getParentFile().mkdirs();
+        ImageIO.write(tile, "png", file);
+      }
+    }
+
+    new QuadtreePyramid(createDownsampler(layout)).build(4);
+  }
+}
@@ -0,0 +1,57 @@
+package at.ait.dme.magicktiler;
+
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import at.ait.dme.magicktiler.image.ResamplingFilter;
+
+/**
+ * Resampling filter tests
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class ResamplingFilterTest extends BaseTest {
+
+  @Test
+  public void testUniformColorPreserved() {
+    for (ResamplingFilter filter : ResamplingFilter.values()) {
+      for (int channels = 3; channels <= 4; channels++) {
+        byte[] src = new byte[37 * 21 * channels];
+        for (int i = 0; i < src.length; i++)
+          src[i] = (byte) (50 + 50 * (i % channels));
+
+        byte[] dst = filter.downsample(src, 37, 21, channels);
+        assertEquals(19 * 11 * channels, dst.length);
+        for (int i = 0; i < dst.length; i++)
+          assertEquals(filter + " changed the color!", 50 + 50 * (i % channels), dst[i] & 0xff);
+      }
+    }
+  }
+
+  @Test
+  public void testEdge() {
+    // A hard edge in a single row: box keeps it hard, triangle and Lanczos spread it
+    byte[] src = new byte[] { 0, 0, 0, 0, 0, 0, (byte) 255, (byte) 255, (byte) 255, (byte) 255, (byte) 255,
+        (byte) 255 };
+
+    int[] box = toInts(ResamplingFilter.BOX.downsample(src, 12, 1, 1));
+    assertTrue(Arrays.equals(new int[] { 0, 0, 0, 255, 255, 255 }, box));
+    int[] triangle = toInts(ResamplingFilter.TRIANGLE.downsample(src, 12, 1, 1));
+    assertTrue(Arrays.equals(new int[] { 0, 0, 32, 223, 255, 255 }, triangle));
+
+    // Lanczos overshoots, but results are clamped
+    int[] lanczos = toInts(ResamplingFilter.LANCZOS.downsample(src, 12, 1, 1));
+    assertTrue(lanczos[2] > 0 && lanczos[2] < 32);
+    assertTrue(lanczos[3] > 223 && lanczos[3] < 255);
+    assertEquals(0, lanczos[1]);
+  }
+
+  private int[] toInts(byte[] bytes) {
+    int[] ints = new int[bytes.length];
+    for (int i = 0; i < bytes.length; i++)
+      ints[i] = bytes[i] & 0xff;
+    return ints;
+  }
+}
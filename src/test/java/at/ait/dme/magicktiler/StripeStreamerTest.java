@@ -0,0 +1,121 @@
+package at.ait.dme.magicktiler;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Test;
+
+import at.ait.dme.magicktiler.Stripe.Orientation;
+import at.ait.dme.magicktiler.image.BandReader;
+import at.ait.dme.magicktiler.image.ImageProcessor;
+
+/**
+ * Stripe streaming tests
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class StripeStreamerTest extends BaseTest {
+
+  private static final int BACKGROUND = 0x00ffffff;
+
+  private File workingDir = new File("test/streamer");
+
+  @Test
+  public void testHorizontalStripes() throws IOException {
+    File source = createSource();
+    if (source == null)
+      return;
+
+    BandReader reader = new BandReader(source);
+    try {
+      List<Stripe> stripes = new StripeStreamer(reader, "#ffffffff").stream(Orientation.HORIZONTAL, 2, 600, 256,
+          600, 256, "", workingDir, "h-");
+      assertEquals("Wrong number of stripes!", 2, stripes.size());
+      assertEquals("Wrong stripe height!", 44, stripes.get(1).getHeight());
+      assertPixels(stripes.get(0), 0, 0, 0, 0);
+      assertPixels(stripes.get(1), 0, 256, 0, 0);
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testPaddedVerticalStripes() throws IOException {
+    File source = createSource();
+    if (source == null)
+      return;
+
+    // Like TMS: 256px wide stripes on a 256x512 canvas, image at the bottom left
+    BandReader reader = new BandReader(source);
+    try {
+      List<Stripe> stripes = new StripeStreamer(reader, "#ffffffff").stream(Orientation.VERTICAL, 3, 256, 300, 256,
+          512, ImageProcessor.GRAVITY_SOUTHWEST, workingDir, "v-");
+      assertEquals("Wrong number of stripes!", 3, stripes.size());
+      for (Stripe stripe : stripes) {
+        assertEquals("Wrong stripe width!", 256, stripe.getWidth());
+        assertEquals("Wrong stripe height!", 512, stripe.getHeight());
+      }
+      assertPixels(stripes.get(0), 0, 0, 0, 212);
+      assertPixels(stripes.get(2), 512, 0, 0, 212);
+    } finally {
+      reader.close();
+    }
+  }
+
+  @Test
+  public void testParseColor() {
+    assertEquals(0xff123456, StripeStreamer.parseColor("#123456"));
+    assertEquals(0x00ffffff, StripeStreamer.parseColor("#ffffffff"));
+    try {
+      StripeStreamer.parseColor("white");
+      fail("Color names are not supported");
+    } catch (IllegalArgumentException e) {
+      // Expected
+    }
+  }
+
+  private File createSource() throws IOException {
+    if (!ImageIO.getImageWritersBySuffix("tif").hasNext() || !BandReader.canStream(new File("x.tif")))
+      return null;
+
+    deleteDir(workingDir);
+    workingDir.mkdirs();
+
+    BufferedImage image = new BufferedImage(600, 300, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < image.getHeight(); y++)
+      for (int x = 0; x < image.getWidth(); x++)
+        image.setRGB(x, y, pixel(x, y));
+
+    File source = new File(workingDir, "source.tif");
+    ImageIO.write(image, "tif", source);
+    return source;
+  }
+
+  private int pixel(int x, int y) {
+    return 0xff000000 | (x & 0xff) << 16 | (y & 0xff) << 8 | ((x + y) & 0xff);
+  }
+
+  /**
+   * Checks a stripe against the source, given the stripe's position in the source
+   * and the position of the image on the stripe canvas.
+   */
+  private void assertPixels(Stripe stripe, int sourceX, int sourceY, int offsetX, int offsetY) throws IOException {
+    BufferedImage image = ImageIO.read(stripe.getImageFile());
+    assertEquals(stripe.getWidth(), image.getWidth());
+    assertEquals(stripe.getHeight(), image.getHeight());
+    for (int y = 0; y < image.getHeight(); y++) {
+      for (int x = 0; x < image.getWidth(); x++) {
+        int srcX = sourceX + x - offsetX;
+        int srcY = sourceY + y - offsetY;
+        boolean inside = x >= offsetX && y >= offsetY && srcX < 600 && srcY < 300;
+        int expected = inside ? pixel(srcX, srcY) : BACKGROUND;
+        assertEquals("Pixel mismatch at " + x + "," + y, expected, image.getRGB(x, y));
+      }
+    }
+  }
+}
@@ -1,12 +1,17 @@
 package at.ait.dme.magicktiler;
 
+import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.IOException;
 import java.util.Arrays;
 import java.util.Collection;
 
+import javax.imageio.ImageIO;
+
 import org.junit.Before;
 import org.junit.Test;
 
+import at.ait.dme.magicktiler.MagickTiler.PyramidMode;
 import at.ait.dme.magicktiler.tms.TMSTiler;
 
 /**
@@ -64,6 +69,83 @@ public class TMSTest extends BaseTest {
     }
   }
 
+  @Test
+  public void testLevelParallelTMSTiling() throws TilingException {
+    // Generate a TMS tileset with all zoom levels computed in parallel
+    MagickTiler t = new TMSTiler();
+    t.setWorkingDirectory(workingDir);
+    t.setPyramidMode(PyramidMode.LEVEL_PARALLEL);
+    TilesetInfo info = t.convert(new File("src/test/resources/Hong_Kong_Night_Skyline.jpg"));
+
+    // Check if tileset files were generated correctly
+    File tilesetRoot = new File(workingDir, "Hong_Kong_Night_Skyline");
+    assertTrue("Tileset root directory not found!", tilesetRoot.exists());
+    for (int i = 0; i < info.getZoomLevels(); i++) {
+      assertTrue(
+          "Wrong directory structure in zoom level " + i,
+          checkZoomLevel(info, new File(tilesetRoot, new Integer(i).toString()),
+              info.getNumberOfXTiles(info.getZoomLevels() - 1 - i),
+              info.getNumberOfYTiles(info.getZoomLevels() - 1 - i)));
+    }
+
+    // Intermediate files must be gone
+    String[] leftovers = workingDir.list();
+    assertEquals("Intermediate files were not removed!", 1, leftovers.length);
+  }
+
+  @Test
+  public void testLevelParallelQuality() throws TilingException, IOException {
+    // Tile a small JPEG in STRIPES and LEVEL_PARALLEL mode - the levels must be nearly identical
+    // (the timing comparison on a full-size image is done by the LevelParallelBenchmark)
+    workingDir.mkdirs();
+    File source = new File(workingDir, "gradient.jpg");
+    BufferedImage image = new BufferedImage(900, 600, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < image.getHeight(); y++)
+      for (int x = 0; x < image.getWidth(); x++)
+        image.setRGB(x, y, ((x * 255 / 900) << 16) | ((y * 255 / 600) << 8) | ((x + y) * 255 / 1500));
+    ImageIO.write(image, "jpeg", source);
+
+    TilesetInfo info = null;
+    for (PyramidMode mode : new PyramidMode[] { PyramidMode.STRIPES, PyramidMode.LEVEL_PARALLEL }) {
+      MagickTiler t = new TMSTiler();
+      t.setWorkingDirectory(new File(workingDir, mode.name()));
+      t.setPyramidMode(mode);
+      info = t.convert(source);
+    }
+
+    File stripes = new File(workingDir, "STRIPES/gradient");
+    File parallel = new File(workingDir, "LEVEL_PARALLEL/gradient");
+    for (int i = 0; i < info.getZoomLevels(); i++) {
+      assertTrue("Zoom level " + i + " differs too much between modes!", getPSNR(stripes, parallel, i) > 25);
+    }
+  }
+
+  /**
+   * Returns the peak signal-to-noise ratio (in dB) between a zoom level of two TMS tilesets.
+   */
+  static double getPSNR(File tilesetA, File tilesetB, int zoomlevel) throws IOException {
+    double squaredError = 0;
+    long samples = 0;
+    for (File col : new File(tilesetA, Integer.toString(zoomlevel)).listFiles()) {
+      for (File tile : col.listFiles()) {
+        BufferedImage a = ImageIO.read(tile);
+        BufferedImage b = ImageIO.read(new File(tilesetB, zoomlevel + "/" + col.getName() + "/" + tile.getName()));
+        for (int y = 0; y < a.getHeight(); y++) {
+          for (int x = 0; x < a.getWidth(); x++) {
+            int rgbA = a.getRGB(x, y);
+            int rgbB = b.getRGB(x, y);
+            for (int shift = 0; shift < 24; shift += 8) {
+              int d = ((rgbA >> shift) & 0xff) - ((rgbB >> shift) & 0xff);
+              squaredError += d * d;
+              samples++;
+            }
+          }
+        }
+      }
+    }
+    return 10 * Math.log10(255.0 * 255.0 / Math.max(squaredError / samples, 1e-10));
+  }
+
   private boolean checkZoomLevel(TilesetInfo info, File zoomlevelRoot, int xTiles, int yTiles) {
     String files[] = zoomlevelRoot.list();
     if (files.length != xTiles)
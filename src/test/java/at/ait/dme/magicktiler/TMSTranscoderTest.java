@@ -0,0 +1,88 @@
+package at.ait.dme.magicktiler;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import at.ait.dme.magicktiler.composite.CompositeTiler.Scheme;
+import at.ait.dme.magicktiler.image.ImageFormat;
+import at.ait.dme.magicktiler.mosaic.MosaicTiler;
+import at.ait.dme.magicktiler.tms.TMSTranscoder;
+
+/**
+ * TMS transcoding tests
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class TMSTranscoderTest extends BaseTest {
+
+  private File workingDir = new File("test/transcoder");
+
+  @Before
+  public void setUp() {
+    deleteDir(workingDir);
+  }
+
+  @Test
+  public void testZoomifyTranscoding() throws TilingException, IOException {
+    workingDir.mkdirs();
+
+    // A 600x256 TMS tileset (JPEG tiles), red on the left half, blue on the right half
+    BufferedImage image = new BufferedImage(600, 256, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = image.createGraphics();
+    g.setColor(Color.RED);
+    g.fillRect(0, 0, 300, 256);
+    g.setColor(Color.BLUE);
+    g.fillRect(300, 0, 300, 256);
+    g.dispose();
+    ImageIO.write(image, "png", new File(workingDir, "image.png"));
+    File placements = new File(workingDir, "image.txt");
+    FileWriter out = new FileWriter(placements);
+    out.write("image.png 0 0\n");
+    out.close();
+
+    MosaicTiler tiler = new MosaicTiler(Scheme.TMS);
+    tiler.setWorkingDirectory(workingDir);
+    tiler.convert(placements);
+    File tms = new File(workingDir, "image");
+
+    TMSTranscoder transcoder = new TMSTranscoder(Scheme.ZOOMIFY);
+    TilesetInfo info = transcoder.convert(tms, new File(workingDir, "zoomify"));
+    assertEquals("Wrong image width!", 600, info.getImageWidth());
+    assertEquals("Wrong number of zoom levels!", 3, info.getZoomLevels());
+    assertEquals("Wrong tile format!", ImageFormat.JPEG, info.getTileFormat());
+
+    File zoomify = new File(workingDir, "zoomify");
+    assertTrue("ImageProperties.xml missing!", new File(zoomify, "ImageProperties.xml").exists());
+
+    // Base level rows align: full tiles are linked, the cropped border tile is re-rendered
+    File tile = new File(zoomify, "TileGroup0/2-0-0.jpg");
+    assertTrue("Tile not taken over!", Files.isSameFile(tile.toPath(), new File(tms, "2/0/0.jpg").toPath()));
+    BufferedImage border = ImageIO.read(new File(zoomify, "TileGroup0/2-2-0.jpg"));
+    assertEquals("Wrong tile width!", 88, border.getWidth());
+    assertColor(Color.BLUE, border.getRGB(10, 10));
+
+    // Level 1 (300x128): TMS pads the top of the tile, Zoomify crops it
+    BufferedImage level1 = ImageIO.read(new File(zoomify, "TileGroup0/1-0-0.jpg"));
+    assertEquals("Wrong tile height!", 128, level1.getHeight());
+    assertColor(Color.RED, level1.getRGB(10, 10));
+    assertColor(Color.BLUE, level1.getRGB(200, 120));
+  }
+
+  private void assertColor(Color expected, int rgb) {
+    // JPEG tiles -> allow for compression artefacts
+    Color actual = new Color(rgb);
+    assertTrue("Wrong pixel: " + actual, Math.abs(expected.getRed() - actual.getRed()) < 16
+        && Math.abs(expected.getGreen() - actual.getGreen()) < 16 && Math.abs(expected.getBlue() - actual.getBlue()) < 16);
+  }
+}
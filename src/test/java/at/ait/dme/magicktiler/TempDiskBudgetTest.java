@@ -0,0 +1,114 @@
+package at.ait.dme.magicktiler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import at.ait.dme.magicktiler.Stripe.Orientation;
+
+/**
+ * Temp disk budget tests
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class TempDiskBudgetTest extends BaseTest {
+
+  private File workingDir = new File("test/tempdisk");
+
+  @Test
+  public void testAccounting() throws IOException, TilingException {
+    deleteDir(workingDir);
+    workingDir.mkdirs();
+    TempDiskBudget tempDisk = new TempDiskBudget(Long.MAX_VALUE);
+
+    Stripe stripe1 = tempDisk.add(new Stripe(writeFile("stripe-1.tif", 1000), 10, 10, Orientation.VERTICAL));
+    Stripe stripe2 = tempDisk.add(new Stripe(writeFile("stripe-2.tif", 3000), 10, 10, Orientation.VERTICAL));
+    assertEquals("Wrong usage!", 4000, tempDisk.getUsed());
+
+    // Merged stripes are deleted right away
+    tempDisk.delete(stripe1);
+    tempDisk.delete(stripe2);
+    assertFalse("Stripe not deleted!", stripe1.getImageFile().exists());
+    assertEquals("Wrong usage!", 0, tempDisk.getUsed());
+
+    tempDisk.add(writeFile("level.tif", 2000));
+    assertEquals("Wrong usage!", 2000, tempDisk.getUsed());
+    assertEquals("Wrong peak usage!", 4000, tempDisk.getPeak());
+  }
+
+  @Test
+  public void testReservation() throws InterruptedException, IOException {
+    deleteDir(workingDir);
+    workingDir.mkdirs();
+    final TempDiskBudget tempDisk = new TempDiskBudget(5000);
+
+    // A task does not start while the files of another one would exceed the budget
+    File level = writeFile("level.tif", 3000);
+    long first = tempDisk.reserve(3000);
+    tempDisk.add(level);
+    final CountDownLatch started = new CountDownLatch(1);
+    Thread second = new Thread() {
+      public void run() {
+        try {
+          long reserved = tempDisk.reserve(1000);
+          started.countDown();
+          tempDisk.release(reserved);
+        } catch (InterruptedException e) {
+          // Test fails below
+        }
+      }
+    };
+    second.start();
+    assertFalse("Task started beyond budget!", started.await(200, TimeUnit.MILLISECONDS));
+    tempDisk.delete(level);
+    tempDisk.release(first);
+    assertTrue("Task not started!", started.await(5, TimeUnit.SECONDS));
+    second.join();
+
+    // A task larger than the whole budget runs alone
+    assertEquals("Wrong reservation!", 5000, tempDisk.reserve(20000));
+  }
+
+  @Test
+  public void testFastTier() throws IOException {
+    deleteDir(workingDir);
+    File fastDir = new File(workingDir, "fast");
+    fastDir.mkdirs();
+    TempDiskBudget tempDisk = new TempDiskBudget(Long.MAX_VALUE);
+    tempDisk.setFastTier(fastDir, 5000);
+
+    // Files go to the fast tier as long as their predicted size fits
+    assertEquals("Wrong tier!", fastDir, tempDisk.place(workingDir, 3000, "stripe-0.tif", "stripe-1.tif"));
+    assertEquals("Wrong tier!", workingDir, tempDisk.place(workingDir, 3000, "stripe-2.tif"));
+    assertEquals("Wrong fast tier usage!", 3000, tempDisk.getFastUsed());
+
+    // The actual size replaces the prediction, deleted files free the quota
+    File stripe = new File(fastDir, "stripe-0.tif");
+    writeFile("fast/stripe-0.tif", 1000);
+    tempDisk.add(stripe);
+    assertEquals("Wrong fast tier usage!", 2500, tempDisk.getFastUsed());
+    tempDisk.delete(stripe);
+    tempDisk.delete(new File(fastDir, "stripe-1.tif"));
+    assertEquals("Wrong fast tier usage!", 0, tempDisk.getFastUsed());
+    assertEquals("Wrong tier!", fastDir, tempDisk.place(workingDir, 3000, "stripe-3.tif"));
+
+    // Placements of files that were never written are released completely
+    tempDisk.discard(fastDir, "stripe-3.tif");
+    assertEquals("Wrong tier!", fastDir, tempDisk.place(workingDir, 1000, "a.tif", "b.tif", "c.tif"));
+    tempDisk.discard(fastDir, "a.tif", "b.tif", "c.tif");
+    assertEquals("Wrong fast tier usage!", 0, tempDisk.getFastUsed());
+  }
+
+  private File writeFile(String name, int length) throws IOException {
+    File file = new File(workingDir, name);
+    FileOutputStream out = new FileOutputStream(file);
+    out.write(new byte[length]);
+    out.close();
+    return file;
+  }
+}
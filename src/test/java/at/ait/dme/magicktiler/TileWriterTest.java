@@ -0,0 +1,90 @@
+package at.ait.dme.magicktiler;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import at.ait.dme.magicktiler.MagickTiler.PyramidMode;
+import at.ait.dme.magicktiler.composite.CompositeTiler.Scheme;
+import at.ait.dme.magicktiler.image.ImageFormat;
+import at.ait.dme.magicktiler.image.TileWriter;
+import at.ait.dme.magicktiler.image.TileWriter.Durability;
+import at.ait.dme.magicktiler.mosaic.MosaicTiler;
+
+/**
+ * Tile writer tests
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class TileWriterTest extends BaseTest {
+
+  private File workingDir = new File("test/tilewriter");
+
+  @Before
+  public void setUp() {
+    deleteDir(workingDir);
+  }
+
+  @Test
+  public void testWriteBehind() throws IOException {
+    TileWriter writer = new TileWriter(2, Durability.DIRECTORY);
+    byte[] data = new byte[] { 1, 2, 3 };
+    for (int i = 0; i < 500; i++) {
+      File tile = new File(workingDir, (i % 10) + "/" + i + ".png");
+      writer.write(data, tile);
+
+      // Queued tiles can be read back before they are on disk
+      byte[] pending = writer.getPending(tile);
+      assertTrue("Tile neither pending nor written!", pending != null || tile.length() == data.length);
+    }
+    writer.close();
+
+    for (int i = 0; i < 500; i++) {
+      File tile = new File(workingDir, (i % 10) + "/" + i + ".png");
+      assertEquals("Tile not written!", data.length, tile.length());
+      assertNull("Tile still pending!", writer.getPending(tile));
+    }
+  }
+
+  @Test
+  public void testMosaicWriteBehind() throws TilingException, IOException {
+    workingDir.mkdirs();
+    BufferedImage sheet = new BufferedImage(600, 400, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g = sheet.createGraphics();
+    g.setColor(Color.RED);
+    g.fillRect(0, 0, 600, 400);
+    g.dispose();
+    ImageIO.write(sheet, "png", new File(workingDir, "sheet.png"));
+    File placements = new File(workingDir, "map.txt");
+    FileWriter out = new FileWriter(placements);
+    out.write("sheet.png 0 0\n");
+    out.close();
+
+    // The higher levels are computed from base tiles that may still be queued
+    MosaicTiler t = new MosaicTiler(Scheme.TMS);
+    t.setWorkingDirectory(workingDir);
+    t.setTileFormat(ImageFormat.PNG);
+    t.setPyramidMode(PyramidMode.TILES);
+    t.setTileWriter(2, Durability.END_OF_RUN);
+    TilesetInfo info = t.convert(placements);
+
+    File tilesetRoot = new File(workingDir, "map");
+    for (int z = 0; z < info.getZoomLevels(); z++) {
+      File level = new File(tilesetRoot, Integer.toString(z));
+      assertTrue("Zoom level missing: " + z, level.isDirectory());
+      assertFalse("Zoom level empty: " + z, Arrays.asList(level.list()).isEmpty());
+    }
+    BufferedImage tile = ImageIO.read(new File(tilesetRoot, "0/0/0.png"));
+    assertEquals("Wrong pixel!", Color.RED.getRGB(), tile.getRGB(10, 200));
+  }
+}
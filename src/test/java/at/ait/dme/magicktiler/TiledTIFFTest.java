@@ -0,0 +1,157 @@
+package at.ait.dme.magicktiler;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Iterator;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+import org.junit.Test;
+
+import at.ait.dme.magicktiler.image.TiledTIFF;
+import at.ait.dme.magicktiler.image.TiledTIFF.Directory;
+
+/**
+ * Tiled TIFF tests
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class TiledTIFFTest extends BaseTest {
+
+  private File workingDir = new File("test/tiledtiff");
+
+  @Test
+  public void testJPEGTiles() throws IOException {
+    BufferedImage image = new BufferedImage(600, 300, BufferedImage.TYPE_INT_RGB);
+    for (int y = 0; y < image.getHeight(); y++)
+      for (int x = 0; x < image.getWidth(); x++)
+        image.setRGB(x, y, (x < 256) ? 0xff0000 : (x < 512) ? 0x00ff00 : 0x0000ff);
+
+    File file = writeTiledTIFF(image, "JPEG");
+    if (file == null)
+      return;
+
+    TiledTIFF tiff = new TiledTIFF(file);
+    try {
+      Directory dir = tiff.getDirectories().get(0);
+      assertTrue("Image not recognized as tiled!", dir.isTiled());
+      assertEquals("Wrong compression!", TiledTIFF.COMPRESSION_JPEG, dir.getCompression());
+      assertEquals("Wrong number of tile columns!", 3, dir.getColumns());
+      assertEquals("Wrong number of tile rows!", 2, dir.getRows());
+
+      // Each tile must be a standalone JPEG with the color of its column
+      int[] colors = new int[] { 0xff0000, 0x00ff00, 0x0000ff };
+      for (int col = 0; col < 3; col++) {
+        BufferedImage tile = ImageIO.read(new ByteArrayInputStream(tiff.getJPEGTile(dir, col, 1)));
+        assertEquals(256, tile.getWidth());
+        int rgb = tile.getRGB(10, 10);
+        for (int shift = 0; shift < 24; shift += 8) {
+          int diff = Math.abs(((rgb >> shift) & 0xff) - ((colors[col] >> shift) & 0xff));
+          assertTrue("Wrong color in tile " + col + ": " + Integer.toHexString(rgb), diff < 8);
+        }
+      }
+    } finally {
+      tiff.close();
+    }
+  }
+
+  @Test
+  public void testUncompressedTiles() throws IOException {
+    BufferedImage image = new BufferedImage(300, 520, BufferedImage.TYPE_INT_RGB);
+    File file = writeTiledTIFF(image, null);
+    if (file == null)
+      return;
+
+    TiledTIFF tiff = new TiledTIFF(file);
+    try {
+      Directory dir = tiff.getDirectories().get(0);
+      assertEquals("Wrong compression!", TiledTIFF.COMPRESSION_NONE, dir.getCompression());
+      assertEquals("Wrong number of tile rows!", 3, dir.getRows());
+      assertEquals("Wrong tile size!", 256 * 256 * 3, tiff.getTileData(dir, 1, 2).length);
+      try {
+        tiff.getJPEGTile(dir, 0, 0);
+        fail("Uncompressed tiles are not JPEGs");
+      } catch (IOException e) {
+        // Expected
+      }
+    } finally {
+      tiff.close();
+    }
+  }
+
+  @Test
+  public void testCorruptIFDChain() throws IOException {
+    // An IFD pointing back to itself, and one pointing beyond the end of the file
+    assertInvalid(writeTIFF(8), "Circular IFD chain");
+    assertInvalid(writeTIFF(4096), "Invalid IFD offset");
+  }
+
+  private void assertInvalid(File file, String message) {
+    try {
+      new TiledTIFF(file).close();
+      fail("Corrupt IFD chain not detected");
+    } catch (IOException e) {
+      assertTrue("Wrong error: " + e.getMessage(), e.getMessage().startsWith(message));
+    }
+  }
+
+  /**
+   * Writes a TIFF header and a single IFD (with just the image width) at offset 8.
+   */
+  private File writeTIFF(int nextIFD) throws IOException {
+    ByteBuffer tiff = ByteBuffer.allocate(26).order(ByteOrder.LITTLE_ENDIAN);
+    tiff.put((byte) 'I').put((byte) 'I').putShort((short) 42).putInt(8);
+    tiff.putShort((short) 1).putShort((short) 256).putShort((short) 3).putInt(1).putInt(100);
+    tiff.putInt(nextIFD);
+
+    workingDir.mkdirs();
+    File file = new File(workingDir, "corrupt.tif");
+    FileOutputStream out = new FileOutputStream(file);
+    try {
+      out.write(tiff.array());
+    } finally {
+      out.close();
+    }
+    return file;
+  }
+
+  private File writeTiledTIFF(BufferedImage image, String compression) throws IOException {
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersBySuffix("tif");
+    if (!writers.hasNext())
+      return null;
+
+    deleteDir(workingDir);
+    workingDir.mkdirs();
+    File file = new File(workingDir, "tiled.tif");
+
+    ImageWriter writer = writers.next();
+    ImageOutputStream out = ImageIO.createImageOutputStream(file);
+    try {
+      ImageWriteParam param = writer.getDefaultWriteParam();
+      param.setTilingMode(ImageWriteParam.MODE_EXPLICIT);
+      param.setTiling(256, 256, 0, 0);
+      if (compression != null) {
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionType(compression);
+      } else {
+        param.setCompressionMode(ImageWriteParam.MODE_DISABLED);
+      }
+      writer.setOutput(out);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+      out.close();
+    }
+    return file;
+  }
+}
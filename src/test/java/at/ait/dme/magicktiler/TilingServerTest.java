@@ -0,0 +1,209 @@
+package at.ait.dme.magicktiler;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.im4java.core.IMOperation;
+import org.im4java.core.ImageCommand;
+import org.junit.Test;
+
+import at.ait.dme.magicktiler.image.ProcessGroup;
+
+/**
+ * Tiling server tests
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class TilingServerTest extends BaseTest {
+
+  private File workingDir = new File("test/server");
+
+  /**
+   * The inputs in the order their jobs started
+   */
+  private List<String> started = Collections.synchronizedList(new ArrayList<String>());
+
+  /**
+   * Reports two phases, and blocks for inputs named 'slow*' until interrupted
+   */
+  private class StubTiler extends MagickTiler {
+
+    @Override
+    protected TilesetInfo convertFile(File image, File target) throws TilingException {
+      started.add(image.getName());
+      startPhase("Striping base image");
+      try {
+        if (image.getName().startsWith("slow"))
+          Thread.sleep(60000);
+        Thread.sleep(20);
+      } catch (InterruptedException e) {
+        throw new TilingException("Interrupted");
+      }
+      startPhase("Tiling level 1");
+      progressListener.progress(1, 1);
+      return null;
+    }
+
+    @Override
+    protected TilesetInfo convert(File image, TilesetInfo info) throws TilingException {
+      return null;
+    }
+  }
+
+  @Test
+  public void testJobs() throws Exception {
+    deleteDir(workingDir);
+    workingDir.mkdirs();
+    for (String name : new String[] { "slow.tif", "low.tif", "high.tif" })
+      new FileWriter(new File(workingDir, name)).close();
+
+    TilingServer server = new TilingServer(0) {
+      @Override
+      protected MagickTiler createTiler(String scheme) {
+        return scheme.equals("tms") ? new StubTiler() : null;
+      }
+    };
+    server.setWorkers(1);
+    server.setWorkingDirectory(workingDir);
+    server.setToken("secret");
+    server.start();
+    String jobs = "http://localhost:" + server.getPort() + TilingServer.JOBS_PATH;
+    try {
+      // Requests without the token, or from web pages of other origins, are rejected
+      assertEquals("Wrong status!", 401, request("POST", jobs + "?scheme=tms&input=test/server/low.tif", null, null));
+      assertEquals("Wrong status!", 403, requestFromOrigin(server.getPort(), "http://evil.example.com"));
+      assertTrue("Job submitted!", server.getJobs().isEmpty());
+
+      assertEquals("Wrong status!", 400, request("POST", jobs + "?scheme=foo&input=test/server/slow.tif"));
+      assertEquals("Wrong status!", 404, request("GET", jobs + "/42"));
+
+      // The slow job blocks the only worker, the others are queued by priority
+      assertEquals("Wrong status!", 201, request("POST", jobs + "?scheme=tms&input=test/server/slow.tif"));
+      waitFor(server.getJob(1), "RUNNING");
+      request("POST", jobs, "scheme=tms&input=test%2Fserver%2Flow.tif");
+      request("POST", jobs, "scheme=tms&input=test/server/high.tif&priority=5");
+      assertEquals("Wrong status!", TilingJob.Status.QUEUED, server.getJob(2).getStatus());
+      assertTrue("Wrong phase!", server.getJob(1).toJSON().contains("\"phase\":\"Striping base image\""));
+
+      // Cancelling interrupts the running job
+      assertEquals("Wrong status!", 200, request("DELETE", jobs + "/1"));
+      assertEquals("Wrong status!", 409, request("DELETE", jobs + "/1"));
+      waitFor(server.getJob(2), "DONE");
+      assertEquals("Wrong order!", "[slow.tif, high.tif, low.tif]", started.toString());
+      assertEquals("Wrong status!", TilingJob.Status.CANCELLED, server.getJob(1).getStatus());
+
+      String json = server.getJob(2).toJSON();
+      assertTrue("Phase timing missing!", json.matches(".*\"timings\":\\{\"Striping base image\":\\d+,"
+          + "\"Tiling level 1\":\\d+\\}.*"));
+      assertTrue("Progress missing!", json.contains("\"completed\":1,\"total\":1"));
+
+      // Only the most recent finished job is kept
+      waitFor(server.getJob(3), "DONE");
+      server.setRetention(TilingServer.DEFAULT_RETENTION_TIME, 1);
+      assertEquals("Wrong number of jobs!", 1, server.getJobs().size());
+      assertNotNull("Most recent job removed!", server.getJob(2));
+    } finally {
+      server.stop();
+    }
+  }
+
+  @Test
+  public void testProcessGroup() throws Exception {
+    final ProcessGroup group = new ProcessGroup();
+    final ImageCommand sleep = new ImageCommand("sleep");
+    final IMOperation op = new IMOperation();
+    op.addRawArgs("60");
+    final Exception[] result = new Exception[1];
+    Thread thread = new Thread() {
+      public void run() {
+        try {
+          group.run(sleep, op);
+        } catch (Exception e) {
+          result[0] = e;
+        }
+      }
+    };
+    thread.start();
+    for (int i = 0; i < 100 && group.getRunning() == 0; i++)
+      Thread.sleep(50);
+    assertEquals("Process not running!", 1, group.getRunning());
+
+    // Cancelling kills the process
+    group.cancel();
+    thread.join(5000);
+    assertFalse("Process not killed!", thread.isAlive());
+    assertTrue("Wrong exception!", result[0] instanceof InterruptedException);
+  }
+
+  private void waitFor(TilingJob job, String status) throws InterruptedException {
+    for (int i = 0; i < 200 && !job.getStatus().name().equals(status); i++)
+      Thread.sleep(50);
+    assertEquals("Wrong status!", status, job.getStatus().name());
+  }
+
+  private int request(String method, String url) throws IOException {
+    return request(method, url, null);
+  }
+
+  private int request(String method, String url, String form) throws IOException {
+    return request(method, url, form, "secret");
+  }
+
+  private int request(String method, String url, String form, String token) throws IOException {
+    HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+    connection.setRequestMethod(method);
+    if (token != null)
+      connection.setRequestProperty("Authorization", "Bearer " + token);
+    if (form != null) {
+      connection.setDoOutput(true);
+      connection.setRequestProperty("Content-Type", "application/x-www-form-urlencoded");
+      OutputStream out = connection.getOutputStream();
+      out.write(form.getBytes("UTF-8"));
+      out.close();
+    }
+    int status = connection.getResponseCode();
+    InputStream in = (status < 400) ? connection.getInputStream() : connection.getErrorStream();
+    ByteArrayOutputStream body = new ByteArrayOutputStream();
+    if (in != null) {
+      byte[] buffer = new byte[4096];
+      int read;
+      while ((read = in.read(buffer)) > 0)
+        body.write(buffer, 0, read);
+      in.close();
+    }
+    assertTrue("Not JSON!", body.toString("UTF-8").startsWith("{"));
+    return status;
+  }
+
+  /**
+   * Submits a job with the right token, as a web page of the given origin (HttpURLConnection
+   * does not send Origin headers)
+   */
+  private int requestFromOrigin(int port, String origin) throws IOException {
+    Socket socket = new Socket("localhost", port);
+    try {
+      OutputStream out = socket.getOutputStream();
+      out.write(("POST " + TilingServer.JOBS_PATH + "?scheme=tms&input=test/server/low.tif HTTP/1.1\r\n"
+          + "Host: localhost:" + port + "\r\nOrigin: " + origin + "\r\nAuthorization: Bearer secret\r\n"
+          + "Content-Length: 0\r\nConnection: close\r\n\r\n").getBytes("UTF-8"));
+      out.flush();
+      String status = new BufferedReader(new InputStreamReader(socket.getInputStream(), "UTF-8")).readLine();
+      return Integer.parseInt(status.split(" ")[1]);
+    } finally {
+      socket.close();
+    }
+  }
+}
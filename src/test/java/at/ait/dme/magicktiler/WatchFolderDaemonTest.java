@@ -0,0 +1,124 @@
+package at.ait.dme.magicktiler;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+import org.junit.Test;
+
+/**
+ * Watch folder daemon tests
+ * 
+ * @author Rainer Simon <magicktiler@gmail.com>
+ * @author Christian Sadilek <christian.sadilek@gmail.com>
+ */
+public class WatchFolderDaemonTest extends BaseTest {
+
+  private File workingDir = new File("test/watch");
+
+  /**
+   * Writes a single tile per input file, fails for inputs named 'corrupt*'
+   */
+  private static class StubTiler extends MagickTiler {
+
+    @Override
+    protected TilesetInfo convertFile(File image, File target) throws TilingException {
+      if (image.getName().startsWith("corrupt"))
+        throw new TilingException("Corrupt scan");
+      try {
+        target.mkdirs();
+        Files.copy(image.toPath(), new File(target, "0.jpg").toPath());
+      } catch (IOException e) {
+        throw new TilingException(e.getMessage());
+      }
+      return null;
+    }
+
+    @Override
+    protected TilesetInfo convert(File image, TilesetInfo info) throws TilingException {
+      return null;
+    }
+  }
+
+  @Test
+  public void testWatchFolder() throws Exception {
+    deleteDir(workingDir);
+    File spool = new File(workingDir, "spool");
+    File output = new File(workingDir, "output");
+    MagickTiler tiler = new StubTiler();
+    tiler.setWorkingDirectory(workingDir);
+
+    final WatchFolderDaemon daemon = new WatchFolderDaemon(tiler, spool, output);
+    daemon.setSettleTime(200);
+    Thread thread = new Thread() {
+      public void run() {
+        try {
+          daemon.run();
+        } catch (IOException e) {
+          fail(e.getMessage());
+        }
+      }
+    };
+    thread.start();
+
+    File done = new File(spool, WatchFolderDaemon.DONE_DIR);
+    File quarantine = new File(spool, WatchFolderDaemon.QUARANTINE_DIR);
+    File tile = new File(output, "scan.tif/0.jpg");
+    try {
+      // Wait for the spool directory, then drop a file in two steps, and a corrupt one
+      for (int i = 0; i < 100 && !new File(spool, WatchFolderDaemon.DONE_DIR).exists(); i++)
+        Thread.sleep(50);
+      FileWriter out = new FileWriter(new File(spool, "scan.tif"));
+      out.write("first half");
+      out.flush();
+      Thread.sleep(100);
+      out.write(", second half");
+      out.close();
+      new FileWriter(new File(spool, "corrupt.tif")).close();
+
+      for (int i = 0; i < 200 && !(tile.exists() && list(quarantine, "corrupt.tif.error").size() == 1); i++)
+        Thread.sleep(50);
+
+      // The same name dropped again: replaces the tileset, the first input is kept in done
+      for (int i = 0; i < 200 && list(done, "scan.tif").isEmpty(); i++)
+        Thread.sleep(50);
+      out = new FileWriter(new File(spool, "scan.tif"));
+      out.write("second scan");
+      out.close();
+      for (int i = 0; i < 200 && list(done, "scan.tif").size() < 2; i++)
+        Thread.sleep(50);
+    } finally {
+      daemon.stop();
+      thread.join();
+    }
+
+    assertEquals("Wrong tileset!", "second scan", new String(Files.readAllBytes(tile.toPath()),
+        Charset.forName("UTF-8")));
+    assertEquals("Inputs not moved to done!", 2, list(done, "scan.tif").size());
+    assertFalse("Input still in spool!", new File(spool, "scan.tif").exists());
+    assertEquals("Corrupt input not quarantined!", 1, list(quarantine, "corrupt.tif").size());
+    File error = list(quarantine, "corrupt.tif" + WatchFolderDaemon.ERROR_SUFFIX).get(0);
+    assertEquals("Wrong error message!", "Corrupt scan", new String(Files.readAllBytes(error.toPath()),
+        Charset.forName("UTF-8")));
+    assertEquals("Unexpected files in output!", 1, output.list().length);
+    assertEquals("Unexpected files in processing!", 0,
+        new File(spool, WatchFolderDaemon.PROCESSING_DIR).list().length);
+  }
+
+  /**
+   * Lists the files in a directory with the given name (after the timestamp prefix)
+   */
+  private List<File> list(File directory, String name) {
+    List<File> files = new ArrayList<File>();
+    for (File file : directory.listFiles()) {
+      if (file.getName().matches("\\d{8}-\\d{6}-\\d{3}-(\\d+-)?" + Pattern.quote(name)))
+        files.add(file);
+    }
+    return files;
+  }
+}